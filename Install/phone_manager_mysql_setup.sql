@@ -107,10 +107,35 @@ CREATE TABLE `callhistory` (
   `type` varchar(20) NOT NULL DEFAULT 'NA',
   `activePerson` int(11) DEFAULT NULL,
   PRIMARY KEY (`callhistory_id`),
-  KEY `icallchannel` (`callchannel`)
+  KEY `icallchannel` (`callchannel`),
+  KEY `itime_state_channel` (`time`,`state`,`callchannel`),
+  KEY `icallchannel_state` (`callchannel`,`state`)
 ) ENGINE=InnoDB AUTO_INCREMENT=2975 DEFAULT CHARSET=latin1 COMMENT='latin1_swedish_ci';
 /*!40101 SET character_set_client = @saved_cs_client */;
 
+--
+-- Table structure for table `callhistory_archive`
+--
+
+DROP TABLE IF EXISTS `callhistory_archive`;
+/*!40101 SET @saved_cs_client     = @@character_set_client */;
+/*!40101 SET character_set_client = utf8 */;
+CREATE TABLE `callhistory_archive` (
+  `callhistory_id` int(11) NOT NULL AUTO_INCREMENT,
+  `time` timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP,
+  `phonenumber` varchar(16) NOT NULL,
+  `state` varchar(1) NOT NULL DEFAULT 'X',
+  `operator` varchar(25) NOT NULL DEFAULT 'NA',
+  `callchannel` decimal(15,3) NOT NULL,
+  `type` varchar(20) NOT NULL DEFAULT 'NA',
+  `activePerson` int(11) DEFAULT NULL,
+  PRIMARY KEY (`callhistory_id`),
+  KEY `icallchannel` (`callchannel`),
+  KEY `itime_state_channel` (`time`,`state`,`callchannel`),
+  KEY `icallchannel_state` (`callchannel`,`state`)
+) ENGINE=InnoDB DEFAULT CHARSET=latin1 COMMENT='latin1_swedish_ci';
+/*!40101 SET character_set_client = @saved_cs_client */;
+
 --
 -- Table structure for table `callinputfields`
 --
@@ -161,10 +186,33 @@ CREATE TABLE `conversations` (
   `channel` decimal(15,3) NOT NULL DEFAULT '0.000',
   `conversation` tinytext NOT NULL,
   `person_id` int(11) NOT NULL DEFAULT '-1',
-  PRIMARY KEY (`conversations_id`)
+  PRIMARY KEY (`conversations_id`),
+  KEY `ichannel` (`channel`),
+  KEY `iperson_time` (`person_id`,`time`),
+  KEY `itime` (`time`)
 ) ENGINE=InnoDB AUTO_INCREMENT=7 DEFAULT CHARSET=latin1 COMMENT='latin1_swedish_ci';
 /*!40101 SET character_set_client = @saved_cs_client */;
 
+--
+-- Table structure for table `conversations_archive`
+--
+
+DROP TABLE IF EXISTS `conversations_archive`;
+/*!40101 SET @saved_cs_client     = @@character_set_client */;
+/*!40101 SET character_set_client = utf8 */;
+CREATE TABLE `conversations_archive` (
+  `conversations_id` int(11) NOT NULL AUTO_INCREMENT,
+  `time` timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP,
+  `channel` decimal(15,3) NOT NULL DEFAULT '0.000',
+  `conversation` tinytext NOT NULL,
+  `person_id` int(11) NOT NULL DEFAULT '-1',
+  PRIMARY KEY (`conversations_id`),
+  KEY `ichannel` (`channel`),
+  KEY `iperson_time` (`person_id`,`time`),
+  KEY `itime` (`time`)
+) ENGINE=InnoDB DEFAULT CHARSET=latin1 COMMENT='latin1_swedish_ci';
+/*!40101 SET character_set_client = @saved_cs_client */;
+
 --
 -- Table structure for table `person`
 --
@@ -202,10 +250,36 @@ CREATE TABLE `phonenumbers` (
   `person_id` int(11) NOT NULL,
   `lastUpdate` timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP,
   PRIMARY KEY (`numbers_id`),
-  KEY `iphone_number` (`phone_number`)
+  KEY `iphone_number` (`phone_number`),
+  KEY `iperson_id` (`person_id`)
 ) ENGINE=InnoDB AUTO_INCREMENT=17 DEFAULT CHARSET=latin1 COMMENT='latin1_swedish_ci';
 /*!40101 SET character_set_client = @saved_cs_client */;
 
+--
+-- Table structure for table `schema_version`
+--
+
+DROP TABLE IF EXISTS `schema_version`;
+/*!40101 SET @saved_cs_client     = @@character_set_client */;
+/*!40101 SET character_set_client = utf8 */;
+CREATE TABLE `schema_version` (
+  `version` int(11) NOT NULL,
+  `description` varchar(128) NOT NULL,
+  `applied` timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP,
+  PRIMARY KEY (`version`)
+) ENGINE=InnoDB DEFAULT CHARSET=latin1;
+/*!40101 SET character_set_client = @saved_cs_client */;
+
+--
+-- Dumping data for table `schema_version`
+--
+
+LOCK TABLES `schema_version` WRITE;
+/*!40000 ALTER TABLE `schema_version` DISABLE KEYS */;
+INSERT INTO `schema_version` (`version`, `description`) VALUES (1,'conversations.ichannel (channel)'),(2,'conversations.iperson_time (person_id, time)'),(3,'callhistory.itime_state_channel (time, state, callchannel)'),(4,'callhistory.icallchannel_state (callchannel, state)'),(5,'phonenumbers.iperson_id (person_id)'),(6,'conversations.itime (time)'),(7,'create callhistory_archive'),(8,'create conversations_archive');
+/*!40000 ALTER TABLE `schema_version` ENABLE KEYS */;
+UNLOCK TABLES;
+
 /*!40103 SET TIME_ZONE=@OLD_TIME_ZONE */;
 
 /*!40101 SET SQL_MODE=@OLD_SQL_MODE */;
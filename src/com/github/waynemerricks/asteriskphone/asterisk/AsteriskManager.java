@@ -4,15 +4,14 @@ import java.beans.PropertyChangeEvent;
 import java.beans.PropertyChangeListener;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
-import java.util.Map.Entry;
-import java.util.Set;
-import java.util.Vector;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -25,14 +24,13 @@ import org.asteriskjava.live.CallerId;
 import org.asteriskjava.live.ChannelState;
 import org.asteriskjava.live.DefaultAsteriskServer;
 import org.asteriskjava.live.Extension;
-import org.asteriskjava.live.LiveException;
 import org.asteriskjava.live.ManagerCommunicationException;
 import org.asteriskjava.live.MeetMeUser;
-import org.asteriskjava.live.OriginateCallback;
 import org.asteriskjava.live.internal.AsteriskAgentImpl;
-import org.asteriskjava.manager.TimeoutException;
-import org.asteriskjava.manager.action.ExtensionStateAction;
-import org.asteriskjava.manager.response.ExtensionStateResponse;
+import org.asteriskjava.manager.action.HangupAction;
+import org.asteriskjava.manager.action.OriginateAction;
+import org.asteriskjava.manager.action.RedirectAction;
+import org.asteriskjava.manager.response.ManagerResponse;
 import org.jivesoftware.smack.Chat;
 import org.jivesoftware.smack.MessageListener;
 import org.jivesoftware.smack.PacketListener;
@@ -45,11 +43,15 @@ import com.github.waynemerricks.asteriskphone.database.ActivePersonChanger;
 import com.github.waynemerricks.asteriskphone.database.DatabaseManager;
 import com.github.waynemerricks.asteriskphone.database.PersonChanger;
 import com.github.waynemerricks.asteriskphone.database.RecordUpdater;
+import com.github.waynemerricks.asteriskphone.protocol.ControlMessage;
+import com.github.waynemerricks.asteriskphone.protocol.ControlMessageCodec;
+import com.github.waynemerricks.asteriskphone.protocol.Opcode;
+import com.github.waynemerricks.asteriskphone.protocol.StateSnapshot;
 import com.github.waynemerricks.asteriskphone.records.OutgoingCall;
 import com.github.waynemerricks.asteriskphone.records.PhoneCall;
 import com.github.waynemerricks.asteriskphone.records.TrackDial;
 
-public class AsteriskManager implements AsteriskServerListener, PropertyChangeListener, OriginateCallback, PacketListener, MessageListener {
+public class AsteriskManager implements AsteriskServerListener, PropertyChangeListener, PacketListener, MessageListener {
 
 	//STATICS
 	private static final Logger AST_LOGGER = Logger.getLogger("org.asteriskjava"); 
@@ -62,14 +64,19 @@ public class AsteriskManager implements AsteriskServerListener, PropertyChangeLi
 	private static final String SIP_PREFIX = "Local/"; 
 	private static final int DEFAULT_PRIORITY = 1;
 	private static final long DEFAULT_TIMEOUT = 30000L; //Default time out if database record is null
-	private static final int DEFAULT_EXECUTOR_THREADS = 4; //Default threads if database is null
 	private static final long DEFAULT_CHANNEL_LOCK = 3000; //Default time for the channel lock to be enforced if db is null
+	private static final long DEFAULT_REGISTRY_TTL = 14400000L; //Default time before stale channel registry entries expire if db is null
+	private static final long DEFAULT_EXTENSION_STATE_TTL = 10000L; //Default time an extension state is cached if db is null
+	private static final int DEFAULT_ACTIONS_IN_FLIGHT = 32; //Default AMI actions waiting for an answer if db is null
+	private static final long DEFAULT_ACTION_TIMEOUT = 5000L; //Default time to wait for an AMI action if db is null
+	private static final long PIPELINE_DRAIN_WAIT = 5000L; //Time to wait for each pipeline stage to drain on disconnect
 
 	//CLASS VARS
 	private AsteriskServer asteriskServer;
 	private ArrayList<AsteriskServer> trunkServers = new ArrayList<AsteriskServer>();//Holds other servers for extension lookups
-	private HashMap<String, AsteriskChannel> activeChannels = new HashMap<String, AsteriskChannel>();
-	private HashMap<String, Long> lockedChannels = new HashMap<String, Long>();
+	private ExtensionStateService extensionStates;
+	private ManagerActionService actions; //Redirects, hang ups and originates on the main server
+	private ChannelRegistry registry; //Active channels, locks and outgoing call tracking
 	private I18NStrings xStrings;
 	private String autoAnswerContext, defaultContext, contextMacroAuto, queueNumber, dialPrefix;
 	private long defaultTimeOut, channelLockTimeOut;
@@ -77,17 +84,15 @@ public class AsteriskManager implements AsteriskServerListener, PropertyChangeLi
 	private DatabaseManager databaseManager;
 	private HashSet<String> systemExtensions = new HashSet<String>();
 	private HashMap<String, String> settings;
-	private HashMap<String, String> calls = new HashMap<String, String>(); //HashMap to store dialled calls in progress <fromNumber or channel, toWithoutPrefix>
-	private HashMap<String, OutgoingCall> ringingExternal = new HashMap<String, OutgoingCall>(); //For external outbound calls channel => outbound
-	private HashMap<String, String> expectedInQueue = new HashMap<String, String>(); //For calls we know will go to queue with a new channel, callerid => old/current channel
 	private boolean startup = true; //Flag that we're starting up so ignore messages
+	private AtomicLong sequence = new AtomicLong(); //Last control room message sent
+	private long sequenceEpoch = System.currentTimeMillis(); //Lets clients spot a restart
 	
-	/* We need to spawn threads for event response with db lookups, in order to guard against
-	 * craziness, we'll use the ExecutorService to have X threads available to use (set via
-	 * DB threadPoolMax
+	/* Listener threads hand everything to the pipeline, channel events run in order on
+	 * eventLanes lanes and db lookups run on threadPoolMax workers (both set via DB)
 	 */
-	private ExecutorService dbLookUpService; 
-	private int maxExecutorThreads;
+	private EventPipeline pipeline; 
+	private TrafficRecorder recorder; //Only if trafficRecordFile is set
 	
 	/**
 	 * Creates a new Asterisk Manager instance that handles events and sends commands via XMPP
@@ -97,6 +102,24 @@ public class AsteriskManager implements AsteriskServerListener, PropertyChangeLi
 	 */
 	public AsteriskManager(DatabaseManager databaseManager, MultiUserChat controlRoom){
 		
+		this(databaseManager, controlRoom, null, null);
+		
+	}
+	
+	/**
+	 * Creates a new Asterisk Manager on the given server, used by the simulator and the
+	 * benchmarks to run against a stand in server
+	 * @param databaseManager used for settings and saving records to DB
+	 * @param controlRoom XMPP Chat Room to use for control messages
+	 * @param server server to use or null to connect to asteriskHost and any trunks
+	 * as normal.  Traffic is only recorded when this is null
+	 * @param pipeline pipeline to run events on (not started) or null to create one
+	 * from the settings.  Pass one in to watch its queues, the manager starts and shuts
+	 * it down
+	 */
+	public AsteriskManager(DatabaseManager databaseManager, MultiUserChat controlRoom, 
+			AsteriskServer server, EventPipeline pipeline){
+		
 		this.databaseManager = databaseManager;
 		settings = databaseManager.getUserSettings();
 		this.autoAnswerContext = settings.get("autoAnswerContext"); 
@@ -115,16 +138,16 @@ public class AsteriskManager implements AsteriskServerListener, PropertyChangeLi
 		else
 			this.defaultTimeOut = DEFAULT_TIMEOUT;
 		
-		if(settings.containsKey("threadPoolMax")) 
-			this.maxExecutorThreads = Integer.parseInt(settings.get("threadPoolMax")); 
-		else
-			this.maxExecutorThreads = DEFAULT_EXECUTOR_THREADS;
-		
 		if(settings.containsKey("channelLockTimeOut")) 
 			this.channelLockTimeOut = Long.parseLong(settings.get("channelLockTimeOut")); 
 		else
 			this.channelLockTimeOut = DEFAULT_CHANNEL_LOCK;
 		
+		long registryTimeToLive = DEFAULT_REGISTRY_TTL;
+		
+		if(settings.containsKey("channelRegistryTTL")) 
+			registryTimeToLive = Long.parseLong(settings.get("channelRegistryTTL")); 
+		
 		this.controlRoom = controlRoom; //Control Room XMPP chat
 		this.controlRoom.addMessageListener(this);
 		
@@ -132,16 +155,38 @@ public class AsteriskManager implements AsteriskServerListener, PropertyChangeLi
 		AST_LOGGER.setLevel(Level.SEVERE);
 		
 		xStrings = new I18NStrings(settings.get("language"), settings.get("country"));  
+		if(pipeline != null)
+			this.pipeline = pipeline;
+		else
+			this.pipeline = new EventPipeline(settings);
+		registry = new ChannelRegistry(registryTimeToLive, settings.get("language"), 
+				settings.get("country"));
 		
-		asteriskServer = new DefaultAsteriskServer(settings.get("asteriskHost"),  
-				settings.get("asteriskUser"), settings.get("asteriskPass"));  
+		if(server != null)
+			asteriskServer = server;
+		else{
+			
+			asteriskServer = new DefaultAsteriskServer(settings.get("asteriskHost"),  
+					settings.get("asteriskUser"), settings.get("asteriskPass"));  
+			
+			if(settings.containsKey("trafficRecordFile") && 
+					settings.get("trafficRecordFile").trim().length() > 0)
+				try{
+					recorder = new TrafficRecorder(settings.get("trafficRecordFile").trim(), 
+							settings.get("language"), settings.get("country"));
+				}catch(IOException e){
+					LOGGER.warning(xStrings.getString("AsteriskManager.errorOpeningTrafficRecord") + 
+							settings.get("trafficRecordFile"));
+				}
+			
+		}
 		
 		/* Connect to any trunk hosts we have so we can lookup extensions on 
 		 * other servers */
 		String trunkHost = "trunkHost";
 		int i = 1;
 		
-		while(settings.containsKey(trunkHost + i)){
+		while(server == null && settings.containsKey(trunkHost + i)){
 			
 			AsteriskServer trunkServer = new DefaultAsteriskServer(
 					settings.get("trunkHost" + i),
@@ -154,6 +199,28 @@ public class AsteriskManager implements AsteriskServerListener, PropertyChangeLi
 			
 		}
 		
+		int actionsInFlight = DEFAULT_ACTIONS_IN_FLIGHT;
+		long actionTimeOut = DEFAULT_ACTION_TIMEOUT;
+		
+		if(settings.containsKey("actionsInFlightMax")) 
+			actionsInFlight = Integer.parseInt(settings.get("actionsInFlightMax")); 
+		
+		if(settings.containsKey("actionTimeOut")) 
+			actionTimeOut = Long.parseLong(settings.get("actionTimeOut")); 
+		
+		actions = new ManagerActionService(asteriskServer.getManagerConnection(), 
+				actionsInFlight, actionTimeOut, settings.get("language"), 
+				settings.get("country"));
+		
+		long extensionStateTimeToLive = DEFAULT_EXTENSION_STATE_TTL;
+		
+		if(settings.containsKey("extensionStateTTL")) 
+			extensionStateTimeToLive = Long.parseLong(settings.get("extensionStateTTL")); 
+		
+		extensionStates = new ExtensionStateService(asteriskServer, actions, trunkServers, 
+				settings.get("defaultContext"), extensionStateTimeToLive, 
+				settings.get("language"), settings.get("country"));
+		
 		systemExtensions = databaseManager.getSystemExtensions();
 		
 	}
@@ -175,14 +242,15 @@ public class AsteriskManager implements AsteriskServerListener, PropertyChangeLi
 	 */
 	public void connect() throws ManagerCommunicationException {
 		
+		pipeline.start();
 		asteriskServer.initialize();
 		asteriskServer.addAsteriskServerListener(this);
-		dbLookUpService = Executors.newFixedThreadPool(maxExecutorThreads);
 		
 		//Connect to any trunks we might have
 		for(int i = 0; i < trunkServers.size(); i++)
 			trunkServers.get(i).initialize();
 		
+		extensionStates.start();
 		getChannels();
 		sendMessage(xStrings.getString("AsteriskManager.XMPPServerHello")); 
 		
@@ -190,16 +258,38 @@ public class AsteriskManager implements AsteriskServerListener, PropertyChangeLi
 	
 	/**
 	 * Disconnects from Asterisk server
+	 * 
+	 * Stops listening first and lets the pipeline finish what is queued while the
+	 * action and extension state services are still there for it to use
 	 */
 	public void disconnect() {
 		
+		//Stop taking in new events
+		controlRoom.removeMessageListener(this);
+		asteriskServer.removeAsteriskServerListener(this);
+		
+		for(AsteriskChannel asteriskChannel : asteriskServer.getChannels())
+			asteriskChannel.removePropertyChangeListener(this);
+		
+		//Finish anything still queued
+		pipeline.shutdown();
+		
+		if(!pipeline.awaitTermination(PIPELINE_DRAIN_WAIT))
+			LOGGER.warning(xStrings.getString("AsteriskManager.pipelineNotDrained")); 
+		
+		actions.shutdown();
+		extensionStates.shutdown();
 		asteriskServer.shutdown();
 		
 		//Disconnect any trunks
 		for(int i = 0; i < trunkServers.size(); i++)
 			trunkServers.get(i).shutdown();
 		
+		if(recorder != null)
+			recorder.close();
+		
 	}
+	
 
 	/**
 	 * Gets the active Channels, adds a property change and keeps track of them via
@@ -210,6 +300,10 @@ public class AsteriskManager implements AsteriskServerListener, PropertyChangeLi
 		for (AsteriskChannel asteriskChannel : asteriskServer.getChannels()) {
             
 			LOGGER.info(xStrings.getString("AsteriskManager.startupActiveChannels") + "/" + asteriskChannel.getId());  
+			
+			if(recorder != null)
+				recorder.newChannel(asteriskChannel);
+			
 			asteriskChannel.addPropertyChangeListener(this);
 			addActiveChannel(asteriskChannel);
 			//System.out.println(asteriskChannel);
@@ -222,10 +316,9 @@ public class AsteriskManager implements AsteriskServerListener, PropertyChangeLi
 	 * Adds the given channel to the active channels list
 	 * @param channel
 	 */
-	private synchronized void addActiveChannel(AsteriskChannel channel){
+	private void addActiveChannel(AsteriskChannel channel){
 	
-		activeChannels.put(channel.getId(), channel);
-		//System.out.println(activeChannels.size());
+		registry.addChannel(channel);
 		
 	}
 	
@@ -233,18 +326,40 @@ public class AsteriskManager implements AsteriskServerListener, PropertyChangeLi
 	 * Removes the given channel to the active channels list
 	 * @param channelID
 	 */
-	private synchronized void removeActiveChannel(String channelID){
+	private void removeActiveChannel(String channelID){
 		
-		activeChannels.remove(channelID);
+		registry.removeChannel(channelID);
 		
 	}
 	
 	/**
-	 * Lists the channels and queue members on the server and sends appropriate updates
-	 * to the recipient listed via private XMPP messages
+	 * Sends the current channels and queue members to the recipient, either as a
+	 * snapshot or as the old one private message per channel
 	 * @param recipient XMPP recipient to send messages to
+	 * @param snapshot true to send SNAPSHOT messages
+	 */
+	private void sendChannelInfo(String recipient, boolean snapshot){
+		
+		LOGGER.info(xStrings.getString("AsteriskManager.sendingChannelInfo") + recipient); 
+		
+		//Anything sent after this may or may not be in the snapshot so clients reapply it
+		long snapshotSequence = sequence.get();
+		List<ControlMessage> channelInfo = getChannelInfo();
+		
+		if(snapshot)
+			channelInfo = StateSnapshot.toChunks(snapshotSequence, channelInfo);
+		
+		for(int i = 0; i < channelInfo.size(); i++)
+			sendPrivateMessage(recipient, channelInfo.get(i));
+		
+	}
+	
+	/**
+	 * Lists the channels and queue members on the server as the CONNECTED and CALL 
+	 * messages a client would have seen if it had been running
+	 * @return messages oldest channel first
 	 */
-	private void sendChannelInfo(String recipient){
+	private List<ControlMessage> getChannelInfo(){
 		
 		/*
 		 * LinkedChannel == null means its in a queue?
@@ -260,80 +375,93 @@ public class AsteriskManager implements AsteriskServerListener, PropertyChangeLi
 		 * thats set as "ANSWERED_ELSEWHERE" even if it is a call active on
 		 * their phone.
 		 */
-		LOGGER.info(xStrings.getString("AsteriskManager.sendingChannelInfo") + recipient); 
+		ArrayList<ControlMessage> channelInfo = new ArrayList<ControlMessage>();
+		ArrayList<AsteriskChannel> orderedChannels = new ArrayList<AsteriskChannel>();
 		
-		Vector<AsteriskChannel> orderedChannels = new Vector<AsteriskChannel>();
+		for(AsteriskChannel asteriskChannel : asteriskServer.getChannels())
+			if(asteriskChannel.getLinkedChannel() != null 
+					&& systemExtensions.contains(asteriskChannel.getLinkedChannel()
+							.getCallerId().getNumber()))
+				orderedChannels.add(asteriskChannel);
 		
 		/* Need to put channels in order, lower id = older channel, oldest -> newest */
-		for(AsteriskChannel asteriskChannel : asteriskServer.getChannels()){
-            
-			if(orderedChannels.size() == 0 && asteriskChannel.getLinkedChannel() != null)
-				orderedChannels.add(asteriskChannel);
-			else if(orderedChannels.size() > 0 
-					&& asteriskChannel.getLinkedChannel() != null 
-					&& systemExtensions.contains(asteriskChannel.getLinkedChannel()
-	            				.getCallerId().getNumber())){
-				
-				//Find position to insert
-				boolean inserted = false;
-				int i = 0;
-				
-				while(i < orderedChannels.size() && !inserted){
-					
-					double indexId = Double.parseDouble(orderedChannels.get(i).getId());
-					double channelId = Double.parseDouble(asteriskChannel.getId());
-					
-					if(channelId < indexId){
-						orderedChannels.insertElementAt(asteriskChannel, i);
-						inserted = true;
-					}
-					
-					i++;
-					
-				}
-				
-				if(!inserted)
-					orderedChannels.add(asteriskChannel);
-				
+		Collections.sort(orderedChannels, new Comparator<AsteriskChannel>(){
+			public int compare(AsteriskChannel a, AsteriskChannel b){
+				return compareChannelIDs(a.getId(), b.getId());
 			}
-			
-        }
+		});
 		
-		/* Now we're sorted, we can spam the person who requested the update */
 		for(int i = 0; i < orderedChannels.size(); i++){
 			
 			//This is one we need to deal with CONNECTED/5003/5001/1377009449.5
-        	String command = xStrings.getString("AsteriskManager.callConnected") + "/"   
-        			+ orderedChannels.get(i).getCallerId().getNumber() + "/"  
-        			+ orderedChannels.get(i).getLinkedChannel().getCallerId().getNumber() 
-        			+ "/" + orderedChannels.get(i).getId() + "/" +  
-        			orderedChannels.get(i).getDateOfCreation().getTime(); 
-        	
-        	//System.out.println(command);
-        	sendPrivateMessage(recipient, command);
+        	channelInfo.add(new ControlMessage(Opcode.CONNECTED, 
+        			orderedChannels.get(i).getCallerId().getNumber(), 
+        			orderedChannels.get(i).getLinkedChannel().getCallerId().getNumber(), 
+        			orderedChannels.get(i).getId(), 
+        			"" + orderedChannels.get(i).getDateOfCreation().getTime())); 
 			
 		}
 		
 		for(AsteriskQueue asteriskQueue : asteriskServer.getQueues()){
 
-			//System.out.println("QUEUE: " + asteriskQueue);
-			
 			for(AsteriskQueueEntry entry : asteriskQueue.getEntries()){
 				
 				//CALL/5003/3000/1377009449.5
-				String command = xStrings.getString("AsteriskManager.callRingingFrom") + "/"   
-						+ entry.getChannel().getCallerId().getNumber() + "/"  
-						+ asteriskQueue.getName() + "/"  
-						+ entry.getChannel().getId() + "/" +  
-						entry.getChannel().getDateOfCreation().getTime();
-				
-				//System.out.println(command);
-				sendPrivateMessage(recipient, command);
+				channelInfo.add(new ControlMessage(Opcode.CALL, 
+						entry.getChannel().getCallerId().getNumber(), 
+						asteriskQueue.getName(), 
+						entry.getChannel().getId(), 
+						"" + entry.getChannel().getDateOfCreation().getTime()));
 				
 			}
 					
         }
 		
+		return channelInfo;
+		
+	}
+	
+	/**
+	 * Compares asterisk channel IDs (unix time.counter) oldest first
+	 * @param a
+	 * @param b
+	 * @return
+	 */
+	private static int compareChannelIDs(String a, String b){
+		
+		int compare = 0;
+		
+		try{
+			
+			String[] aParts = a.split("\\.");
+			String[] bParts = b.split("\\.");
+			
+			for(int i = 0; compare == 0 && i < Math.max(aParts.length, bParts.length); i++){
+				
+				long aPart = i < aParts.length ? Long.parseLong(aParts[i]) : -1;
+				long bPart = i < bParts.length ? Long.parseLong(bParts[i]) : -1;
+				
+				compare = Long.compare(aPart, bPart);
+				
+			}
+			
+		}catch(NumberFormatException e){
+			compare = a.compareTo(b);
+		}
+		
+		return compare;
+		
+	}
+	
+	/**
+	 * Encodes the given control message and sends it to a given user
+	 * @param recipient
+	 * @param message
+	 */
+	private void sendPrivateMessage(String recipient, ControlMessage message){
+		
+		sendPrivateMessage(recipient, ControlMessageCodec.encode(message));
+		
 	}
 	
 	/**
@@ -348,7 +476,16 @@ public class AsteriskManager implements AsteriskServerListener, PropertyChangeLi
 		try {
 			LOGGER.info(xStrings.getString("AsteriskManager.sendingPrivateMessage") +  
 					recipient + "/" + message); 
-			chat.sendMessage(message);
+			
+			Message packet = new Message();
+			packet.setBody(message);
+			StateSnapshot.tag(packet, sequenceEpoch);
+			
+			chat.sendMessage(packet);
+			
+			if(recorder != null)
+				recorder.sent(recipient, message);
+			
 		} catch (XMPPException e) {
 			LOGGER.warning(xStrings.getString("AsteriskManager.errorSendingPrivateMessage") + 
 					recipient); 
@@ -358,7 +495,8 @@ public class AsteriskManager implements AsteriskServerListener, PropertyChangeLi
 	
 	
 	/**
-	 * Creates a call to the given number from the given number
+	 * Creates a call to the given number from the given number, fromName is sent
+	 * FAILED/NA/reason if Asterisk doesn't take the originate
 	 * @param to
 	 * @param fromNumber
 	 * @param fromName
@@ -372,14 +510,22 @@ public class AsteriskManager implements AsteriskServerListener, PropertyChangeLi
 		
 		LOGGER.info(xStrings.getString("AsteriskManager.loggingExternalCall") + 
 				fromNumber + "/" + toWithoutPrefix);  
-		calls.put(fromNumber, toWithoutPrefix);
+		registry.addDial(fromNumber, toWithoutPrefix);
 		
 		trackDial(toWithoutPrefix, fromName);//Add an entry to callhistory D so we can track who dialled stuff
 		
-		HashMap<String, String> vars = new HashMap<String, String>();
-		asteriskServer.originateToExtensionAsync(SIP_PREFIX + fromNumber + "@" +  
-				autoAnswerContext,  autoAnswerContext, to, DEFAULT_PRIORITY, defaultTimeOut, 
-				new CallerId(fromName, fromNumber), vars, this);
+		OriginateAction originate = new OriginateAction();
+		originate.setChannel(SIP_PREFIX + fromNumber + "@" + autoAnswerContext);  
+		originate.setContext(autoAnswerContext);
+		originate.setExten(to);
+		originate.setPriority(DEFAULT_PRIORITY);
+		originate.setTimeout(defaultTimeOut);
+		originate.setCallerId(new CallerId(fromName, fromNumber).toString());
+		originate.setAsync(true);
+		
+		actions.send(originate, new ClientAction("NA", fromName){
+			public void succeeded(ManagerResponse response){}
+		});
 		
 	}
 	
@@ -390,7 +536,7 @@ public class AsteriskManager implements AsteriskServerListener, PropertyChangeLi
 	 */
 	private void trackDial(String phoneNumber, String operator) {
 		
-		dbLookUpService.execute(new TrackDial(settings.get("language"),  
+		pipeline.execute(new TrackDial(settings.get("language"),  
 				settings.get("country"), databaseManager, operator,  
 				phoneNumber));
 		 
@@ -407,62 +553,31 @@ public class AsteriskManager implements AsteriskServerListener, PropertyChangeLi
 	 */
 	private int isExtensionOnline(String extension){
 	
-		int online = -1;
+		return extensionStates.getStatus(extension);
 		
-		try {
-			
-			ExtensionStateResponse response = (ExtensionStateResponse)
-					asteriskServer.getManagerConnection().sendAction(
-					new ExtensionStateAction(extension, 
-							settings.get("defaultContext"))); 
-			
-			online = response.getStatus();
-			
-			/* Call failed to transfer to us
-			 * FAILED/Channel/Failure Code
-			 * 0: Extension Online/Ready
-			 * 1: Extension On a call
-			 * 4: Extension Off line
-			 *-1: Extension does not exist
-			 */
-			int coreOnline = online;
-			
-			if( (online == 4 || online == -1) && trunkServers.size() > 0){
-				
-				//Check other trunk servers if we have any
-				int i = 0;
-				
-				while(online != 0 && online != 1 && i < trunkServers.size()){
-					
-					LOGGER.info(xStrings.getString("AsteriskManager.checkingTrunkServers")
-							+ extension + " (" + 
-							trunkServers.get(i).getManagerConnection().getHostname()
-							+ ")");
-					response = (ExtensionStateResponse)
-							trunkServers.get(i).getManagerConnection()
-							.sendAction(
-							new ExtensionStateAction(extension, 
-									settings.get("defaultContext"))); 
-					
-					online = response.getStatus();
-					
-					i++;
-					
-				}
-				
+	}
+	
+	/**
+	 * Redirects the given channel to the given extension once we know the state of
+	 * the extension.  The state must be current or we could redirect onto a call
+	 * without parking it, so it is asked for without waiting and the redirect carries
+	 * on back on this channel's lane when Asterisk answers
+	 * @param channelID Channel to redirect
+	 * @param to extension to send channel to
+	 * @param from user who asked, sent FAILED if the redirect doesn't happen
+	 */
+	public void redirectCall(final String channelID, final String to, final String from){
+	
+		extensionStates.getFreshStatus(to, new ExtensionStateService.StatusCallback(){
+			public void status(final int extensionStatus){
+				pipeline.submit(channelID, "TRANSFER", 
+						new Runnable(){
+					public void run(){
+						redirectCall(channelID, to, from, extensionStatus);
+					}
+				});
 			}
-			
-			if(online == -1 && coreOnline == 4)
-				online = 4;
-			
-		} catch (IllegalArgumentException | IllegalStateException | IOException
-				| TimeoutException e) {
-			LOGGER.severe(xStrings.getString(
-					"AsteriskManager.extensionQueryFailed" + extension)); 
-			e.printStackTrace();
-		}
-		
-		return online;
+		});
 		
 	}
 	
@@ -470,44 +585,47 @@ public class AsteriskManager implements AsteriskServerListener, PropertyChangeLi
 	 * Redirects the given channel to the given extension
 	 * @param channelID Channel to redirect
 	 * @param to extension to send channel to
+	 * @param from user who asked, sent FAILED if the redirect doesn't happen
+	 * @param extensionStatus current state of the extension
 	 */
-	public void redirectCall(String channelID, String to, String from){
+	private void redirectCall(String channelID, String to, final String from, 
+			int extensionStatus){
 	
 		/* Need to check to see if we're already on a call
 		 * If we are then park the original calls before transferring this one
 		 */
-		int extensionStatus = isExtensionOnline(to);
-		
 		if(extensionStatus == 1)//On a call
 			parkActiveCalls(to, from);
 		
 		if(extensionStatus == 0) {//Ready/Online
 		
 			// Get the channel and if its not locked, transfer it to this phone
-			AsteriskChannel channel = activeChannels.get(channelID);
+			AsteriskChannel channel = registry.getChannel(channelID);
 			
 			boolean locked = isLocked(channel);
 			
 			if(channel != null && !locked){//null = channel not found
 				
-				channel.redirect(autoAnswerContext, to, DEFAULT_PRIORITY);
-			
-				dbLookUpService.execute(new PhoneCall(databaseManager, 
-						channel.getCallerId().getNumber(), channel.getId(), this, 'A', from));
+				final AsteriskChannel answered = channel;
+				
+				actions.send(new RedirectAction(channel.getName(), autoAnswerContext, to, 
+						DEFAULT_PRIORITY), new ClientAction(channelID, from){
+					public void succeeded(ManagerResponse response){
+						pipeline.execute(new PhoneCall(databaseManager, 
+								answered.getCallerId().getNumber(), answered.getId(), 
+								AsteriskManager.this, 'A', from));
+					}
+				});
 				
 			}else if(locked){
 				
-				String message = xStrings.getString(
-						"AsteriskManager.commandLocked") + "/" +   
-				channel.getId();
-				sendMessage(message);
+				sendMessage(new ControlMessage(Opcode.LOCKED, channel.getId()));
 				
 			}
 			
 		}else//Extension offline/in error state so send failed message
-			sendPrivateMessage(from, xStrings.getString(
-					"AsteriskManager.FAILED") + "/" + channelID + "/" +
-					extensionStatus);
+			sendPrivateMessage(from, new ControlMessage(Opcode.FAILED, channelID, 
+					"" + extensionStatus));
 		
 	}
 	
@@ -521,11 +639,11 @@ public class AsteriskManager implements AsteriskServerListener, PropertyChangeLi
 	 */
 	private void parkActiveCalls(String extension, String from) {
 		
-		Iterator<String> channels = activeChannels.keySet().iterator();
+		Iterator<AsteriskChannel> channels = registry.getChannels().iterator();
 		
 		while(channels.hasNext()){
 			
-			AsteriskChannel linked = activeChannels.get(channels.next()).getLinkedChannel();
+			AsteriskChannel linked = channels.next().getLinkedChannel();
 			
 			if(linked != null){
 				
@@ -558,35 +676,20 @@ public class AsteriskManager implements AsteriskServerListener, PropertyChangeLi
 	 * @param channel
 	 * @return true if channel lock time out has not expired
 	 */
-	private synchronized boolean isLocked(AsteriskChannel channel) {
-		
-		boolean locked = false;
+	private boolean isLocked(AsteriskChannel channel) {
 		
-		if(lockedChannels.get(channel.getId()) != null){
-			
-			//Potentially locked
-			long lockedAt = lockedChannels.get(channel.getId());
-			
-			if(new Date().getTime() - lockedAt >= channelLockTimeOut){
-				
-				lockedChannels.put(channel.getId(), new Date().getTime());
-				
-			}else
-				locked = true;
-			
-		}else
-			lockedChannels.put(channel.getId(), new Date().getTime());
+		return registry.isLocked(channel.getId(), channelLockTimeOut);
 		
-		return locked;
 	}
 
 	/**
 	 * Redirects the given channel to the on air queue specified in DB
 	 * @param channelID Channel to redirect
+	 * @param from user who asked, sent FAILED if the redirect doesn't happen
 	 */
-	public void redirectCallToQueue(String channelID, String from){
+	public void redirectCallToQueue(String channelID, final String from){
 		
-		AsteriskChannel channel = activeChannels.get(channelID);
+		final AsteriskChannel channel = registry.getChannel(channelID);
 		/* Check against outgoing calls and update DB as necessary because
 		 * outgoing call will generate a final permanent channel as it enters
 		 * the queue (no idea why)
@@ -597,22 +700,26 @@ public class AsteriskManager implements AsteriskServerListener, PropertyChangeLi
 		
 		if(channel != null){
 			
-			if(ringingExternal.containsKey(channelID)){
-				
-				OutgoingCall out = ringingExternal.get(channelID);
-				expectedInQueue.put(out.destination, channelID);
-				//Discuss: Potential memory leak, what if call never makes it to queue?
-				
-			}
-				
-			channel.redirect(defaultContext, queueNumber, DEFAULT_PRIORITY);
-			String callerID = channel.getCallerId().getNumber();
+			OutgoingCall out = registry.getOutgoing(channelID);
 			
-			if(removePrefix(callerID))
-				callerID = callerID.substring(dialPrefix.length());
+			//If the call never makes it to the queue this expires after channelRegistryTTL
+			if(out != null)
+				registry.expectInQueue(out.destination, channelID);
 				
-			dbLookUpService.execute(new PhoneCall(databaseManager, 
-					callerID, channel.getId(), this, 'Q', from));
+			String number = channel.getCallerId().getNumber();
+			
+			if(removePrefix(number))
+				number = number.substring(dialPrefix.length());
+			
+			final String callerID = number;
+			
+			actions.send(new RedirectAction(channel.getName(), defaultContext, queueNumber, 
+					DEFAULT_PRIORITY), new ClientAction(channelID, from){
+				public void succeeded(ManagerResponse response){
+					pipeline.execute(new PhoneCall(databaseManager, 
+							callerID, channel.getId(), AsteriskManager.this, 'Q', from));
+				}
+			});
 			
 		}
 		
@@ -623,20 +730,28 @@ public class AsteriskManager implements AsteriskServerListener, PropertyChangeLi
 	 * @param channelID channel to hang up
 	 * @param from person who initiated hang up (for DB tracking purposes)
 	 */
-	public void hangupCall(String channelID, String from){
+	public void hangupCall(String channelID, final String from){
 		
-		AsteriskChannel channel = activeChannels.get(channelID);
+		final AsteriskChannel channel = registry.getChannel(channelID);
 		
-		String callerID = channel.getCallerId().getNumber();
-		
-		if(removePrefix(callerID))
-			callerID = callerID.substring(dialPrefix.length());
-		
-		if(channel != null)
-			channel.hangup();
-		
-		dbLookUpService.execute(new PhoneCall(databaseManager, 
-				callerID, channel.getId(), this, 'H', from));
+		if(channel != null){
+			
+			String number = channel.getCallerId().getNumber();
+			
+			if(removePrefix(number))
+				number = number.substring(dialPrefix.length());
+			
+			final String callerID = number;
+			
+			actions.send(new HangupAction(channel.getName()), 
+					new ClientAction(channelID, from){
+				public void succeeded(ManagerResponse response){
+					pipeline.execute(new PhoneCall(databaseManager, 
+							callerID, channel.getId(), AsteriskManager.this, 'H', from));
+				}
+			});
+			
+		}
 		
 	}
 	
@@ -649,17 +764,15 @@ public class AsteriskManager implements AsteriskServerListener, PropertyChangeLi
 	private void hangupManualCall(String channelID, String from){
 		
 		//Log to DB
-		String logCause = xStrings.getString("AsteriskManager.channelHangup"); 
 		String callerID = xStrings.getString("AsteriskManager.withHeldNumber");
 		
-		dbLookUpService.execute(new PhoneCall(databaseManager, 
+		pipeline.execute(new PhoneCall(databaseManager, 
 					callerID, channelID, this, 
 					'H', from)); 
 
 		//Send XMPP Message
-		String message = logCause + "/" + callerID + 
-				"/" + channelID;  
-		LOGGER.info(message);
+		ControlMessage message = new ControlMessage(Opcode.HANGUP, callerID, channelID);
+		LOGGER.info(message.toString());
 		sendMessage(message);
 		
 	}
@@ -672,13 +785,33 @@ public class AsteriskManager implements AsteriskServerListener, PropertyChangeLi
 		//Registers a new channel, need a listener on each channel and keep track of them
 		LOGGER.info(xStrings.getString("AsteriskManager.newChannel") + "/" + channel.getId());  
 		
+		if(recorder != null)
+			recorder.newChannel(channel);
+		
 		channel.addPropertyChangeListener(this);
 		addActiveChannel(channel);
 		
 	}
 
 	@Override
-	public void onNewQueueEntry(AsteriskQueueEntry entry) {
+	public void onNewQueueEntry(final AsteriskQueueEntry entry) {
+		
+		if(recorder != null)
+			recorder.newQueueEntry(entry);
+		
+		pipeline.submit(entry.getChannel().getId(), "QueueEntry", new Runnable(){
+			public void run(){
+				processNewQueueEntry(entry);
+			}
+		});
+		
+	}
+	
+	/**
+	 * Logs a new queue entry in the DB, runs on the lane for the entry channel
+	 * @param entry
+	 */
+	private void processNewQueueEntry(AsteriskQueueEntry entry) {
 		
 		//DB Lookup for PhoneCall info (namely just to create entries) via Executor Thread
 		//Returns via sendNewQueueEntryMessage
@@ -695,21 +828,17 @@ public class AsteriskManager implements AsteriskServerListener, PropertyChangeLi
 				callerID = callerID.substring(dialPrefix.length());
 			
 			//Create OutboundChannelUpdater to change old channel to new channel in call records
-			dbLookUpService.execute(new OutboundChannelUpdater(
+			pipeline.execute(new OutboundChannelUpdater(
 					settings.get("language"), settings.get("country"),  
-					databaseManager.getReadConnection(), 
-					databaseManager.getWriteConnection(),
-					expectedInQueue.get(callerID), entry.getChannel().getId(), 
-					callerID, this));
-			
-			expectedInQueue.remove(callerID);
+					databaseManager, registry.removeExpectedInQueue(callerID), 
+					entry.getChannel().getId(), callerID, this));
 			
 		}else if(removePrefix(callerID))
 			callerID = callerID.substring(dialPrefix.length());
 		else
 			callerID = null;//null because we don't want to override the entry callerid
 		
-		dbLookUpService.execute(new PhoneCall(databaseManager, entry, this, callerID));
+		pipeline.execute(new PhoneCall(databaseManager, entry, this, callerID));
 		
 	}
 
@@ -717,44 +846,66 @@ public class AsteriskManager implements AsteriskServerListener, PropertyChangeLi
 	 * Sends a message to the XMPP control room that we have a new QueueEntry
 	 * @param entry
 	 * @param callerID over ride the queue entry with this caller id
+	 * @param callerRecord CALLER message to send before the QUEUE or null
 	 */
-	public void sendNewQueueEntryMessage(AsteriskQueueEntry entry, String callerID){
+	public void sendNewQueueEntryMessage(final AsteriskQueueEntry entry, final String callerID,
+			final ControlMessage callerRecord){
 		
 		//Transfers from handlers goes into Studio Queue
 		/* There seems to be two queue entries that are fired in the events.
 		 * The first is null :| so lets ignore those
+		 * 
+		 * This is called back from db workers so hop back on to the channel lane to
+		 * keep QUEUE in order with the rest of the channel messages
 		 */
-		if(entry != null){
-			
-			AsteriskQueue queue = entry.getQueue();
-			String name = queue.getName();
-			
-			String number = null;
-			
-			/* If callerID not null then we need to add this number back to 
-			 * remove prefix stuff until the permanent channel is dropped
-			 */
-			if(callerID != null){
-				
-				number = callerID;
-				calls.put(entry.getChannel().getId(), callerID);//will add as channel, callerid need to check for channel in hangups
-				
-			}else
-				number = checkNumberWithHeld(entry.getChannel().getCallerId());
-			
-			// Remove dialprefix from number if this is an external call
-			if(removePrefix(number))
-				number = number.substring(dialPrefix.length());
-			
-			String id = entry.getChannel().getId();
-			
-			String message = xStrings.getString("AsteriskManager.populatedQueueEntry") + "/" +  
-					name + "/" + number + "/" + id;  
+		if(entry != null)
+			pipeline.submit(entry.getChannel().getId(), "QUEUE", new Runnable(){
+				public void run(){
+					sendQueueEntry(entry, callerID, callerRecord);
+				}
+			});
+		
+	}
+	
+	/**
+	 * Sends the QUEUE message for a queue entry, the CALLER message goes first so
+	 * clients have the caller details by the time they create the panel
+	 * @param entry
+	 * @param callerID over ride the queue entry with this caller id
+	 * @param callerRecord CALLER message for this entry or null
+	 */
+	private void sendQueueEntry(AsteriskQueueEntry entry, String callerID,
+			ControlMessage callerRecord){
+		
+		if(callerRecord != null)
+			sendMessage(callerRecord);
+		
+		AsteriskQueue queue = entry.getQueue();
+		String name = queue.getName();
+		
+		String number = null;
+		
+		/* If callerID not null then we need to add this number back to 
+		 * remove prefix stuff until the permanent channel is dropped
+		 */
+		if(callerID != null){
 			
-			LOGGER.info(message);
-			sendMessage(message);
+			number = callerID;
+			registry.addDial(entry.getChannel().getId(), callerID);//will add as channel, callerid need to check for channel in hangups
 			
-		}
+		}else
+			number = checkNumberWithHeld(entry.getChannel().getCallerId());
+		
+		// Remove dialprefix from number if this is an external call
+		if(removePrefix(number))
+			number = number.substring(dialPrefix.length());
+		
+		String id = entry.getChannel().getId();
+		
+		ControlMessage message = new ControlMessage(Opcode.QUEUE, name, number, id);
+		
+		LOGGER.info(message.toString());
+		sendMessage(message);
 		
 	}
 	
@@ -781,13 +932,35 @@ public class AsteriskManager implements AsteriskServerListener, PropertyChangeLi
 	 * Sends control message to XMPP control chat room
 	 * @param message
 	 */
+	private void sendMessage(ControlMessage message){
+		
+		sendMessage(ControlMessageCodec.encode(message));
+		
+	}
+	
+	/**
+	 * Sends the given text to the control room
+	 * @param message
+	 */
 	private void sendMessage(String message){
 		
 		LOGGER.info(xStrings.getString("AsteriskManager.logSendingMessage")); 
 		
 		try {
+			
+			//Hold the lock while sending so the room sees messages in sequence order
+			synchronized(sequence){
 				
-			controlRoom.sendMessage(message);
+				Message packet = controlRoom.createMessage();
+				packet.setBody(message);
+				StateSnapshot.tag(packet, sequenceEpoch, sequence.incrementAndGet());
+				
+				controlRoom.sendMessage(packet);
+				
+				if(recorder != null)
+					recorder.sent(null, message);
+				
+			}
 			
 		}catch(XMPPException e){
 			LOGGER.severe(xStrings.getString("AsteriskManager.XMPPError")); 
@@ -812,156 +985,297 @@ public class AsteriskManager implements AsteriskServerListener, PropertyChangeLi
 			
 			if(!from.equals(controlRoom.getNickname())){//If the message didn't come from me 
 				
-				//React to commands thread all of this if performance is a problem
 				LOGGER.info(xStrings.getString("AsteriskManager.receivedMessage") + 
 						message.getBody());
 				
-				String[] command = message.getBody().split("/"); 
+				final ControlMessage command = ControlMessageCodec.decode(message.getBody());
+				final String sender = from;
+				final boolean snapshot = StateSnapshot.isRequested(message);
 				
-				if(command.length == 3 && command[0].equals(
-								xStrings.getString("AsteriskManager.commandTransfer"))){ 
-					
-					//Received a transfer command
-					redirectCall(command[1], command[2], from);
-					
-				}else if(command.length == 2 && command[0].equals(
-						xStrings.getString("AsteriskManager.commandQueue"))){ 
-					
-					//Received a command to put the call into the on air queue
-					redirectCallToQueue(command[1], from);
-					
-				}else if(command.length == 2 && command[0].equals(
-						xStrings.getString("AsteriskManager.commandUpdate"))){ 
+				if(recorder != null)
+					recorder.received(from, snapshot, message.getBody());
 				
-					//Send updates to the person who asked for it (usually when they login)
-					sendChannelInfo(from);
-					
-					/* If the user has an extension check it is working
-					 * If it is null they don't have an extension so they are 
-					 * using this in read only mode */
-					if(!command[1].equals("null")){ 
-						
-						int extensionStatus = isExtensionOnline(command[1]);
-						
-						if(extensionStatus != 0)//If the users phone is not working, tell them
-							sendPrivateMessage(from, xStrings.getString(
-									"AsteriskManager.FAILED") + "/NA/" +   
-									extensionStatus);
-						
+				//Commands for the same channel run in order, everything else in parallel
+				pipeline.submit(getOrderingKey(command, from), command.toString(), 
+						new Runnable(){
+					public void run(){
+						processCommand(command, sender, snapshot);
 					}
+				});
+				
+			}
+			
+		}else if(startup)
+			LOGGER.info(xStrings.getString("AsteriskManager.receivedXMPPWhileStarting")); 
+		
+		
+	}
+	
+	/**
+	 * Acts on a control message from a client, runs on a pipeline lane
+	 * @param command decoded message
+	 * @param from user who sent it
+	 * @param snapshot true if the sender wants UPDATE info as a snapshot
+	 */
+	private void processCommand(ControlMessage command, String from, boolean snapshot){
+		
+		String[] fields = command.getFields();
+		
+		switch(command.getOpcode()){
+		
+			case TRANSFER:
+				
+				//Received a transfer command
+				if(fields.length == 2)
+					redirectCall(fields[0], fields[1], from);
+				
+				break;
+				
+			case QUEUE:
+				
+				//Received a command to put the call into the on air queue
+				if(fields.length == 1)
+					redirectCallToQueue(fields[0], from);
+				
+				break;
+				
+			case UPDATE:
+				
+				if(fields.length == 1)
+					processUpdate(fields[0], from, snapshot);
+				
+				break;
+				
+			case HANGUP:
+				
+				if(fields.length == 1){
 					
-				}else if(command.length == 2 && command[0].equals(
-						xStrings.getString("AsteriskManager.commandHangup"))){ 
-					
-					if(command[1].startsWith("M_")){
+					if(fields[0].startsWith("M_")){
 						
 						//Send hang up message and log in DB
-						hangupManualCall(command[1], from);
+						hangupManualCall(fields[0], from);
 						
 					}else //Real call so hang up
-						hangupCall(command[1], from);
-					
-				}else if(command.length == 3 && command[0].equals(
-						xStrings.getString("AsteriskManager.commandDial"))){ 
-					
-					createCall(command[1], command[2], from);
-					
-				}else if(command.length == 2 && command[0].equals(
-						xStrings.getString("AsteriskManager.commandTransferEndPoint"))){ 
-					
-					/* TODO 14/08/2014 WMM: Removed Transfer EndPoint from outgoing calls
-					 * Test impact, do we even need this anymore?
-					 */
-					//We're transferring the other side of the call here
-					/* When we transfer, a new channel is created for the receiver of this call
-					 * This makes all the call information get dropped
-					 * To work around this we have to do it client side so all clients stay in sync
-					 * New Command ENDPOINT: Sends what the channel was and what the endpoint is so that
-					 * clients can store endpoint extension and then when the queue message comes in
-					 * update the channel properly (in theory)
-					 */
-					//Remove dial prefix if this was an outgoing external call
-					String endPointCallerID = activeChannels.get(
-							command[1]).getLinkedChannel().getCallerId().getNumber();
-					
-					if(removePrefix(endPointCallerID))
-						endPointCallerID = endPointCallerID.substring(
-								dialPrefix.length());
-					
-					sendMessage(xStrings.getString("AsteriskManager.commandEndPoint") + "/" + command[1] + "/"   
-					 + activeChannels.get(command[1]).getLinkedChannel().getId() + "/"  
-					 + endPointCallerID);
-					
-					redirectCallToQueue(activeChannels.get(command[1]).getLinkedChannel()
-							.getId(), from);
-					
-				}else if(command.length == 4 && command[0].equals(
-						xStrings.getString("AsteriskManager.commandUpdateField"))){ 
-					
-					//Spawn a thread to do a DB update
-					dbLookUpService.execute(new RecordUpdater(settings.get("language"),  
-							settings.get("country"), databaseManager.getReadConnection(), 
-							databaseManager.getWriteConnection(), command[1], 
-							command[2], command[3]));
-				
-				}else if(command.length == 3 && command[0].equals(
-						xStrings.getString("AsteriskManager.ChangeToNewPerson"))){ 
-					
-					//Make a new person, update call references and then send back 
-					//CHANGENEW/CHANNEL/NUMBER
-					//XMPP Reply so clients can update
-					dbLookUpService.execute(new PersonChanger(settings.get("language"),  
-							settings.get("country"), databaseManager.getReadConnection(), 
-							databaseManager.getWriteConnection(), controlRoom, 
-							-1, command[2], command[1])); 
-					
-				}else if(command.length == 3 && command[0].equals(
-						xStrings.getString("AsteriskManager.ChangeToExistingPerson"))){ 
-					
-					//CHANGEEXISTING/CHANNEL/PERSON
-					//Update call references and then send back XMPP Reply so
-					//clients can update
-					dbLookUpService.execute(new PersonChanger(settings.get("language"),  
-							settings.get("country"), databaseManager.getReadConnection(), 
-							databaseManager.getWriteConnection(), controlRoom, 
-							Integer.parseInt(command[2]), null, command[1])); 
-					
-				}else if(command.length == 3 && command[0].equals(
-						xStrings.getString("AsteriskManager.changeActive"))){ 
-					
-					//Update the Active Person on an outgoing call
-					dbLookUpService.execute(new ActivePersonChanger(settings.get("language"),  
-							settings.get("country"),  
-							databaseManager.getWriteConnection(), command[2], 
-							command[1])); 
-					
-				}else if(command.length == 2 && command[0].equals(
-						xStrings.getString("AsteriskManager.commandManual"))){
-					
-					/* Someone wants to add a manual call entry (from a landline or whatever)
-					 * MANUAL/Name of Person who answered e.g.
-					 * MANUAL/Wayne
-					 * Channel is M_ + new Date().getTime()
-					 * 
-					 * We will set the caller number to unknown
-					 * TODO find a way to set number later
-					 */
-					String manualChannel = "M_" + new Date().getTime();
-					
-					dbLookUpService.execute(new PhoneCall(xStrings.getString("AsteriskManager.withHeldNumber"), 
-							manualChannel, 'M', from, databaseManager));
-					
-					//Send MANUAL/CHANNEL/ANSWERER back to clients
-					sendMessage(xStrings.getString("AsteriskManager.commandManual")
-							+ "/" + manualChannel + "/" + command[1]);
+						hangupCall(fields[0], from);
 					
 				}
 				
-			}
+				break;
+				
+			case DIAL:
+				
+				if(fields.length == 2)
+					createCall(fields[0], fields[1], from);
+				
+				break;
+				
+			case TRANSFERENDPOINT:
+				
+				if(fields.length == 1)
+					transferEndPoint(fields[0], from);
+				
+				break;
+				
+			case UPDATEFIELD:
+			case UPDATEFIELDS:
+				
+				//Spawn a thread to do a DB update for each field
+				List<ControlMessage> updates = command.getFieldUpdates();
+				
+				for(int i = 0; i < updates.size(); i++)
+					pipeline.execute(new RecordUpdater(settings.get("language"),  
+							settings.get("country"), databaseManager, 
+							updates.get(i).getField(0), updates.get(i).getField(1), 
+							updates.get(i).getField(2)));
+				
+				break;
+				
+			case CHANGENEW:
+				
+				//Make a new person, update call references and then send back 
+				//CHANGENEW/CHANNEL/NUMBER
+				//XMPP Reply so clients can update
+				if(fields.length == 2)
+					pipeline.execute(new PersonChanger(settings.get("language"),  
+							settings.get("country"), databaseManager, controlRoom, 
+							-1, fields[1], fields[0])); 
+				
+				break;
+				
+			case CHANGEEXISTING:
+				
+				//CHANGEEXISTING/CHANNEL/PERSON
+				//Update call references and then send back XMPP Reply so
+				//clients can update
+				if(fields.length == 2)
+					pipeline.execute(new PersonChanger(settings.get("language"),  
+							settings.get("country"), databaseManager, controlRoom, 
+							Integer.parseInt(fields[1]), null, fields[0])); 
+				
+				break;
+				
+			case CHANGEACTIVE:
+				
+				//Update the Active Person on an outgoing call
+				if(fields.length == 2)
+					pipeline.execute(new ActivePersonChanger(settings.get("language"),  
+							settings.get("country"),  
+							databaseManager, fields[1], 
+							fields[0])); 
+				
+				break;
+				
+			case MANUAL:
+				
+				if(fields.length == 1)
+					createManualCall(fields[0], from);
+				
+				break;
+				
+			case FIELDSCHANGED:
+				
+				databaseManager.getFieldDefinitionCache().invalidate();
+				break;
+				
+			default:
+				//Not a command for the server
+				break;
+				
+		}
+		
+	}
+	
+	/**
+	 * Returns the key used to pick a pipeline lane for a command, this is the channel
+	 * the command acts on or the user who sent it if there isn't one
+	 * @param command decoded message
+	 * @param from user who sent it
+	 * @return lane key
+	 */
+	private String getOrderingKey(ControlMessage command, String from){
+		
+		String key = from;
+		
+		switch(command.getOpcode()){
+		
+			case TRANSFER:
+			case QUEUE:
+			case HANGUP:
+			case TRANSFERENDPOINT:
+			case CHANGENEW:
+			case CHANGEEXISTING:
+			case CHANGEACTIVE:
+				
+				if(command.getFieldCount() > 0)
+					key = command.getField(0);
+				
+				break;
+				
+			case UPDATEFIELD:
+				
+				if(command.getFieldCount() > 1)
+					key = command.getField(1);
+				
+				break;
+				
+			case UPDATEFIELDS:
+				
+				if(command.getFieldCount() > 0)
+					key = command.getField(0);
+				
+				break;
+				
+			default:
+				break;
+				
+		}
+		
+		return key;
+		
+	}
+	
+	/**
+	 * Sends channel info to the user who asked for it (usually when they login) and
+	 * checks their extension is working
+	 * @param extension extension of the user or "null" if they don't have one
+	 * @param from user who sent the UPDATE
+	 * @param snapshot true to send the channel info as a snapshot
+	 */
+	private void processUpdate(String extension, String from, boolean snapshot){
+		
+		//Send updates to the person who asked for it (usually when they login)
+		sendChannelInfo(from, snapshot);
+		
+		/* If the user has an extension check it is working
+		 * If it is null they don't have an extension so they are 
+		 * using this in read only mode */
+		if(!extension.equals("null")){ 
 			
-		}else if(startup)
-			LOGGER.info(xStrings.getString("AsteriskManager.receivedXMPPWhileStarting")); 
+			int extensionStatus = isExtensionOnline(extension);
+			
+			if(extensionStatus != 0)//If the users phone is not working, tell them
+				sendPrivateMessage(from, new ControlMessage(Opcode.FAILED, "NA", 
+						"" + extensionStatus));
+			
+		}
+		
+	}
+	
+	/**
+	 * Transfers the other side of the given call to the on air queue
+	 * @param channelID channel of the dialler
+	 * @param from user who asked for the transfer
+	 */
+	private void transferEndPoint(String channelID, String from){
+		
+		/* TODO 14/08/2014 WMM: Removed Transfer EndPoint from outgoing calls
+		 * Test impact, do we even need this anymore?
+		 */
+		//We're transferring the other side of the call here
+		/* When we transfer, a new channel is created for the receiver of this call
+		 * This makes all the call information get dropped
+		 * To work around this we have to do it client side so all clients stay in sync
+		 * New Command ENDPOINT: Sends what the channel was and what the endpoint is so that
+		 * clients can store endpoint extension and then when the queue message comes in
+		 * update the channel properly (in theory)
+		 */
+		//Remove dial prefix if this was an outgoing external call
+		String endPointCallerID = registry.getChannel(
+				channelID).getLinkedChannel().getCallerId().getNumber();
+		
+		if(removePrefix(endPointCallerID))
+			endPointCallerID = endPointCallerID.substring(
+					dialPrefix.length());
 		
+		sendMessage(new ControlMessage(Opcode.ENDPOINT, channelID,  
+				registry.getChannel(channelID).getLinkedChannel().getId(),  
+				endPointCallerID));
+		
+		redirectCallToQueue(registry.getChannel(channelID).getLinkedChannel()
+				.getId(), from);
+		
+	}
+	
+	/**
+	 * Someone wants to add a manual call entry (from a landline or whatever)
+	 * MANUAL/Name of Person who answered e.g.
+	 * MANUAL/Wayne
+	 * Channel is M_ + new Date().getTime()
+	 * 
+	 * We will set the caller number to unknown
+	 * TODO find a way to set number later
+	 * @param answeredBy name of the person who answered
+	 * @param from user who sent the command
+	 */
+	private void createManualCall(String answeredBy, String from){
+		
+		String manualChannel = "M_" + new Date().getTime();
+		
+		pipeline.execute(new PhoneCall(xStrings.getString("AsteriskManager.withHeldNumber"), 
+				manualChannel, 'M', from, databaseManager, this));
+		
+		//Send MANUAL/CHANNEL/ANSWERER back to clients
+		sendMessage(new ControlMessage(Opcode.MANUAL, manualChannel, answeredBy));
 		
 	}
 	
@@ -976,9 +1290,10 @@ public class AsteriskManager implements AsteriskServerListener, PropertyChangeLi
 		
 		int expected = 0;
 		
-		if(expectedInQueue.containsKey(callerID.substring(2)))
+		if(callerID.startsWith(dialPrefix) && 
+				registry.isExpectedInQueue(callerID.substring(dialPrefix.length())))
 			expected = 2;
-		else if(expectedInQueue.containsKey(callerID))
+		else if(registry.isExpectedInQueue(callerID))
 			expected = 1;
 			
 		return expected;
@@ -989,49 +1304,59 @@ public class AsteriskManager implements AsteriskServerListener, PropertyChangeLi
 	/**
 	 * Signals true if you need to remove the dial prefix from the given caller
 	 * ID
-	 * @param callerID CallerID to lookup in the calls hashmap
+	 * @param callerID CallerID to lookup in the dialled numbers
 	 * @return true if this has a dial prefix on it
 	 */
 	private boolean removePrefix(String callerID){
 		
-		boolean removePrefix = false;
-		Iterator<String> keys = calls.keySet().iterator();
-		
-		while(keys.hasNext() && !removePrefix){
-			
-			String key = keys.next();
-			String to = calls.get(key);
-			
-			/* Dial outs will have caller id and the channel so lets get just
-			 * the id to check TODO we removed the channel?
-			 */
-			String[] temp = to.split("/"); 
-			
-			if((dialPrefix + temp[0]).equals(callerID))
-				removePrefix = true;
-			
-		}
-		
-		return removePrefix;
+		return registry.hasDialPrefix(callerID, dialPrefix);
 		
 	}
 	
 	/**
-	 * Send a force update on panel to clients
+	 * Send a force update on panel to clients, called back from db workers so this
+	 * is queued on the channel lane to keep it in order
 	 * @param channel
 	 */
 	public void sendPanelUpdate(String channel){
 		
-		String message = xStrings.getString("AsteriskManager.channelUpdate") +  
-				"/" + channel; 
-		LOGGER.info(message);
-		sendMessage(message);
+		final ControlMessage message = new ControlMessage(Opcode.CHANNELUPDATE, channel);
+		
+		pipeline.submit(channel, message.toString(), new Runnable(){
+			public void run(){
+				LOGGER.info(message.toString());
+				sendMessage(message);
+			}
+		});
 		
 	}
 	
 	/** PropertyChangeListener **/
 	@Override
-	public void propertyChange(PropertyChangeEvent evt) {
+	public void propertyChange(final PropertyChangeEvent evt) {
+		
+		//Queue it so the asterisk-java event thread isn't held up
+		if(evt.getSource() instanceof AsteriskChannel){
+			
+			if(recorder != null)
+				recorder.propertyChange(evt);
+			
+			pipeline.submit(((AsteriskChannel)evt.getSource()).getId(), 
+					evt.getPropertyName(), new Runnable(){
+				public void run(){
+					processPropertyChange(evt);
+				}
+			});
+			
+		}
+		
+	}
+	
+	/**
+	 * Acts on a channel property change, runs on the lane for the channel
+	 * @param evt property change from asterisk-java
+	 */
+	private void processPropertyChange(PropertyChangeEvent evt) {
 		
 		if(evt.getPropertyName().equals("state") && 
 				evt.getSource() instanceof AsteriskChannel){ 
@@ -1054,8 +1379,8 @@ public class AsteriskManager implements AsteriskServerListener, PropertyChangeLi
 					if(removePrefix(callerID))
 						callerID = callerID.substring(dialPrefix.length());
 					
-					String message = xStrings.getString("AsteriskManager.channelRinging") +  
-							"/" + callerID + "/" + ringing.getId();  
+					ControlMessage message = new ControlMessage(Opcode.RINGING, callerID, 
+							ringing.getId());
 					
 					/* When we dial out to an external call you get connection messages
 					 * based on the outbound callerid
@@ -1074,33 +1399,19 @@ public class AsteriskManager implements AsteriskServerListener, PropertyChangeLi
 					 * to substitute appropriately
 					 * calls ==> <fromNumber, toNumber>
 					 */
-					if(calls.containsValue(callerID)){//this is an outgoing call we're tracking
-						
-						Set<Entry<String, String>> entries = calls.entrySet();
-						
-						Iterator<Entry<String, String>> index = entries.iterator();
-						boolean done = false;
+					String dialSource = registry.getDialSource(callerID);
+					
+					if(dialSource != null){//this is an outgoing call we're tracking
 						
-						while(index.hasNext() && !done){
-							
-							Entry<String, String> callRecord = index.next();
-							
-							if(callRecord.getValue().equals(callerID)){
-								
-								done = true;
-								OutgoingCall out = new OutgoingCall(ringing.getId(), callRecord.getKey(), callerID);
-								ringingExternal.put(ringing.getId(), out);
-								LOGGER.info(xStrings.getString(
-										"AsteriskManager.loggingExternalCall") + 
-										out); 
-								
-							}
-								
-						}
+						OutgoingCall out = new OutgoingCall(ringing.getId(), dialSource, callerID);
+						registry.addOutgoing(out);
+						LOGGER.info(xStrings.getString(
+								"AsteriskManager.loggingExternalCall") + 
+								out); 
 						
 					}
 						
-					LOGGER.info(message);
+					LOGGER.info(message.toString());
 					sendMessage(message);
 					
 				}else if(state.getStatus() == ChannelState.HUNGUP.getStatus()){
@@ -1114,11 +1425,11 @@ public class AsteriskManager implements AsteriskServerListener, PropertyChangeLi
 					 * ???
 					 */
 					String hangupCause = hangup.getHangupCauseText();
-					String logCause;
+					String logCause = null;//Qualifier on the HANGUP message, none for normal
 					boolean logHangup = false;
 					
 					if(hangupCause.equals(HANGUP_NORMAL)){
-						logCause = xStrings.getString("AsteriskManager.channelHangup"); 
+						
 						/* We want to log normal hang ups as part of a normal call life cycle
 						 * but not the errors as we're only interested complete calls from outside
 						 */
@@ -1133,8 +1444,7 @@ public class AsteriskManager implements AsteriskServerListener, PropertyChangeLi
 					else if(hangupCause.equals(HANGUP_USER_BUSY))
 						logCause = xStrings.getString("AsteriskManager.channelHangupUserBusy"); 
 					else
-						logCause = xStrings.getString("AsteriskManager.channelHangup") + " "   
-								+ hangupCause;
+						logCause = hangupCause;
 					
 					//Remove the dial out prefix from callerID if this is a call we dialled
 					String callerID = checkNumberWithHeld(hangup.getCallerId());
@@ -1144,52 +1454,23 @@ public class AsteriskManager implements AsteriskServerListener, PropertyChangeLi
 					
 					//Log this in the DB
 					if(logHangup)
-						dbLookUpService.execute(new PhoneCall(databaseManager, 
+						pipeline.execute(new PhoneCall(databaseManager, 
 								callerID, hangup.getId(), this, 
 								'H', "NA")); 
 						
-					/* BUG FIX: Hangup Cause sometimes has a slash in it which messes with our / command separator
-					 * HANGUP Circuit/channel congestion as one example there may be others so lets deal with it
-					 */
-					hangupCause = hangupCause.replaceAll("/", "-");  
-					//END OF BUG FIXkey
-					
+					/* Hangup Cause sometimes has a slash in it e.g. HANGUP Circuit/channel 
+					 * congestion, ControlMessageCodec takes care of it */
 					//Send XMPP Message
-					String message = logCause + "/" + callerID + 
-							"/" + hangup.getId();  
-					LOGGER.info(message);
+					ControlMessage message = ControlMessage.qualified(Opcode.HANGUP, 
+							logCause, callerID, hangup.getId());
+					LOGGER.info(message.toString());
 					sendMessage(message);
 
-					if(ringingExternal.containsKey(hangup.getId())){
-						
-						ringingExternal.remove(hangup.getId());
-						
-						if(calls.containsValue(callerID)){
-							
-							Iterator<String> callKeys = calls.keySet().iterator();
-							
-							boolean removed = false;
-							
-							while(!removed && callKeys.hasNext()){
-								
-								String key = callKeys.next();
-								
-								if(calls.get(key).equals(callerID)){
-									
-									removed = true;
-									calls.remove(key);
-									
-								}
-									
-							}
-							
-						}
-						
-					}
+					if(registry.removeOutgoing(hangup.getId()) != null)
+						registry.removeDialTo(callerID);
 					
 					//Clear calls of any channels that made it into the queue
-					if(calls.containsKey(hangup.getId()))
-						calls.remove(hangup.getId());
+					registry.removeDial(hangup.getId());
 					
 					removeActiveChannel(hangup.getId());
 					
@@ -1197,10 +1478,10 @@ public class AsteriskManager implements AsteriskServerListener, PropertyChangeLi
 					
 					AsteriskChannel busy = (AsteriskChannel)evt.getSource();
 					
-					String message = xStrings.getString("AsteriskManager.channelBusy") + 
-							"/" + checkNumberWithHeld(busy.getCallerId()) + "/" + busy.getId();  
+					ControlMessage message = new ControlMessage(Opcode.BUSY, 
+							checkNumberWithHeld(busy.getCallerId()), busy.getId());
 					
-					LOGGER.info(message);
+					LOGGER.info(message.toString());
 					sendMessage(message);
 					
 				}
@@ -1250,9 +1531,8 @@ public class AsteriskManager implements AsteriskServerListener, PropertyChangeLi
 							extensionCalling = extensionCalling.substring(
 									dialPrefix.length());
 						
-						String message = xStrings.getString("AsteriskManager.callRingingFrom") +  
-								"/" + callerID + "/" +   
-								extensionCalling + "/" + channel.getId(); 
+						ControlMessage message = new ControlMessage(Opcode.CALL, callerID, 
+								extensionCalling, channel.getId()); 
 						
 						/* When we dial out to an external call you get connection messages
 						 * based on the outbound callerid
@@ -1271,20 +1551,20 @@ public class AsteriskManager implements AsteriskServerListener, PropertyChangeLi
 						 * to substitute appropriately
 						 * calls ==> <fromNumber, toNumber>
 						 */
-						if(calls.containsKey(callerID)){
+						if(registry.isDialSource(callerID)){
 							
 							OutgoingCall out = new OutgoingCall(channel.getId(), callerID, extensionCalling);
-							ringingExternal.put( channel.getId(), out);
+							registry.addOutgoing(out);
 							LOGGER.info(xStrings.getString(
 									"AsteriskManager.loggingExternalCall") + 
 									out); 
 							
 						}
 						
-						dbLookUpService.execute(new PhoneCall(callerID, 
-								channel.getId(), databaseManager));
+						pipeline.execute(new PhoneCall(callerID, 
+								channel.getId(), databaseManager, this));
 					
-						LOGGER.info(message);
+						LOGGER.info(message.toString());
 						sendMessage(message);
 					
 					} //Reinstated null callerid check
@@ -1299,9 +1579,11 @@ public class AsteriskManager implements AsteriskServerListener, PropertyChangeLi
 			//Linked Channel = connected (can also be disconnected)
 			AsteriskChannel channel = (AsteriskChannel)evt.getSource();
 			
-			if(evt.getNewValue() != null){//null = unlinking, not null = linking
+			if(evt.getNewValue() instanceof AsteriskChannel){//null = unlinking, not null = linking
 				//TODO unknown number here
-				String linkedTo = channel.getLinkedChannel().getCallerId().getNumber(); 
+				/* Use the channel from the event, by the time the lane gets to this
+				 * the channel may have been unlinked again */
+				String linkedTo = ((AsteriskChannel)evt.getNewValue()).getCallerId().getNumber(); 
 				
 				if(!linkedTo.equals(channel.getCallerId().getNumber())){
 					
@@ -1339,9 +1621,9 @@ public class AsteriskManager implements AsteriskServerListener, PropertyChangeLi
 					 * ringing me state (or whatever it is for other clients) check 
 					 * if this is connected to that channel and remove it.
 					 */
-					if(ringingExternal.containsKey(channel.getId())){
-						
-						OutgoingCall out = ringingExternal.get(channel.getId());
+					OutgoingCall out = registry.getOutgoing(channel.getId());
+					
+					if(out != null){
 						
 						if(!callerID.equals(out.source) && !callerID.equals(out.destination)){
 							
@@ -1362,21 +1644,20 @@ public class AsteriskManager implements AsteriskServerListener, PropertyChangeLi
 						
 					}
 						
-					String message = xStrings.getString("AsteriskManager.callConnected") +  
-							"/" + callerID + "/" +  
-							linkedTo + "/" + channel.getId(); 
+					ControlMessage message = new ControlMessage(Opcode.CONNECTED, callerID, 
+							linkedTo, channel.getId()); 
 					
 					if(systemExtensions.contains(linkedTo))//if we're linked to a system phone
-						dbLookUpService.execute(new PhoneCall(databaseManager, 
+						pipeline.execute(new PhoneCall(databaseManager, 
 								callerID, channel.getId(), this, 'A', "NA")); 
 					
-					if(calls.containsKey(callerID))
+					if(registry.isDialSource(callerID))
 						LOGGER.info(xStrings.getString(
 								"AsteriskManager.suppressingConnectedMessage") + 
 								message); 
 					else{
 						
-						LOGGER.info(message);
+						LOGGER.info(message.toString());
 						sendMessage(message);
 					
 					}
@@ -1414,20 +1695,32 @@ public class AsteriskManager implements AsteriskServerListener, PropertyChangeLi
 	@Override
 	public void onNewAgent(AsteriskAgentImpl agent) {}
 
-	/** UNUSED OriginateCallback **/
-	@Override
-	public void onBusy(AsteriskChannel channel) {}
-
-	@Override
-	public void onDialing(AsteriskChannel channel) {}
-
-	@Override
-	public void onFailure(LiveException exception) {}
-
-	@Override
-	public void onNoAnswer(AsteriskChannel channel) {}
-
-	@Override
-	public void onSuccess(AsteriskChannel channel) {}
-
+	/**
+	 * Tells the client who asked for an AMI action when it fails so they aren't
+	 * left waiting, FAILED/CHANNEL/REASON (see ManagerActionService).  succeeded() can
+	 * still be called after a time out if Asterisk did it late, the callhistory is
+	 * written then and the channel events put the client right
+	 */
+	private abstract class ClientAction implements ManagerActionService.Callback {
+		
+		private String channelID, from;
+		
+		public ClientAction(String channelID, String from){
+			
+			this.channelID = channelID;
+			this.from = from;
+			
+		}
+		
+		public void failed(int reason){
+			
+			LOGGER.warning(xStrings.getString("AsteriskManager.actionFailed") + 
+					channelID + "/" + reason);
+			sendPrivateMessage(from, new ControlMessage(Opcode.FAILED, channelID, 
+					"" + reason));
+			
+		}
+		
+	}
+	
 }
@@ -0,0 +1,460 @@
+package com.github.waynemerricks.asteriskphone.asterisk;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+
+import org.asteriskjava.live.AsteriskChannel;
+import org.asteriskjava.live.ChannelState;
+
+import com.github.waynemerricks.asteriskphone.records.OutgoingCall;
+
+/**
+ * Thread safe store for the channel state AsteriskManager keeps between events.
+ *
+ * channels: channel ID => AsteriskChannel for every live channel
+ * locks: channel ID => time the channel was last locked for a transfer
+ * dials: dialler number or queue channel => number dialled (was calls), indexed by
+ * the number dialled so the ringing and removePrefix checks don't scan every entry
+ * outgoing: channel ID => OutgoingCall for external calls we're tracking (was
+ * ringingExternal)
+ * expectedInQueue: caller ID => channel for calls we know are about to enter the
+ * queue on a new channel
+ *
+ * Everything apart from live channels expires after the TTL so a missed hang up or
+ * a call that never makes it to the queue can't leak.  Channels are dropped when
+ * asterisk-java says they've hung up.  Expiry is checked as entries are added so
+ * there is no extra thread.
+ * @author Wayne Merricks
+ *
+ */
+public class ChannelRegistry {
+
+	//CLASS VARS
+	private ConcurrentHashMap<String, AsteriskChannel> channels = new ConcurrentHashMap<String, AsteriskChannel>();
+	private ConcurrentHashMap<String, Long> locks = new ConcurrentHashMap<String, Long>();
+	private ConcurrentHashMap<String, Timed<String>> dials = new ConcurrentHashMap<String, Timed<String>>();
+	private ConcurrentHashMap<String, Set<String>> dialsByDestination = new ConcurrentHashMap<String, Set<String>>();
+	private ConcurrentHashMap<String, Timed<OutgoingCall>> outgoing = new ConcurrentHashMap<String, Timed<OutgoingCall>>();
+	private ConcurrentHashMap<String, Timed<String>> expectedInQueue = new ConcurrentHashMap<String, Timed<String>>();
+	private long timeToLive;
+	private volatile long lastSweep = System.currentTimeMillis();
+	private I18NStrings xStrings;
+
+	//STATICS
+	private static final Logger LOGGER = Logger.getLogger(ChannelRegistry.class.getName());//Logger
+	private static final long SWEEP_PERIOD = 60000L; //Min time between expiry checks
+
+	/**
+	 * Creates an empty registry
+	 * @param timeToLive time in ms before dial, outgoing, queue and lock entries expire
+	 * @param language I18N language e.g. en
+	 * @param country I18N country e.g. GB
+	 */
+	public ChannelRegistry(long timeToLive, String language, String country){
+
+		this.timeToLive = timeToLive;
+		xStrings = new I18NStrings(language, country);
+
+	}
+
+	/* CHANNELS */
+	/**
+	 * Adds a live channel
+	 * @param channel
+	 */
+	public void addChannel(AsteriskChannel channel){
+
+		channels.put(channel.getId(), channel);
+		sweepIfDue();
+
+	}
+
+	/**
+	 * Removes a channel and its lock
+	 * @param channelID
+	 */
+	public void removeChannel(String channelID){
+
+		channels.remove(channelID);
+		locks.remove(channelID);
+
+	}
+
+	/**
+	 * Returns the live channel with this ID
+	 * @param channelID
+	 * @return null if we don't know about it
+	 */
+	public AsteriskChannel getChannel(String channelID){
+
+		return channels.get(channelID);
+
+	}
+
+	/**
+	 * Returns all the live channels, safe to iterate while channels come and go
+	 * @return
+	 */
+	public Collection<AsteriskChannel> getChannels(){
+
+		return channels.values();
+
+	}
+
+	/* LOCKS */
+	/**
+	 * Checks to see whether the given channel is locked, if it isn't (or the lock has
+	 * expired) the channel is locked from now
+	 * @param channelID channel to check
+	 * @param lockTimeOut time in ms a lock lasts
+	 * @return true if the channel was already locked
+	 */
+	public synchronized boolean isLocked(String channelID, long lockTimeOut){
+
+		boolean locked = false;
+		long now = System.currentTimeMillis();
+		Long lockedAt = locks.get(channelID);
+
+		if(lockedAt != null && now - lockedAt < lockTimeOut)
+			locked = true;
+		else
+			locks.put(channelID, now);
+
+		return locked;
+
+	}
+
+	/* DIALS */
+	/**
+	 * Stores a number that has been dialled (or a caller ID for a queue channel)
+	 * @param key dialler number or channel
+	 * @param destination number dialled without the dial prefix
+	 */
+	public synchronized void addDial(String key, String destination){
+
+		removeDial(key);
+
+		dials.put(key, new Timed<String>(destination));
+
+		Set<String> keys = dialsByDestination.get(destination);
+
+		if(keys == null){
+
+			keys = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+			dialsByDestination.put(destination, keys);
+
+		}
+
+		keys.add(key);
+
+		sweepIfDue();
+
+	}
+
+	/**
+	 * Removes the dial stored against this key
+	 * @param key dialler number or channel
+	 */
+	public synchronized void removeDial(String key){
+
+		Timed<String> removed = dials.remove(key);
+
+		if(removed != null)
+			unindex(removed.value, key);
+
+	}
+
+	/**
+	 * Removes one dial that was to the given number
+	 * @param destination number dialled
+	 */
+	public synchronized void removeDialTo(String destination){
+
+		String key = getDialSource(destination);
+
+		if(key != null)
+			removeDial(key);
+
+	}
+
+	/**
+	 * Removes key from the destination index
+	 * @param destination
+	 * @param key
+	 */
+	private void unindex(String destination, String key){
+
+		Set<String> keys = dialsByDestination.get(destination);
+
+		if(keys != null){
+
+			keys.remove(key);
+
+			if(keys.isEmpty())
+				dialsByDestination.remove(destination);
+
+		}
+
+	}
+
+	/**
+	 * Returns true if a dial has been stored with this key
+	 * @param key dialler number or channel
+	 * @return
+	 */
+	public boolean isDialSource(String key){
+
+		return key != null && dials.containsKey(key);
+
+	}
+
+	/**
+	 * Returns the key of a dial to the given number
+	 * @param destination number dialled
+	 * @return dialler number/channel or null if nobody dialled it
+	 */
+	public String getDialSource(String destination){
+
+		String key = null;
+
+		if(destination != null){
+
+			Set<String> keys = dialsByDestination.get(destination);
+
+			if(keys != null){
+
+				Iterator<String> i = keys.iterator();
+
+				if(i.hasNext())
+					key = i.next();
+
+			}
+
+		}
+
+		return key;
+
+	}
+
+	/**
+	 * Returns true if callerID is a number we dialled with the dial prefix on the front
+	 * @param callerID caller ID to check
+	 * @param dialPrefix outside line prefix
+	 * @return
+	 */
+	public boolean hasDialPrefix(String callerID, String dialPrefix){
+
+		return callerID != null && callerID.startsWith(dialPrefix) &&
+				getDialSource(callerID.substring(dialPrefix.length())) != null;
+
+	}
+
+	/* OUTGOING */
+	/**
+	 * Stores an outgoing call against its channel
+	 * @param call
+	 */
+	public void addOutgoing(OutgoingCall call){
+
+		outgoing.put(call.channel, new Timed<OutgoingCall>(call));
+		sweepIfDue();
+
+	}
+
+	/**
+	 * Returns the outgoing call for this channel
+	 * @param channelID
+	 * @return null if it isn't an outgoing call we're tracking
+	 */
+	public OutgoingCall getOutgoing(String channelID){
+
+		OutgoingCall call = null;
+		Timed<OutgoingCall> timed = outgoing.get(channelID);
+
+		if(timed != null)
+			call = timed.value;
+
+		return call;
+
+	}
+
+	/**
+	 * Stops tracking the outgoing call on this channel
+	 * @param channelID
+	 * @return the call that was removed or null if there wasn't one
+	 */
+	public OutgoingCall removeOutgoing(String channelID){
+
+		OutgoingCall call = null;
+		Timed<OutgoingCall> timed = outgoing.remove(channelID);
+
+		if(timed != null)
+			call = timed.value;
+
+		return call;
+
+	}
+
+	/* EXPECTED IN QUEUE */
+	/**
+	 * Stores a call we expect to arrive in the queue on a new channel
+	 * @param callerID caller ID the queue entry will have
+	 * @param channelID channel the call is on now
+	 */
+	public void expectInQueue(String callerID, String channelID){
+
+		expectedInQueue.put(callerID, new Timed<String>(channelID));
+		sweepIfDue();
+
+	}
+
+	/**
+	 * Returns true if we're expecting this caller ID in the queue
+	 * @param callerID
+	 * @return
+	 */
+	public boolean isExpectedInQueue(String callerID){
+
+		return callerID != null && expectedInQueue.containsKey(callerID);
+
+	}
+
+	/**
+	 * Removes and returns the old channel of a call we were expecting in the queue
+	 * @param callerID
+	 * @return old channel or null if we weren't expecting it
+	 */
+	public String removeExpectedInQueue(String callerID){
+
+		String channelID = null;
+		Timed<String> timed = expectedInQueue.remove(callerID);
+
+		if(timed != null)
+			channelID = timed.value;
+
+		return channelID;
+
+	}
+
+	/* EXPIRY */
+	/**
+	 * Runs sweep if it hasn't been run for a while
+	 */
+	private void sweepIfDue(){
+
+		if(System.currentTimeMillis() - lastSweep >= SWEEP_PERIOD)
+			sweep();
+
+	}
+
+	/**
+	 * Drops hung up channels and anything older than the TTL
+	 */
+	public synchronized void sweep(){
+
+		long now = System.currentTimeMillis();
+		long expiredBefore = now - timeToLive;
+		int removed = 0;
+
+		lastSweep = now;
+
+		Iterator<AsteriskChannel> liveChannels = channels.values().iterator();
+
+		while(liveChannels.hasNext()){
+
+			AsteriskChannel channel = liveChannels.next();
+
+			if(channel.getState() == ChannelState.HUNGUP){
+
+				liveChannels.remove();
+				locks.remove(channel.getId());
+				removed++;
+
+			}
+
+		}
+
+		Iterator<Entry<String, Long>> lockEntries = locks.entrySet().iterator();
+
+		while(lockEntries.hasNext())
+			if(lockEntries.next().getValue() < expiredBefore){
+				lockEntries.remove();
+				removed++;
+			}
+
+		Iterator<Entry<String, Timed<String>>> dialEntries = dials.entrySet().iterator();
+
+		while(dialEntries.hasNext()){
+
+			Entry<String, Timed<String>> dial = dialEntries.next();
+
+			if(dial.getValue().time < expiredBefore){
+
+				dialEntries.remove();
+				unindex(dial.getValue().value, dial.getKey());
+				removed++;
+
+			}
+
+		}
+
+		removed += expire(outgoing, expiredBefore);
+		removed += expire(expectedInQueue, expiredBefore);
+
+		if(removed > 0)
+			LOGGER.info(xStrings.getString("ChannelRegistry.expiredEntries") + removed + 
+					" " + this);
+
+	}
+
+	/**
+	 * Removes entries older than expiredBefore from the given map
+	 * @param map map to check
+	 * @param expiredBefore time stamp entries must be newer than
+	 * @return number of entries removed
+	 */
+	private <V> int expire(ConcurrentHashMap<String, Timed<V>> map, long expiredBefore){
+
+		int removed = 0;
+		Iterator<Timed<V>> values = map.values().iterator();
+
+		while(values.hasNext())
+			if(values.next().time < expiredBefore){
+				values.remove();
+				removed++;
+			}
+
+		return removed;
+
+	}
+
+	public String toString(){
+
+		return "channels=" + channels.size() + " locks=" + locks.size() + " dials=" + 
+				dials.size() + " outgoing=" + outgoing.size() + " expectedInQueue=" + 
+				expectedInQueue.size();
+
+	}
+
+	/**
+	 * Value with the time it was stored
+	 */
+	private static class Timed<V> {
+
+		private V value;
+		private long time = System.currentTimeMillis();
+
+		public Timed(V value){
+
+			this.value = value;
+
+		}
+
+	}
+
+}
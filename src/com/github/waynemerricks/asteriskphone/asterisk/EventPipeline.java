@@ -0,0 +1,560 @@
+package com.github.waynemerricks.asteriskphone.asterisk;
+
+import java.util.HashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Staged pipeline for AsteriskManager work so nothing runs on the Smack packet
+ * reader or asterisk-java event threads.
+ *
+ * INGEST: listener threads drop events here and return straight away
+ * LANES: a dispatcher thread hashes the channel ID of each event to a lane, each lane
+ * is a single thread so events for one channel keep their order while unrelated
+ * channels run in parallel.  A slow manager action only holds up its own lane.
+ * WORKERS: side effects that don't need ordering (DB lookups/writes) run on a
+ * shared pool as before
+ *
+ * Every stage keeps its queue depth and latency (enqueue to finish) so we can see
+ * where things back up.
+ * @author Wayne Merricks
+ *
+ */
+public class EventPipeline {
+
+	//CLASS VARS
+	private LinkedBlockingQueue<PipelineTask> ingest = new LinkedBlockingQueue<PipelineTask>();
+	private Lane[] lanes;
+	private Lane[] workers;
+	private LinkedBlockingQueue<PipelineTask> workerQueue = new LinkedBlockingQueue<PipelineTask>();
+	private StageStats ingestStats = new StageStats("ingest");
+	private StageStats laneStats = new StageStats("lanes");
+	private StageStats workerStats = new StageStats("workers");
+	private Thread dispatcher;
+	private volatile boolean running = false;
+	private volatile boolean shutdown = false;
+	private I18NStrings xStrings;
+
+	//STATICS
+	private static final Logger LOGGER = Logger.getLogger(EventPipeline.class.getName());//Logger
+	private static final long POLL_PERIOD = 500L; //Time to block on an empty queue before checking running
+	private static final int DEFAULT_WORKERS = 4; //Default threads if database is null
+	private static final int DEFAULT_LANES = 8; //Default ordered channel lanes if database is null
+
+	/**
+	 * Creates a new pipeline with eventLanes lanes and threadPoolMax workers (both set
+	 * via DB), call start() before submitting anything
+	 * @param settings server settings
+	 */
+	public EventPipeline(HashMap<String, String> settings){
+
+		this(settings.containsKey("eventLanes") ? 
+				Integer.parseInt(settings.get("eventLanes")) : DEFAULT_LANES, 
+				settings.containsKey("threadPoolMax") ? 
+				Integer.parseInt(settings.get("threadPoolMax")) : DEFAULT_WORKERS, 
+				settings.get("language"), settings.get("country"));
+
+	}
+
+	/**
+	 * Creates a new pipeline, call start() before submitting anything
+	 * @param laneCount number of ordered channel lanes
+	 * @param workerCount number of side effect worker threads
+	 * @param language I18N language e.g. en
+	 * @param country I18N country e.g. GB
+	 */
+	public EventPipeline(int laneCount, int workerCount, String language, String country){
+
+		xStrings = new I18NStrings(language, country);
+
+		lanes = new Lane[Math.max(1, laneCount)];
+
+		for(int i = 0; i < lanes.length; i++)
+			lanes[i] = new Lane("AsteriskLane-" + i,
+					new LinkedBlockingQueue<PipelineTask>(), laneStats);
+
+		//Workers share one queue so any free worker picks up the next job
+		workers = new Lane[Math.max(1, workerCount)];
+
+		for(int i = 0; i < workers.length; i++)
+			workers[i] = new Lane("AsteriskWorker-" + i, workerQueue, workerStats);
+
+	}
+
+	/**
+	 * Starts the dispatcher, lane and worker threads
+	 */
+	public synchronized void start(){
+
+		if(!running){
+
+			running = true;
+
+			for(int i = 0; i < lanes.length; i++)
+				lanes[i].start();
+
+			for(int i = 0; i < workers.length; i++)
+				workers[i].start();
+
+			dispatcher = new Thread(new Runnable(){
+				public void run(){
+					dispatch();
+				}
+			}, "AsteriskDispatcher");
+			dispatcher.setDaemon(true);
+			dispatcher.start();
+
+		}
+
+	}
+
+	/**
+	 * Queues an event for the given channel, returns straight away.  Events submitted
+	 * after shutdown() are logged and dropped
+	 * @param key channel ID (or anything else that needs ordering e.g. user name)
+	 * @param name short description for logging
+	 * @param task work to do
+	 */
+	public void submit(String key, String name, Runnable task){
+
+		if(shutdown)
+			LOGGER.warning(xStrings.getString("EventPipeline.droppedAfterShutdown") + name);
+		else{
+
+			ingestStats.queued();
+			ingest.offer(new PipelineTask(key, name, task));
+
+		}
+
+	}
+
+	/**
+	 * Queues a side effect that doesn't need to be ordered with channel events
+	 * @param name short description for logging
+	 * @param task work to do
+	 */
+	public void execute(String name, Runnable task){
+
+		workerStats.queued();
+		workerQueue.offer(new PipelineTask(null, name, task));
+
+	}
+
+	/**
+	 * Queues a side effect, uses the class name of the task for logging
+	 * @param task work to do
+	 */
+	public void execute(Runnable task){
+
+		execute(task.getClass().getSimpleName(), task);
+
+	}
+
+	/**
+	 * Moves tasks from the ingest queue to their lane
+	 */
+	private void dispatch(){
+
+		while(running || !ingest.isEmpty()){
+
+			try{
+
+				PipelineTask task = ingest.poll(POLL_PERIOD, TimeUnit.MILLISECONDS);
+
+				if(task != null){
+
+					ingestStats.completed(task.getAge());
+
+					Lane lane = lanes[laneFor(task.key)];
+					laneStats.queued();
+
+					//Reset the clock so lane latency doesn't include ingest time
+					lane.queue.offer(new PipelineTask(task.key, task.name, task.task));
+
+				}
+
+			}catch(InterruptedException e){
+
+				Thread.currentThread().interrupt();
+				break;
+
+			}
+
+		}
+
+		//Let the lanes know nothing else is coming
+		for(int i = 0; i < lanes.length; i++)
+			lanes[i].stop();
+
+	}
+
+	/**
+	 * Returns the lane index for the given key, null keys go to lane 0
+	 * @param key
+	 * @return
+	 */
+	private int laneFor(String key){
+
+		int lane = 0;
+
+		if(key != null)
+			lane = (key.hashCode() & Integer.MAX_VALUE) % lanes.length;
+
+		return lane;
+
+	}
+
+	/**
+	 * Stops accepting new events, anything already queued still runs.  Call
+	 * awaitTermination() to wait for it to finish
+	 */
+	public synchronized void shutdown(){
+
+		shutdown = true;
+		running = false;
+
+	}
+
+	/**
+	 * Waits for everything queued before shutdown() to finish.  Lanes drain first as
+	 * they hand side effects to the workers, then the workers are stopped and drained
+	 * @param timeout ms to wait for each stage
+	 * @return true if every thread finished, false if we gave up waiting
+	 */
+	public boolean awaitTermination(long timeout){
+
+		Thread thread = null;
+		boolean finished = false;
+
+		synchronized(this){
+
+			thread = dispatcher;
+
+		}
+
+		try{
+
+			if(thread != null)
+				thread.join(timeout);
+
+			for(int i = 0; i < lanes.length; i++)
+				lanes[i].join(timeout);
+
+			for(int i = 0; i < workers.length; i++)
+				workers[i].stop();
+
+			for(int i = 0; i < workers.length; i++)
+				workers[i].join(timeout);
+
+			finished = (thread == null || !thread.isAlive()) && !isAlive(lanes) 
+					&& !isAlive(workers);
+
+		}catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+		}
+
+		LOGGER.info(xStrings.getString("EventPipeline.statistics") + this);
+
+		return finished;
+
+	}
+
+	/**
+	 * Checks if any of the given lanes still have a running thread
+	 * @param check lanes to check
+	 * @return
+	 */
+	private boolean isAlive(Lane[] check){
+
+		boolean alive = false;
+
+		for(int i = 0; i < check.length && !alive; i++)
+			alive = check[i].isAlive();
+
+		return alive;
+
+	}
+
+	/**
+	 * Returns stats for the ingest stage
+	 * @return
+	 */
+	public StageStats getIngestStats(){
+
+		return ingestStats;
+
+	}
+
+	/**
+	 * Returns stats for all of the channel lanes
+	 * @return
+	 */
+	public StageStats getLaneStats(){
+
+		return laneStats;
+
+	}
+
+	/**
+	 * Returns stats for the side effect workers
+	 * @return
+	 */
+	public StageStats getWorkerStats(){
+
+		return workerStats;
+
+	}
+
+	/**
+	 * Returns the number of tasks waiting in the given lane
+	 * @param lane lane index
+	 * @return
+	 */
+	public int getLaneDepth(int lane){
+
+		return lanes[lane].queue.size();
+
+	}
+
+	/**
+	 * Returns the number of lanes
+	 * @return
+	 */
+	public int getLaneCount(){
+
+		return lanes.length;
+
+	}
+
+	/**
+	 * Returns the number of side effect workers
+	 * @return
+	 */
+	public int getWorkerCount(){
+
+		return workers.length;
+
+	}
+
+	public String toString(){
+
+		StringBuilder depths = new StringBuilder();
+
+		for(int i = 0; i < lanes.length; i++){
+
+			if(i > 0)
+				depths.append(",");
+
+			depths.append(lanes[i].queue.size());
+
+		}
+
+		return ingestStats + " " + laneStats + " [" + depths + "] " + workerStats;
+
+	}
+
+	/**
+	 * A single thread working through its queue in order
+	 */
+	private class Lane implements Runnable {
+
+		private String name;
+		private LinkedBlockingQueue<PipelineTask> queue;
+		private StageStats stats;
+		private Thread thread;
+		private volatile boolean stopped = false;
+
+		public Lane(String name, LinkedBlockingQueue<PipelineTask> queue, StageStats stats){
+
+			this.name = name;
+			this.queue = queue;
+			this.stats = stats;
+
+		}
+
+		public void start(){
+
+			thread = new Thread(this, name);
+			thread.setDaemon(true);
+			thread.start();
+
+		}
+
+		/**
+		 * Finish what is queued then exit
+		 */
+		public void stop(){
+
+			stopped = true;
+
+		}
+
+		public void join(long timeout) throws InterruptedException {
+
+			if(thread != null)
+				thread.join(timeout);
+
+		}
+
+		public boolean isAlive(){
+
+			return thread != null && thread.isAlive();
+
+		}
+
+		public void run(){
+
+			while(!stopped || !queue.isEmpty()){
+
+				try{
+
+					PipelineTask task = queue.poll(POLL_PERIOD, TimeUnit.MILLISECONDS);
+
+					if(task != null){
+
+						try{
+							task.task.run();
+						}catch(RuntimeException e){
+							//Don't let one bad event kill the lane
+							LOGGER.log(Level.SEVERE, xStrings.getString(
+									"EventPipeline.errorRunningTask") + task.name, e);
+						}
+
+						stats.completed(task.getAge());
+
+					}
+
+				}catch(InterruptedException e){
+
+					Thread.currentThread().interrupt();
+					break;
+
+				}
+
+			}
+
+		}
+
+	}
+
+	/**
+	 * Work waiting in a queue and when it was queued
+	 */
+	private class PipelineTask {
+
+		private String key, name;
+		private Runnable task;
+		private long queued = System.nanoTime();
+
+		public PipelineTask(String key, String name, Runnable task){
+
+			this.key = key;
+			this.name = name;
+			this.task = task;
+
+		}
+
+		/**
+		 * Time since this was queued in ms
+		 * @return
+		 */
+		public long getAge(){
+
+			return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - queued);
+
+		}
+
+	}
+
+	/**
+	 * Queue depth and latency for one stage of the pipeline
+	 */
+	public static class StageStats {
+
+		private String name;
+		private AtomicLong queuedCount = new AtomicLong(), completedCount = new AtomicLong();
+		private AtomicLong totalLatency = new AtomicLong(), maxLatency = new AtomicLong();
+
+		public StageStats(String name){
+
+			this.name = name;
+
+		}
+
+		private void queued(){
+
+			queuedCount.incrementAndGet();
+
+		}
+
+		private void completed(long latency){
+
+			completedCount.incrementAndGet();
+			totalLatency.addAndGet(latency);
+
+			long max = maxLatency.get();
+
+			while(latency > max && !maxLatency.compareAndSet(max, latency))
+				max = maxLatency.get();
+
+		}
+
+		/**
+		 * Returns the number of tasks waiting or running in this stage
+		 * @return
+		 */
+		public long getDepth(){
+
+			return queuedCount.get() - completedCount.get();
+
+		}
+
+		/**
+		 * Returns the number of tasks this stage has finished
+		 * @return
+		 */
+		public long getCompletedCount(){
+
+			return completedCount.get();
+
+		}
+
+		/**
+		 * Returns the mean time in ms from queueing to finishing
+		 * @return
+		 */
+		public long getAverageLatency(){
+
+			long completed = completedCount.get();
+			long average = 0;
+
+			if(completed > 0)
+				average = totalLatency.get() / completed;
+
+			return average;
+
+		}
+
+		/**
+		 * Returns the longest time in ms a task has taken from queueing to finishing
+		 * @return
+		 */
+		public long getMaxLatency(){
+
+			return maxLatency.get();
+
+		}
+
+		public String toString(){
+
+			return name + " depth=" + getDepth() + " done=" + getCompletedCount() +
+					" avg=" + getAverageLatency() + "ms max=" + getMaxLatency() + "ms";
+
+		}
+
+	}
+
+}
@@ -0,0 +1,539 @@
+package com.github.waynemerricks.asteriskphone.asterisk;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.asteriskjava.live.AsteriskServer;
+import org.asteriskjava.manager.ManagerEventListener;
+import org.asteriskjava.manager.TimeoutException;
+import org.asteriskjava.manager.action.ExtensionStateAction;
+import org.asteriskjava.manager.event.ExtensionStatusEvent;
+import org.asteriskjava.manager.event.ManagerEvent;
+import org.asteriskjava.manager.response.ExtensionStateResponse;
+import org.asteriskjava.manager.response.ManagerResponse;
+
+/**
+ * Looks up extension states on the main server and any trunk servers.
+ *
+ * Each server has its own cache of extension => state which is kept warm by
+ * ExtensionStatusEvents, anything not seen recently is queried via an
+ * ExtensionStateAction.  The cache is only good enough for telling users about
+ * their phones, redirects ask for a fresh state without waiting for it (see
+ * getFreshStatus) so a phone that has just picked up isn't read as free.  If the main server says the extension is offline the trunk
+ * servers are queried at the same time instead of one after another.  Queries to the
+ * main server go through its ManagerActionService so they share the in flight limit
+ * with redirects and hang ups and never wait longer than QUERY_TIMEOUT.
+ * @author Wayne Merricks
+ *
+ */
+public class ExtensionStateService {
+
+	//CLASS VARS
+	private AsteriskServer[] servers; //0 = main server, 1+ = trunks
+	private ManagerActionService mainActions;
+	private ArrayList<ConcurrentHashMap<String, CachedState>> states =
+			new ArrayList<ConcurrentHashMap<String, CachedState>>();
+	private ArrayList<ManagerEventListener> listeners = new ArrayList<ManagerEventListener>();
+	private ExecutorService trunkQueries;
+	private String context;
+	private long timeToLive;
+	private I18NStrings xStrings;
+
+	//STATICS
+	private static final Logger LOGGER = Logger.getLogger(ExtensionStateService.class.getName());//Logger
+	private static final long QUERY_TIMEOUT = 5000L; //Max time to wait for a server to answer
+	public static final int ONLINE = 0;
+	public static final int ON_CALL = 1;
+	public static final int OFFLINE = 4;
+	public static final int NOT_FOUND = -1;
+
+	/**
+	 * Creates a new service, call start() once the servers have been initialised
+	 * @param main main asterisk server
+	 * @param mainActions action service for the main server
+	 * @param trunks trunk servers to check if main says the extension is offline
+	 * @param context context the extensions are in
+	 * @param timeToLive time in ms a state is trusted without an event or query
+	 * @param language I18N language e.g. en
+	 * @param country I18N country e.g. GB
+	 */
+	public ExtensionStateService(AsteriskServer main, ManagerActionService mainActions,
+			List<AsteriskServer> trunks, String context, long timeToLive, String language,
+			String country){
+
+		xStrings = new I18NStrings(language, country);
+		this.mainActions = mainActions;
+		this.context = context;
+		this.timeToLive = timeToLive;
+
+		servers = new AsteriskServer[trunks.size() + 1];
+		servers[0] = main;
+
+		for(int i = 0; i < trunks.size(); i++)
+			servers[i + 1] = trunks.get(i);
+
+		for(int i = 0; i < servers.length; i++)
+			states.add(new ConcurrentHashMap<String, CachedState>());
+
+		if(trunks.size() > 0)
+			trunkQueries = Executors.newFixedThreadPool(trunks.size(), new ThreadFactory(){
+				public Thread newThread(Runnable r){
+					Thread thread = new Thread(r, "ExtensionStateQuery");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+
+	}
+
+	/**
+	 * Subscribes to extension status events on every server
+	 */
+	public void start(){
+
+		for(int i = 0; i < servers.length; i++){
+
+			ManagerEventListener listener = new StatusListener(i);
+			servers[i].getManagerConnection().addEventListener(listener);
+			listeners.add(listener);
+
+		}
+
+	}
+
+	/**
+	 * Unsubscribes from events and stops the trunk query threads
+	 */
+	public void shutdown(){
+
+		for(int i = 0; i < listeners.size(); i++)
+			servers[i].getManagerConnection().removeEventListener(listeners.get(i));
+
+		listeners.clear();
+
+		if(trunkQueries != null)
+			trunkQueries.shutdownNow();
+
+	}
+
+	/**
+	 * Returns the status of the given extension in the default context, a cached
+	 * state is fine if it isn't older than timeToLive
+	 *
+	 * @param extension Extension to query
+	 * @return  0: Extension Online/Ready
+	 *		    1: Extension On a call
+	 *		    4: Extension Offline
+	 *		   -1: Extension does not exist
+	 */
+	public int getStatus(String extension){
+
+		int coreOnline = getStatus(0, extension);
+		int[] trunkStates = null;
+
+		if(isTrunkCheckNeeded(coreOnline)){
+
+			LOGGER.info(xStrings.getString("ExtensionStateService.checkingTrunkServers")
+					+ extension);
+
+			trunkStates = getTrunkStatus(extension);
+
+		}
+
+		return combine(coreOnline, trunkStates);
+
+	}
+
+	/**
+	 * Asks the servers for the status of the given extension ignoring the cache, for
+	 * when the answer decides what happens to a call (e.g. parking before a redirect).
+	 * Returns straight away, the callback is told the status (see getStatus) on the
+	 * manager connection or a trunk query thread once every server has answered or
+	 * given up
+	 * @param extension Extension to query
+	 * @param callback told the status once
+	 */
+	public void getFreshStatus(final String extension, final StatusCallback callback){
+
+		//A late answer can follow a time out, only the first counts
+		final AtomicBoolean answered = new AtomicBoolean(false);
+
+		mainActions.send(new ExtensionStateAction(extension, context), QUERY_TIMEOUT, 
+				new ManagerActionService.Callback(){
+			public void succeeded(ManagerResponse response){
+
+				if(answered.compareAndSet(false, true)){
+
+					int status = NOT_FOUND;
+
+					if(response instanceof ExtensionStateResponse &&
+							((ExtensionStateResponse)response).getStatus() != null){
+
+						status = ((ExtensionStateResponse)response).getStatus();
+						states.get(0).put(extension, new CachedState(status));
+
+					}
+
+					checkTrunks(extension, status, callback);
+
+				}
+
+			}
+			public void failed(int reason){
+
+				if(answered.compareAndSet(false, true)){
+
+					LOGGER.warning(xStrings.getString("ExtensionStateService.queryFailed") +
+							extension + " (" + getHostname(0) + ")");
+					checkTrunks(extension, NOT_FOUND, callback);
+
+				}
+
+			}
+		});
+
+	}
+
+	/**
+	 * Queries every trunk in parallel if the main server doesn't have the extension,
+	 * the last trunk to answer tells the callback
+	 * @param extension
+	 * @param coreOnline status on the main server
+	 * @param callback
+	 */
+	private void checkTrunks(final String extension, final int coreOnline, 
+			final StatusCallback callback){
+
+		if(isTrunkCheckNeeded(coreOnline)){
+
+			LOGGER.info(xStrings.getString("ExtensionStateService.checkingTrunkServers")
+					+ extension);
+
+			final int[] trunkStates = new int[servers.length - 1];
+			final AtomicInteger remaining = new AtomicInteger(trunkStates.length);
+
+			for(int i = 1; i < servers.length; i++){
+
+				final int server = i;
+				Runnable trunkQuery = new Runnable(){
+					public void run(){
+
+						trunkAnswered(trunkStates, remaining, server, query(server, extension),
+								coreOnline, callback);
+
+					}
+				};
+
+				try{
+					trunkQueries.execute(trunkQuery);
+				}catch(RejectedExecutionException e){
+
+					//Shut down, count this trunk as not having it
+					trunkAnswered(trunkStates, remaining, server, NOT_FOUND, coreOnline, 
+							callback);
+
+				}
+
+			}
+
+		}else
+			callback.status(coreOnline);
+
+	}
+
+	/**
+	 * Records a trunk's answer, the last trunk to answer tells the callback
+	 * @param trunkStates status on each trunk so far
+	 * @param remaining trunks still to answer
+	 * @param server index of the server that answered
+	 * @param status its answer
+	 * @param coreOnline status on the main server
+	 * @param callback
+	 */
+	private void trunkAnswered(int[] trunkStates, AtomicInteger remaining, int server, 
+			int status, int coreOnline, StatusCallback callback){
+
+		int online = NOT_FOUND;
+		boolean last = false;
+
+		synchronized(trunkStates){
+
+			trunkStates[server - 1] = status;
+			last = remaining.decrementAndGet() == 0;
+
+			if(last)
+				online = combine(coreOnline, trunkStates);
+
+		}
+
+		if(last)
+			callback.status(online);
+
+	}
+
+	/**
+	 * Trunks only need checking if the main server says the extension is off line or
+	 * doesn't exist
+	 * @param coreOnline status on the main server
+	 * @return
+	 */
+	private boolean isTrunkCheckNeeded(int coreOnline){
+
+		return (coreOnline == OFFLINE || coreOnline == NOT_FOUND) && servers.length > 1;
+
+	}
+
+	/**
+	 * Works out the overall status from the main server and trunks
+	 * @param coreOnline status on the main server
+	 * @param trunkStates status on each trunk or null if they weren't checked
+	 * @return
+	 */
+	private int combine(int coreOnline, int[] trunkStates){
+
+		int online = coreOnline;
+
+		//Same result as checking each trunk in turn and stopping at the first hit
+		for(int i = 0; trunkStates != null && i < trunkStates.length; i++){
+
+			online = trunkStates[i];
+
+			if(online == ONLINE || online == ON_CALL)
+				break;
+
+		}
+
+		if(online == NOT_FOUND && coreOnline == OFFLINE)
+			online = OFFLINE;
+
+		return online;
+
+	}
+
+	/**
+	 * Returns the status of the extension on every trunk server, anything not in the
+	 * cache is queried in parallel
+	 * @param extension
+	 * @return status for each trunk in the same order as the trunk servers
+	 */
+	private int[] getTrunkStatus(final String extension){
+
+		int[] trunkStates = new int[servers.length - 1];
+		ArrayList<Future<Integer>> queries = new ArrayList<Future<Integer>>();
+
+		for(int i = 1; i < servers.length; i++){
+
+			Integer cached = getCachedStatus(i, extension);
+			if(cached != null){
+
+				trunkStates[i - 1] = cached;
+				queries.add(null);
+
+			}else{
+
+				final int server = i;
+
+				queries.add(trunkQueries.submit(new Callable<Integer>(){
+					public Integer call(){
+						return query(server, extension);
+					}
+				}));
+
+			}
+
+		}
+
+		long deadline = System.currentTimeMillis() + QUERY_TIMEOUT;
+
+		for(int i = 0; i < queries.size(); i++){
+
+			Future<Integer> query = queries.get(i);
+
+			if(query != null){
+
+				try{
+
+					trunkStates[i] = query.get(Math.max(0,
+							deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+
+				}catch(InterruptedException e){
+
+					Thread.currentThread().interrupt();
+					trunkStates[i] = NOT_FOUND;
+
+				}catch(ExecutionException | java.util.concurrent.TimeoutException e){
+
+					query.cancel(true);
+					LOGGER.warning(xStrings.getString("ExtensionStateService.queryFailed") +
+							extension + " (" + getHostname(i + 1) + ")");
+					trunkStates[i] = NOT_FOUND;
+
+				}
+
+			}
+
+		}
+
+		return trunkStates;
+
+	}
+
+	/**
+	 * Returns the cached status if we have it otherwise queries the server
+	 * @param server index of the server (0 = main)
+	 * @param extension
+	 * @return
+	 */
+	private int getStatus(int server, String extension){
+
+		Integer status = getCachedStatus(server, extension);
+
+		if(status == null)
+			status = query(server, extension);
+
+		return status;
+
+	}
+
+	/**
+	 * Returns the cached status or null if we don't have one or it is too old
+	 * @param server index of the server (0 = main)
+	 * @param extension
+	 * @return
+	 */
+	private Integer getCachedStatus(int server, String extension){
+
+		Integer status = null;
+		CachedState cached = states.get(server).get(extension);
+
+		if(cached != null && System.currentTimeMillis() - cached.time < timeToLive)
+			status = cached.status;
+
+		return status;
+
+	}
+
+	/**
+	 * Sends an ExtensionStateAction to the given server and caches the result
+	 * @param server index of the server (0 = main)
+	 * @param extension
+	 * @return status or -1 if the query failed
+	 */
+	private int query(int server, String extension){
+
+		int status = NOT_FOUND;
+
+		try {
+
+			ManagerResponse response;
+
+			if(server == 0)
+				response = mainActions.sendAndWait(new ExtensionStateAction(extension, context),
+						QUERY_TIMEOUT);
+			else
+				response = servers[server].getManagerConnection().sendAction(
+						new ExtensionStateAction(extension, context));
+
+			if(response instanceof ExtensionStateResponse &&
+					((ExtensionStateResponse)response).getStatus() != null){
+
+				status = ((ExtensionStateResponse)response).getStatus();
+				states.get(server).put(extension, new CachedState(status));
+
+			}
+
+		} catch (IllegalArgumentException | IllegalStateException | IOException
+				| TimeoutException e) {
+			LOGGER.log(Level.SEVERE, xStrings.getString(
+					"ExtensionStateService.queryFailed") + extension + " (" +
+					getHostname(server) + ")", e);
+		}
+
+		return status;
+
+	}
+
+	/**
+	 * Returns the host name of the given server for logging
+	 * @param server index of the server (0 = main)
+	 * @return
+	 */
+	private String getHostname(int server){
+
+		return servers[server].getManagerConnection().getHostname();
+
+	}
+
+	/**
+	 * Keeps the cache for one server up to date
+	 */
+	private class StatusListener implements ManagerEventListener {
+
+		private int server;
+
+		public StatusListener(int server){
+
+			this.server = server;
+
+		}
+
+		public void onManagerEvent(ManagerEvent event){
+
+			if(event instanceof ExtensionStatusEvent){
+
+				ExtensionStatusEvent status = (ExtensionStatusEvent)event;
+
+				if(status.getExten() != null && status.getStatus() != null &&
+						(context == null || context.equals(status.getContext())))
+					states.get(server).put(status.getExten(),
+							new CachedState(status.getStatus()));
+
+			}
+
+		}
+
+	}
+
+	/**
+	 * Told the result of getFreshStatus
+	 */
+	public interface StatusCallback {
+
+		/**
+		 * @param status 0 online, 1 on a call, 4 off line, -1 doesn't exist
+		 */
+		public void status(int status);
+
+	}
+
+	/**
+	 * Extension state and when we found it out
+	 */
+	private static class CachedState {
+
+		private int status;
+		private long time = System.currentTimeMillis();
+
+		public CachedState(int status){
+
+			this.status = status;
+
+		}
+
+	}
+
+}
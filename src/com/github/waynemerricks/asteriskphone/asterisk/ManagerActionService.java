@@ -0,0 +1,389 @@
+package com.github.waynemerricks.asteriskphone.asterisk;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.asteriskjava.manager.ManagerConnection;
+import org.asteriskjava.manager.SendActionCallback;
+import org.asteriskjava.manager.action.ManagerAction;
+import org.asteriskjava.manager.response.ManagerError;
+import org.asteriskjava.manager.response.ManagerResponse;
+
+/**
+ * Sends manager actions (redirect, hang up, originate etc) without waiting for them.
+ *
+ * Actions are written to the manager connection on a thread of their own and the
+ * Callback is told when Asterisk answers.  If there's no answer before the deadline
+ * the Callback is told it timed out and anything still waiting to be written is
+ * dropped.  An action that was written may still have gone ahead though, so if
+ * Asterisk later says it succeeded the Callback is told that too.
+ *
+ * Only maxInFlight actions can be waiting for an answer at once, anything more fails
+ * straight away with BUSY.  An action stops counting once it is answered or its
+ * deadline passes, so this bounds the callers waiting on us rather than the actions
+ * Asterisk still owes an answer for.  On a hung connection the places free up as the
+ * deadlines pass and later actions are still written behind the unanswered ones.
+ *
+ * Failure reasons double as FAILED codes for the client so they don't clash with
+ * the extension states (0, 1, 4 and -1).
+ * @author Wayne Merricks
+ *
+ */
+public class ManagerActionService {
+
+	//CLASS VARS
+	private ManagerConnection connection;
+	private ExecutorService writer;
+	private ScheduledExecutorService deadlines;
+	private Semaphore inFlight;
+	private int maxInFlight;
+	private long timeout;
+	private I18NStrings xStrings;
+	private AtomicLong succeeded = new AtomicLong(), failed = new AtomicLong(),
+			timedOut = new AtomicLong(), rejected = new AtomicLong(),
+			lateSucceeded = new AtomicLong();
+
+	//STATICS
+	private static final Logger LOGGER = Logger.getLogger(ManagerActionService.class.getName());//Logger
+	public static final int TIMED_OUT = -2; //No answer before the deadline
+	public static final int BUSY = -3; //Too many actions waiting for an answer
+	public static final int ERROR = -4; //Asterisk said no or we couldn't send it
+	private static final int WAITING = 0;
+	private static final int FINISHED = 1;
+	private static final int EXPIRED = 2;
+
+	/**
+	 * @param connection manager connection to send actions on
+	 * @param maxInFlight most actions that can be waiting for an answer at once
+	 * @param timeout default ms to wait for an answer
+	 * @param language I18N language e.g. en
+	 * @param country I18N country e.g. GB
+	 */
+	public ManagerActionService(ManagerConnection connection, int maxInFlight, long timeout,
+			String language, String country){
+
+		this.connection = connection;
+		this.maxInFlight = maxInFlight;
+		this.timeout = timeout;
+
+		xStrings = new I18NStrings(language, country);
+		inFlight = new Semaphore(maxInFlight);
+
+		writer = Executors.newSingleThreadExecutor(new ThreadFactory(){
+			public Thread newThread(Runnable r){
+				Thread thread = new Thread(r, "ManagerActionWriter");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+
+		deadlines = Executors.newSingleThreadScheduledExecutor(new ThreadFactory(){
+			public Thread newThread(Runnable r){
+				Thread thread = new Thread(r, "ManagerActionDeadlines");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+
+	}
+
+	/**
+	 * Sends an action with the default timeout
+	 * @param action action to send
+	 * @param callback told the result on the connection's reader thread, the deadline
+	 * thread or this thread if we're too busy
+	 */
+	public void send(ManagerAction action, Callback callback){
+
+		send(action, timeout, callback);
+
+	}
+
+	/**
+	 * Sends an action
+	 * @param action action to send
+	 * @param timeout ms to wait for an answer
+	 * @param callback told the result on the connection's reader thread, the deadline
+	 * thread or this thread if we're too busy
+	 */
+	public void send(ManagerAction action, long timeout, Callback callback){
+
+		if(!inFlight.tryAcquire()){
+
+			rejected.incrementAndGet();
+			LOGGER.warning(xStrings.getString("ManagerActionService.tooManyActions") +
+					action.getAction());
+			callback.failed(BUSY);
+
+		}else{
+
+			final PendingAction pending = new PendingAction(action, callback);
+
+			try{
+
+				pending.deadline = deadlines.schedule(new Runnable(){
+					public void run(){
+						expire(pending);
+					}
+				}, timeout, TimeUnit.MILLISECONDS);
+
+				writer.execute(new Runnable(){
+					public void run(){
+						write(pending);
+					}
+				});
+
+			}catch(RejectedExecutionException e){
+
+				//Shut down
+				if(pending.finish(false))
+					callback.failed(ERROR);
+
+			}
+
+		}
+
+	}
+
+	/**
+	 * Sends an action and waits for the answer, for callers that can't carry on
+	 * without it.  The wait is never longer than the timeout even if the connection
+	 * is stuck
+	 * @param action action to send
+	 * @param timeout ms to wait for an answer
+	 * @return the response or null if the action failed
+	 */
+	public ManagerResponse sendAndWait(ManagerAction action, long timeout){
+
+		final ManagerResponse[] result = new ManagerResponse[1];
+		final CountDownLatch answered = new CountDownLatch(1);
+
+		send(action, timeout, new Callback(){
+			public void succeeded(ManagerResponse response){
+
+				result[0] = response;
+				answered.countDown();
+
+			}
+			public void failed(int reason){
+				answered.countDown();
+			}
+		});
+
+		try{
+			answered.await(timeout, TimeUnit.MILLISECONDS);
+		}catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+		}
+
+		return result[0];
+
+	}
+
+	/**
+	 * Stops sending, anything still waiting for an answer is dropped
+	 */
+	public void shutdown(){
+
+		writer.shutdownNow();
+		deadlines.shutdownNow();
+
+		LOGGER.info(xStrings.getString("ManagerActionService.statistics") + this);
+
+	}
+
+	/**
+	 * Returns the number of actions waiting for an answer
+	 * @return
+	 */
+	public int getInFlightCount(){
+
+		return maxInFlight - inFlight.availablePermits();
+
+	}
+
+	/**
+	 * Writes the action unless it already timed out while waiting to be written
+	 * @param pending
+	 */
+	private void write(final PendingAction pending){
+
+		if(!pending.isFinished()){
+
+			try{
+
+				connection.sendAction(pending.action, new SendActionCallback(){
+					public void onResponse(ManagerResponse response){
+						complete(pending, response);
+					}
+				});
+
+			}catch(IOException | IllegalArgumentException | IllegalStateException e){
+
+				LOGGER.log(Level.WARNING, xStrings.getString("ManagerActionService.sendFailed") +
+						pending.action.getAction(), e);
+
+				if(pending.finish(false)){
+
+					failed.incrementAndGet();
+					pending.callback.failed(ERROR);
+
+				}
+
+			}
+
+		}
+
+	}
+
+	/**
+	 * Asterisk has answered, if it's after the deadline but the action went ahead the
+	 * Callback is still told so whatever depends on it (e.g. callhistory) happens
+	 * @param pending
+	 * @param response
+	 */
+	private void complete(PendingAction pending, ManagerResponse response){
+
+		if(pending.finish(false)){
+
+			if(response instanceof ManagerError){
+
+				failed.incrementAndGet();
+				LOGGER.warning(xStrings.getString("ManagerActionService.actionRefused") +
+						pending.action.getAction() + ": " + response.getMessage());
+				pending.callback.failed(ERROR);
+
+			}else{
+
+				succeeded.incrementAndGet();
+				pending.callback.succeeded(response);
+
+			}
+
+		}else if(pending.isExpired() && !(response instanceof ManagerError)){
+
+			lateSucceeded.incrementAndGet();
+			LOGGER.warning(xStrings.getString("ManagerActionService.lateSuccess") +
+					pending.action.getAction());
+			pending.callback.succeeded(response);
+
+		}else
+			LOGGER.info(xStrings.getString("ManagerActionService.lateResponse") +
+					pending.action.getAction());
+
+	}
+
+	/**
+	 * The deadline has passed
+	 * @param pending
+	 */
+	private void expire(PendingAction pending){
+
+		if(pending.finish(true)){
+
+			timedOut.incrementAndGet();
+			LOGGER.warning(xStrings.getString("ManagerActionService.timedOut") +
+					pending.action.getAction());
+			pending.callback.failed(TIMED_OUT);
+
+		}
+
+	}
+
+	@Override
+	public String toString(){
+
+		return "in flight " + getInFlightCount() + "/" + maxInFlight + ", succeeded " +
+				succeeded.get() + ", failed " + failed.get() + ", timed out " + timedOut.get() +
+				", rejected " + rejected.get() + ", succeeded late " + lateSucceeded.get();
+
+	}
+
+	/**
+	 * Told how an action went
+	 */
+	public interface Callback {
+
+		/**
+		 * Asterisk did it, can follow failed(TIMED_OUT) if the answer was late
+		 * @param response
+		 */
+		public void succeeded(ManagerResponse response);
+
+		/**
+		 * @param reason TIMED_OUT, BUSY or ERROR
+		 */
+		public void failed(int reason);
+
+	}
+
+	/**
+	 * An action waiting for its answer, whichever of the answer, the deadline or a
+	 * send error finishes it first decides the result.  The answer callback keeps hold
+	 * of it after the deadline so a late success can still be passed on
+	 */
+	private class PendingAction {
+
+		private final ManagerAction action;
+		private final Callback callback;
+		private final AtomicInteger state = new AtomicInteger(WAITING);
+		private volatile ScheduledFuture<?> deadline;
+
+		private PendingAction(ManagerAction action, Callback callback){
+
+			this.action = action;
+			this.callback = callback;
+
+		}
+
+		private boolean isFinished(){
+
+			return state.get() != WAITING;
+
+		}
+
+		private boolean isExpired(){
+
+			return state.get() == EXPIRED;
+
+		}
+
+		/**
+		 * Marks the action finished and frees its place
+		 * @param expired true if the deadline finished it
+		 * @return true if we finished it, false if it was already finished
+		 */
+		private boolean finish(boolean expired){
+
+			boolean first = state.compareAndSet(WAITING, expired ? EXPIRED : FINISHED);
+
+			if(first){
+
+				inFlight.release();
+
+				ScheduledFuture<?> waiting = deadline;
+
+				if(waiting != null)
+					waiting.cancel(false);
+
+			}
+
+			return first;
+
+		}
+
+	}
+
+}
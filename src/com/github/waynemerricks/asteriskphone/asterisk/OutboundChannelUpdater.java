@@ -7,11 +7,13 @@ import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.logging.Logger;
 
+import com.github.waynemerricks.asteriskphone.database.DatabaseManager;
+
 public class OutboundChannelUpdater implements Runnable{
 
 	private static final Logger LOGGER = Logger.getLogger(OutboundChannelUpdater.class.getName());//Logger
 	
-	private Connection read = null, write = null;
+	private DatabaseManager database = null;
 	private I18NStrings xStrings = null;
 	private String oldChannel = null, newChannel = null, phoneNumber = null,
 			type = null;
@@ -24,21 +26,19 @@ public class OutboundChannelUpdater implements Runnable{
 	 * for the first time, a new channel is created for reasons unknown)
 	 * @param language I18N e.g. en
 	 * @param country I18N e.g. GB
-	 * @param readConnection read connection to DB
-	 * @param writeConnection write connection to DB
+	 * @param database DatabaseManager to borrow connections from
 	 * @param oldChannel Channel of entry to get info from
 	 * @param newChannel Channel of entry to make with old info
 	 * @param number Number/CallerID of call
 	 * @param Where to send XMPP Control UPDATEX when finished
 	 */
 	public OutboundChannelUpdater(String language, String country, 
-			Connection readConnection, Connection writeConnection,
+			DatabaseManager database,
 			String oldChannel, String newChannel, String number,
 			AsteriskManager asterisk){
 		
 		xStrings = new I18NStrings(language, country);
-		this.read = readConnection;
-		this.write = writeConnection;
+		this.database = database;
 		this.oldChannel = oldChannel;
 		this.newChannel = newChannel;
 		this.phoneNumber = number;
@@ -82,6 +82,7 @@ public class OutboundChannelUpdater implements Runnable{
 	
 		boolean success = false;
 		
+		Connection read = null;
 		Statement statement = null;
 		String SQL = null;
 		ResultSet results = null;
@@ -93,6 +94,7 @@ public class OutboundChannelUpdater implements Runnable{
 					"WHERE `state` = 'A' AND `callchannel` = " + oldChannel + 
 					" ORDER BY `callhistory_id` DESC LIMIT 1";  
 			
+			read = database.getReadConnection();
 			statement = read.createStatement();
 		    results = statement.executeQuery(SQL);
 		    
@@ -124,6 +126,11 @@ public class OutboundChannelUpdater implements Runnable{
 					results.close();
 				}catch(Exception e){}
 				
+			if(read != null)
+				try{
+					read.close();
+				}catch(Exception e){}
+
 		}
 		
 		return success;
@@ -139,6 +146,7 @@ public class OutboundChannelUpdater implements Runnable{
 		//INSERT INTO `callhistory` (`phonenumber`, `callchannel`, `type`, `activePerson`) VALUES (?, ?, ?, ?);
 		boolean success = false;
 		String SQL = null;
+		Connection write = null;
 		PreparedStatement statement = null;
 		
 		String error = xStrings.getString(
@@ -151,6 +159,7 @@ public class OutboundChannelUpdater implements Runnable{
 					"`type`, `activePerson`) VALUES " + 
 					"(?, ?, ?, ?)"; 
 			
+			write = database.getWriteConnection();
 			statement = write.prepareStatement(SQL);
 			statement.setString(1, phoneNumber);
 			statement.setString(2, newChannel);
@@ -173,6 +182,11 @@ public class OutboundChannelUpdater implements Runnable{
             		statement.close();
             	}catch(Exception e){}
 				
+			if(write != null)
+				try{
+					write.close();
+				}catch(Exception e){}
+
 		}
 		
 		return success;
@@ -192,6 +206,7 @@ public class OutboundChannelUpdater implements Runnable{
 				"OutboundChannelUpdater.errorUpdatingConversation") + 
 				"\n\tChannel: " + oldChannel + "/" + newChannel; 
 
+		Connection write = null;
 		PreparedStatement statement = null;
 		String SQL = null;
 		
@@ -199,6 +214,7 @@ public class OutboundChannelUpdater implements Runnable{
 			
 			SQL = "UPDATE `conversations` SET `channel` = ? WHERE `channel` = ?"; 
 			
+			write = database.getWriteConnection();
 			statement = write.prepareStatement(SQL);
 			statement.setString(1, newChannel);
 			statement.setString(2, oldChannel);
@@ -227,6 +243,11 @@ public class OutboundChannelUpdater implements Runnable{
             		statement.close();
             	}catch(Exception e){}
 				
+			if(write != null)
+				try{
+					write.close();
+				}catch(Exception e){}
+
 		}
 		
 		return success;
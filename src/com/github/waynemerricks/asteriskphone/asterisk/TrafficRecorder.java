@@ -0,0 +1,331 @@
+package com.github.waynemerricks.asteriskphone.asterisk;
+
+import java.beans.PropertyChangeEvent;
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.logging.Logger;
+
+import org.asteriskjava.live.AsteriskChannel;
+import org.asteriskjava.live.AsteriskQueueEntry;
+import org.asteriskjava.live.CallerId;
+import org.asteriskjava.live.Extension;
+
+/**
+ * Records everything AsteriskManager sees to an append only file so a busy night can
+ * be replayed later with TrafficReplay.
+ *
+ * One record per line, tab separated, the first field is the time in ms since the
+ * recording started:
+ * N new channel: id, name, caller id, state
+ * Q new queue entry: channel id, queue, channel name, caller id, state
+ * P channel property change: channel id, property, old value, new value
+ * X control message received: from, snapshot requested (1/0), body
+ * O control message sent: recipient (blank for the room), body
+ *
+ * Values are written with a one letter type so they can be rebuilt on replay, see
+ * encodeValue().  Tabs, new lines, commas and backslashes are escaped.  Each record
+ * is flushed as it is written so a crash doesn't lose the events leading up to it.
+ * @author Wayne Merricks
+ *
+ */
+public class TrafficRecorder {
+
+	//CLASS VARS
+	private BufferedWriter writer;
+	private long started;
+	private String fileName;
+	private I18NStrings xStrings;
+
+	//STATICS
+	private static final Logger LOGGER = Logger.getLogger(TrafficRecorder.class.getName());//Logger
+	public static final String HEADER = "#asteriskphone-traffic";
+	public static final int VERSION = 1;
+	public static final char SEPARATOR = '\t';
+	public static final char PART_SEPARATOR = ',';
+	public static final String NEW_CHANNEL = "N";
+	public static final String QUEUE_ENTRY = "Q";
+	public static final String PROPERTY_CHANGE = "P";
+	public static final String RECEIVED = "X";
+	public static final String SENT = "O";
+	public static final String NULL_VALUE = "-";
+	public static final char TYPE_CHANNEL = 'C';
+	public static final char TYPE_CALLER_ID = 'I';
+	public static final char TYPE_EXTENSION = 'E';
+	public static final char TYPE_ENUM = 'V';
+	public static final char TYPE_DATE = 'D';
+	public static final char TYPE_TEXT = 'T';
+
+	/**
+	 * Opens the given file for appending and writes a header with the start time
+	 * @param fileName file to append to, created if it doesn't exist
+	 * @param language I18N language e.g. en
+	 * @param country I18N country e.g. GB
+	 * @throws IOException if the file can't be opened
+	 */
+	public TrafficRecorder(String fileName, String language, String country)
+			throws IOException {
+
+		xStrings = new I18NStrings(language, country);
+		this.fileName = fileName;
+		started = System.currentTimeMillis();
+		writer = new BufferedWriter(new OutputStreamWriter(
+				new FileOutputStream(fileName, true), "UTF-8"));
+
+		write(HEADER + SEPARATOR + VERSION + SEPARATOR + started);
+		LOGGER.info(xStrings.getString("TrafficRecorder.recording") + fileName);
+
+	}
+
+	/**
+	 * Records a new channel
+	 * @param channel
+	 */
+	public void newChannel(AsteriskChannel channel){
+
+		record(NEW_CHANNEL, channel.getId(), channel.getName(),
+				encodeValue(channel.getCallerId()), encodeValue(channel.getState()));
+
+	}
+
+	/**
+	 * Records a new queue entry with enough of its channel to create it on replay
+	 * @param entry
+	 */
+	public void newQueueEntry(AsteriskQueueEntry entry){
+
+		AsteriskChannel channel = entry.getChannel();
+
+		record(QUEUE_ENTRY, channel.getId(), entry.getQueue().getName(), channel.getName(),
+				encodeValue(channel.getCallerId()), encodeValue(channel.getState()));
+
+	}
+
+	/**
+	 * Records a channel property change
+	 * @param evt
+	 */
+	public void propertyChange(PropertyChangeEvent evt){
+
+		record(PROPERTY_CHANGE, ((AsteriskChannel)evt.getSource()).getId(),
+				evt.getPropertyName(), encodeValue(evt.getOldValue()),
+				encodeValue(evt.getNewValue()));
+
+	}
+
+	/**
+	 * Records a control message from a client
+	 * @param from nick name of the sender
+	 * @param snapshot true if the sender asked for a snapshot
+	 * @param body
+	 */
+	public void received(String from, boolean snapshot, String body){
+
+		record(RECEIVED, from, snapshot ? "1" : "0", body);
+
+	}
+
+	/**
+	 * Records a control message we sent
+	 * @param recipient nick name for private messages or null for the control room
+	 * @param body
+	 */
+	public void sent(String recipient, String body){
+
+		record(SENT, recipient == null ? "" : recipient, body);
+
+	}
+
+	/**
+	 * Flushes and closes the file, anything recorded after this is ignored
+	 */
+	public synchronized void close(){
+
+		if(writer != null){
+
+			try{
+				writer.close();
+			}catch(IOException e){
+				LOGGER.warning(xStrings.getString("TrafficRecorder.errorClosing") + fileName);
+			}
+
+			writer = null;
+
+		}
+
+	}
+
+	/**
+	 * Writes one record with the time since we started
+	 * @param type record type e.g. NEW_CHANNEL
+	 * @param fields
+	 */
+	private synchronized void record(String type, String... fields){
+
+		if(writer != null){
+
+			StringBuilder line = new StringBuilder();
+			line.append(System.currentTimeMillis() - started).append(SEPARATOR).append(type);
+
+			for(int i = 0; i < fields.length; i++)
+				line.append(SEPARATOR).append(escape(fields[i]));
+
+			try{
+				write(line.toString());
+			}catch(IOException e){
+
+				//Stop rather than fill the log with the same error on every event
+				LOGGER.severe(xStrings.getString("TrafficRecorder.errorWriting") + fileName +
+						" " + e.getMessage());
+				close();
+
+			}
+
+		}
+
+	}
+
+	private void write(String line) throws IOException {
+
+		writer.write(line);
+		writer.newLine();
+		writer.flush();
+
+	}
+
+	/**
+	 * Encodes a property value as its type letter followed by the value:
+	 * C channel id, I caller id name,number, E context,extension,priority,
+	 * V enum class,name, D time in ms, T anything else as text.  null is NULL_VALUE
+	 * @param value
+	 * @return
+	 */
+	public static String encodeValue(Object value){
+
+		String encoded = NULL_VALUE;
+
+		if(value instanceof AsteriskChannel)
+			encoded = TYPE_CHANNEL + ((AsteriskChannel)value).getId();
+		else if(value instanceof CallerId)
+			encoded = TYPE_CALLER_ID + join(encodeValue(((CallerId)value).getName()),
+					encodeValue(((CallerId)value).getNumber()));
+		else if(value instanceof Extension)
+			encoded = TYPE_EXTENSION + join(encodeValue(((Extension)value).getContext()),
+					encodeValue(((Extension)value).getExtension()),
+					encodeValue(((Extension)value).getPriority()));
+		else if(value instanceof Enum)
+			encoded = TYPE_ENUM + join(((Enum<?>)value).getDeclaringClass().getName(),
+					((Enum<?>)value).name());
+		else if(value instanceof Date)
+			encoded = TYPE_DATE + String.valueOf(((Date)value).getTime());
+		else if(value != null)
+			encoded = TYPE_TEXT + value.toString();
+
+		return encoded;
+
+	}
+
+	/**
+	 * Joins the parts with PART_SEPARATOR escaping each one
+	 * @param parts
+	 * @return
+	 */
+	public static String join(String... parts){
+
+		StringBuilder joined = new StringBuilder();
+
+		for(int i = 0; i < parts.length; i++){
+
+			if(i > 0)
+				joined.append(PART_SEPARATOR);
+
+			joined.append(escape(parts[i]));
+
+		}
+
+		return joined.toString();
+
+	}
+
+	/**
+	 * Escapes backslashes, both separators and line breaks
+	 * @param text
+	 * @return
+	 */
+	public static String escape(String text){
+
+		StringBuilder escaped = new StringBuilder(text.length());
+
+		for(int i = 0; i < text.length(); i++){
+
+			char c = text.charAt(i);
+
+			if(c == '\\')
+				escaped.append("\\\\");
+			else if(c == SEPARATOR)
+				escaped.append("\\t");
+			else if(c == '\n')
+				escaped.append("\\n");
+			else if(c == '\r')
+				escaped.append("\\r");
+			else if(c == PART_SEPARATOR)
+				escaped.append("\\,");
+			else
+				escaped.append(c);
+
+		}
+
+		return escaped.toString();
+
+	}
+
+	/**
+	 * Splits on unescaped separators and unescapes each part, the reverse of escape
+	 * followed by joining with the separator
+	 * @param text
+	 * @param separator SEPARATOR or PART_SEPARATOR
+	 * @return
+	 */
+	public static String[] split(String text, char separator){
+
+		List<String> parts = new ArrayList<String>();
+		StringBuilder part = new StringBuilder();
+
+		for(int i = 0; i < text.length(); i++){
+
+			char c = text.charAt(i);
+
+			if(c == '\\' && i + 1 < text.length()){
+
+				char next = text.charAt(++i);
+
+				if(next == 't')
+					part.append(SEPARATOR);
+				else if(next == 'n')
+					part.append('\n');
+				else if(next == 'r')
+					part.append('\r');
+				else
+					part.append(next);
+
+			}else if(c == separator){
+
+				parts.add(part.toString());
+				part.setLength(0);
+
+			}else
+				part.append(c);
+
+		}
+
+		parts.add(part.toString());
+
+		return parts.toArray(new String[parts.size()]);
+
+	}
+
+}
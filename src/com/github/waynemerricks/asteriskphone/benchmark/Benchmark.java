@@ -0,0 +1,214 @@
+package com.github.waynemerricks.asteriskphone.benchmark;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * One benchmark, run() is a single operation of whatever is being measured.
+ *
+ * measure() runs the operation for a warm up period so the JIT has compiled it, then
+ * for the measurement period counting operations, time and the bytes allocated by
+ * this thread.  Allocation needs a HotSpot style JVM, elsewhere it is reported as -1.
+ * Anything an operation does on other threads is timed but its allocations aren't
+ * counted.
+ *
+ * Whatever run() returns is kept in a volatile so the JIT can't optimise the work
+ * away.
+ * @author Wayne Merricks
+ *
+ */
+public abstract class Benchmark {
+
+	//CLASS VARS
+	private String name;
+
+	//STATICS
+	private static final int CHECK_EVERY = 16; //Operations between looking at the clock
+	private static final long NANOS_PER_MS = 1000000L;
+	private static volatile Object sink;
+
+	/**
+	 * @param name suite.operation e.g. codec.decodeV2
+	 */
+	public Benchmark(String name){
+
+		this.name = name;
+
+	}
+
+	public String getName(){
+
+		return name;
+
+	}
+
+	/**
+	 * Called once before warming up
+	 * @throws Exception
+	 */
+	public void setUp() throws Exception {}
+
+	/**
+	 * One operation
+	 * @return anything the operation produced
+	 * @throws Exception
+	 */
+	public abstract Object run() throws Exception;
+
+	/**
+	 * Called once after measuring even if it failed
+	 * @throws Exception
+	 */
+	public void tearDown() throws Exception {}
+
+	/**
+	 * Warms up then measures this benchmark
+	 * @param warmUp ms to run before measuring
+	 * @param time ms to measure for
+	 * @return
+	 * @throws Exception if setUp or an operation failed
+	 */
+	public Result measure(long warmUp, long time) throws Exception {
+
+		Result result = null;
+
+		setUp();
+
+		try{
+
+			loop(warmUp);
+
+			long allocated = getAllocatedBytes();
+			long started = System.nanoTime();
+			long operations = loop(time);
+			long elapsed = System.nanoTime() - started;
+			long bytes = -1;
+
+			if(allocated != -1)
+				bytes = getAllocatedBytes() - allocated;
+
+			result = new Result(name, operations, elapsed, bytes);
+
+		}finally{
+			tearDown();
+		}
+
+		return result;
+
+	}
+
+	/**
+	 * Runs operations until the given time has passed
+	 * @param time ms
+	 * @return number of operations run
+	 * @throws Exception
+	 */
+	private long loop(long time) throws Exception {
+
+		long stop = System.nanoTime() + time * NANOS_PER_MS;
+		long operations = 0;
+
+		do{
+
+			for(int i = 0; i < CHECK_EVERY; i++)
+				sink = run();
+
+			operations += CHECK_EVERY;
+
+		}while(System.nanoTime() < stop);
+
+		return operations;
+
+	}
+
+	/**
+	 * Returns the bytes allocated by this thread so far
+	 * @return -1 if the JVM can't tell us
+	 */
+	private static long getAllocatedBytes(){
+
+		long allocated = -1;
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+		if(threads instanceof com.sun.management.ThreadMXBean){
+
+			com.sun.management.ThreadMXBean hotSpot = (com.sun.management.ThreadMXBean)threads;
+
+			if(hotSpot.isThreadAllocatedMemorySupported() &&
+					hotSpot.isThreadAllocatedMemoryEnabled())
+				allocated = hotSpot.getThreadAllocatedBytes(Thread.currentThread().getId());
+
+		}
+
+		return allocated;
+
+	}
+
+	/**
+	 * Operations, time and allocation for one benchmark
+	 */
+	public static class Result {
+
+		private final String name;
+		private final long operations, nanos, bytes;
+
+		public Result(String name, long operations, long nanos, long bytes){
+
+			this.name = name;
+			this.operations = operations;
+			this.nanos = nanos;
+			this.bytes = bytes;
+
+		}
+
+		public double getOperationsPerSecond(){
+
+			return operations * 1000000000D / nanos;
+
+		}
+
+		public double getNanosPerOperation(){
+
+			return (double)nanos / operations;
+
+		}
+
+		/**
+		 * @return bytes allocated per operation or -1 if unknown
+		 */
+		public double getBytesPerOperation(){
+
+			double perOperation = -1;
+
+			if(bytes != -1)
+				perOperation = (double)bytes / operations;
+
+			return perOperation;
+
+		}
+
+		/**
+		 * @return bytes allocated per second or -1 if unknown
+		 */
+		public double getAllocationRate(){
+
+			double rate = -1;
+
+			if(bytes != -1)
+				rate = bytes * 1000000000D / nanos;
+
+			return rate;
+
+		}
+
+		public String toString(){
+
+			return String.format("%-32s %14.1f ops/s %12.1f ns/op %10.1f B/op %8.1f MB/s",
+					name, getOperationsPerSecond(), getNanosPerOperation(),
+					getBytesPerOperation(), getAllocationRate() / (1024 * 1024));
+
+		}
+
+	}
+
+}
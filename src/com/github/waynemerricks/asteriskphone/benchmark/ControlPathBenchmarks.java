@@ -0,0 +1,494 @@
+package com.github.waynemerricks.asteriskphone.benchmark;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.asteriskjava.live.AsteriskChannel;
+import org.asteriskjava.live.CallerId;
+import org.asteriskjava.live.ChannelState;
+import org.jivesoftware.smack.packet.Message;
+import org.jivesoftware.smackx.muc.MultiUserChat;
+
+import com.github.waynemerricks.asteriskphone.asterisk.AsteriskManager;
+import com.github.waynemerricks.asteriskphone.asterisk.EventPipeline;
+import com.github.waynemerricks.asteriskphone.calls.CallStateEngine;
+import com.github.waynemerricks.asteriskphone.calls.TimerLabel;
+import com.github.waynemerricks.asteriskphone.callinput.CallerUpdater;
+import com.github.waynemerricks.asteriskphone.database.DatabaseManager;
+import com.github.waynemerricks.asteriskphone.database.QueryRegistry;
+import com.github.waynemerricks.asteriskphone.database.Settings;
+import com.github.waynemerricks.asteriskphone.misc.CountryCodes;
+import com.github.waynemerricks.asteriskphone.protocol.ControlMessage;
+import com.github.waynemerricks.asteriskphone.protocol.ControlMessageCodec;
+import com.github.waynemerricks.asteriskphone.protocol.Opcode;
+import com.github.waynemerricks.asteriskphone.protocol.StateSnapshot;
+import com.github.waynemerricks.asteriskphone.records.Person;
+import com.github.waynemerricks.asteriskphone.simulator.ReplayAsteriskServer;
+import com.github.waynemerricks.asteriskphone.simulator.ReplayConnection;
+
+/**
+ * Benchmarks for the code that runs on every ring.
+ *
+ * Prints operations per second, time and bytes allocated per operation and the
+ * allocation rate for each benchmark.  Logging is turned down to WARNING so the
+ * numbers are for the work rather than the log handlers.
+ *
+ * The server benchmarks need the database (for the server settings), run with -db
+ * to include them.  Asterisk and XMPP are the same stand ins TrafficReplay uses.
+ *
+ * Usage: ControlPathBenchmarks [-db] [-warmup seconds] [-time seconds] [name prefix]
+ * @author Wayne Merricks
+ *
+ */
+public class ControlPathBenchmarks {
+
+	//STATICS
+	private static final long DEFAULT_WARM_UP = 2000L;
+	private static final long DEFAULT_TIME = 5000L;
+	private static final int CHANNELS = 50; //Active calls for sendChannelInfo
+	private static final int MAX_BACKLOG = 10000; //Pipeline tasks waiting before we slow down
+	private static final long RESPONSE_TIMEOUT = 5000L;
+	private static final String BENCHMARK_USER = "benchmark";
+	private static final String[] PHONE_NUMBERS = {"447700900123", "+8613800138000",
+			"0015551234567", "35312345678", "0033612345678", "919876543210",
+			"27821234567", "61412345678", "5511912345678", "9999"};
+	private static final String[] FIELDS = {"name", "location", "calltype", "conversation",
+			"alert"};
+
+	public static void main(String[] args){
+
+		long warmUp = DEFAULT_WARM_UP;
+		long time = DEFAULT_TIME;
+		boolean useDatabase = false;
+		String prefix = "";
+
+		for(int i = 0; i < args.length; i++){
+
+			if(args[i].equals("-db"))
+				useDatabase = true;
+			else if(args[i].equals("-warmup") && i + 1 < args.length)
+				warmUp = Long.parseLong(args[++i]) * 1000;
+			else if(args[i].equals("-time") && i + 1 < args.length)
+				time = Long.parseLong(args[++i]) * 1000;
+			else
+				prefix = args[i];
+
+		}
+
+		if(System.getProperty("java.awt.headless") == null)
+			System.setProperty("java.awt.headless", "true");
+
+		Logger.getLogger("").setLevel(Level.WARNING);
+
+		List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+		benchmarks.addAll(getCodecBenchmarks());
+		benchmarks.addAll(getClientBenchmarks());
+
+		DatabaseManager database = null;
+		AsteriskManager manager = null;
+
+		if(useDatabase){
+
+			database = new DatabaseManager(new Settings(), "en", "GB");
+
+			if(!database.hasErrors() && database.connect() &&
+					database.populateUserSettings("server")){
+
+				ServerStandIn server = new ServerStandIn(database);
+				manager = server.manager;
+				benchmarks.addAll(server.getBenchmarks());
+
+			}else
+				System.err.println("Couldn't read the server settings from the database, " +
+						"skipping server benchmarks");
+
+		}
+
+		for(int i = 0; i < benchmarks.size(); i++){
+
+			if(benchmarks.get(i).getName().startsWith(prefix)){
+
+				try{
+					System.out.println(benchmarks.get(i).measure(warmUp, time));
+				}catch(Exception e){
+
+					System.err.println(benchmarks.get(i).getName() + " failed: " + e);
+					e.printStackTrace();
+
+				}
+
+			}
+
+		}
+
+		if(manager != null)
+			manager.disconnect();
+
+		if(database != null)
+			database.disconnect();
+
+		//Swing and Smack leave threads behind
+		System.exit(0);
+
+	}
+
+	/**
+	 * Control message encoding and decoding in both protocol versions
+	 * @return
+	 */
+	private static List<Benchmark> getCodecBenchmarks(){
+
+		List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+		final ControlMessage ringing = new ControlMessage(Opcode.RINGING, "447700900123",
+				"1377009449.5");
+		final ControlMessage update = new ControlMessage(Opcode.UPDATEFIELDS, "1377009449.5",
+				"name", "Wayne", "location", "Birmingham/UK", "calltype", "ON AIR");
+		final String version1 = ControlMessageCodec.encode(ringing, ControlMessageCodec.VERSION_1);
+		final String version2 = ControlMessageCodec.encode(update, ControlMessageCodec.VERSION_2);
+
+		benchmarks.add(new Benchmark("codec.decodeV1"){
+			public Object run(){
+				return ControlMessageCodec.decode(version1);
+			}
+		});
+
+		benchmarks.add(new Benchmark("codec.decodeV2"){
+			public Object run(){
+				return ControlMessageCodec.decode(version2);
+			}
+		});
+
+		benchmarks.add(new Benchmark("codec.encodeV1"){
+			public Object run(){
+				return ControlMessageCodec.encode(ringing, ControlMessageCodec.VERSION_1);
+			}
+		});
+
+		benchmarks.add(new Benchmark("codec.encodeV2"){
+			public Object run(){
+				return ControlMessageCodec.encode(update, ControlMessageCodec.VERSION_2);
+			}
+		});
+
+		return benchmarks;
+
+	}
+
+	/**
+	 * The client side of a ring: reading a control message, country lookups, caller
+	 * field updates, timers and reading the caller's record
+	 * @return
+	 */
+	private static List<Benchmark> getClientBenchmarks(){
+
+		List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+
+		//What CallManagerPanel.processPacket does before it acts on the opcode
+		final Message tagged = new Message("control@conference.localhost",
+				Message.Type.groupchat);
+		tagged.setFrom("control@conference.localhost/server");
+		tagged.setBody(ControlMessageCodec.encode(new ControlMessage(Opcode.QUEUE, "3000",
+				"447700900123", "1377009449.5"), ControlMessageCodec.VERSION_2));
+		StateSnapshot.tag(tagged, System.currentTimeMillis(), 1);
+
+		benchmarks.add(new Benchmark("client.readControlMessage"){
+			public Object run(){
+
+				String from = tagged.getFrom();
+
+				if(from.contains("/"))
+					from = from.split("/")[1];
+
+				long sequence = StateSnapshot.getSequence(tagged) + StateSnapshot.getEpoch(tagged);
+				ControlMessage message = ControlMessageCodec.decode(tagged.getBody());
+
+				return sequence == 0 ? from : message.getOpcode();
+
+			}
+		});
+
+		final CountryCodes countries = new CountryCodes();
+
+		benchmarks.add(new Benchmark("countryCodes.byPhone"){
+			private int i = 0;
+			public Object run(){
+				return countries.getCountryByPhone(PHONE_NUMBERS[i++ % PHONE_NUMBERS.length]);
+			}
+		});
+
+		benchmarks.add(new Benchmark("countryCodes.namesByPhone"){
+			public Object run(){
+				return countries.getCountryNamesByPhone(PHONE_NUMBERS);
+			}
+		});
+
+		final MultiUserChat controlRoom = new MultiUserChat(new ReplayConnection(
+				BENCHMARK_USER, new ReplayConnection.SentListener(){
+					public void sent(Message message){}
+				}), "control@conference.localhost");
+
+		benchmarks.add(new Benchmark("callerUpdater.enqueue"){
+			private CallerUpdater updater;
+			private int i = 0;
+			public void setUp(){
+				updater = new CallerUpdater(controlRoom, "en", "GB");
+			}
+			public Object run(){
+
+				//Same 10 channels so the pending map doesn't grow
+				updater.addUpdate("1377009449." + (i % 10), FIELDS[i % FIELDS.length],
+						"value" + i);
+				i++;
+
+				return updater;
+
+			}
+		});
+
+		benchmarks.add(new Benchmark("callerUpdater.flush10x5"){
+			public Object run(){
+
+				CallerUpdater updater = new CallerUpdater(controlRoom, "en", "GB");
+
+				for(int channel = 0; channel < 10; channel++)
+					for(int field = 0; field < FIELDS.length; field++)
+						updater.addUpdate("1377009449." + channel, FIELDS[field], "value");
+
+				//Interrupted updaters send everything pending and return
+				Thread.currentThread().interrupt();
+				updater.run();
+
+				return updater;
+
+			}
+		});
+
+		benchmarks.add(new Benchmark("timerLabel.tick"){
+			private TimerLabel label;
+			private long now;
+			public void setUp(){
+				label = new TimerLabel();
+				now = System.currentTimeMillis();
+			}
+			public Object run(){
+
+				//A new second every time so it always redraws
+				now += 1000;
+				label.tick(now);
+
+				return label.getText();
+
+			}
+		});
+
+		//One call from ringing to hang up with CHANNELS other calls in progress
+		benchmarks.add(new Benchmark("callState.callLifecycle"){
+			private CallStateEngine callState;
+			private int i = 0;
+			public void setUp(){
+
+				HashMap<String, String> settings = new HashMap<String, String>();
+				settings.put("language", "en");
+				settings.put("country", "GB");
+				settings.put("nickName", BENCHMARK_USER);
+				settings.put("myExtension", "5001");
+				settings.put("incomingQueueNumber", "3000");
+				settings.put("onAirQueueNumber", "3001");
+				settings.put("studioExtensions", "5100=>Studio");
+
+				HashSet<String> systemExtensions = new HashSet<String>();
+				systemExtensions.add("3000");
+				systemExtensions.add("3001");
+				systemExtensions.add("5001");
+				systemExtensions.add("5002");
+				systemExtensions.add("5100");
+
+				callState = new CallStateEngine(settings, systemExtensions);
+
+				for(int channel = 0; channel < CHANNELS; channel++)
+					callState.apply(new ControlMessage(Opcode.QUEUE, "3000",
+							PHONE_NUMBERS[channel % PHONE_NUMBERS.length], "1377000000." + channel),
+							"server");
+
+			}
+			public Object run(){
+
+				String channel = "1377009449." + i++;
+				String number = PHONE_NUMBERS[i % PHONE_NUMBERS.length];
+
+				callState.apply(new ControlMessage(Opcode.QUEUE, "3000", number, channel), "server");
+				callState.apply(new ControlMessage(Opcode.TRANSFER, channel, "5002"), "operator");
+				callState.apply(new ControlMessage(Opcode.CONNECTED, number, "5002", channel), "server");
+				callState.apply(new ControlMessage(Opcode.QUEUE, "3001", number, channel), "server");
+				callState.apply(new ControlMessage(Opcode.CONNECTED, number, "5100", channel), "server");
+				callState.apply(new ControlMessage(Opcode.HANGUP, number, channel), "server");
+
+				return callState;
+
+			}
+		});
+
+		final JdbcStandIn records = new JdbcStandIn();
+		List<Map<String, Object>> person = new ArrayList<Map<String, Object>>();
+		Map<String, Object> row = new LinkedHashMap<String, Object>();
+		row.put("person_id", 42);
+		row.put("alert", "N");
+		row.put("name", "Wayne");
+		row.put("gender", "M");
+		row.put("location", "Birmingham");
+		row.put("address", "1 Street");
+		row.put("postcode", "B1 1AA");
+		row.put("email", "null");
+		row.put("language", "English");
+		row.put("religion", null);
+		row.put("journey", null);
+		row.put("notes", "Regular caller");
+		person.add(row);
+		records.addResult(QueryRegistry.SELECT_PERSON, person);
+
+		List<Map<String, Object>> conversations = new ArrayList<Map<String, Object>>();
+
+		for(int i = 0; i < 10; i++){
+
+			Map<String, Object> conversation = new LinkedHashMap<String, Object>();
+			conversation.put("time", new Date(System.currentTimeMillis() - i * 86400000L));
+			conversation.put("conversation", "Request for song " + i);
+			conversations.add(conversation);
+
+		}
+
+		records.addResult(QueryRegistry.SELECT_CONVERSATIONS_FOR_PERSON, conversations);
+
+		benchmarks.add(new Benchmark("person.hydrate"){
+			public Object run(){
+				return new Person(42, "en", "GB", records.getConnection());
+			}
+		});
+
+		return benchmarks;
+
+	}
+
+	/**
+	 * AsteriskManager on a stand in Asterisk server and XMPP connection
+	 */
+	private static class ServerStandIn implements ReplayConnection.SentListener {
+
+		private ReplayAsteriskServer server = new ReplayAsteriskServer();
+		private AsteriskManager manager;
+		private EventPipeline pipeline;
+		private String room;
+		private String onAirQueue;
+		private Semaphore sent = new Semaphore(0);
+
+		private ServerStandIn(DatabaseManager database){
+
+			HashMap<String, String> settings = database.getUserSettings();
+
+			room = settings.get("XMPPControlRoom");
+			onAirQueue = settings.get("onAirQueueNumber");
+			ControlMessageCodec.setEncodeVersion(settings.get("controlProtocolVersion"));
+
+			pipeline = new EventPipeline(settings);
+			manager = new AsteriskManager(database, new MultiUserChat(new ReplayConnection(
+					BENCHMARK_USER, this), room), server.getServer(), pipeline);
+			manager.connect();
+			manager.startProcessingMessages();
+
+		}
+
+		@Override
+		public void sent(Message message){
+
+			sent.release();
+
+		}
+
+		private Message createMessage(ControlMessage command){
+
+			Message message = new Message(room, Message.Type.groupchat);
+			message.setFrom(room + "/" + BENCHMARK_USER);
+			message.setBody(ControlMessageCodec.encode(command));
+
+			return message;
+
+		}
+
+		private List<Benchmark> getBenchmarks(){
+
+			List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+
+			//A client bound message the server ignores so this is decode and dispatch only
+			final Message call = createMessage(new ControlMessage(Opcode.CALL, "447700900123",
+					"3000", "1377009449.5"));
+
+			benchmarks.add(new Benchmark("server.processPacket"){
+				public Object run() throws InterruptedException {
+
+					//Let the lanes set the pace if they can't keep up
+					while(pipeline.getIngestStats().getDepth() +
+							pipeline.getLaneStats().getDepth() > MAX_BACKLOG)
+						Thread.sleep(1);
+
+					manager.processPacket(call);
+
+					return call;
+
+				}
+			});
+
+			if(onAirQueue != null){
+
+				final Message update = createMessage(new ControlMessage(Opcode.UPDATE, "null"));
+
+				benchmarks.add(new Benchmark("server.sendChannelInfo" + CHANNELS){
+					public void setUp(){
+
+						//Answered calls in reverse order so they have to be sorted
+						for(int i = CHANNELS; i > 0; i--){
+
+							AsteriskChannel caller = server.addChannel("1377009449." + i,
+									"SIP/trunk-" + i, new CallerId(null, "0770090" + i),
+									ChannelState.UP);
+							AsteriskChannel studio = server.addChannel("1377009450." + i,
+									"SIP/studio-" + i, new CallerId(null, onAirQueue),
+									ChannelState.UP);
+
+							server.changeProperty(caller.getId(), "linkedChannel", null, studio);
+
+						}
+
+					}
+					public Object run() throws InterruptedException {
+
+						sent.drainPermits();
+						manager.processPacket(update);
+
+						if(!sent.tryAcquire(CHANNELS, RESPONSE_TIMEOUT, TimeUnit.MILLISECONDS))
+							throw new IllegalStateException("Expected " + CHANNELS +
+									" CONNECTED messages, is " + onAirQueue +
+									" a system extension?");
+
+						return update;
+
+					}
+				});
+
+			}
+
+			return benchmarks;
+
+		}
+
+	}
+
+}
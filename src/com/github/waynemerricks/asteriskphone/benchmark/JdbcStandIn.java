@@ -0,0 +1,253 @@
+package com.github.waynemerricks.asteriskphone.benchmark;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A JDBC Connection with canned results so record hydration can be measured
+ * without a database.
+ *
+ * Add the rows each SQL string should return, any other query returns no rows.
+ * Parameters are ignored and updates do nothing.  Only the ResultSet getters the
+ * records use are supported (getString, getInt, getLong, getBoolean, getTimestamp,
+ * getObject and wasNull), by column label or index.
+ * @author Wayne Merricks
+ *
+ */
+public class JdbcStandIn {
+
+	//CLASS VARS
+	private HashMap<String, List<Map<String, Object>>> results =
+			new HashMap<String, List<Map<String, Object>>>();
+
+	/**
+	 * Sets the rows returned for the given SQL, columns in each row are in the order
+	 * they are put in (use a LinkedHashMap if reading by index)
+	 * @param sql exact SQL as passed to prepareStatement
+	 * @param rows
+	 */
+	public void addResult(String sql, List<Map<String, Object>> rows){
+
+		results.put(sql, rows);
+
+	}
+
+	/**
+	 * Returns a new connection over the canned results
+	 * @return
+	 */
+	public Connection getConnection(){
+
+		return (Connection)Proxy.newProxyInstance(Connection.class.getClassLoader(),
+				new Class<?>[]{Connection.class}, new ConnectionHandler());
+
+	}
+
+	/**
+	 * Default return value for the given type so unsupported calls don't throw
+	 * @param type
+	 * @return
+	 */
+	private static Object defaultValue(Class<?> type){
+
+		Object value = null;
+
+		if(type == boolean.class)
+			value = false;
+		else if(type == int.class)
+			value = 0;
+		else if(type == long.class)
+			value = 0L;
+		else if(type == double.class)
+			value = 0D;
+		else if(type == float.class)
+			value = 0F;
+		else if(type == short.class)
+			value = (short)0;
+		else if(type == byte.class)
+			value = (byte)0;
+
+		return value;
+
+	}
+
+	private static Object invokeObjectMethod(Object proxy, Method method, Object[] args){
+
+		Object result = null;
+
+		if(method.getName().equals("equals"))
+			result = proxy == args[0];
+		else if(method.getName().equals("hashCode"))
+			result = System.identityHashCode(proxy);
+		else
+			result = JdbcStandIn.class.getSimpleName();
+
+		return result;
+
+	}
+
+	/**
+	 * Hands out statements, knows the SQL for prepared ones
+	 */
+	private class ConnectionHandler implements InvocationHandler {
+
+		public Object invoke(Object proxy, Method method, Object[] args){
+
+			Object result = null;
+
+			if(method.getDeclaringClass() == Object.class)
+				result = invokeObjectMethod(proxy, method, args);
+			else if(method.getName().equals("prepareStatement"))
+				result = Proxy.newProxyInstance(PreparedStatement.class.getClassLoader(),
+						new Class<?>[]{PreparedStatement.class},
+						new StatementHandler((String)args[0]));
+			else if(method.getName().equals("createStatement"))
+				result = Proxy.newProxyInstance(Statement.class.getClassLoader(),
+						new Class<?>[]{Statement.class}, new StatementHandler(null));
+			else if(method.getName().equals("getAutoCommit"))
+				result = true;
+			else
+				result = defaultValue(method.getReturnType());
+
+			return result;
+
+		}
+
+	}
+
+	/**
+	 * Returns the canned rows for its SQL (or the SQL passed to executeQuery)
+	 */
+	private class StatementHandler implements InvocationHandler {
+
+		private String sql;
+
+		private StatementHandler(String sql){
+
+			this.sql = sql;
+
+		}
+
+		public Object invoke(Object proxy, Method method, Object[] args){
+
+			Object result = null;
+
+			if(method.getDeclaringClass() == Object.class)
+				result = invokeObjectMethod(proxy, method, args);
+			else if(method.getName().equals("executeQuery")){
+
+				String query = sql;
+
+				if(args != null && args.length > 0)
+					query = (String)args[0];
+
+				List<Map<String, Object>> rows = results.get(query);
+
+				if(rows == null)
+					rows = new ArrayList<Map<String, Object>>();
+
+				result = Proxy.newProxyInstance(ResultSet.class.getClassLoader(),
+						new Class<?>[]{ResultSet.class}, new ResultSetHandler(rows));
+
+			}else
+				result = defaultValue(method.getReturnType());
+
+			return result;
+
+		}
+
+	}
+
+	/**
+	 * Walks the rows converting values to whatever the getter returns
+	 */
+	private static class ResultSetHandler implements InvocationHandler {
+
+		private List<Map<String, Object>> rows;
+		private int row = -1;
+		private boolean wasNull = false;
+
+		private ResultSetHandler(List<Map<String, Object>> rows){
+
+			this.rows = rows;
+
+		}
+
+		public Object invoke(Object proxy, Method method, Object[] args){
+
+			String name = method.getName();
+			Object result = null;
+
+			if(method.getDeclaringClass() == Object.class)
+				result = invokeObjectMethod(proxy, method, args);
+			else if(name.equals("next"))
+				result = ++row < rows.size();
+			else if(name.equals("wasNull"))
+				result = wasNull;
+			else if(name.startsWith("get") && args != null && args.length == 1 &&
+					row < rows.size()){
+
+				Object value = getColumn(args[0]);
+				wasNull = value == null;
+				result = convert(value, method.getReturnType());
+
+			}else
+				result = defaultValue(method.getReturnType());
+
+			return result;
+
+		}
+
+		private Object getColumn(Object column){
+
+			Map<String, Object> values = rows.get(row);
+			Object value = null;
+
+			if(column instanceof String)
+				value = values.get(column);
+			else if(column instanceof Integer && (Integer)column <= values.size())
+				value = new ArrayList<Object>(values.values()).get((Integer)column - 1);
+
+			return value;
+
+		}
+
+		private Object convert(Object value, Class<?> type){
+
+			Object converted = defaultValue(type);
+
+			if(value != null){
+
+				if(type == String.class)
+					converted = value.toString();
+				else if(type == int.class && value instanceof Number)
+					converted = ((Number)value).intValue();
+				else if(type == long.class && value instanceof Number)
+					converted = ((Number)value).longValue();
+				else if(type == boolean.class && value instanceof Boolean)
+					converted = value;
+				else if(type == Timestamp.class && value instanceof Date)
+					converted = new Timestamp(((Date)value).getTime());
+				else if(type.isInstance(value))
+					converted = value;
+
+			}
+
+			return converted;
+
+		}
+
+	}
+
+}
@@ -8,10 +8,11 @@ import java.awt.event.ItemListener;
 import java.awt.event.KeyEvent;
 import java.awt.event.KeyListener;
 import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.sql.Statement;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Vector;
 import java.util.logging.Logger;
 
@@ -27,7 +28,13 @@ import com.github.waynemerricks.asteriskphone.calls.AnswerListener;
 import com.github.waynemerricks.asteriskphone.calls.CallInfoPanel;
 import com.github.waynemerricks.asteriskphone.calls.CallManagerPanel;
 import com.github.waynemerricks.asteriskphone.chat.ChatManager;
+import com.github.waynemerricks.asteriskphone.database.DatabaseManager;
+import com.github.waynemerricks.asteriskphone.database.FieldDefinition;
+import com.github.waynemerricks.asteriskphone.database.QueryRegistry;
 import com.github.waynemerricks.asteriskphone.launcher.Client;
+import com.github.waynemerricks.asteriskphone.protocol.ControlMessage;
+import com.github.waynemerricks.asteriskphone.protocol.ControlMessageCodec;
+import com.github.waynemerricks.asteriskphone.protocol.Opcode;
 import com.github.waynemerricks.asteriskphone.records.Person;
 
 import net.miginfocom.swing.MigLayout;
@@ -36,7 +43,7 @@ public class CallInputPanel extends JTabbedPane implements AnswerListener, Perso
 
 	/* CLASS VARS */
 	private String language, country;
-	private Connection databaseReadConnection;
+	private DatabaseManager database;
 	private Vector<CallInputField> components = new Vector<CallInputField>();
 	private I18NStrings xStrings;
 	private boolean hasErrors = false;
@@ -53,7 +60,7 @@ public class CallInputPanel extends JTabbedPane implements AnswerListener, Perso
 	private static final long serialVersionUID = 1L;
 	private static final Logger LOGGER = Logger.getLogger(CallInputPanel.class.getName());//Logger
 	
-	public CallInputPanel(Connection readConnection,  
+	public CallInputPanel(DatabaseManager database,  
 			String maxRecordAge, String language, String country, ChatManager manager, 
 			String incomingQueue, String onairQueue) {
 		
@@ -79,7 +86,7 @@ public class CallInputPanel extends JTabbedPane implements AnswerListener, Perso
 		}
 		
 		
-		databaseReadConnection = readConnection;
+		this.database = database;
 		
 		//Read components from DB
 		if(getComponentDetails())
@@ -226,7 +233,7 @@ public class CallInputPanel extends JTabbedPane implements AnswerListener, Perso
 									
 									currentPanel.setPhoneCallField(
 											field.getFieldMapping(), 
-											((String)evt.getItem()).replace("/", "^^%%$$"), 
+											(String)evt.getItem(), 
 											true);
 									
 								}
@@ -285,7 +292,7 @@ public class CallInputPanel extends JTabbedPane implements AnswerListener, Perso
 									
 									currentPanel.setPhoneCallField(
 											txt.getFieldMapping(), 
-											txt.getText().replace("/", "^^%%$$"), 
+											txt.getText(), 
 											true);
 									
 								}
@@ -390,7 +397,7 @@ public class CallInputPanel extends JTabbedPane implements AnswerListener, Perso
 									TextField txt = (TextField)evt.getSource();
 									currentPanel.setPhoneCallField(
 											txt.getFieldMapping(), 
-											txt.getText().replace("/", "^^%%$$"),   
+											txt.getText(),   
 											true);
 									
 								}
@@ -429,7 +436,7 @@ public class CallInputPanel extends JTabbedPane implements AnswerListener, Perso
 				
 				LOGGER.info(xStrings.getString("CallInputPanel.creatingCallLogPanel")); 
 				//Special case for the call log tab
-				callLogPanel = new CallLogPanel(databaseReadConnection, 
+				callLogPanel = new CallLogPanel(database, 
 						this.maxRecordAge, language, country, manager, incomingQueue, onairQueue);
 				tab.add(callLogPanel.getTable().getTableHeader(), "growx, spanx, wrap"); 
 				tab.add(callLogPanel.getTable(), "growx, spanx, wrap"); 
@@ -466,7 +473,7 @@ public class CallInputPanel extends JTabbedPane implements AnswerListener, Perso
 						searchPanel = new SearchPanel(ownerFinal, 
 								xStrings.getString("SearchPanel.title"),  
 								language, country, 
-								databaseReadConnection, 
+								database, 
 								getPhoneNumber(currentPanel.getChannelID()));
 						
 						searchPanel.addPersonChangedListener(cip);
@@ -519,14 +526,16 @@ public class CallInputPanel extends JTabbedPane implements AnswerListener, Perso
 	private String getPhoneNumber(String channelID) {
 		
 		String number = null;
-		Statement statement = null;
+		Connection readConnection = null;
+		PreparedStatement statement = null;
 		ResultSet resultSet = null;
 		
 		try{
 			
-			String SQL = "SELECT phonenumber FROM callhistory WHERE callchannel = '" + channelID + "' LIMIT 1";  
-			statement = databaseReadConnection.createStatement();
-			resultSet = statement.executeQuery(SQL);
+			readConnection = database.getReadConnection();
+			statement = readConnection.prepareStatement(QueryRegistry.SELECT_NUMBER_FOR_CHANNEL);
+			statement.setString(1, channelID);
+			resultSet = statement.executeQuery();
 			
 			while(resultSet.next())
 				number = resultSet.getString("phonenumber"); 
@@ -549,6 +558,13 @@ public class CallInputPanel extends JTabbedPane implements AnswerListener, Perso
 		        statement = null;
 		    }
 		    
+			if (readConnection != null) {
+			    try {
+			    	readConnection.close();
+			    } catch (SQLException sqlEx) { } // ignore
+			    readConnection = null;
+			}
+
 		}
 		
 		return number;
@@ -562,30 +578,22 @@ public class CallInputPanel extends JTabbedPane implements AnswerListener, Perso
 	 */
 	private boolean getComponentDetails(){
 		
-		Statement statement = null;
-		ResultSet resultSet = null;
 		boolean gotSettings = false;
 		
 		try{
 			
-			String SQL = "SELECT * FROM callinputfields WHERE language = '" + language +  
-					"," + country + "' ORDER BY `order` ASC";  
-			
-			statement = databaseReadConnection.createStatement();
-		    resultSet = statement.executeQuery(SQL);
+			List<FieldDefinition> fields = database.getFieldDefinitionCache().getFields(
+					language + "," + country);
 		    
-		    while(resultSet.next()){
+		    for(int i = 0; i < fields.size(); i++){
+		    	
+		    	FieldDefinition field = fields.get(i);
 		    	
 		    	//int id, String name, String type, String tooltip, int order, 
 				//int parent, String options
-		    	components.add(new CallInputField(resultSet.getInt("id"), 
-		    			resultSet.getString("name"), 
-		    			resultSet.getString("type"), 
-		    			resultSet.getString("tooltip"), 
-		    			resultSet.getInt("order"), 
-		    			resultSet.getInt("parent"), 
-		    			resultSet.getString("options"), 
-		    			resultSet.getString("mapping"))); 
+		    	components.add(new CallInputField(field.id, field.name, field.type, 
+		    			field.tooltip, field.order, field.parent, field.options, 
+		    			field.mapping)); 
 		    	
 		    }
 		    
@@ -593,22 +601,6 @@ public class CallInputPanel extends JTabbedPane implements AnswerListener, Perso
 		    
 		}catch (SQLException e){
 			showError(e, xStrings.getString("CallInputPanel.getComponentsSQLError")); 
-		}finally {
-		    
-			if (resultSet != null) {
-		        try {
-		        	resultSet.close();
-		        } catch (SQLException sqlEx) { } // ignore
-		        resultSet = null;
-		    }
-			
-		    if (statement != null) {
-		        try {
-		        	statement.close();
-		        } catch (SQLException sqlEx) { } // ignore
-		        statement = null;
-		    }
-		    
 		}
 		
 		return gotSettings;
@@ -725,13 +717,11 @@ public class CallInputPanel extends JTabbedPane implements AnswerListener, Perso
 		 */
 		
 		if(changedTo.isNewPerson())
-			chat.sendMessage(xStrings.getString("CallInputPanel.ChangeToNewPerson") + 
-					"/" + currentPanel.getChannelID() + "/" + changedTo.number, 
-					true); 
+			chat.sendMessage(ControlMessageCodec.encode(new ControlMessage(Opcode.CHANGENEW, 
+					currentPanel.getChannelID(), changedTo.number)), true); 
 		else
-			chat.sendMessage(xStrings.getString("CallInputPanel.ChangeToExistingPerson") + 
-					"/" + currentPanel.getChannelID() + 
-					"/" + changedTo.id, true); 
+			chat.sendMessage(ControlMessageCodec.encode(new ControlMessage(Opcode.CHANGEEXISTING, 
+					currentPanel.getChannelID(), "" + changedTo.id)), true); 
 		
 	}
 
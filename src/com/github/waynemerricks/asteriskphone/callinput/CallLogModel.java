@@ -4,6 +4,7 @@ import javax.swing.table.AbstractTableModel;
 
 import com.github.waynemerricks.asteriskphone.records.CallLog;
 
+import java.util.List;
 import java.util.Vector;
 
 public class CallLogModel extends AbstractTableModel {
@@ -29,6 +30,22 @@ public class CallLogModel extends AbstractTableModel {
 		
 	}
 	
+	/**
+	 * Adds the given logs with one insert event
+	 * @param logs
+	 */
+	public void addRows(List<CallLog> logs){
+		
+		if(logs.size() > 0){
+			
+			int first = data.size();
+			data.addAll(logs);
+			this.fireTableRowsInserted(first, data.size() - 1);
+			
+		}
+		
+	}
+	
 	@Override
 	public String getColumnName(int column){
 		
@@ -3,20 +3,23 @@ package com.github.waynemerricks.asteriskphone.callinput;
 import java.awt.Color;
 import java.awt.Component;
 import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.sql.Statement;
-import java.text.SimpleDateFormat;
+import java.sql.Timestamp;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
-import java.util.Iterator;
+import java.util.List;
 import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Logger;
 
 import javax.swing.BorderFactory;
 import javax.swing.JLabel;
 import javax.swing.JOptionPane;
 import javax.swing.JTable;
+import javax.swing.SwingUtilities;
 import javax.swing.table.TableCellRenderer;
 import javax.swing.text.SimpleAttributeSet;
 import javax.swing.text.StyleConstants;
@@ -29,6 +32,11 @@ import org.jivesoftware.smack.packet.Message;
 import org.jivesoftware.smack.packet.Packet;
 
 import com.github.waynemerricks.asteriskphone.chat.ChatManager;
+import com.github.waynemerricks.asteriskphone.database.DatabaseManager;
+import com.github.waynemerricks.asteriskphone.database.QueryRegistry;
+import com.github.waynemerricks.asteriskphone.protocol.ControlMessage;
+import com.github.waynemerricks.asteriskphone.protocol.ControlMessageCodec;
+import com.github.waynemerricks.asteriskphone.protocol.Opcode;
 import com.github.waynemerricks.asteriskphone.records.CallLog;
 
 /**
@@ -44,43 +52,32 @@ public class CallLogPanel implements PacketListener, ChatManagerListener, Messag
 	private CallLogModel tableModel;
 	private JTable history;
 	private String language, country;
-	private HashMap<String, CallLog> records = new HashMap<String, CallLog>();
+	private ConcurrentHashMap<String, CallLog> records = new ConcurrentHashMap<String, CallLog>();
 	private long maxRecordAge = 3600000L;
-	private Connection readConnection = null;
+	private DatabaseManager database = null;
 	private String incomingQueue = null, onairQueue = null;
 	private HashMap<String, String> channelSwapList = new HashMap<String, String>();
 	
 	//STATICS
 	private static final Logger LOGGER = Logger.getLogger(CallLogPanel.class.getName());//Logger
+	private static final int FETCH_SIZE = 100; //Rows read from the server cursor at a time
+	private static final int ROW_BATCH = 50; //Logs added to the table at a time while loading
 		
-	public CallLogPanel(Connection readConnection, long maxRecordAge, 
+	public CallLogPanel(DatabaseManager database, long maxRecordAge, 
 			String language, String country, ChatManager manager, String incomingQueue, 
 			String onairQueue) {
 
 		this.language = language;
 		this.country = country;
 		xStrings = new I18NStrings(language, country);
-		this.readConnection = readConnection;
+		this.database = database;
 		this.maxRecordAge = maxRecordAge;
 		this.incomingQueue = incomingQueue;
 		this.onairQueue = onairQueue;
 		
-		//Create the Table
+		//Create the Table, the history is streamed in once it is on screen
 		buildTableColumns();
-		
-		getCallLog(readConnection);
-		
-		Iterator<String> keys = records.keySet().iterator();
-		Vector<CallLog> tableData = new Vector<CallLog>();
-		
-		while(keys.hasNext()){
-			
-			String key = keys.next();
-			tableData.add(records.get(key));
-			
-		}
-		
-		tableModel = new CallLogModel(tableData, columnNames);
+		tableModel = new CallLogModel(new Vector<CallLog>(), columnNames);
 		
 		history = new JTable(tableModel){
 			
@@ -150,69 +147,66 @@ public class CallLogPanel implements PacketListener, ChatManagerListener, Messag
 		//Add Private Chat Listener
 		manager.getConnection().getChatManager().addChatListener(this);
 		
+		//Anything the listeners add while we're loading is kept over the DB version
+		new Thread(new Runnable(){
+			public void run(){
+				loadCallLog();
+			}
+		}, "CallLogLoader").start();
+		
 		
 	}
 
 	/**
 	 * Read the call log from the DB, uses LogMaxAge in settings db
-	 * to determine how far back to grab records 
-	 * @param readConnection read connection to use
+	 * to determine how far back to grab records.
+	 * 
+	 * One query with a server side cursor, logs are handed to the table in batches
+	 * as they're read
 	 */
-	private void getCallLog(Connection readConnection){
-		
-		Date oldestRecord = new Date(new Date().getTime() - maxRecordAge);
-		SimpleDateFormat sdf = new SimpleDateFormat("yyyyMMddHHmmss"); 
-		String date = sdf.format(oldestRecord);
+	private void loadCallLog(){
 		
-		//Get the records from callhistory
-		String SQL = "SELECT callchannel FROM callhistory WHERE time > "  
-						+ date + " AND (state = 'Q' OR state = 'A') GROUP BY callchannel " 
-						+ "ORDER BY time DESC"; 
-		
-		Statement statement = null;
+		Connection readConnection = null;
+		PreparedStatement statement = null;
 		ResultSet resultSet = null;
 		
 		LOGGER.info(xStrings.getString("CallLogPanel.gettingCallHistory")); 
 		
 		try{
-			statement = readConnection.createStatement();
-		    resultSet = statement.executeQuery(SQL);
+			
+			readConnection = database.getReadConnection();
+			statement = readConnection.prepareStatement(QueryRegistry.SELECT_CALL_LOG, 
+					ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+			statement.setFetchSize(FETCH_SIZE);
+			statement.setTimestamp(1, new Timestamp(new Date().getTime() - maxRecordAge));
+		    resultSet = statement.executeQuery();
+		    
+		    ArrayList<CallLog> batch = new ArrayList<CallLog>();
+		    CallLogRows rows = new CallLogRows();
 		    
 		    while(resultSet.next()){
 		    	
-		    	CallLog log = new CallLog(language, country,
-		    			resultSet.getString("callchannel"),  
-		    			readConnection);
+		    	CallLog log = rows.add(resultSet);
 		    	
-		    	if(log.isComplete())
-		    		records.put(log.getChannel(), log);
-		    	else{
-		    		
-		    		log = new CallLog(language, country, 
-		    				resultSet.getString("callchannel"),  
-		    				readConnection, true);
+		    	if(log != null)
+		    		batch.add(log);
+		    	
+		    	if(batch.size() >= ROW_BATCH){
 		    		
-		    		/* BUG FIX: Can get into a situation where a person does not exist
-		    		 * in any records, this is usually when its an internal phone
-		    		 * calling somewhere and its originator channel ends up in the
-		    		 * call history.
-		    		 * 
-		    		 * These internal phones may never have been dealt with in the phone
-		    		 * system so won't have a person/location attached.
-		    		 * 
-		    		 * To check this, see if we have a valid log time otherwise discard
-		    		 * 
-		    		 * If the time is null as part of error checking we gen from
-		    		 * the current time which means you end up with phantom records
-		    		 * in the top of the log.  So we need to discard invalid times!
-		    		 */
-		    		if(log.isValid())
-		    			records.put(log.getChannel(), log);
+		    		addLoadedLogs(batch);
+		    		batch = new ArrayList<CallLog>();
 		    		
 		    	}
 		    		
 		    }
 		    
+		    CallLog log = rows.finish();
+		    
+		    if(log != null)
+		    	batch.add(log);
+		    
+		    addLoadedLogs(batch);
+		    
 		}catch (SQLException e){
 			showError(e, xStrings.getString("CallLogPanel.getLogSQLError")); 
 		}finally {
@@ -231,35 +225,125 @@ public class CallLogPanel implements PacketListener, ChatManagerListener, Messag
 		        statement = null;
 		    }
 		    
+		    if (readConnection != null) {
+		        try {
+		        	readConnection.close();
+		        } catch (SQLException sqlEx) { } // ignore
+		        readConnection = null;
+		    }
+		    
 		}
 		
 	}
 	
+	/**
+	 * Adds logs read by loadCallLog to the table on the EDT, channels that have been
+	 * added by control messages in the mean time are skipped
+	 * @param logs
+	 */
+	private void addLoadedLogs(final List<CallLog> logs){
+		
+		if(logs.size() > 0)
+			SwingUtilities.invokeLater(new Runnable(){
+				public void run(){
+					
+					ArrayList<CallLog> added = new ArrayList<CallLog>();
+					
+					for(int i = 0; i < logs.size(); i++)
+						if(records.putIfAbsent(logs.get(i).getChannel(), logs.get(i)) == null)
+							added.add(logs.get(i));
+					
+					tableModel.addRows(added);
+					
+				}
+			});
+		
+	}
+	
+	/**
+	 * Creates a CallLog for the given channel from the callhistory table using
+	 * a connection borrowed from the pool
+	 * @param channel channel to lookup
+	 * @return CallLog or null if we couldn't get a connection to the DB
+	 */
+	private CallLog lookupCallLog(String channel){
+		
+		CallLog log = null;
+		Connection readConnection = null;
+		PreparedStatement statement = null;
+		ResultSet resultSet = null;
+		
+		try{
+			
+			readConnection = database.getReadConnection();
+			statement = readConnection.prepareStatement(
+					QueryRegistry.SELECT_CALL_LOG_FOR_CHANNEL);
+			statement.setString(1, channel);
+			resultSet = statement.executeQuery();
+			
+			CallLogRows rows = new CallLogRows();
+			
+			while(resultSet.next())
+				rows.add(resultSet);
+			
+			log = rows.finish();
+			
+			//Not in the history yet, add it anyway and let updates fill it in
+			if(log == null)
+				log = new CallLog(language, country, channel, null, null, null, null);
+			
+		}catch(SQLException e){
+			showError(e, xStrings.getString("CallLogPanel.getLogSQLError")); 
+		}finally{
+			
+			if (resultSet != null) {
+		        try {
+		        	resultSet.close();
+		        } catch (SQLException sqlEx) { } // ignore
+		        resultSet = null;
+		    }
+			
+		    if (statement != null) {
+		        try {
+		        	statement.close();
+		        } catch (SQLException sqlEx) { } // ignore
+		        statement = null;
+		    }
+		    
+			if(readConnection != null)
+				try{
+					readConnection.close();
+				}catch(Exception e){}
+			
+		}
+		
+		return log;
+		
+	}
+	
 	/**
 	 * Gets the name and location for a person given their record ID
-	 * @param readConnection Read connection to DB to use for query
 	 * @param id ID of the person you are looking up
 	 * @return Array with 2 elements, these will be CallLogPanel.nameNotFound 
 	 * and CallLogPanel.locationNotFound if the record doesn't exist
 	 */
-	private String[] getPerson(Connection readConnection, int id){
+	private String[] getPerson(int id){
 		
 		String[] person = new String[2];
 		person[0] = xStrings.getString("CallLogPanel.nameNotFound"); 
 		person[1] = xStrings.getString("CallLogPanel.locationNotFound"); 
 		
-		//Get the records from callhistory
-		String SQL = "SELECT `name`, `location` FROM `person` " + 
-				"WHERE `person_id` = " + id; 
-		
-		Statement statement = null;
+		Connection readConnection = null;
+		PreparedStatement statement = null;
 		ResultSet resultSet = null;
 		
 		LOGGER.info(xStrings.getString("CallLogPanel.getPerson") + id); 
 		
 		try{
-			statement = readConnection.createStatement();
-		    resultSet = statement.executeQuery(SQL);
+			readConnection = database.getReadConnection();
+			statement = readConnection.prepareStatement(QueryRegistry.SELECT_PERSON_SUMMARY);
+			statement.setInt(1, id);
+		    resultSet = statement.executeQuery();
 		    
 		    while(resultSet.next()){
 		    	
@@ -289,6 +373,13 @@ public class CallLogPanel implements PacketListener, ChatManagerListener, Messag
 		        statement = null;
 		    }
 		    
+		    if (readConnection != null) {
+		        try {
+		        	readConnection.close();
+		        } catch (SQLException sqlEx) { } // ignore
+		        readConnection = null;
+		    }
+		    
 		}
 		
 		return person;
@@ -354,152 +445,239 @@ public class CallLogPanel implements PacketListener, ChatManagerListener, Messag
 			LOGGER.info(xStrings.getString("CallLogPanel.receivedMessage") + 
 						message.getBody());
 				
-			String[] command = message.getBody().split("/"); 
+			ControlMessage command = ControlMessageCodec.decode(message.getBody());
+			String[] fields = command.getFields();
 			
-			//UPDATEFIELD
-			if(command.length == 4 && command[0].equals(
-					xStrings.getString("CallLogPanel.commandUpdateField"))){ 
-				
-				/* Only care about name, conversation, location
-				 * TODO Change this to read fields wanted from DB
-				 */
-				//Make sure channel exists in list before updating
-				if(!records.containsKey(command[2])){
+			switch(command.getOpcode()){
+			
+				case UPDATEFIELD:
+				case UPDATEFIELDS:
 					
-					//Create a new one based on this
-					/* TODO BUG fix dial channel swap
-					 * When we dial, the channel in command[2] will only show you
-					 * the person who called.  We need to find out who we're calling
-					 * and use that for the channel vs person lookup					
-					 */
-					//Add to call log table
-					LOGGER.info(xStrings.getString("CallLogPanel.logNewUpdate") + " " + command[2]);  
+					List<ControlMessage> updates = command.getFieldUpdates();
 					
-					CallLog log = new CallLog(language, country,
-			    			command[2],
-			    			readConnection, true);
-			    	//TODO DEBUG change back to info
-					LOGGER.severe(
-							xStrings.getString("CallLogPanel.addingChannelToLog") + 
-							log.getChannel()); 
+					for(int i = 0; i < updates.size(); i++)
+						processUpdateField(updates.get(i).getFields());
 					
-			    	records.put(log.getChannel(), log);
-			    	addCallLog(log);
+					break;
 					
-				}
-				
-				if(command[1].equals(xStrings.getString("CallLogPanel.name"))){ 
+				case QUEUE:
 					
-					LOGGER.info(xStrings.getString("CallLogPanel.logNameUpdate")); 
+					if(fields.length == 3 && fields[0].equals(incomingQueue))//QUEUE INCOMING
+						processIncomingQueue(fields);
+					else if(fields.length == 3 && fields[0].equals(onairQueue))//QUEUE ON AIR
+						processOnAirQueue(fields);
 					
-					//Set Internal Record
-					records.get(command[2]).setName(command[3]);
+					break;
 					
-					//Set table row value
-					changeCallLog(command[2], "name", command[3]); 
+				case ENDPOINT:
 					
-				}else if(command[1].equals(xStrings.getString("CallLogPanel.conversation"))){ 
+					if(fields.length == 3)
+						processEndPoint(fields);
 					
-					LOGGER.info(xStrings.getString("CallLogPanel.logConversationUpdate")); 
+					break;
 					
-					//Set Internal Record
-					records.get(command[2]).setConversation(command[3]);
+				case CHANGED:
 					
-					//Set table row value
-					changeCallLog(command[2], "conversation", command[3]); 
+					if(fields.length == 2)
+						processChanged(fields);
 					
-				}else if(command[1].equals(xStrings.getString("CallLogPanel.location"))){ 
+					break;
 					
-					LOGGER.info(xStrings.getString("CallLogPanel.logLocationUpdate")); 
+				case MANUAL:
 					
-					//Set Internal Record
-					records.get(command[2]).setLocation(command[3]);
+					if(fields.length == 2)
+						processManual(fields);
 					
-					//Set table row value
-					changeCallLog(command[2], "location", command[3]); 
+					break;
 					
-				}
+				default:
+					break;
+					
+			}
 			
-			}else if(command.length == 4 && command[0].equals(
-					xStrings.getString("CallLogPanel.commandQueue")) && 
-					command[1].equals(incomingQueue)){//QUEUE INCOMING
-				
-				//Add to call log table
-				LOGGER.info(xStrings.getString("CallLogPanel.logQUEUE")); 
+		}	
+		
+	}
+	
+	/**
+	 * UPDATEFIELD/field mapping/channel id/field value
+	 * @param fields message fields
+	 */
+	private void processUpdateField(String[] fields){
+		
+		/* Only care about name, conversation, location
+		 * TODO Change this to read fields wanted from DB
+		 */
+		//Make sure channel exists in list before updating
+		if(!records.containsKey(fields[1])){
+			
+			//Create a new one based on this
+			/* TODO BUG fix dial channel swap
+			 * When we dial, the channel in fields[1] will only show you
+			 * the person who called.  We need to find out who we're calling
+			 * and use that for the channel vs person lookup
+			 */
+			//Add to call log table
+			LOGGER.info(xStrings.getString("CallLogPanel.logNewUpdate") + " " + fields[1]);
+			
+			CallLog log = lookupCallLog(fields[1]);
+			
+			if(log != null){
 				
-				CallLog log = new CallLog(language, country,
-		    			command[3],
-		    			readConnection, true);
-		    	//TODO DEBUG change back to info
+				//TODO DEBUG change back to info
 				LOGGER.severe(
-						xStrings.getString("CallLogPanel.addingChannelToLog") + 
-						log.getChannel()); 
-				
-		    	records.put(log.getChannel(), log);
-		    	addCallLog(log);
-		    		
-		    }else if(command.length == 4 && command[0].equals(
-		    		xStrings.getString("CallLogPanel.commandEndPoint"))){ 
-		    	//TODO DEBUG change back to info
-		    	//Store as we'll expect a channel swap on this
-		    	LOGGER.severe(xStrings.getString("CallLogPanel.logEndPoint") + " " +   
-		    			"Number: " + command[3] + " Channel: " + command[1]);   
-		    	channelSwapList.put(command[3], command[1]);//key = number, value = channel
-		    	
-		    }else if(command.length == 4 && command[0].equals(
-		    		xStrings.getString("CallLogPanel.commandQueue")) && 
-		    		command[1].equals(onairQueue)){ //QUEUE ON AIR
-		    	
-		    	//Check for channel swap
-		    	if(channelSwapList.size() > 0){
-		    		
-		    		if(channelSwapList.containsKey(command[2])){
-		    			
-		    			LOGGER.info(xStrings.getString("CallLogPanel.receivedSwapOnAirQueue")); 
-			    		swapChannel(channelSwapList.get(command[2]), command[3]);
-		    			channelSwapList.remove(command[2]);
-		    			
-		    		}
-		    		
-		    	}
-		    	
-		    }else if(command.length == 3 && command[0].equals(
-					xStrings.getString("CallLogPanel.changed"))){ 
+						xStrings.getString("CallLogPanel.addingChannelToLog") +
+						log.getChannel());
 				
-				/* CHANGED
-				 * Update log record for a given channel to another person only 
-				 * need to change name and location as the rest of the call
-				 * follows the channelID
-		    	 */
-				//CHANGED/channelID/personID
-		    	
-		    	String[] person = getPerson(readConnection, 
-		    			Integer.parseInt(command[2]));
-		    	
-		    	changeCallLog(command[1], "name", person[0]); 
-		    	changeCallLog(command[1], "location", person[1]); 
-		    	
-			}else if(command.length == 3 && command[0].equals(
-					xStrings.getString("CallLogPanel.manual"))){
+				records.put(log.getChannel(), log);
+				addCallLog(log);
 				
-				//Add to call log table
-				LOGGER.info(xStrings.getString("CallLogPanel.logManual")); 
-				
-				CallLog log = new CallLog(language, country,
-		    			command[1],
-		    			readConnection, true);
-		    	
-				LOGGER.info(
-						xStrings.getString("CallLogPanel.addingChannelToLog") + 
-						log.getChannel()); 
+			}
+			
+		}
+		
+		if(!records.containsKey(fields[1])){
+			
+			//Lookup failed so there is nothing to update
+			LOGGER.warning(xStrings.getString("CallLogPanel.noRecordToUpdate") +
+					fields[1]);
+			
+		}else if(fields[0].equals(xStrings.getString("CallLogPanel.name"))){
+			
+			LOGGER.info(xStrings.getString("CallLogPanel.logNameUpdate"));
+			
+			//Set Internal Record
+			records.get(fields[1]).setName(fields[2]);
+			
+			//Set table row value
+			changeCallLog(fields[1], "name", fields[2]);
+			
+		}else if(fields[0].equals(xStrings.getString("CallLogPanel.conversation"))){
+			
+			LOGGER.info(xStrings.getString("CallLogPanel.logConversationUpdate"));
+			
+			//Set Internal Record
+			records.get(fields[1]).setConversation(fields[2]);
+			
+			//Set table row value
+			changeCallLog(fields[1], "conversation", fields[2]);
+			
+		}else if(fields[0].equals(xStrings.getString("CallLogPanel.location"))){
+			
+			LOGGER.info(xStrings.getString("CallLogPanel.logLocationUpdate"));
+			
+			//Set Internal Record
+			records.get(fields[1]).setLocation(fields[2]);
+			
+			//Set table row value
+			changeCallLog(fields[1], "location", fields[2]);
+			
+		}
+		
+	}
+	
+	/**
+	 * QUEUE/incoming queue/callerid/channel
+	 * @param fields message fields
+	 */
+	private void processIncomingQueue(String[] fields){
+		
+		//Add to call log table
+		LOGGER.info(xStrings.getString("CallLogPanel.logQUEUE"));
+		
+		CallLog log = lookupCallLog(fields[2]);
+		
+		if(log != null){
+			
+			//TODO DEBUG change back to info
+			LOGGER.severe(
+					xStrings.getString("CallLogPanel.addingChannelToLog") +
+					log.getChannel());
+			
+			records.put(log.getChannel(), log);
+			addCallLog(log);
+			
+		}
+		
+	}
+	
+	/**
+	 * QUEUE/on air queue/callerid/channel
+	 * @param fields message fields
+	 */
+	private void processOnAirQueue(String[] fields){
+		
+		//Check for channel swap
+		if(channelSwapList.size() > 0){
+			
+			if(channelSwapList.containsKey(fields[1])){
 				
-		    	records.put(log.getChannel(), log);
-		    	addCallLog(log);
+				LOGGER.info(xStrings.getString("CallLogPanel.receivedSwapOnAirQueue"));
+				swapChannel(channelSwapList.get(fields[1]), fields[2]);
+				channelSwapList.remove(fields[1]);
 				
 			}
 			
-		}	
-
+		}
+		
+	}
+	
+	/**
+	 * ENDPOINT/dialler channel/receiver channel/receiver callerid
+	 * @param fields message fields
+	 */
+	private void processEndPoint(String[] fields){
+		
+		//TODO DEBUG change back to info
+		//Store as we'll expect a channel swap on this
+		LOGGER.severe(xStrings.getString("CallLogPanel.logEndPoint") + " " +
+				"Number: " + fields[2] + " Channel: " + fields[0]);
+		channelSwapList.put(fields[2], fields[0]);//key = number, value = channel
+		
+	}
+	
+	/**
+	 * CHANGED/channel/person
+	 * @param fields message fields
+	 */
+	private void processChanged(String[] fields){
+		
+		/* CHANGED
+		 * Update log record for a given channel to another person only
+		 * need to change name and location as the rest of the call
+		 * follows the channelID
+		 */
+		//CHANGED/channelID/personID
+		
+		String[] person = getPerson(Integer.parseInt(fields[1]));
+		
+		changeCallLog(fields[0], "name", person[0]);
+		changeCallLog(fields[0], "location", person[1]);
+		
+	}
+	
+	/**
+	 * MANUAL/channel/answered by
+	 * @param fields message fields
+	 */
+	private void processManual(String[] fields){
+		
+		//Add to call log table
+		LOGGER.info(xStrings.getString("CallLogPanel.logManual"));
+		
+		CallLog log = lookupCallLog(fields[0]);
+		
+		if(log != null){
+			
+			LOGGER.info(
+					xStrings.getString("CallLogPanel.addingChannelToLog") +
+					log.getChannel());
+			
+			records.put(log.getChannel(), log);
+			addCallLog(log);
+			
+		}
+		
 	}
 
 	/**
@@ -517,14 +695,17 @@ public class CallLogPanel implements PacketListener, ChatManagerListener, Messag
 			
 			//The log didn't have this call so lets add it usually only happens
 			//if its a call that has been dialled
-			CallLog log = new CallLog(language, country,
-	    			toChannel,
-	    			readConnection, true);
-			//TODO DEBUG change to info TODO xStrings Swap Adding New Log
-			LOGGER.severe("Swap Adding New Log: " + toChannel); 
-			records.put(toChannel, log);
+			CallLog log = lookupCallLog(toChannel);
 			
-			addCallLog(log);
+			if(log != null){
+				
+				//TODO DEBUG change to info TODO xStrings Swap Adding New Log
+				LOGGER.severe("Swap Adding New Log: " + toChannel); 
+				records.put(toChannel, log);
+				
+				addCallLog(log);
+				
+			}
 	    	
 		}else{
 			
@@ -552,6 +733,100 @@ public class CallLogPanel implements PacketListener, ChatManagerListener, Messag
 		
 	}
 
+	/**
+	 * Turns the rows of SELECT_CALL_LOG into CallLogs, a channel's rows always come
+	 * together so a log is finished when the channel changes.
+	 * 
+	 * Uses the conversation if there is one with a name otherwise the ringing entry,
+	 * channels with neither (e.g. internal phones that never had a person) are dropped
+	 */
+	private class CallLogRows {
+		
+		private String channel = null, conversation, conversationName, 
+				conversationLocation, callerName, callerLocation;
+		private Date conversationTime, ringTime;
+		
+		/**
+		 * Reads the current row
+		 * @param row
+		 * @return the log for the previous channel if this row starts a new one
+		 * @throws SQLException
+		 */
+		public CallLog add(ResultSet row) throws SQLException {
+			
+			CallLog finished = null;
+			String rowChannel = row.getString("callchannel");
+			
+			if(channel != null && !channel.equals(rowChannel))
+				finished = finish();
+			
+			channel = rowChannel;
+			
+			//Last row wins as it did with the per channel queries
+			if(row.getTimestamp("conversationTime") != null){
+				
+				conversation = row.getString("conversation");
+				conversationTime = row.getTimestamp("conversationTime");
+				
+				if(row.getString("conversationName") != null){
+					
+					conversationName = row.getString("conversationName");
+					conversationLocation = row.getString("conversationLocation");
+					
+				}
+				
+			}
+			
+			//Ringing entry only counts if the number has a person
+			if(row.getTimestamp("ringTime") != null && row.getObject("callerID") != null){
+				
+				ringTime = row.getTimestamp("ringTime");
+				callerName = row.getString("callerName");
+				callerLocation = row.getString("callerLocation");
+				
+			}
+			
+			return finished;
+			
+		}
+		
+		/**
+		 * Returns the log for the current channel and resets for the next one
+		 * @return log or null if the channel should be dropped
+		 */
+		public CallLog finish(){
+			
+			CallLog log = null;
+			
+			if(channel != null){
+				
+				log = new CallLog(language, country, channel, conversationName, 
+						conversationLocation, conversation, conversationTime);
+				
+				if(!log.isComplete())
+					if(ringTime != null)
+						log = new CallLog(language, country, channel, callerName, 
+								callerLocation, null, ringTime);
+					else
+						log = null;
+				
+			}
+			
+			channel = null;
+			conversation = null;
+			conversationName = null;
+			conversationLocation = null;
+			conversationTime = null;
+			callerName = null;
+			callerLocation = null;
+			ringTime = null;
+			
+			return log;
+			
+		}
+		
+	}
+
 	@Override
 	public void chatCreated(Chat chat, boolean createdLocally) {
 		
@@ -569,24 +844,26 @@ public class CallLogPanel implements PacketListener, ChatManagerListener, Messag
 		LOGGER.info(xStrings.getString("CallLogPanel.receivedPrivateMessage") 
 				+ message.getBody()); 
 		
-		String[] command = message.getBody().split("/"); 
+		ControlMessage command = ControlMessageCodec.decode(message.getBody());
+		String[] fields = command.getFields();
 		
-		if(command.length == 5 && command[0].equals(
-				xStrings.getString("CallLogPanel.commandCall")) && 
-				command[2].equals(incomingQueue)){ 
+		if(command.getOpcode() == Opcode.CALL && fields.length == 4 && 
+				fields[1].equals(incomingQueue)){ 
 		
 			//This will be a call still ringing so add it to our call history for later
 			
 			//Calls that aren't in the incoming queue will already be in the conversation
 			//list (in theory but needs testing)
 			//TODO DEBUG info & xStrings
-			LOGGER.severe("Private Add New Log: " + command[3]); 
-			CallLog log = new CallLog(language, country,
-	    			command[3],
-	    			readConnection, true);
+			LOGGER.severe("Private Add New Log: " + fields[2]); 
+			CallLog log = lookupCallLog(fields[2]);
 	    	
-	    	records.put(log.getChannel(), log);
-	    	addCallLog(log);
+			if(log != null){
+				
+		    	records.put(log.getChannel(), log);
+		    	addCallLog(log);
+		    	
+			}
 			
 		}	
 		
@@ -1,30 +1,34 @@
 package com.github.waynemerricks.asteriskphone.callinput;
 
-import java.util.ConcurrentModificationException;
+import java.util.ArrayList;
 import java.util.Date;
-import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map.Entry;
 import java.util.logging.Logger;
 
 import org.jivesoftware.smack.XMPPException;
 import org.jivesoftware.smackx.muc.MultiUserChat;
 
+import com.github.waynemerricks.asteriskphone.protocol.ControlMessage;
+import com.github.waynemerricks.asteriskphone.protocol.ControlMessageCodec;
+import com.github.waynemerricks.asteriskphone.protocol.Opcode;
+
 public class CallerUpdater implements Runnable{
 
 	/** STATIC VARS **/
-	private static final long UPDATE_PERIOD = 1000, SLEEP_PERIOD = 100;
+	private static final long UPDATE_PERIOD = 1000, MAX_DELAY = 5000;
 	private static final Logger LOGGER = Logger.getLogger(CallerUpdater.class.getName());//Logger
 	
 	/* CLASS VARS */
 	private MultiUserChat controlRoom;
-	private HashMap<String, String> updateFields = new HashMap<String, String>();
+	private LinkedHashMap<String, PendingChannel> updateFields = new LinkedHashMap<String, PendingChannel>();
 	private boolean go = true;
 	private I18NStrings xStrings;
-	private long lastUpdate;
 	
 	/**
-	 * Creates a CallerUpdater that takes in update commands and sends them to clients 
-	 * via XMPP every UPDATE_PERIOD
+	 * Creates a CallerUpdater that takes in update commands and sends them to clients
+	 * via XMPP once a channel has had no changes for UPDATE_PERIOD
 	 * @param controlRoom
 	 * @param language
 	 * @param country
@@ -33,25 +37,38 @@ public class CallerUpdater implements Runnable{
 		
 		this.controlRoom = controlRoom;
 		xStrings = new I18NStrings(language, country);
-		lastUpdate = new Date().getTime();
 		
 	}
 	
 	/**
-	 * Add a field to update to the queue
+	 * Add a field to update to the queue, a later value for the same channel and
+	 * field replaces the earlier one
 	 * @param channelID channel ID that this update applies to
 	 * @param field mapping of the field to update
 	 * @param value value to update it to
 	 */
-	public synchronized void addUpdate(String channelID, String field, String value){
+	public void addUpdate(String channelID, String field, String value){
 		
-		LOGGER.info(xStrings.getString("CallerUpdater.addingUpdateToQueue")); 
-		lastUpdate = new Date().getTime();
+		LOGGER.info(xStrings.getString("CallerUpdater.addingUpdateToQueue"));
 		
 		if( value == null || value.length() == 0)
-			value = " "; 
+			value = " ";
 		
-		updateFields.put(field, channelID + "/" + value); 
+		synchronized(updateFields){
+			
+			PendingChannel channel = updateFields.get(channelID);
+			
+			if(channel == null){
+				
+				channel = new PendingChannel(channelID);
+				updateFields.put(channelID, channel);
+				
+			}
+			
+			channel.put(field, value);
+			updateFields.notifyAll();
+			
+		}
 		
 	}
 	
@@ -61,8 +78,8 @@ public class CallerUpdater implements Runnable{
 	 */
 	private void sendMessage(String message){
 		
-		LOGGER.info(xStrings.getString("CallerUpdater.sendingControlMessage") + " "   
-				+ message); 
+		LOGGER.info(xStrings.getString("CallerUpdater.sendingControlMessage") + " "
+				+ message);
 		
 		if(controlRoom != null){
 			
@@ -71,64 +88,142 @@ public class CallerUpdater implements Runnable{
 				controlRoom.sendMessage(message);
 				
 			}catch(XMPPException e){
-				LOGGER.severe(xStrings.getString("CallerUpdater.chatRoomError")); 
+				LOGGER.severe(xStrings.getString("CallerUpdater.chatRoomError"));
 			}catch(IllegalStateException e){
-				LOGGER.severe(xStrings.getString("CallerUpdater.ServerGoneError")); 
+				LOGGER.severe(xStrings.getString("CallerUpdater.ServerGoneError"));
+			}
+			
+		}else
+			LOGGER.severe(xStrings.getString("CallerUpdater.noControlRoomSet"));
+		
+	}
+	
+	/**
+	 * Sends the pending fields for a channel, one UPDATEFIELDS message if everyone
+	 * understands protocol version 2 otherwise one UPDATEFIELD per field as before
+	 * @param channel
+	 */
+	private void sendUpdates(PendingChannel channel){
+		
+		if(ControlMessageCodec.getEncodeVersion() == ControlMessageCodec.VERSION_2){
+			
+			String[] fields = new String[channel.fields.size() * 2 + 1];
+			fields[0] = channel.channelID;
+			
+			int i = 1;
+			
+			for(Entry<String, String> field : channel.fields.entrySet()){
+				
+				fields[i++] = field.getKey();
+				fields[i++] = field.getValue();
+				
 			}
 			
+			sendMessage(ControlMessageCodec.encode(new ControlMessage(Opcode.UPDATEFIELDS,
+					fields)));
+			
 		}else
-			LOGGER.severe(xStrings.getString("CallerUpdater.noControlRoomSet")); 
+			for(Entry<String, String> field : channel.fields.entrySet())
+				sendMessage(ControlMessageCodec.encode(new ControlMessage(
+						Opcode.UPDATEFIELD, field.getKey(), channel.channelID,
+						field.getValue())));
 		
 	}
 	
 	/**
-	 * Loops through the updateFields hash and sends update messages
+	 * Waits for updates and sends each channel once it has settled
 	 */
 	public void run(){
 		
-		LOGGER.info(xStrings.getString("CallerUpdater.running")); 
+		LOGGER.info(xStrings.getString("CallerUpdater.running"));
 		
 		while(go){
 			
-			synchronized(updateFields){
+			ArrayList<PendingChannel> due = new ArrayList<PendingChannel>();
 			
-				if(updateFields.size() > 0 && 
-						new Date().getTime() - lastUpdate > UPDATE_PERIOD){
+			synchronized(updateFields){
+				
+				try{
 					
-					//We have fields to update so update it you fool
-					try{
-						Iterator<String> keys = updateFields.keySet().iterator();
+					while(updateFields.size() == 0)
+						updateFields.wait();
+					
+					long now = new Date().getTime();
+					long wait = UPDATE_PERIOD;
+					Iterator<PendingChannel> channels = updateFields.values().iterator();
+					
+					while(channels.hasNext()){
 						
-						while(keys.hasNext()){
-							
-							String field = keys.next();
-							
-							sendMessage(xStrings.getString("CallerUpdater.commandUpdateField") + "/"  
-									+ field + "/" + updateFields.get(field)); 
+						PendingChannel channel = channels.next();
+						long dueIn = channel.getDueTime() - now;
+						
+						if(dueIn <= 0){
 							
-							updateFields.remove(field);
+							due.add(channel);
+							channels.remove();
 							
-						}
-					}catch(ConcurrentModificationException e){
-						
-						//Don't care just try again next time
+						}else if(dueIn < wait)
+							wait = dueIn;
 						
 					}
-						
+					
+					//Woken early by addUpdate if anything changes
+					if(due.size() == 0)
+						updateFields.wait(wait);
+					
+				}catch(InterruptedException e){
+					
+					//Don't lose anything that was typed, send it all now
+					go = false;
+					due.addAll(updateFields.values());
+					updateFields.clear();
+					
 				}
 				
 			}
 			
-			try {
-				Thread.sleep(SLEEP_PERIOD);
-			} catch (InterruptedException e) {
-				go = false;
-			}
+			for(int i = 0; i < due.size(); i++)
+				sendUpdates(due.get(i));
 			
 		}
 		
-		LOGGER.info(xStrings.getString("CallerUpdater.exiting")); 
+		LOGGER.info(xStrings.getString("CallerUpdater.exiting"));
 		
 	}
-
+	
+	/**
+	 * Fields waiting to be sent for one channel
+	 */
+	private class PendingChannel {
+		
+		private String channelID;
+		private LinkedHashMap<String, String> fields = new LinkedHashMap<String, String>();
+		private long firstUpdate = new Date().getTime(), lastUpdate = firstUpdate;
+		
+		public PendingChannel(String channelID){
+			
+			this.channelID = channelID;
+			
+		}
+		
+		public void put(String field, String value){
+			
+			fields.put(field, value);
+			lastUpdate = new Date().getTime();
+			
+		}
+		
+		/**
+		 * Time this channel should be sent, UPDATE_PERIOD after the last change but
+		 * no more than MAX_DELAY after the first so constant typing still gets sent
+		 * @return
+		 */
+		public long getDueTime(){
+			
+			return Math.min(lastUpdate + UPDATE_PERIOD, firstUpdate + MAX_DELAY);
+			
+		}
+		
+	}
+	
 }
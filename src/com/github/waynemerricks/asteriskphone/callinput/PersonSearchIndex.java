@@ -0,0 +1,451 @@
+package com.github.waynemerricks.asteriskphone.callinput;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Logger;
+
+import com.github.waynemerricks.asteriskphone.database.DatabaseManager;
+import com.github.waynemerricks.asteriskphone.database.QueryRegistry;
+import com.github.waynemerricks.asteriskphone.records.Person;
+
+/**
+ * Client side index of person names and phone numbers for the SearchPanel.
+ *
+ * Every person/number pair is read once in the background and kept in two sorted
+ * maps (lower case name and number with the punctuation removed) so a prefix search
+ * is a range lookup in memory instead of a LIKE query every time the operator stops
+ * typing.  Only what the search table shows is kept (id, name, location, number).
+ *
+ * The index is kept up to date from the control messages the CallManagerPanel already
+ * gets, UPDATEFIELD changes the name/location in place and CHANGED re-reads the person
+ * as it may have a new number.  Until the first load has finished searches should
+ * go to the DB as before.
+ * @author Wayne Merricks
+ *
+ */
+public class PersonSearchIndex {
+	
+	/** STATICS **/
+	public static final int MAX_NAME_RESULTS = 10; //Same as the LIMIT on SEARCH_NAME_PARTIAL
+	private static final char KEY_SEPARATOR = '\u0000';
+	private static final Logger LOGGER = Logger.getLogger(PersonSearchIndex.class.getName());//Logger
+	private static PersonSearchIndex index = null;
+	
+	/** CLASS VARS **/
+	private DatabaseManager database;
+	private I18NStrings xStrings;
+	private String language, country;
+	private ConcurrentSkipListMap<String, IndexEntry> names =
+			new ConcurrentSkipListMap<String, IndexEntry>();
+	private ConcurrentSkipListMap<String, IndexEntry> numbers =
+			new ConcurrentSkipListMap<String, IndexEntry>();
+	private ConcurrentHashMap<Integer, List<IndexEntry>> people =
+			new ConcurrentHashMap<Integer, List<IndexEntry>>();
+	private ExecutorService loader;
+	private volatile boolean loaded = false;
+	
+	private PersonSearchIndex(DatabaseManager database, String language, String country){
+		
+		this.database = database;
+		this.language = language;
+		this.country = country;
+		xStrings = new I18NStrings(language, country);
+		
+		//One thread so refreshes always happen after the initial load
+		loader = Executors.newSingleThreadExecutor(new ThreadFactory(){
+			public Thread newThread(Runnable r){
+				Thread thread = new Thread(r, "PersonSearchIndex");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		
+		loader.execute(new Runnable(){
+			public void run(){
+				load();
+			}
+		});
+		
+	}
+	
+	/**
+	 * Returns the index, the first call starts it loading in the background
+	 * @param database DatabaseManager to borrow connections from
+	 * @param language I18N language e.g. en
+	 * @param country I18N country e.g. GB
+	 * @return
+	 */
+	public static synchronized PersonSearchIndex getIndex(DatabaseManager database,
+			String language, String country){
+		
+		if(index == null)
+			index = new PersonSearchIndex(database, language, country);
+		
+		return index;
+		
+	}
+	
+	/**
+	 * Returns true once every person has been read in, before then use the DB
+	 * @return
+	 */
+	public boolean isLoaded(){
+		
+		return loaded;
+		
+	}
+	
+	/**
+	 * Returns people with a name starting with the given term (case insensitive) in
+	 * name order, at most MAX_NAME_RESULTS
+	 * @param name name or partial name
+	 * @param partialMatch if false only exact (case insensitive) matches are returned
+	 * @return
+	 */
+	public Vector<Person> searchName(String name, boolean partialMatch){
+		
+		Vector<Person> found = new Vector<Person>();
+		String prefix = normaliseName(name);
+		
+		if(!partialMatch)
+			prefix += KEY_SEPARATOR;
+		
+		for(IndexEntry entry : getRange(names, prefix)){
+			
+			if(found.size() >= MAX_NAME_RESULTS)
+				break;
+			
+			found.add(entry.toPerson(language, country));
+			
+		}
+		
+		return found;
+		
+	}
+	
+	/**
+	 * Returns people with a number starting with the given term in name order
+	 * @param number number or partial number
+	 * @param partialMatch if false only exact matches are returned
+	 * @return
+	 */
+	public Vector<Person> searchNumber(String number, boolean partialMatch){
+		
+		String prefix = normaliseNumber(number);
+		
+		if(!partialMatch)
+			prefix += KEY_SEPARATOR;
+		
+		ArrayList<IndexEntry> entries = new ArrayList<IndexEntry>(
+				getRange(numbers, prefix));
+		
+		Collections.sort(entries, new Comparator<IndexEntry>(){
+			public int compare(IndexEntry a, IndexEntry b){
+				return a.nameKey.compareTo(b.nameKey);
+			}
+		});
+		
+		Vector<Person> found = new Vector<Person>();
+		
+		for(int i = 0; i < entries.size(); i++)
+			found.add(entries.get(i).toPerson(language, country));
+		
+		return found;
+		
+	}
+	
+	/**
+	 * Returns every entry with a key starting with prefix
+	 * @param map
+	 * @param prefix
+	 * @return
+	 */
+	private Collection<IndexEntry> getRange(
+			ConcurrentSkipListMap<String, IndexEntry> map, String prefix){
+		
+		return map.subMap(prefix, true, prefix + Character.MAX_VALUE, false).values();
+		
+	}
+	
+	/**
+	 * Changes a field in place for the given person, only name and location are
+	 * indexed so anything else is ignored
+	 * @param personID person that was updated
+	 * @param field field name as sent in UPDATEFIELD
+	 * @param value new value
+	 */
+	public void updateField(int personID, String field, String value){
+		
+		if(field.equals("name") || field.equals("location")){
+			
+			synchronized(people){
+				
+				List<IndexEntry> entries = people.get(personID);
+				
+				if(entries != null)
+					for(int i = 0; i < entries.size(); i++){
+						
+						IndexEntry old = entries.get(i);
+						IndexEntry changed = null;
+						
+						if(field.equals("name"))
+							changed = new IndexEntry(old.personID, value, old.location,
+									old.number);
+						else
+							changed = new IndexEntry(old.personID, old.name, value,
+									old.number);
+						
+						remove(old);
+						add(changed);
+						entries.set(i, changed);
+						
+					}
+				
+			}
+			
+		}
+		
+	}
+	
+	/**
+	 * Re-reads the given person from the DB in the background, used when a person
+	 * is created or linked to a new number
+	 * @param personID
+	 */
+	public void refresh(final int personID){
+		
+		loader.execute(new Runnable(){
+			public void run(){
+				
+				ArrayList<IndexEntry> entries = new ArrayList<IndexEntry>();
+				
+				if(read(QueryRegistry.SEARCH_INDEX_PERSON, personID, entries)){
+					
+					synchronized(people){
+						
+						List<IndexEntry> old = people.remove(personID);
+						
+						if(old != null)
+							for(int i = 0; i < old.size(); i++)
+								remove(old.get(i));
+						
+						for(int i = 0; i < entries.size(); i++)
+							addPersonEntry(entries.get(i));
+						
+					}
+					
+				}
+				
+			}
+		});
+		
+	}
+	
+	/**
+	 * Reads every person and number into the index
+	 */
+	private void load(){
+		
+		LOGGER.info(xStrings.getString("PersonSearchIndex.loading"));
+		
+		ArrayList<IndexEntry> entries = new ArrayList<IndexEntry>();
+		
+		if(read(QueryRegistry.SEARCH_INDEX_ALL, -1, entries)){
+			
+			synchronized(people){
+				
+				for(int i = 0; i < entries.size(); i++)
+					addPersonEntry(entries.get(i));
+				
+			}
+			
+			loaded = true;
+			LOGGER.info(xStrings.getString("PersonSearchIndex.loaded") + entries.size());
+			
+		}
+		
+	}
+	
+	/**
+	 * Runs the given index query and adds the results to entries
+	 * @param SQL SEARCH_INDEX_ALL or SEARCH_INDEX_PERSON
+	 * @param personID person_id param for SEARCH_INDEX_PERSON
+	 * @param entries list to add to
+	 * @return false if the query failed
+	 */
+	private boolean read(String SQL, int personID, List<IndexEntry> entries){
+		
+		boolean success = false;
+		Connection readConnection = null;
+		PreparedStatement statement = null;
+		ResultSet resultSet = null;
+		
+		try{
+			
+			readConnection = database.getReadConnection();
+			statement = readConnection.prepareStatement(SQL);
+			
+			if(personID != -1)
+				statement.setInt(1, personID);
+		
+		    resultSet = statement.executeQuery();
+		
+		    while(resultSet.next())
+		    	entries.add(new IndexEntry(resultSet.getInt("person_id"),
+		    			resultSet.getString("name"), resultSet.getString("location"),
+		    			resultSet.getString("phone_number")));
+		
+		    success = true;
+			
+		}catch (SQLException e){
+			LOGGER.severe(xStrings.getString("PersonSearchIndex.loadSQLError") +
+					e.getMessage());
+		}finally {
+			
+			if (resultSet != null) {
+		        try {
+		        	resultSet.close();
+		        } catch (SQLException sqlEx) { } // ignore
+		        resultSet = null;
+		    }
+		
+		    if (statement != null) {
+		        try {
+		        	statement.close();
+		        } catch (SQLException sqlEx) { } // ignore
+		        statement = null;
+		    }
+			
+			if (readConnection != null) {
+			    try {
+			    	readConnection.close();
+			    } catch (SQLException sqlEx) { } // ignore
+			    readConnection = null;
+			}
+			
+		}
+		
+		return success;
+		
+	}
+	
+	/**
+	 * Adds an entry to both maps and the person lookup, must hold people lock
+	 * @param entry
+	 */
+	private void addPersonEntry(IndexEntry entry){
+		
+		List<IndexEntry> entries = people.get(entry.personID);
+		
+		if(entries == null){
+			
+			entries = new ArrayList<IndexEntry>(1);
+			people.put(entry.personID, entries);
+			
+		}
+		
+		entries.add(entry);
+		add(entry);
+		
+	}
+	
+	private void add(IndexEntry entry){
+		
+		names.put(entry.nameKey, entry);
+		numbers.put(entry.numberKey, entry);
+		
+	}
+	
+	private void remove(IndexEntry entry){
+		
+		names.remove(entry.nameKey);
+		numbers.remove(entry.numberKey);
+		
+	}
+	
+	/**
+	 * Lower case so searches match the case insensitive LIKE they replace
+	 * @param name
+	 * @return
+	 */
+	private static String normaliseName(String name){
+		
+		if(name == null)
+			name = "";
+		
+		return name.trim().toLowerCase();
+		
+	}
+	
+	/**
+	 * Drops spaces, brackets, dashes etc so 01234 567 890 finds 01234567890
+	 * @param number
+	 * @return
+	 */
+	private static String normaliseNumber(String number){
+		
+		StringBuilder normalised = new StringBuilder();
+		
+		if(number != null)
+			for(int i = 0; i < number.length(); i++){
+				
+				char c = number.charAt(i);
+				
+				if(Character.isLetterOrDigit(c) || c == '+')
+					normalised.append(c);
+				
+			}
+		
+		return normalised.toString();
+		
+	}
+	
+	/**
+	 * One person/number pair, immutable so searches never see half an update
+	 */
+	private static class IndexEntry {
+		
+		private final int personID;
+		private final String name, location, number, nameKey, numberKey;
+		
+		public IndexEntry(int personID, String name, String location, String number){
+			
+			this.personID = personID;
+			this.name = name;
+			this.location = location;
+			this.number = number;
+			
+			//Person id and number on the end keep the keys unique
+			nameKey = normaliseName(name) + KEY_SEPARATOR + personID + KEY_SEPARATOR +
+					number;
+			numberKey = normaliseNumber(number) + KEY_SEPARATOR + personID;
+			
+		}
+		
+		public Person toPerson(String language, String country){
+			
+			Person person = new Person(personID, language, country);
+			person.name = name;
+			person.location = location;
+			person.number = number;
+			
+			return person;
+			
+		}
+		
+	}
+	
+}
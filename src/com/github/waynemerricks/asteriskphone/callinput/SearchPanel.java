@@ -7,11 +7,18 @@ import java.awt.event.ActionListener;
 import java.awt.event.KeyEvent;
 import java.awt.event.KeyListener;
 import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.ArrayList;
 import java.util.Vector;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Logger;
 
 import javax.swing.JButton;
@@ -22,8 +29,11 @@ import javax.swing.JOptionPane;
 import javax.swing.JScrollPane;
 import javax.swing.JTable;
 import javax.swing.JTextField;
+import javax.swing.SwingUtilities;
 import javax.swing.table.TableCellRenderer;
 
+import com.github.waynemerricks.asteriskphone.database.DatabaseManager;
+import com.github.waynemerricks.asteriskphone.database.QueryRegistry;
 import com.github.waynemerricks.asteriskphone.records.Person;
 
 import net.miginfocom.swing.MigLayout;
@@ -41,13 +51,24 @@ public class SearchPanel extends JDialog implements ActionListener, KeyListener
 	private Vector<Person> records = new Vector<Person>();
 	private String country, language;
 	private String[] columnNames = null;
-	private Connection readConnection;
-	private SearchPersonThread searchPersonThread = null;
-	private SearchTerm searchTerm = null;
+	private DatabaseManager database;
+	private PersonSearchIndex searchIndex;
+	
+	/* Searches run on searchService SEARCH_DELAY after the last key release, a newer
+	 * search bumps searchGeneration so older ones drop their results and any query
+	 * still running for them is cancelled */
+	private ScheduledExecutorService searchService;
+	private ScheduledFuture<?> pendingSearch = null;
+	private AtomicLong searchGeneration = new AtomicLong();
+	private volatile Statement runningQuery = null;
+	private String lastTerm = null;
+	private boolean lastNumberMode = false;
 	private ArrayList<PersonChangedListener> notifyMe = new ArrayList<PersonChangedListener>();
 	
 	/** STATICS **/
 	private static final Logger LOGGER = Logger.getLogger(SearchPanel.class.getName());//Logger
+	private static final long SEARCH_DELAY = 300L; //ms to wait for typing to pause
+	private static final int ROW_BATCH = 20; //Rows added to the table at a time
 	
 	/**
 	 * Creates a dialog that allows you to search for people and return the selected person
@@ -55,25 +76,31 @@ public class SearchPanel extends JDialog implements ActionListener, KeyListener
 	 * @param title Title of this dialog
 	 * @param language I18N language e.g. en
 	 * @param country I18N country e.g. GB
-	 * @param readConnection Read Connection to the database
-	 * @param writeConnection Write Connection to the database
+	 * @param database DatabaseManager to borrow connections from
 	 * @param numberToSearch Number this panel will search for on creation
 	 */
 	public SearchPanel(JFrame owner, String title, String language, String country, 
-			Connection readConnection, String numberToSearch){
+			DatabaseManager database, String numberToSearch){
 		
 		super(owner, true);//Set owner and modal
 		
 		xStrings = new I18NStrings(language, country);
 		this.language = language;
 		this.country = country;
-		this.readConnection = readConnection;
+		this.database = database;
+		searchIndex = PersonSearchIndex.getIndex(database, language, country);
 		this.setSize(400, 320);
 		this.setTitle(title);
 		
-		LOGGER.info(xStrings.getString("SearchPanel.gettingPeopleFromNumber") + " " + numberToSearch);  
+		searchService = Executors.newSingleThreadScheduledExecutor(new ThreadFactory(){
+			public Thread newThread(Runnable r){
+				Thread thread = new Thread(r, "SearchPanel");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		
 		addNewPersonRecord();
-		getPeopleFromNumber(numberToSearch, false);
 		
 		LOGGER.info(xStrings.getString("SearchPanel.creatingSearchPanel")); 
 		this.setLayout(new MigLayout("fillx, insets 0 5 0 5")); 
@@ -162,9 +189,54 @@ public class SearchPanel extends JDialog implements ActionListener, KeyListener
 		
 		this.add(button, "wrap"); 
 		
-		//Spawn search thread
-		searchPersonThread = new SearchPersonThread(this);
-		searchPersonThread.start();
+		LOGGER.info(xStrings.getString("SearchPanel.gettingPeopleFromNumber") + " " + numberToSearch);  
+		startSearch(true, numberToSearch, false, 0);
+		
+	}
+	
+	/**
+	 * Schedules a search, anything older that hasn't finished is superseded
+	 * @param numberMode true = search by number, false = by name
+	 * @param term term to search for
+	 * @param partialMatch true = starts with, false = exact match
+	 * @param delay ms to wait before searching
+	 */
+	private void startSearch(boolean numberMode, String term, boolean partialMatch,
+			long delay){
+		
+		long generation = searchGeneration.incrementAndGet();
+		
+		if(pendingSearch != null)
+			pendingSearch.cancel(false);
+		
+		cancelRunningQuery();
+		
+		pendingSearch = searchService.schedule(new PersonSearch(generation, numberMode, 
+				term, partialMatch), delay, TimeUnit.MILLISECONDS);
+		
+	}
+	
+	/**
+	 * Cancels the query for an older search if it is still running, cancel blocks
+	 * while it talks to the DB so it is done off the EDT
+	 */
+	private void cancelRunningQuery(){
+		
+		final Statement query = runningQuery;
+		
+		if(query != null){
+			
+			LOGGER.info(xStrings.getString("SearchPanel.cancellingQuery"));
+			
+			new Thread(new Runnable(){
+				public void run(){
+					try{
+						query.cancel();
+					}catch(SQLException e){}//Already finished
+				}
+			}).start();
+			
+		}
 		
 	}
 	
@@ -172,32 +244,44 @@ public class SearchPanel extends JDialog implements ActionListener, KeyListener
 	 * Gets Person records from a DB read connection matching the number given
 	 * @param number Number to search
 	 * @param partialMatch if true will do an SQL query as LIKE blah% instead of exact match
+	 * @param search search these results are for
 	 */
-	private void getPeopleFromNumber(String number, boolean partialMatch){
+	private void getPeopleFromNumber(String number, boolean partialMatch, PersonSearch search){
+		
+		//Answer from memory once the index is loaded
+		if(searchIndex.isLoaded()){
+			
+			LOGGER.info(xStrings.getString("SearchPanel.usingIndex") + " " + number);
+			search.addAll(searchIndex.searchNumber(number, partialMatch));
+			return;
+			
+		}
 		
 		//TODO Rework for custom fields (one day)
 		//Get the records cross referenced from person and phonenumbers
-		String SQL = "SELECT phone_number, person.* FROM phonenumbers INNER JOIN person ON " + 
-				"phonenumbers.person_id = person.person_id " + 
-				"WHERE phone_number "; 
+		String SQL = QueryRegistry.SEARCH_NUMBER;
 		
-		if(partialMatch)
-			SQL += "LIKE '" + number + "%' ";  
-		else
-			SQL += "= '" + number + "' ";  
-		
-		SQL += "ORDER BY person.name ASC"; 
+		if(partialMatch){
+			
+			SQL = QueryRegistry.SEARCH_NUMBER_PARTIAL;
+			number += "%";
+			
+		}
 		
-		Statement statement = null;
+		Connection readConnection = null;
+		PreparedStatement statement = null;
 		ResultSet resultSet = null;
 		
 		LOGGER.info(xStrings.getString("SearchPanel.lookingUpNumber")); 
 		
 		try{
-			statement = readConnection.createStatement();
-		    resultSet = statement.executeQuery(SQL);
+			readConnection = database.getReadConnection();
+			statement = readConnection.prepareStatement(SQL);
+			statement.setString(1, number);
+			runningQuery = statement;
+		    resultSet = statement.executeQuery();
 		    
-		    while(resultSet.next()){
+		    while(resultSet.next() && search.isCurrent()){
 		    	
 		    	Person person = new Person(resultSet.getInt("person_id"), language, country); 
 		    	person.alert = resultSet.getString("alert"); 
@@ -213,14 +297,22 @@ public class SearchPanel extends JDialog implements ActionListener, KeyListener
 		    	person.notes = resultSet.getString("notes"); 
 		    	person.number = resultSet.getString("phone_number"); 
 		    	
-		    	records.add(person);
+		    	search.add(person);
 
 		    }
 		    
 		}catch (SQLException e){
-			showError(e, xStrings.getString("SearchPanel.getLogSQLError")); 
+			
+			//A superseded search fails when its query is cancelled, that's fine
+			if(search.isCurrent())
+				showError(e, xStrings.getString("SearchPanel.getLogSQLError")); 
+			else
+				LOGGER.info(xStrings.getString("SearchPanel.queryCancelled"));
+			
 		}finally {
 		    
+			runningQuery = null;
+			
 			if (resultSet != null) {
 		        try {
 		        	resultSet.close();
@@ -235,6 +327,13 @@ public class SearchPanel extends JDialog implements ActionListener, KeyListener
 		        statement = null;
 		    }
 		    
+			if (readConnection != null) {
+			    try {
+			    	readConnection.close();
+			    } catch (SQLException sqlEx) { } // ignore
+			    readConnection = null;
+			}
+
 		}
 		
 	}
@@ -243,32 +342,44 @@ public class SearchPanel extends JDialog implements ActionListener, KeyListener
 	 * Gets Person records from a DB read connection matching the name given
 	 * @param number Number to search
 	 * @param partialMatch if true will do an SQL query as LIKE blah% instead of exact match
+	 * @param search search these results are for
 	 */
-	private void getPeopleFromName(String name, boolean partialMatch){
+	private void getPeopleFromName(String name, boolean partialMatch, PersonSearch search){
+		
+		//Answer from memory once the index is loaded
+		if(searchIndex.isLoaded()){
+			
+			LOGGER.info(xStrings.getString("SearchPanel.usingIndex") + " " + name);
+			search.addAll(searchIndex.searchName(name, partialMatch));
+			return;
+			
+		}
 		
 		//TODO Rework for custom fields (one day)
 		//Get the records cross referenced from person and phonenumbers
-		String SQL = "SELECT person.*, phonenumbers.phone_number FROM person INNER JOIN phonenumbers ON " + 
-				"person.person_id = phonenumbers.person_id " + 
-				"WHERE person.name "; 
+		String SQL = QueryRegistry.SEARCH_NAME;
 		
-		if(partialMatch)
-			SQL += "LIKE '" + name + "%' ";  
-		else
-			SQL += "= '" + name + "' ";  
-		
-		SQL += "ORDER BY person.name ASC LIMIT 10"; 
+		if(partialMatch){
+			
+			SQL = QueryRegistry.SEARCH_NAME_PARTIAL;
+			name += "%";
+			
+		}
 		
-		Statement statement = null;
+		Connection readConnection = null;
+		PreparedStatement statement = null;
 		ResultSet resultSet = null;
 		
 		LOGGER.info(xStrings.getString("SearchPanel.lookingUpName")); 
 		
 		try{
-			statement = readConnection.createStatement();
-		    resultSet = statement.executeQuery(SQL);
+			readConnection = database.getReadConnection();
+			statement = readConnection.prepareStatement(SQL);
+			statement.setString(1, name);
+			runningQuery = statement;
+		    resultSet = statement.executeQuery();
 		    
-		    while(resultSet.next()){
+		    while(resultSet.next() && search.isCurrent()){
 		    	
 		    	Person person = new Person(resultSet.getInt("person_id"), language, country); 
 		    	person.alert = resultSet.getString("alert"); 
@@ -284,14 +395,22 @@ public class SearchPanel extends JDialog implements ActionListener, KeyListener
 		    	person.notes = resultSet.getString("notes"); 
 		    	person.number = resultSet.getString("phone_number"); 
 		    	
-		    	records.add(person);
+		    	search.add(person);
 
 		    }
 		    
 		}catch (SQLException e){
-			showError(e, xStrings.getString("SearchPanel.getLogSQLError")); 
+			
+			//A superseded search fails when its query is cancelled, that's fine
+			if(search.isCurrent())
+				showError(e, xStrings.getString("SearchPanel.getLogSQLError")); 
+			else
+				LOGGER.info(xStrings.getString("SearchPanel.queryCancelled"));
+			
 		}finally {
 		    
+			runningQuery = null;
+			
 			if (resultSet != null) {
 		        try {
 		        	resultSet.close();
@@ -306,6 +425,13 @@ public class SearchPanel extends JDialog implements ActionListener, KeyListener
 		        statement = null;
 		    }
 		    
+			if (readConnection != null) {
+			    try {
+			    	readConnection.close();
+			    } catch (SQLException sqlEx) { } // ignore
+			    readConnection = null;
+			}
+
 		}
 		
 	}
@@ -358,7 +484,8 @@ public class SearchPanel extends JDialog implements ActionListener, KeyListener
 	 */
 	public void setNumber(String phoneNumber) {
 		
-		getPeopleFromNumber(phoneNumber, false);
+		lastTerm = null;
+		startSearch(true, phoneNumber, false, 0);
 		
 	}
 	
@@ -385,49 +512,6 @@ public class SearchPanel extends JDialog implements ActionListener, KeyListener
 		
 	}
 	
-	/**
-	 * Looks at the state of the SearchTerm object and updates accordingly
-	 */
-	public void checkDataNeedsUpdating(){
-		
-		//Query DB if there is a search term to use
-		if(searchTerm != null && searchTerm.getSearchTerm() != null){
-			
-			LOGGER.info(xStrings.getString("SearchPanel.dataUpdating")); 
-			searchTerm.setLocked(true);
-			
-			updateData(searchTerm.isNumber(), searchTerm.getSearchTerm());
-			searchTerm.clear();
-			
-			searchTerm.setLocked(false);
-			LOGGER.info(xStrings.getString("SearchPanel.dataUpdated")); 
-			
-		}
-		
-	}
-	
-	/**
-	 * Updates the data given the mode and search term
-	 * @param numberMode true = search by number, false = by name
-	 * @param search term to search for
-	 */
-	private void updateData(boolean numberMode, String search){
-		
-		//Create a thread to search by name/number
-		records.removeAllElements();
-		
-		//Add the placeholder for the new person record
-		addNewPersonRecord();
-		
-		if(numberMode)
-			getPeopleFromNumber(search, true);
-		else
-			getPeopleFromName(search, true);
-		
-		tableModel.fireTableDataChanged();
-		
-	}
-
 	/**
 	 * Spawns a thread to create a new Person record and associate it
 	 * with owner panel/call input
@@ -589,12 +673,14 @@ public class SearchPanel extends JDialog implements ActionListener, KeyListener
 			}else if(e.getSource() == name)
 				search = name.getText();
 		
-		if(searchTerm == null)//if null first run so create a term
-			searchTerm = new SearchTerm(isNumber, search);
-		else if(!searchTerm.isLocked())//not locked = we're doing nothing so update
-			searchTerm.updateSearch(isNumber, search);
-		else if(searchTerm.isLocked())//locked = we're running a query so queue this search
-			searchTerm.queueSearch(isNumber, search);
+		//Ignore keys that didn't change the text e.g. arrows/shift
+		if(!search.equals(lastTerm) || isNumber != lastNumberMode){
+			
+			lastTerm = search;
+			lastNumberMode = isNumber;
+			startSearch(isNumber, search, true, SEARCH_DELAY);
+			
+		}
 		
 	}
 
@@ -604,5 +690,114 @@ public class SearchPanel extends JDialog implements ActionListener, KeyListener
 
 	@Override
 	public void keyPressed(KeyEvent e) {}
+	
+	/**
+	 * One search, results are handed to the table on the EDT in batches as they're
+	 * read.  The first batch replaces whatever the table had before
+	 */
+	private class PersonSearch implements Runnable {
+		
+		private long generation;
+		private boolean numberMode, partialMatch, cleared = false;
+		private String term;
+		private ArrayList<Person> batch = new ArrayList<Person>();
+		
+		public PersonSearch(long generation, boolean numberMode, String term, 
+				boolean partialMatch){
+			
+			this.generation = generation;
+			this.numberMode = numberMode;
+			this.term = term;
+			this.partialMatch = partialMatch;
+			
+		}
+		
+		/**
+		 * Returns false once a newer search has started
+		 * @return
+		 */
+		public boolean isCurrent(){
+			
+			return generation == searchGeneration.get();
+			
+		}
+		
+		public void add(Person person){
+			
+			batch.add(person);
+			
+			if(batch.size() >= ROW_BATCH)
+				flush();
+			
+		}
+		
+		public void addAll(Vector<Person> people){
+			
+			for(int i = 0; i < people.size(); i++)
+				add(people.get(i));
+			
+		}
+		
+		/**
+		 * Sends the current batch to the table, the first flush always happens so
+		 * the old results are cleared even if nothing was found
+		 */
+		private void flush(){
+			
+			final ArrayList<Person> rows = new ArrayList<Person>(batch);
+			final boolean first = !cleared;
+			
+			batch.clear();
+			cleared = true;
+			
+			SwingUtilities.invokeLater(new Runnable(){
+				public void run(){
+					
+					if(isCurrent()){
+						
+						if(first){
+							
+							records.removeAllElements();
+							addNewPersonRecord();
+							tableModel.fireTableDataChanged();
+							
+						}
+						
+						if(rows.size() > 0){
+							
+							int start = records.size();
+							records.addAll(rows);
+							tableModel.fireTableRowsInserted(start, records.size() - 1);
+							
+						}
+						
+					}
+					
+				}
+			});
+			
+		}
+		
+		public void run(){
+			
+			if(isCurrent()){
+				
+				LOGGER.info(xStrings.getString("SearchPanel.dataUpdating")); 
+				
+				if(numberMode)
+					getPeopleFromNumber(term, partialMatch, this);
+				else
+					getPeopleFromName(term, partialMatch, this);
+				
+				if(isCurrent())
+					flush();
+				
+				LOGGER.info(xStrings.getString("SearchPanel.dataUpdated")); 
+				
+			}
+			
+		}
+		
+	}
 
 }
@@ -6,8 +6,6 @@ import java.awt.Font;
 import java.awt.event.MouseEvent;
 import java.awt.event.MouseListener;
 import java.net.URL;
-import java.util.Timer;
-import java.util.TimerTask;
 import java.util.Vector;
 import java.util.logging.Logger;
 
@@ -23,10 +21,13 @@ import org.jivesoftware.smack.XMPPException;
 import org.jivesoftware.smackx.muc.MultiUserChat;
 
 import com.github.waynemerricks.asteriskphone.callinput.CallerUpdater;
+import com.github.waynemerricks.asteriskphone.protocol.ControlMessage;
+import com.github.waynemerricks.asteriskphone.protocol.ControlMessageCodec;
+import com.github.waynemerricks.asteriskphone.protocol.Opcode;
 import com.github.waynemerricks.asteriskphone.records.Person;
 import com.github.waynemerricks.asteriskphone.records.PhoneCall;
 
-public class CallInfoPanel extends JPanel implements MouseListener{
+public class CallInfoPanel extends JPanel implements MouseListener, PanelClock.Tickable {
 
 	/** STATICS **/
 	private static final long serialVersionUID = 1L;
@@ -45,16 +46,16 @@ public class CallInfoPanel extends JPanel implements MouseListener{
 	 * 4 = Queued
 	 * 5 = On Air
 	 */
-	public static final int MODE_RINGING = 1;
-	public static final int MODE_ANSWERED = 2;
-	public static final int MODE_ANSWERED_ELSEWHERE = 3;
-	public static final int MODE_QUEUED = 4;
-	public static final int MODE_ON_AIR = 5;
-	public static final int MODE_RINGING_ME = 6;
-	public static final int MODE_QUEUED_ME = 7;
-	public static final int MODE_ANSWERED_ME = 8;
+	public static final int MODE_RINGING = CallState.MODE_RINGING;
+	public static final int MODE_ANSWERED = CallState.MODE_ANSWERED;
+	public static final int MODE_ANSWERED_ELSEWHERE = CallState.MODE_ANSWERED_ELSEWHERE;
+	public static final int MODE_QUEUED = CallState.MODE_QUEUED;
+	public static final int MODE_ON_AIR = CallState.MODE_ON_AIR;
+	public static final int MODE_RINGING_ME = CallState.MODE_RINGING_ME;
+	public static final int MODE_QUEUED_ME = CallState.MODE_QUEUED_ME;
+	public static final int MODE_ANSWERED_ME = CallState.MODE_ANSWERED_ME;
 	public static final int MODE_CLICKED = -1;
-	public static final int MODE_ON_AIR_ME = 9;
+	public static final int MODE_ON_AIR_ME = CallState.MODE_ON_AIR_ME;
 	
 	//Colours of the different modes
 	private static final Color RINGING_COLOUR = new Color(99, 169, 219);//Blue
@@ -67,6 +68,7 @@ public class CallInfoPanel extends JPanel implements MouseListener{
 	private static final Color ON_AIR_COLOUR = new Color(227, 91, 91);//Red ish
 	private static final Color ON_AIR_ME_COLOUR = new Color(152, 27, 27);//Dark Red ish
 	private static final Color CLICKED_COLOUR = new Color(234, 223, 39); //Yellow
+	private static final long RINGING_PERIOD = 750; //ms between ringing flashes
 	
 	private static final Logger LOGGER = Logger.getLogger(CallInfoPanel.class.getName());//Logger
 	
@@ -74,8 +76,8 @@ public class CallInfoPanel extends JPanel implements MouseListener{
 	private I18NStrings xStrings;
 	private int mode, modeWhenClicked;
 	private Color defaultColour;
-	private Timer ringingTimer;
-	private TimerTask ringingTask;
+	private volatile Color ringingColour = null; //null when not ringing
+	private volatile long ringingStarted;
 	private MultiUserChat controlRoom;
 	private String channelID, myExtension, myNickName, originator; 
 	private boolean hangupActive, canTakeCall, outgoing = false, manualCall = false;
@@ -115,7 +117,6 @@ public class CallInfoPanel extends JPanel implements MouseListener{
 		xStrings = new I18NStrings(language, country);
 		
 		defaultColour = this.getBackground();
-		ringingTimer = new Timer("ringingTimer:" + channelID); 
 		this.channelID = channelID;
 		
 		this.hangupActive = hangupActive;
@@ -381,39 +382,12 @@ public class CallInfoPanel extends JPanel implements MouseListener{
 			if(reset)
 				timeLabel.resetStageTime(); //Reset Stage Time
 			
-			final String connected = connectedTo;
-			ringingTask = new TimerTask(){//Setup new ringing animation
-				
-				public void run(){
-					
-					setRingingMe(null, false);
-					
-					if(connected != null)
-						connectedToLabel.setText(connected);
-					
-				}
-				
-			};
-		
-			ringingTimer.schedule(ringingTask, 750, 750);
+			startRinging(RINGING_ME_COLOUR, connectedTo);
 			
 		}
 		
 		mode = MODE_RINGING_ME;
 		
-		SwingUtilities.invokeLater(new Runnable(){
-			
-			public void run(){
-				
-				if(getBackground() == defaultColour)
-					setBackground(RINGING_ME_COLOUR);
-				else
-					setBackground(defaultColour);
-				
-			}
-			
-		});
-		
 	}
 	
 	/**
@@ -428,34 +402,32 @@ public class CallInfoPanel extends JPanel implements MouseListener{
 			if(reset)
 				timeLabel.resetStageTime(); //Reset Stage Time
 			
-			final String connected = connectedTo;
-			ringingTask = new TimerTask(){//Setup new ringing animation
-				
-				public void run(){
-					
-					setRinging(null, false);
-					
-					if(connected != null)
-						connectedToLabel.setText(connected);
-					
-				}
-				
-			};
-		
-			ringingTimer.schedule(ringingTask, 750, 750);
-		
+			startRinging(RINGING_COLOUR, connectedTo);
+			
 		}
 		
 		mode = MODE_RINGING;
 		
+	}
+	
+	/**
+	 * Starts the ringing animation, the shared PanelClock flashes the background
+	 * @param colour colour to flash
+	 * @param connectedTo String to put in connectedTo label or null to leave it
+	 */
+	private void startRinging(final Color colour, final String connectedTo){
+		
+		ringingStarted = System.currentTimeMillis();
+		ringingColour = colour;
+		
 		SwingUtilities.invokeLater(new Runnable(){
 			
 			public void run(){
 				
-				if(getBackground() == defaultColour)
-					setBackground(RINGING_COLOUR);
-				else
-					setBackground(defaultColour);
+				setBackground(colour);
+				
+				if(connectedTo != null)
+					connectedToLabel.setText(connectedTo);
 				
 			}
 			
@@ -463,6 +435,51 @@ public class CallInfoPanel extends JPanel implements MouseListener{
 		
 	}
 	
+	/**
+	 * Stops the ringing animation, whatever mode we change to sets the background
+	 */
+	private void stopRinging(){
+		
+		ringingColour = null;
+		
+	}
+	
+	/**
+	 * Called by the PanelClock on the EDT, flashes the background while ringing
+	 */
+	@Override
+	public void tick(long now){
+		
+		Color colour = ringingColour;
+		
+		if(colour != null){
+			
+			if(((now - ringingStarted) / RINGING_PERIOD) % 2 == 1)
+				colour = defaultColour;
+			
+			if(getBackground() != colour)
+				setBackground(colour);
+			
+		}
+		
+	}
+	
+	@Override
+	public void addNotify(){
+		
+		super.addNotify();
+		PanelClock.getClock().add(this);
+		
+	}
+	
+	@Override
+	public void removeNotify(){
+		
+		PanelClock.getClock().remove(this);
+		super.removeNotify();
+		
+	}
+	
 	/**
 	 * Sets this panel to clicked mode
 	 * This indicates to the user that something is happening
@@ -476,7 +493,7 @@ public class CallInfoPanel extends JPanel implements MouseListener{
 		modeWhenClicked = mode;
 		
 		if(mode == MODE_RINGING || mode == MODE_RINGING_ME)
-			ringingTask.cancel();
+			stopRinging();
 		
 		mode = MODE_CLICKED;
 		
@@ -509,7 +526,7 @@ public class CallInfoPanel extends JPanel implements MouseListener{
 	public void setAnswered(boolean reset){
 		
 		if(mode == MODE_RINGING || mode == MODE_RINGING_ME)
-			ringingTask.cancel();
+			stopRinging();
 		
 		mode = MODE_ANSWERED;
 		
@@ -538,7 +555,7 @@ public class CallInfoPanel extends JPanel implements MouseListener{
 	public void setAnsweredMe(String answeredBy, boolean reset){
 		
 		if(mode == MODE_RINGING || mode == MODE_RINGING_ME)
-			ringingTask.cancel();
+			stopRinging();
 		
 		mode = MODE_ANSWERED_ME;
 		
@@ -572,7 +589,7 @@ public class CallInfoPanel extends JPanel implements MouseListener{
 	private void setAnsweredElseWhere(){
 		
 		if(mode == MODE_RINGING || mode == MODE_RINGING_ME)
-			ringingTask.cancel();
+			stopRinging();
 		
 		/*
 		 * Only reset to AnsweredElseWhere if we're still in the clicked state
@@ -604,7 +621,7 @@ public class CallInfoPanel extends JPanel implements MouseListener{
 	public void setAnsweredElseWhere(String answeredBy, boolean reset){
 		
 		if(mode == MODE_RINGING || mode == MODE_RINGING_ME)
-			ringingTask.cancel();
+			stopRinging();
 		
 		mode = MODE_ANSWERED_ELSEWHERE;
 		
@@ -647,7 +664,7 @@ public class CallInfoPanel extends JPanel implements MouseListener{
 	public void setQueued(boolean reset){
 		
 		if(mode == MODE_RINGING || mode == MODE_RINGING_ME)
-			ringingTask.cancel();
+			stopRinging();
 		
 		mode = MODE_QUEUED;
 		
@@ -673,7 +690,7 @@ public class CallInfoPanel extends JPanel implements MouseListener{
 	public void setQueuedMe(boolean reset){
 		
 		if(mode == MODE_RINGING || mode == MODE_RINGING_ME)
-			ringingTask.cancel();
+			stopRinging();
 		
 		mode = MODE_QUEUED_ME;
 		
@@ -698,7 +715,7 @@ public class CallInfoPanel extends JPanel implements MouseListener{
 	public void setOnAir(String studioName){
 		
 		if(mode == MODE_RINGING || mode == MODE_RINGING_ME)
-			ringingTask.cancel();
+			stopRinging();
 		
 		mode = MODE_ON_AIR;
 		timeLabel.resetStageTime();
@@ -726,7 +743,7 @@ public class CallInfoPanel extends JPanel implements MouseListener{
 	public void setOnAirMe(String studioName, boolean reset){
 		
 		if(mode == MODE_RINGING || mode == MODE_RINGING_ME)
-			ringingTask.cancel();
+			stopRinging();
 		
 		mode = MODE_ON_AIR_ME;
 		
@@ -859,21 +876,20 @@ public class CallInfoPanel extends JPanel implements MouseListener{
 		
 		if(controlRoom != null){
 			
-			String message = null;
+			ControlMessage message = null;
 			
 			if(messageMode == MODE_RINGING || messageMode == MODE_QUEUED){
 				
 				if(hangupActive){//Hang Up RINGING or QUEUED CALL
 					
-					message = xStrings.getString("calls.hangup") + "/" + channelID;  
+					message = new ControlMessage(Opcode.HANGUP, channelID);  
 					hangupActive = false;
 					LOGGER.info(xStrings.getString("CallInfoPanel.requestHangupCall")  
 							+ channelID);
 					notifyManualHangupListeners();
 					
 				}else{//Transfer the call to my phone (aka Answer it)
-					message = xStrings.getString("calls.transfer") + "/" + channelID + "/"    
-									+ myExtension;
+					message = new ControlMessage(Opcode.TRANSFER, channelID, myExtension);
 					LOGGER.info(xStrings.getString("CallInfoPanel.requestTransferCall") 
 							+ channelID + "/" + myExtension); 
 				}
@@ -882,7 +898,7 @@ public class CallInfoPanel extends JPanel implements MouseListener{
 				
 				if(hangupActive){//Hangup Call RINGING ME or QUEUED ME or ON AIR ME or ANSWERED ME
 					
-					message = xStrings.getString("calls.hangup") + "/" + channelID;  
+					message = new ControlMessage(Opcode.HANGUP, channelID);  
 					hangupActive = false;
 					LOGGER.info(xStrings.getString("CallInfoPanel.requestHangupCall")  
 							+ channelID);
@@ -934,14 +950,14 @@ public class CallInfoPanel extends JPanel implements MouseListener{
 				
 				if(hangupActive || manualCall){//Hangup an ANSWERED call or a manual call by clicking
 					
-					message = xStrings.getString("calls.hangup") + "/" + channelID;  
+					message = new ControlMessage(Opcode.HANGUP, channelID);  
 					hangupActive = false;
 					LOGGER.info(xStrings.getString("CallInfoPanel.requestHangupCall")  
 							+ channelID);
 					notifyManualHangupListeners();
 					
 				}else{//Transfer this call to QUEUE
-					message = xStrings.getString("calls.queue") + "/" + channelID;  
+					message = new ControlMessage(Opcode.QUEUE, channelID);  
 					LOGGER.info(xStrings.getString("CallInfoPanel.requestQueueCall") 
 							+ channelID + "/" + myExtension); 
 				}
@@ -952,15 +968,14 @@ public class CallInfoPanel extends JPanel implements MouseListener{
 					
 					if(hangupActive){
 						
-						message = xStrings.getString("calls.hangup") + "/" + channelID;   
+						message = new ControlMessage(Opcode.HANGUP, channelID);   
 						hangupActive = false;
 						LOGGER.info(xStrings.getString("CallInfoPanel.requestHangupCallOther")  
 								+ channelID);
 						notifyManualHangupListeners();
 						
 					}else{
-						message = xStrings.getString("calls.transfer") + "/" + channelID  
-									+ "/" + myExtension; 
+						message = new ControlMessage(Opcode.TRANSFER, channelID, myExtension);
 						LOGGER.info(xStrings.getString(
 								"CallInfoPanel.requestTransferCallOther") 
 								+ channelID + "/" + myExtension); 
@@ -982,7 +997,7 @@ public class CallInfoPanel extends JPanel implements MouseListener{
 			
 			if(message != null)
 				try {
-					controlRoom.sendMessage(message);
+					controlRoom.sendMessage(ControlMessageCodec.encode(message));
 				} catch (XMPPException e) {
 					LOGGER.severe(xStrings.getString("CallInfoPanel.errorSendingControlMessage")); 
 				}
@@ -1097,14 +1112,14 @@ public class CallInfoPanel extends JPanel implements MouseListener{
 	 */
 	public void hangup(){
 	
-		String message = xStrings.getString("calls.hangup") + "/" + channelID;  
+		ControlMessage message = new ControlMessage(Opcode.HANGUP, channelID);
 		hangupActive = false;
 		LOGGER.info(xStrings.getString("CallInfoPanel.requestHangupCall")  
 				+ channelID);
 		notifyManualHangupListeners();
 		
 		try {
-			controlRoom.sendMessage(message);
+			controlRoom.sendMessage(ControlMessageCodec.encode(message));
 		} catch (XMPPException e) {
 			LOGGER.severe(xStrings.getString("CallInfoPanel.errorSendingControlMessage")); 
 		}
@@ -1147,9 +1162,6 @@ public class CallInfoPanel extends JPanel implements MouseListener{
 		
 		conversationLabel.setText(text);
 		
-		if(text.contains("/")) 
-			text = text.replaceAll("/", "^^%%$$");  
-		
 		//Update Others
 		if(updateOthers)
 			sendCallerUpdated("conversation", text); 
@@ -1261,6 +1273,8 @@ public class CallInfoPanel extends JPanel implements MouseListener{
 		 */
 		if(modeWhenClicked == MODE_RINGING)
 			setRinging(null, false);
+		else if(modeWhenClicked == MODE_RINGING_ME)
+			setRingingMe(null, false);
 		else{
 			
 			mode = modeWhenClicked;
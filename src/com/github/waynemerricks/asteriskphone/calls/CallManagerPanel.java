@@ -4,15 +4,22 @@ import java.awt.Component;
 import java.awt.event.MouseEvent;
 import java.awt.event.MouseListener;
 import java.net.URL;
+import java.sql.Connection;
+import java.sql.SQLException;
 import java.util.ArrayList;
 //import java.math.BigDecimal;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Random;
 import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.logging.Logger;
@@ -35,17 +42,23 @@ import org.jivesoftware.smack.packet.Packet;
 import org.jivesoftware.smackx.muc.MultiUserChat;
 
 import com.github.waynemerricks.asteriskphone.callinput.CallerUpdater;
+import com.github.waynemerricks.asteriskphone.callinput.PersonSearchIndex;
 import com.github.waynemerricks.asteriskphone.database.DatabaseManager;
 import com.github.waynemerricks.asteriskphone.launcher.Client;
 import com.github.waynemerricks.asteriskphone.misc.CountryCodes;
 import com.github.waynemerricks.asteriskphone.misc.LastActionTimer;
 import com.github.waynemerricks.asteriskphone.misc.PhoneRinger;
+import com.github.waynemerricks.asteriskphone.protocol.ControlMessage;
+import com.github.waynemerricks.asteriskphone.protocol.ControlMessageCodec;
+import com.github.waynemerricks.asteriskphone.protocol.Opcode;
+import com.github.waynemerricks.asteriskphone.protocol.StateSnapshot;
+import com.github.waynemerricks.asteriskphone.records.CallerRecord;
 import com.github.waynemerricks.asteriskphone.records.Person;
 import com.github.waynemerricks.asteriskphone.records.PhoneCall;
 
 public class CallManagerPanel extends JPanel implements PacketListener, MouseListener, 
 									LastActionTimer, ChatManagerListener, MessageListener,
-									ManualHangupListener, DialListener {
+									ManualHangupListener, DialListener, CallStateListener {
 
 	/** STATICS */
 	private static final long serialVersionUID = 1L;
@@ -56,22 +69,42 @@ public class CallManagerPanel extends JPanel implements PacketListener, MouseLis
 	private I18NStrings xStrings;
 	private String country, language;
 	private CountryCodes countries;
-	private HashMap<String, CallInfoPanel> callPanels = new HashMap<String, CallInfoPanel>();
+	private ConcurrentHashMap<String, CallInfoPanel> callPanels = 
+			new ConcurrentHashMap<String, CallInfoPanel>();
+	private CallStateEngine callState;
 	//private HashMap<String, EndPointRecord> endPoints = new HashMap<String, EndPointRecord>();
 	private DatabaseManager database;
 	private HashMap<String, String> settings;
-	private HashMap<String, String> studioExtensions = new HashMap<String, String>();
 	private long lastActionTime = new Date().getTime();
-	private HashMap<String, String> userExtensions = new HashMap<String, String>();
-	private HashSet<String> systemExtensions = new HashSet<String>();
 	private boolean dropMode = false;
 	private Vector<ManualHangupListener> hangupListeners = new Vector<ManualHangupListener>();
 	private DialPanel dialler = null;
 	private Vector<AnswerListener> answerListeners = new Vector<AnswerListener>();
 	private CallerUpdater updateCallerThread = null;
+	private PersonSearchIndex searchIndex;
 	private CallInfoPanel storedAnsweredPanel = null;
 	private PhoneRinger ringer = null;
 	private ArrayList<String> ringingChannels = new ArrayList<String>();
+	
+	/* CALLER messages the server sends ahead of QUEUE, used instead of looking the
+	 * caller up in the DB ourselves.  Capped in case we miss the QUEUE/HANGUP */
+	private static final int MAX_CALLER_RECORDS = 100;
+	private Map<String, ControlMessage> callerRecords = Collections.synchronizedMap(
+			new LinkedHashMap<String, ControlMessage>(){
+				private static final long serialVersionUID = 1L;
+				protected boolean removeEldestEntry(Map.Entry<String, ControlMessage> eldest){
+					return size() > MAX_CALLER_RECORDS;
+				}
+			});
+	
+	/* Server state sync, control room messages from the server are sequenced, if we
+	 * miss one we ask for a new snapshot and ignore anything the snapshot covers */
+	private StateSnapshot.Assembler snapshot = new StateSnapshot.Assembler();
+	private final Object syncLock = new Object();
+	private long syncEpoch = -1, lastSequence = -1;
+	private boolean awaitingSnapshot = false;
+	//Calls added/changed while waiting, they may be newer than the snapshot so are kept
+	private HashSet<String> changedSinceRequest = new HashSet<String>();
 
 	/* We need to spawn threads for event response with db lookups, in order to guard 
 	 * against craziness, we'll use the ExecutorService to have X threads available 
@@ -101,7 +134,8 @@ public class CallManagerPanel extends JPanel implements PacketListener, MouseLis
 		dbLookUpService = Executors.newFixedThreadPool(maxExecutorThreads);
 		this.database = database;
 		
-		populateStudioExtensions();
+		//Start loading the person search index now so it's ready for the SearchPanel
+		searchIndex = PersonSearchIndex.getIndex(database, language, country);
 		
 		this.setLayout(new MigLayout(new LC().fillX()));
 		this.addMouseListener(this);
@@ -109,9 +143,10 @@ public class CallManagerPanel extends JPanel implements PacketListener, MouseLis
 		//Add Private Chat Listener
 		connection.getChatManager().addChatListener(this);
 		
-		//Store a copy of all the system extensions so we can decide what calls we need
-		//to handle
-		systemExtensions = database.getSystemExtensions();
+		//Call state is kept by the engine using the system extensions to decide what
+		//calls we need to handle, we just show it
+		callState = new CallStateEngine(settings, database.getSystemExtensions());
+		callState.addListener(this);
 		
 		//Setup a ringer so we can play ringing noises for calls
 		if(settings.get("playRinging") != null &&
@@ -141,8 +176,8 @@ public class CallManagerPanel extends JPanel implements PacketListener, MouseLis
 		
 		try {
 			
-			controlRoom.sendMessage(xStrings.getString("calls.manual") + "/"
-					+ settings.get("nickName"));
+			controlRoom.sendMessage(ControlMessageCodec.encode(new ControlMessage(
+					Opcode.MANUAL, settings.get("nickName"))));
 			
 		} catch (XMPPException e) {
 			
@@ -178,8 +213,8 @@ public class CallManagerPanel extends JPanel implements PacketListener, MouseLis
 	/*private void sendSetActivePersonOnChannel(String channel, int activePerson){
 		
 		try {
-			controlRoom.sendMessage(xStrings.getString("CallManagerPanel.changeActive") +  
-					"/" + channel + "/" + activePerson);  
+			controlRoom.sendMessage(ControlMessageCodec.encode(new ControlMessage(
+					Opcode.CHANGEACTIVE, channel, "" + activePerson)));
 		} catch (XMPPException e) {
 			LOGGER.severe(xStrings.getString("CallManagerPanel.errorSendingChangeActive")); 
 			showWarning(xStrings.getString("CallManagerPanel.errorSendingChangeActive")); 
@@ -188,55 +223,32 @@ public class CallManagerPanel extends JPanel implements PacketListener, MouseLis
 	}*/
 	
 	/**
-	 * Sends an UPDATE command to the control room
+	 * Sends an UPDATE command to the control room asking for a snapshot of the 
+	 * current calls
 	 */
 	public void sendUpdateRequest(){
 		
 		try {
-			controlRoom.sendMessage(xStrings.getString("CallManagerPanel.commandUpdate") +  
-					"/" + settings.get("myExtension"));  
-		} catch (XMPPException e) {
-			LOGGER.severe(xStrings.getString("CallManagerPanel.errorSendingUpdateCommand")); 
-			showWarning(xStrings.getString("CallManagerPanel.errorSendingUpdateCommand")); 
-		}
-		
-	}
-	
-	/**
-	 * Internal method, reads studioExtensions from db and separates them into a hashmap
-	 * [extension] => [name]
-	 */
-	private void populateStudioExtensions(){
-		
-		//Parse Studio Extensions
-		if(settings.get("studioExtensions") != null){ 
 			
-			if(settings.get("studioExtensions").contains(",")){  
-				
-				String[] studios = settings.get("studioExtensions").split(",");  
-				
-				for(int i = 0; i < studios.length; i++){
-				
-					if(studios[i].contains("=>")){ 
-						
-						String[] temp = studios[i].split("=>"); 
-						
-						if(temp.length == 2)
-							studioExtensions.put(temp[0], temp[1]);
-						
-					}
-					
-				}
-				
-			}else if(settings.get("studioExtensions").contains("=>")){  
+			Message update = controlRoom.createMessage();
+			update.setBody(ControlMessageCodec.encode(new ControlMessage(
+					Opcode.UPDATE, settings.get("myExtension"))));
+			StateSnapshot.request(update);
 			
-				String[] temp = settings.get("studioExtensions").split("=>");  
+			synchronized(syncLock){
 				
-				if(temp.length == 2)
-					studioExtensions.put(temp[0], temp[1]);
+				if(!awaitingSnapshot)
+					changedSinceRequest.clear();
 				
-			}
+				awaitingSnapshot = true;
 				
+			}
+			
+			controlRoom.sendMessage(update);
+			
+		} catch (XMPPException e) {
+			LOGGER.severe(xStrings.getString("CallManagerPanel.errorSendingUpdateCommand")); 
+			showWarning(xStrings.getString("CallManagerPanel.errorSendingUpdateCommand")); 
 		}
 		
 	}
@@ -244,13 +256,12 @@ public class CallManagerPanel extends JPanel implements PacketListener, MouseLis
 	/**
 	 * Helper method to create a call info panel and then spawn a thread to grab details
 	 * from the DB (via standard Executor)
-	 * @param phoneNumber phoneNumber of the call
-	 * @param channelID channel id of the call
-	 * @param mode Panel Mode to set the initial state to
-	 * @param connectedTo Name or extension this panel is connected to
+	 * @param state call the engine has added
 	 */
-	private void createSkeletonCallInfoPanel(String phoneNumber, String channelID, int mode,
-			String connectedTo, long creationTime){
+	private void createSkeletonCallInfoPanel(CallState state){
+		
+		String phoneNumber = state.getNumber();
+		String channelID = state.getChannelID();
 		
 		/* If Ringing, add to ringing channels array
 		 * We also have an edge case where connected calls to our phone can be 
@@ -259,16 +270,16 @@ public class CallManagerPanel extends JPanel implements PacketListener, MouseLis
 		 */
 		if(ringer != null){
 			
-			if(mode == CallInfoPanel.MODE_RINGING)
+			if(state.getMode() == CallState.MODE_RINGING)
 				startRinging(channelID);
-			else if(mode == CallInfoPanel.MODE_ANSWERED)
+			else if(state.getMode() == CallState.MODE_ANSWERED)
 				stopRinging(channelID);
 			
 		}
 					
 		String location = null;
 		LOGGER.info(xStrings.getString("CallManagerPanel.createSkeletonCallPanel") + 
-				phoneNumber + "/" + channelID + "/" + mode);  
+				phoneNumber + "/" + channelID + "/" + state.getMode());  
 		
 		if(phoneNumber.equals(xStrings.getString("CallManagerPanel.numberWithHeld"))) 
 			location = xStrings.getString("CallManagerPanel.locationUnknown"); 
@@ -309,47 +320,15 @@ public class CallManagerPanel extends JPanel implements PacketListener, MouseLis
 				dropMode, canTake, controlRoom, settings.get("myExtension"),
 				settings.get("nickName"), timezoneOffset, null);
 		
-		//Set the creation time as required
-		if(creationTime != -1)
-			call.setCallCreationTime(creationTime);
+		call.setCallCreationTime(state.getCreationTime());
+		call.setOriginator(state.getOriginator());
 		
-		//Lookup ConnectedTo if we have an entry in the userExtensions map swap to this name
-		String friendlyConnected = ""; 
+		//Set Queue Badge
+		if(state.getQueue() != null && 
+				settings.get("queue_" + state.getQueue() + "_icon") != null)  
+			call.getIconPanel().setBadgeIcon(settings.get("queue_" + state.getQueue() + "_icon"));  
 		
-		if(userExtensions.get(connectedTo) != null)
-			friendlyConnected = userExtensions.get(connectedTo);
-		
-		switch(mode){
-		
-			case CallInfoPanel.MODE_RINGING:
-				call.setRinging(friendlyConnected, true);
-				break;
-			case CallInfoPanel.MODE_RINGING_ME:
-				call.setRingingMe(phoneNumber, true);//FIX Outgoing Call needs dialling number here
-				break;
-			case CallInfoPanel.MODE_ANSWERED:
-				call.setAnswered(true);
-				break;
-			case CallInfoPanel.MODE_ANSWERED_ME:
-				call.setAnsweredMe(friendlyConnected, true);
-				break;
-			case CallInfoPanel.MODE_ANSWERED_ELSEWHERE:
-				call.setAnsweredElseWhere(friendlyConnected, true);
-				break;
-			case CallInfoPanel.MODE_QUEUED:
-				call.setQueued(true);
-				break;
-			case CallInfoPanel.MODE_QUEUED_ME:
-				call.setQueuedMe(true);
-				break;
-			case CallInfoPanel.MODE_ON_AIR:
-				call.setOnAir(connectedTo);
-				break;
-			case CallInfoPanel.MODE_ON_AIR_ME:
-				call.setOnAirMe(friendlyConnected, true);
-				break;
-				
-		}
+		setPanelMode(call, state);
 		
 		call.setUpdaterThread(updateCallerThread);
 		call.addManualHangupListener(this);
@@ -378,7 +357,7 @@ public class CallManagerPanel extends JPanel implements PacketListener, MouseLis
 		
 			dbLookUpService.execute(
 				new InfoPanelPopulator(database, call, phoneNumber, channelID, 
-						location));
+						location, callerRecords.remove(channelID)));
 		
 	}
 	
@@ -393,25 +372,116 @@ public class CallManagerPanel extends JPanel implements PacketListener, MouseLis
 	}
 	
 	/**
-	 * Internal method that checks if the given extension belongs to a studio
-	 * @param extension
-	 * @return true if it is a studio extension
+	 * Sets the panel to the mode and connected to of the given call
+	 * @param call panel to set
+	 * @param state call to match
 	 */
-	private boolean isStudioExtension(String extension){
+	private void setPanelMode(CallInfoPanel call, CallState state){
 		
-		boolean isStudio = false;
+		switch(state.getMode()){
 		
-		if(studioExtensions.get(extension) != null)
-			isStudio = true;
+			case CallState.MODE_RINGING:
+				call.setRinging(state.getConnectedTo(), true);
+				break;
+			case CallState.MODE_RINGING_ME:
+				call.setRingingMe(state.getConnectedTo(), true);
+				break;
+			case CallState.MODE_ANSWERED:
+				call.setAnswered(true);
+				break;
+			case CallState.MODE_ANSWERED_ME:
+				call.setAnsweredMe(state.getConnectedTo(), true);
+				break;
+			case CallState.MODE_ANSWERED_ELSEWHERE:
+				call.setAnsweredElseWhere(state.getConnectedTo(), true);
+				break;
+			case CallState.MODE_QUEUED:
+				call.setQueued(true);
+				break;
+			case CallState.MODE_QUEUED_ME:
+				call.setQueuedMe(true);
+				break;
+			case CallState.MODE_ON_AIR:
+				call.setOnAir(state.getConnectedTo());
+				break;
+			case CallState.MODE_ON_AIR_ME:
+				call.setOnAirMe(state.getConnectedTo(), true);
+				break;
+				
+		}
+		
+	}
+	
+	/* CALL STATE LISTENER */
+	@Override
+	public void callAdded(CallState call){
+		
+		changedWhileAwaiting(call);
+		createSkeletonCallInfoPanel(call);
+		
+	}
+	
+	@Override
+	public void callChanged(CallState previous, CallState call){
+		
+		changedWhileAwaiting(call);
+		
+		//Turn off ringing for this channel
+		if(previous.getMode() == CallState.MODE_RINGING)
+			stopRinging(call.getChannelID());
+		
+		//Only touch the panel if it doesn't already show this
+		CallInfoPanel panel = callPanels.get(call.getChannelID());
+		
+		if(panel != null && (panel.getMode() != call.getMode() || 
+				!previous.getConnectedTo().equals(call.getConnectedTo())))
+			setPanelMode(panel, call);
 		
-		return isStudio;
+	}
+	
+	/**
+	 * Remembers calls changed while we're waiting for a snapshot
+	 * @param call
+	 */
+	private void changedWhileAwaiting(CallState call){
+		
+		synchronized(syncLock){
+			
+			if(awaitingSnapshot)
+				changedSinceRequest.add(call.getChannelID());
+			
+		}
+		
+	}
+	
+	@Override
+	public void callRemoved(CallState call){
+		
+		//Turn off ringing for this channel (in case we get hang up with no answer)
+		stopRinging(call.getChannelID());
+		
+		CallInfoPanel panel = callPanels.get(call.getChannelID());
+		
+		//If this is our manual call being ended re-enable the add call button
+		if(panel != null && call.getChannelID().startsWith("M_") &&
+				panel.getModeWhenClicked() == CallInfoPanel.MODE_ANSWERED)
+			notifyManualListeners();
+		
+		removePanel(call.getChannelID());
+		
+	}
+	
+	@Override
+	public void callAnswered(CallState call){
+		
+		if(callPanels.get(call.getChannelID()) != null)
+			notifyListeners(callPanels.get(call.getChannelID()));
 		
 	}
 	
 	@Override
 	public void processPacket(Packet XMPPPacket) {
-		//TODO Break this out into own processing thread/class for readability
-		//TODO Encapsulate String.split into PhoneMessage class (getChannel etc)
+		
 		if(XMPPPacket instanceof Message){
 			
 			Message message = (Message)XMPPPacket;
@@ -427,682 +497,8 @@ public class CallManagerPanel extends JPanel implements PacketListener, MouseLis
 				LOGGER.info(xStrings.getString("CallManager.receivedMessage") + 
 						message.getBody()); 
 				
-				String[] command = message.getBody().split("/"); 
-				/*
-				 * Current Control Messages:
-				 * SEE Wiki
-				 */
-				
-				//RINGING - Can Ignore
-				
-				//CALL - Entry point to handler
-				if(command.length == 4 || command.length == 5){
-					
-					//Creation time here if command.length = 5
-					long creationTime = -1;
-					
-					if(command.length == 5)
-						creationTime = getCreationTime(command[4]);
-					
-					if(command[0].equals(xStrings.getString("CallManagerPanel.callRingingFrom"))){
-						//CALL/FROM/TO/CHANNEL
-						//Create a CallInfoPanel with skeleton details
-						if(callPanels.get(command[3]) == null){
-						
-							/*
-							 * Was too simplistic to use CALL/FROM/TO/CHANNEL as a way of determining
-							 * outside calls coming in.
-							 * 
-							 * Exception case: Call from system extension to an outside line you get:
-							 * CALL/1234/4444444/CHANNEL
-							 * 
-							 * What we want to happen is:
-							 * 
-							 * Check if call is from us and not another system extension and to outside
-							 * 		set the panel to answered
-							 * If call is from another system extension and to outside
-							 * 		set the panel to answered elsewhere
-							 * if call is internal from system to system carry on as normal but
-							 * 		set connected to as the person they're dialling
-							 */
-							if(systemExtensions.contains(command[1]) && 
-									systemExtensions.contains(command[2])){
-								
-								//Internal call amongst ourselves
-								int mode = CallInfoPanel.MODE_RINGING;
-								
-								if(isMyPhone(command[1])){
-									
-									mode = CallInfoPanel.MODE_RINGING_ME;
-									
-									if(isOnAirQueue(command[2]))
-										mode = CallInfoPanel.MODE_QUEUED_ME;
-									
-								}else if(isOnAirQueue(command[2]))
-									mode = CallInfoPanel.MODE_QUEUED;
-									
-								createSkeletonCallInfoPanel(command[1], command[3], 
-										mode, command[2], creationTime);
-									
-								callPanels.get(command[3]).setOriginator(command[1]);
-								
-							}else if(systemExtensions.contains(command[1]) && 
-									!systemExtensions.contains(command[2])){
-								
-								/* Call from our system to someone else
-								 * CALL/1234/4444444/1396477192.139
-							     */
-								int mode = CallInfoPanel.MODE_ANSWERED_ELSEWHERE;
-								
-								if(isMyPhone(command[1]))//Internal call to someone from me
-									mode = CallInfoPanel.MODE_RINGING_ME;
-								
-								createSkeletonCallInfoPanel(command[2], command[3], 
-									mode, command[1], 
-									creationTime);
-							
-								callPanels.get(command[3]).setOriginator(command[1]);
-								
-							}else if(!systemExtensions.contains(command[1]) && 
-									systemExtensions.contains(command[2])){
-								
-								//Outside call coming in
-								if(isIncomingQueue(command[2])){
-									
-									//Outside call coming into a queue as normal
-									createIncomingCall(command, creationTime);
-
-								}else if(isOnAirQueue(command[2])){
-									
-									//Outside call coming into a on air queue as normal
-									
-									/* TODO ENDPOINT Removed, check this functions as intended
-									 * After placing a call and transferring the endpoint, a new channel
-									 * is created and all the record information is lost as the channel
-									 * is different.
-									 * 
-									 * We need to check the endpoint records to see if we're expecting
-									 * a channel change and then point the record to the original call
-									 * channel
-									 */
-									/*if(endPoints.containsKey(command[1])){
-										
-										EndPointRecord updateMe = endPoints.get(command[1]);
-										endPoints.remove(command[2]);
-										
-										if(isMyPhone(command[2]))
-											createSkeletonCallInfoPanel(command[1], command[3], 
-													CallInfoPanel.MODE_QUEUED_ME, null, creationTime, updateMe);
-										else
-											createSkeletonCallInfoPanel(command[1], command[3], 
-													CallInfoPanel.MODE_QUEUED, null, creationTime, updateMe);
-										//TODO Creation time taken from original channel at point of transferendpoint?
-										
-									}else{*/
-										
-										//TODO Should we check for MODE_QUEUED_ME here?
-										createSkeletonCallInfoPanel(command[1], command[3], 
-												CallInfoPanel.MODE_QUEUED, null, creationTime);
-										
-									//}
-									
-									//Set Number and Queue Badge
-									callPanels.get(command[3]).setOriginator(command[1]);
-									
-									if(settings.get("queue_" + command[2] + "_icon") != null)  
-										callPanels.get(command[3]).getIconPanel().setBadgeIcon(settings.get("queue_" + command[2] + "_icon"));  
-									
-									
-								}else if(!command[1].equals(xStrings.getString("CallManagerPanel.callSystemUnknown"))){ 
-									
-									//Outside call coming direct to a phone TODO wasn't this UNKNOWN removed from server?
-									createSkeletonCallInfoPanel(command[1], command[3], 
-											CallInfoPanel.MODE_RINGING, command[2], creationTime);
-									callPanels.get(command[3]).setOriginator(command[1]);
-
-								}
-																
-							}
-							
-						}
-						
-					}else if(command[0].equals(xStrings.getString("CallManagerPanel.callQueued"))){ 
-					
-						//Call Added to QUEUE read queue number and act accordingly
-						if(command[1].equals(settings.get("incomingQueueNumber"))){ 
-							
-							//IncomingQueue
-							LOGGER.info(xStrings.getString("CallManagerPanel.CallIncomingQueue")); 
-							
-							/* 
-							 * Normally handled by CALL however depending on the trunk a CALL may have the following format:
-							 * CALL/person's phone number/trunk phone number that the person called/channel
-							 * 
-							 * In this case, CALL does not handle the call creation so we can do it here instead
-							 *
-							 * If channel not exists create call same as CALL outside to us
-							 *  
-							 */
-							if(callPanels.get(command[3]) == null){
-								
-								/* Normal command array at this point looks like this:
-								 * QUEUE/4000/012341523456/1452171951.10
-								 * 
-								 * In order for creation to lookup correctly we need to swap
-								 * to the CALL format which is this:
-								 * CALL/012345123456/441211231234/1452171951.10
-								 */
-								String[] temp = new String[4];
-								temp[0] = xStrings.getString("CallManagerPanel.callRingingFrom"); 
-								temp[1] = command[2];
-								temp[2] = command[1];
-								temp[3] = command[3];
-								
-								createIncomingCall(temp, creationTime);
-
-							}
-							
-						}else if(command[1].equals(settings.get("onAirQueueNumber"))){ 
-							
-							LOGGER.info(xStrings.getString("CallManagerPanel.CallOnAirQueue")); 
-							
-							//On Air Queue - This is a call going into the ready for on air / studio queue 4001
-							if(callPanels.get(command[3]) != null){
-								
-								//Already in our list so update
-								if(isMyPhone(command[2])){
-									callPanels.get(command[3]).setQueuedMe(true);
-									LOGGER.info(xStrings.getString("CallManagerPanel.setQueueMeMode")); 
-								}else{
-									callPanels.get(command[3]).setQueued(true);
-									LOGGER.info(xStrings.getString("CallManagerPanel.setQueueMode")); 
-								}
-								
-							}else{
-								
-								//Not in our list so create skeleton and spawn update thread
-								//queue, name, number, channel
-								if(isMyPhone(command[2]))
-									createSkeletonCallInfoPanel(command[2], command[3], 
-											CallInfoPanel.MODE_QUEUED_ME, null, -1);
-								else
-									createSkeletonCallInfoPanel(command[2], command[3], 
-											CallInfoPanel.MODE_QUEUED, null, -1);
-									
-							}
-							
-						}	
-						
-					}else if(command[0].equals(
-							xStrings.getString("CallManagerPanel.callConnected"))){ 
-						
-						//Turn off ringing for this channel
-						if(ringer != null)
-							stopRinging(command[3]);
-						
-						if(callPanels.get(command[3]) != null){
-							
-							//Connected to a panel that already exists
-							/* if 1st argument = myphone its my phone connecting to 
-							 * someone else */
-							if(isMyPhone(command[1])){
-								/* At this stage, check if my phone is on air */
-								if(isStudioExtension(command[2]))
-									callPanels.get(command[3]).setOnAirMe(
-											studioExtensions.get(command[2]), true);
-								else
-									callPanels.get(command[3]).setAnsweredMe(command[2], 
-											true);
-								
-								/* BUG FIX: Forgot to notify listeners that we'd answered something
-								 * This only occurs when we dial out
-								 */
-								//notifyListeners(callPanels.get(command[3]));
-								/* TODO Do we still need this?
-								 * Seems logically incorrect to notify a listener that our own call has
-								 * been answered to ourselves */
-								
-							/* if 2nd argument = myphone its a call I've answered */
-							}else if(isMyPhone(command[2])){
-								
-								callPanels.get(command[3]).setAnswered(true);
-								
-								/* This is us answering a call so we need to alert any 
-								 * listeners so that we can update the input panel as
-								 * required
-								 */
-								notifyListeners(callPanels.get(command[3]));
-								
-							/* Not my phone, if 1st argument = one of our extensions, its
-							 * an internal phone connected somewhere else
-							 */
-							}else if(systemExtensions.contains(command[1])){
-								
-								/* If 2nd argument is studio then internal call on air*/
-								if(isStudioExtension(command[2]))
-									callPanels.get(command[3]).setOnAir(
-											studioExtensions.get(command[2]));
-								else{
-									
-									/* Lookup the extension, if we have a reference
-									 * exchange the number for a friendly name e.g.
-									 * 5001 = Steve, if its null leave it as 5001
-									 */
-									String connectedTo = userExtensions.get(command[2]);
-									
-									if(connectedTo != null)
-										callPanels.get(command[3]).setAnsweredElseWhere(
-												connectedTo, true);
-									else
-										callPanels.get(command[3]).setAnsweredElseWhere(
-												command[2], true);
-								}
-								
-							}else if(systemExtensions.contains(command[2])){
-								
-								/* If second argument is a system extension, this is an
-								 * outside call coming in but not to my phone
-								 */
-								if(isStudioExtension(command[2]))
-									callPanels.get(command[3]).setOnAir(
-											studioExtensions.get(command[2]));
-								else{
-									
-									/* Lookup the extension, if we have a reference
-									 * exchange the number for a friendly name e.g.
-									 * 5001 = Steve, if its null leave it as 5001
-									 */
-									String connectedTo = userExtensions.get(command[2]);
-									
-									if(connectedTo != null)
-										callPanels.get(command[3]).setAnsweredElseWhere(
-												connectedTo, true);
-									else
-										callPanels.get(command[3]).setAnsweredElseWhere(
-												command[2], true);
-									
-								}
-								
-							}else{
-								
-								/* WMM 23/08/2014 Server will parse out outgoing callerid, probably
-								 * don't need this anymore TODO
-								 * Here we arrive in an odd state because neither number
-								 * is registering as any phone in the system.  However, when dialling out
-								 * the callerid is swapped to the outgoing caller id so a call that 
-								 * would start as:
-								 * 
-								 * 5002 -> 907886123456
-								 * 
-								 * Would become:
-								 * 
-								 * 01211234567 -> 907886123456
-								 * 
-								 * This channel obviously exists so we need to look at it, figure out
-								 * if its us and then set this as ANSWERED_ME
-								 */
-								if(isMyPhone(callPanels.get(command[3]).getOriginator())){ 
-									//ANSWERED_ME
-									callPanels.get(command[3]).setAnsweredMe(command[2], true);
-									
-									/* BUG FIX: Forgot to notify listeners that we'd answered something
-									 * This only occurs when we dial out
-									 */
-									notifyListeners(callPanels.get(command[3]));
-									
-								}else{
-									//ANSWERED_ELSEWHERE
-									callPanels.get(command[3]).setAnsweredElseWhere(command[2], true);
-								}
-								
-							}
-							
-						}else{
-							
-							//Not exists so check details in case something slipped through
-							if(!isMyPhone(command[1]) && !isMyPhone(command[2])){
-								//TODO
-								//This isn't us so someone connected to someone else
-								//Check if we're connected to someone who is monitored by this program
-								if(systemExtensions.contains(command[2])){
-									
-									/* If we have a panel that was spawned by CALL
-									 * and it was from command[2] then drop the original
-									 * panel 
-									 */
-									checkDialledCall(command[1]);
-									
-									//This is an outside call connecting to someone else
-									//Check to see if someone else = studio
-									if(!isStudioExtension(command[2]))
-										createSkeletonCallInfoPanel(command[1], command[3], 
-												CallInfoPanel.MODE_ANSWERED_ELSEWHERE, command[2], 
-												creationTime);
-									else{
-										
-										createSkeletonCallInfoPanel(command[1], command[3], 
-												CallInfoPanel.MODE_ON_AIR, 
-												studioExtensions.get(command[2]), 
-												creationTime);
-										
-									}
-									
-								}
-								//the caller is not me but the receiver is
-							}else if(!isMyPhone(command[1]) && isMyPhone(command[2])){
-								
-								/* Someone connected to us, most likely this is a second channel
-								 * for the receiver after we've dialled.
-								 * 
-								 * So check to see if we aren't already connected to this person
-								 * on another channel and if so we'll need to change the channelID
-								 * otherwise you lose conversation and call type as soon as the
-								 * call is put on hold under its own channelID
-								 */
-								
-								if(!isAlreadyConnected(command[1])){
-									
-									/* Don't have a panel for this AND caller is from an
-									 * internal or external phone
-									 */
-									createSkeletonCallInfoPanel(command[1], command[3],
-											CallInfoPanel.MODE_ANSWERED, null, creationTime);
-								
-									notifyListeners(callPanels.get(command[3]));
-									
-								}else{
-									
-									/* Need to drop original channel to reflect new
-									 * server behaviour 23/08/2014 WMM */
-									//CONNECTED/01234567890/5103/1408832327.787
-									String oldChannelID = getAlreadyConnectedChannel(command[1]);
-									
-									if(callPanels.get(oldChannelID) != null)
-										removePanel(oldChannelID);
-									
-									//Create new panel based on old outgoing call
-									createSkeletonCallInfoPanel(command[1], command[3],
-											CallInfoPanel.MODE_ANSWERED, command[2], creationTime);
-								
-									notifyListeners(callPanels.get(command[3]));
-									
-									/*Removed Old behaviour 23/08/2014
-									 * String oldChannelID = getAlreadyConnectedChannel(command[1]);
-									 * 
-									 * If already connected is an older channel then we 
-									 * dialled this channel so need to change the mode to 
-									 * an answered_me instead of generic answered
-									 * 
-									 *  BUG FIX can't use doubles as it won't pick up
-									 *  "1.407...E9" etc from callPanels
-									 *
-									
-									BigDecimal oldChannel = new BigDecimal(oldChannelID);
-									BigDecimal newChannel = new BigDecimal(command[3]);
-									
-									CallInfoPanel temp = callPanels.get(oldChannelID);
-									
-									if(oldChannel.compareTo(newChannel) == -1 &&
-											temp != null){
-										
-										/* Get the active person of the old channel ID because
-										 * When we swap to the new channel, the active person
-										 * won't be set and we'll lose info (and nullpointer)
-										 *//*
-										int activePerson = callPanels.get(oldChannelID).getPhoneCallRecord().getActivePerson().id;
-										sendSetActivePersonOnChannel(command[3], activePerson);
-										
-										callPanels.remove(temp.getChannelID());
-										temp.changeChannelID(command[3]);
-										callPanels.put(command[3], temp);
-										temp.setAnsweredMe(command[1], false);
-										notifyListeners(temp);
-										
-									}*/
-									
-								}
-								
-								//Caller is me and the receiver isn't
-							}else if(isMyPhone(command[1]) && !isMyPhone(command[2])){
-								
-								/* If we get here by normal control messages then this should 
-								 * be ignored
-								 * TODO We can't ignore this, if you dial out then reload program
-								 * you won't get any panel for this call
-								 */
-								
-							}
-							
-						}
-						//UPDATEFIELD
-					}else if(command[0].equals(xStrings.getString(
-							"CallManagerPanel.commandUpdateField"))){ 
-						//		0			1			2			3
-						//UPDATEFIELD/field mapping/channel id/field value
-						/*if(command[3].equals("<CLEAR>")) 
-							command[3] = ""; */
-						//Panel can be gone when update happens, check for exists first
-						if(callPanels.get(command[2]) != null){
-							
-							if(command[1].equals("name")){ 
-								callPanels.get(command[2]).setPhoneCallField(command[1], 
-										command[3].replace("^^%%$$", "/"),   
-										false);
-								callPanels.get(command[2]).setCallerName(
-										command[3].replace("^^%%$$", "/"), false);  
-							}else if(command[1].equals("location")){ 
-								callPanels.get(command[2]).setPhoneCallField(command[1], 
-										command[3].replace("^^%%$$", "/"),   
-										false);
-								callPanels.get(command[2]).setCallerLocation(command[3], false);
-							}else if(command[1].equals("conversation")){ 
-								callPanels.get(command[2]).setPhoneCallField(command[1], 
-										command[3].replace("^^%%$$", "/"),   
-										false);
-								callPanels.get(command[2]).setConversation(command[3], false);
-							}else if(command[1].equals("alert")){ 
-								
-								String[] temp = command[3].split("@@"); 
-								
-								try{
-									int level = Integer.parseInt(temp[1]);
-									callPanels.get(command[2]).setAlertLevel(null, level, false);
-								}catch(NumberFormatException e){
-									callPanels.get(command[2]).setAlertLevel(null,
-											temp[1].replace("+", "/"), false);  
-								}
-								
-								callPanels.get(command[2]).setPhoneCallField("alert", 
-										temp[0], false);
-								
-							}else if(command[1].equals("calltype")){ 
-								
-								//Split the image from the value:
-								String[] temp = command[3].replace("+", "/").split("@@"); 
-								callPanels.get(command[2]).setBadgeIcon(null,
-											temp[1], false);  
-								//Set the record call type
-								callPanels.get(command[2]).setPhoneCallField("calltype",  
-										temp[0], false);
-							}else{
-								
-								//Custom Field
-								callPanels.get(command[2]).setPhoneCallField(command[1], 
-										command[3].replace("^^%%$$", "/"),   
-										false);
-								
-							}
-						
-						}
-					}else if(command.length == 4 &&
-							command[0].equals(xStrings.getString("CallManagerPanel.endPoint"))){ 
-						
-						//Store endpoint and extension here then act on it in subsequent queue message
-						//ENDPOINT/1397214684.388/1397214684.391/9901234567890
-						//ENDPOINT/dialler ch    /receiver ch   /receiver clid
-						//endPoints.put(command[3], new EndPointRecord(command[1], command[2], command[3]));
-						//TODO Check removal is OK
-						
-					}
-					
-				}else if(command.length == 3 && 
-						command[0].startsWith(xStrings.getString("CallManagerPanel.callHangup"))){ 
-					
-					//Call Hangup received
-					LOGGER.info(
-							xStrings.getString("CallManagerPanel.removingPanelHangupReceived") +  
-									command[2]);
-					
-					//Turn off ringing for this channel (in case we get hang up with no answer)
-					if(ringer != null)
-						stopRinging(command[2]);
-					
-					//Check to see if we have the panel in the list and remove it
-					if(callPanels.get(command[2]) != null){
-						
-						//If this is our manual call being ended re-enable the add call button
-						if(command[2].startsWith("M_") &&
-								callPanels.get(command[2]).getModeWhenClicked() ==
-								CallInfoPanel.MODE_ANSWERED)
-							notifyManualListeners();
-
-						removePanel(command[2]);
-						
-					}
-					
-				}else if(command.length == 3 &&
-						command[0].equals(xStrings.getString("CallManagerPanel.callTransfer"))){ 
-					
-					//Transfer from another user, add their name to our extensions list
-					userExtensions.put(command[2], from);
-					
-					//Stop ringing it transferred to someone else
-					if(ringer != null)
-						stopRinging(command[1]);
-
-				}else if(command.length == 2 &&
-						command[0].equals(xStrings.getString("CallManagerPanel.callLocked"))){ 
-					
-					/* Notification that call was locked wait 3 seconds and if panel is 
-					 * still clicked reset it to normal mode
-					 */
-					if(callPanels.get(command[1]) != null){
-						
-						new Thread(new LockedWaitThread(callPanels.get(command[1]))).start();
-						
-					}//If it doesn't exist then ignore it, the call probably ended
-					
-				}else if(command.length == 2 && command[0].equals(
-						xStrings.getString("CallManagerPanel.changeFailed"))){ 
-				
-					showWarning(
-							xStrings.getString("CallManagerPanel.errorChangingPerson")); 
-				
-				}else if(command.length == 3 && command[0].equals(
-						xStrings.getString("CallManagerPanel.changed"))){ 
-					
-					//CHANGED
-					//Update CallInfoPanel, CallInputPanel.  CallLogPanel has its own listener
-					//CallInputPanel to be notified via notifyListeners method
-					if(callPanels.get(command[1]) != null){//Check we actually have this panel
-					
-						callPanels.get(command[1]).changeActivePerson(
-								new Person(Integer.parseInt(command[2]), 
-										language, country, 
-										database.getReadConnection()));
-						
-						//Notify listeners
-						notifyListeners(callPanels.get(command[1]));
-						
-					}
-					
-				}else if(command.length == 3 && command[0].equals(
-						xStrings.getString("CallManagerPanel.FAILED"))){ 
-					
-					/* Call failed to transfer to us
-					 * FAILED/Channel/Failure Code
-					 * 0: Extension Online/Ready
-					 * 1: Extension On a call
-					 * 4: Extension Off line
-					 *-1: Extension does not exist
-					 */
-					LOGGER.info(xStrings.getString(
-							"CallManagerPanel.clientPhoneError")); 
-					
-					//Reset CallInfoPanel
-					if(!command[1].equals("NA") &&  
-							callPanels.get(command[1]) != null)
-						callPanels.get(command[1]).reset();
-					
-					int errorCode = Integer.parseInt(command[2]);
-					
-					if(errorCode == 4)
-						showWarning(xStrings.getString(
-								"CallManagerPanel.errorExtensionOffline")); 
-					else if(errorCode == -1)
-						showWarning(xStrings.getString(
-								"CallManagerPanel.errorExtensionDoesNotExist")); 
-					else if(errorCode != 1)
-						showWarning(xStrings.getString(
-								"CallManagerPanel.errorExtension") + errorCode); 
-					
-				}else if(command.length == 2 && 
-						command[0].equals(xStrings.getString(
-								"CallManagerPanel.channelUpdate"))){ 
-					
-					//Update given panel looking for X in callhistory
-					//Then redo call answered if necessary
-					if(callPanels.containsKey(command[1])){
-						
-						CallInfoPanel panel = callPanels.get(command[1]);
-						
-						dbLookUpService.execute(
-								new InfoPanelPopulator(database, 
-										panel, 
-										panel.getNumber(), 
-										command[1], 
-										panel.getCallLocation()));
-						
-						if(panel.getMode() == CallInfoPanel.MODE_ANSWERED)
-							notifyListeners(panel);
-						
-					}
-					
-				}else if(command.length == 3 &&
-						command[0].equals(xStrings.getString(
-								"calls.manual"))){
-					
-					/* Manual Call Created
-					 * If [2] = our name this is manual for us
-					 * else manual for someone else just display answered by
-					 * them
-					 */
-					//TODO
-					//TODO
-					//TODO
-					int mode = CallInfoPanel.MODE_ANSWERED_ELSEWHERE;
-					
-					if(command[2].equals(settings.get("nickName")))
-						mode = CallInfoPanel.MODE_ANSWERED_ME;
-					
-					//MANUAL/M_1458563910616/waynemerricks
-					//String phoneNumber, String channelID, int mode,
-					//String connectedTo, long creationTime
-					createSkeletonCallInfoPanel(
-							xStrings.getString("CallManagerPanel.callSystemUnknown"),
-							command[1], mode, command[2], new Date().getTime());
-						
-					callPanels.get(command[1]).setOriginator(command[2]);
-					
-					//Set the panel to answered by us and notify listeners
-					if(mode == CallInfoPanel.MODE_ANSWERED_ME){
-
-						callPanels.get(command[1]).setAnswered(true);
-						notifyListeners(callPanels.get(command[1]));
-
-					}
-
-				}
+				if(isCurrent(message))
+					processCommand(ControlMessageCodec.decode(message.getBody()), from);
 				
 			}
 			
@@ -1111,203 +507,437 @@ public class CallManagerPanel extends JPanel implements PacketListener, MouseLis
 	}
 	
 	/**
-	 * Checks all the panels to see if we dialled a call with this number
-	 * If it exists then remove the dialler end as we will be creating the
-	 * receiver end now we're connected
-	 * @param callerID
+	 * Checks the sequence number of messages from the server, asks for a new 
+	 * snapshot if we've missed any
+	 * @param message message to check
+	 * @return false if this message is older than the last snapshot we applied
 	 */
-	private void checkDialledCall(String callerID) {
+	private boolean isCurrent(Message message){
 		
-		if(callPanels.size() > 0){
-			
-			Iterator<CallInfoPanel> calls = callPanels.values().iterator();
-			boolean done = false;
+		boolean current = true;
+		boolean resync = false;
+		boolean restarted = false;
+		long sequence = StateSnapshot.getSequence(message);
+		
+		if(sequence != -1){//Untagged = other clients or an old server
 			
-			while(calls.hasNext() && !done){
+			synchronized(syncLock){
 				
-				CallInfoPanel panel = calls.next();
+				long epoch = StateSnapshot.getEpoch(message);
 				
-				if(panel.getNumber().equals(callerID)){
+				if(epoch != syncEpoch){
+					
+					//Server restarted while we were running so our state is stale
+					restarted = syncEpoch != -1;
+					resync = restarted;
+					syncEpoch = epoch;
+					
+					if(restarted)
+						changedSinceRequest.clear();
+
+					lastSequence = sequence;
+					
+				}else if(sequence <= lastSequence)
+					current = false;//Already part of the snapshot
+				else{
 					
-					done = true;
-					//We found the dialler end of this connected so remove
-					//the panel (because we're about to create the receiver end)
-					removePanel(panel.getChannelID());
+					resync = sequence > lastSequence + 1;
+					lastSequence = sequence;
 					
 				}
 				
+				resync = resync && !awaitingSnapshot;
+				
 			}
 			
 		}
 		
-	}
-
-	/**
-	 * Logs a warning message and displays friendly message to user
-	 * @param friendlyErrorMessage
-	 */
-	private void showWarning(String friendlyErrorMessage){
+		if(restarted)
+			callState.clear();
 		
-		System.err.println(xStrings.getString("CallManagerPanel.logErrorPrefix") 
-				+ friendlyErrorMessage); 
+		if(resync){
+			
+			LOGGER.warning(xStrings.getString("CallManagerPanel.missedMessages") + 
+					sequence);
+			sendUpdateRequest();
+			
+		}
 		
-		JOptionPane.showMessageDialog(null, friendlyErrorMessage, 
-				xStrings.getString("CallManagerPanel.errorBoxTitle"), 
-				JOptionPane.WARNING_MESSAGE); 
-		LOGGER.warning(friendlyErrorMessage);
+		return current;
 		
 	}
 	
 	/**
-	 * Parses the given time (should be in the form of Date().getTime())
-	 * @param time time to parse
-	 * @return a Date().getTime() based on the given time
+	 * Adds a SNAPSHOT chunk, once we have them all the calls are applied as if they
+	 * had been sent as separate private messages.  Calls that aren't in the snapshot
+	 * and haven't changed since we asked for it are removed, if the snapshot is from
+	 * a restarted server everything is removed first
+	 * @param chunk SNAPSHOT message
+	 * @param epoch epoch of the server that sent it
+	 * @param from nickname of the sender
 	 */
-	private long getCreationTime(String time){
-		
-		long created = new Date().getTime();
+	private void processSnapshot(ControlMessage chunk, long epoch, String from){
 		
-		try{
+		if(snapshot.add(chunk)){
+			
+			List<ControlMessage> entries = snapshot.takeEntries();
+			
+			LOGGER.info(xStrings.getString("CallManagerPanel.applyingSnapshot") + 
+					entries.size());
 			
-			created = Long.parseLong(time);
+			boolean restarted = false;
+			HashSet<String> keep = new HashSet<String>();
 			
-		}catch(NumberFormatException e){
+			synchronized(syncLock){
+				
+				restarted = syncEpoch != -1 && epoch != syncEpoch;
+				
+				//Deltas after the snapshot may already have been applied
+				if(epoch != syncEpoch || lastSequence < snapshot.getSequence())
+					lastSequence = snapshot.getSequence();
+				
+				if(!restarted)
+					keep.addAll(changedSinceRequest);
+				
+				changedSinceRequest.clear();
+				syncEpoch = epoch;
+				awaitingSnapshot = false;
+				
+			}
+			
+			if(restarted)
+				callState.clear();
+			
+			for(int i = 0; i < entries.size(); i++){
+				
+				//CALL and CONNECTED both have the channel third
+				if(entries.get(i).getFields().length >= 3)
+					keep.add(entries.get(i).getFields()[2]);
+				
+				if(!callState.applyPrivateConnected(entries.get(i)))
+					processCommand(entries.get(i), from);
+				
+			}
 			
-			LOGGER.warning(xStrings.getString("CallManagerPanel.errorParsingCreationTime")); 
+			callState.retainCalls(keep);
 			
 		}
 		
-		return created;
-		
 	}
 	
 	/**
-	 * Gets the channel ID where this number is already connected to
-	 * @param number
-	 * @return Asterisk channel ID or null if not found 
+	 * Acts on a decoded control message
+	 * Current Control Messages:
+	 * SEE Wiki
+	 * @param command message to act on
+	 * @param from nickname of the sender
 	 */
-	private String getAlreadyConnectedChannel(String number) {
+	private void processCommand(ControlMessage command, String from){
 		
-		boolean found = false;
-		String channelID = null;
+		String[] fields = command.getFields();
 		
-		Iterator<String> panels = callPanels.keySet().iterator();
+		//RINGING - Can Ignore
+		switch(command.getOpcode()){
 		
-		while(panels.hasNext() && found == false){
-			
-			CallInfoPanel panel = callPanels.get(panels.next());
-			
-			if(panel.getConnectedTo() != null && panel.getConnectedTo().length() > 0){
+			case CALL://CALL - Entry point to handler
+			case QUEUE:
+			case CONNECTED:
+			case MANUAL:
+				
+				callState.apply(command, from);
+				break;
+				
+			case CALLER:
+				
+				//Keep until the QUEUE for this channel turns up
+				if(CallerRecord.getChannel(command) != null)
+					callerRecords.put(CallerRecord.getChannel(command), command);
+				
+				break;
+				
+			case UPDATEFIELD:
+			case UPDATEFIELDS:
+				
+				List<ControlMessage> updates = command.getFieldUpdates();
+				
+				for(int i = 0; i < updates.size(); i++)
+					processUpdateField(updates.get(i).getField(0), 
+							updates.get(i).getField(1), updates.get(i).getField(2));
+				
+				break;
+				
+			case ENDPOINT:
+				
+				//Store endpoint and extension here then act on it in subsequent queue message
+				//ENDPOINT/1397214684.388/1397214684.391/9901234567890
+				//ENDPOINT/dialler ch    /receiver ch   /receiver clid
+				//endPoints.put(fields[2], new EndPointRecord(fields[0], fields[1], fields[2]));
+				//TODO Check removal is OK
+				break;
+				
+			case HANGUP:
+				
+				if(fields.length == 2)
+					callerRecords.remove(fields[1]);
+				
+				callState.apply(command, from);
+				break;
+				
+			case TRANSFER:
+				
+				//Transfer from another user, the engine stores their name for the extension
+				callState.apply(command, from);
+				
+				//Stop ringing it transferred to someone else
+				if(fields.length == 2 && ringer != null)
+					stopRinging(fields[0]);
+				
+				break;
+				
+			case LOCKED:
+				
+				/* Notification that call was locked wait 3 seconds and if panel is 
+				 * still clicked reset it to normal mode
+				 * If it doesn't exist then ignore it, the call probably ended
+				 */
+				if(fields.length == 1 && callPanels.get(fields[0]) != null)
+					new Thread(new LockedWaitThread(callPanels.get(fields[0]))).start();
+				
+				break;
+				
+			case CHANGEFAILED:
+				
+				if(fields.length == 1)
+					showWarning(
+							xStrings.getString("CallManagerPanel.errorChangingPerson")); 
+				
+				break;
+				
+			case CHANGED:
+				
+				if(fields.length == 2)
+					processChanged(fields[0], fields[1]);
+				
+				break;
+				
+			case FAILED:
+				
+				if(fields.length == 2)
+					processFailed(fields[0], fields[1]);
+				
+				break;
+				
+			case CHANNELUPDATE:
+				
+				if(fields.length == 1)
+					processChannelUpdate(fields[0]);
+				
+				break;
+				
+			case FIELDSCHANGED:
+				
+				//Call types/badges re-read from the DB next time they are needed
+				database.getFieldDefinitionCache().invalidate();
+				break;
+				
+			default:
+				break;
+				
+		}
+		
+	}
+	
+	/**
+	 * UPDATEFIELD/field mapping/channel id/field value
+	 * @param field field mapping
+	 * @param channelID channel to update
+	 * @param value new value
+	 */
+	private void processUpdateField(String field, String channelID, String value){
+		
+		/*if(value.equals("<CLEAR>")) 
+			value = ""; */
+		//Panel can be gone when update happens, check for exists first
+		CallInfoPanel panel = callPanels.get(channelID);
+		
+		if(panel != null){
+			
+			if(panel.getPhoneCallRecord() != null && 
+					panel.getPhoneCallRecord().getActivePerson() != null)
+				searchIndex.updateField(panel.getPhoneCallRecord().getActivePerson().id,
+						field, value);
+			
+			if(field.equals("name")){ 
+				panel.setPhoneCallField(field, value, false);
+				panel.setCallerName(value, false);  
+			}else if(field.equals("location")){ 
+				panel.setPhoneCallField(field, value, false);
+				panel.setCallerLocation(value, false);
+			}else if(field.equals("conversation")){ 
+				panel.setPhoneCallField(field, value, false);
+				panel.setConversation(value, false);
+			}else if(field.equals("alert")){ 
+				
+				String[] temp = value.split("@@"); 
 				
-				//5001 || tvaadmin
 				try{
-					
-					if(panel.getConnectedTo().equals(number))
-						channelID = panel.getChannelID();
-					
-					if(channelID == null)//We didn't find so try a friendly name
-						Integer.parseInt(panel.getConnectedTo());//FIX Don't parse the number until you've tested equality
-					
+					int level = Integer.parseInt(temp[1]);
+					panel.setAlertLevel(null, level, false);
 				}catch(NumberFormatException e){
-					
-					if(number.equals(getNumberFromFriendlyName(panel.getConnectedTo())))
-							channelID = panel.getChannelID();
-					
+					panel.setAlertLevel(null, temp[1].replace("+", "/"), false);  
 				}
 				
+				panel.setPhoneCallField("alert", temp[0], false);
+				
+			}else if(field.equals("calltype")){ 
+				
+				//Split the image from the value:
+				String[] temp = value.replace("+", "/").split("@@"); 
+				panel.setBadgeIcon(null, temp[1], false);  
+				//Set the record call type
+				panel.setPhoneCallField("calltype", temp[0], false);
+				
+			}else{
+				
+				//Custom Field
+				panel.setPhoneCallField(field, value, false);
+				
 			}
-			
-		}
 		
-		return channelID;
+		}
 		
 	}
-
+	
 	/**
-	 * Checks the panels to make sure we're not already connected to this number.  E.g.
-	 * When connecting you get 5001 -> 5002 and the reverse, 5002 -> 5001 so you know
-	 * both sides of the call are connected.
-	 * 
-	 * This causes problems with duplicate panels and weird behaviour
-	 * 
-	 * @param number number to check
-	 * @return true if we're already connected
+	 * CHANGED
+	 * Update CallInfoPanel, CallInputPanel.  CallLogPanel has its own listener
+	 * CallInputPanel to be notified via notifyListeners method
+	 * @param channelID channel that changed
+	 * @param personID id of the new active person
 	 */
-	private synchronized boolean isAlreadyConnected(String number){
+	private void processChanged(String channelID, String personID){
 		
-		boolean isConnected = false;
+		//The change was only just committed, replicas might not have it yet
+		database.preferPrimary();
 		
-		Iterator<String> panels = callPanels.keySet().iterator();
+		//New person or new number for a person, either way the index needs it
+		try{
+			searchIndex.refresh(Integer.parseInt(personID));
+		}catch(NumberFormatException e){}
 		
-		while(panels.hasNext() && isConnected ==
-				false){
-			
-			CallInfoPanel panel = callPanels.get(panels.next());
+		if(callPanels.get(channelID) != null){//Check we actually have this panel
+		
+			Connection readConnection = null;
 			
-			if(panel.getConnectedTo() != null && panel.getConnectedTo().length() > 0){
+			try{
 				
-				//5001 || tvaadmin
-				try{
-					
-					if(panel.getConnectedTo().equals(number))
-						isConnected = true;
-					
-					if(!isConnected)//We didn't find so try a friendly name
-						Integer.parseInt(panel.getConnectedTo());//FIX don't fail the parse before you've checked it!
-					
-				}catch(NumberFormatException e){
-					
-					if(number.equals(getNumberFromFriendlyName(panel.getConnectedTo())))
-							isConnected = true;
-					
-				}
+				readConnection = database.getReadConnection();
+				callPanels.get(channelID).changeActivePerson(
+						new Person(Integer.parseInt(personID), 
+								language, country, readConnection));
+				
+				//Notify listeners
+				notifyListeners(callPanels.get(channelID));
+				
+			}catch(SQLException e){
+				
+				showWarning(xStrings.getString(
+						"CallManagerPanel.errorChangingPerson")); 
+				
+			}finally{
+				
+				if(readConnection != null)
+					try{
+						readConnection.close();
+					}catch(Exception e){}
 				
 			}
 			
 		}
 		
-		return isConnected;
+	}
+	
+	/**
+	 * Call failed to transfer to us
+	 * FAILED/Channel/Failure Code
+	 * 0: Extension Online/Ready
+	 * 1: Extension On a call
+	 * 4: Extension Off line
+	 *-1: Extension does not exist
+	 *-2: Phone system didn't answer in time
+	 *-3: Phone system too busy
+	 *-4: Phone system refused the request
+	 * @param channelID channel that failed or NA
+	 * @param code failure code
+	 */
+	private void processFailed(String channelID, String code){
+		
+		LOGGER.info(xStrings.getString(
+				"CallManagerPanel.clientPhoneError")); 
+		
+		//Reset CallInfoPanel
+		if(!channelID.equals("NA") &&  
+				callPanels.get(channelID) != null)
+			callPanels.get(channelID).reset();
+		
+		int errorCode = Integer.parseInt(code);
+		
+		if(errorCode == 4)
+			showWarning(xStrings.getString(
+					"CallManagerPanel.errorExtensionOffline")); 
+		else if(errorCode == -1)
+			showWarning(xStrings.getString(
+					"CallManagerPanel.errorExtensionDoesNotExist")); 
+		else if(errorCode == -2 || errorCode == -3)
+			showWarning(xStrings.getString(
+					"CallManagerPanel.errorPhoneSystemNotResponding")); 
+		else if(errorCode != 1)
+			showWarning(xStrings.getString(
+					"CallManagerPanel.errorExtension") + errorCode); 
 		
 	}
 	
 	/**
-	 * Iterates through userExtensions and returns the extension value given by 
-	 * the name
-	 * @param name name to search for
-	 * @return null if no match or extension if match e.g. "5001"
+	 * Update given panel looking for X in callhistory
+	 * Then redo call answered if necessary
+	 * @param channelID channel to update
 	 */
-	private String getNumberFromFriendlyName(String name) {
+	private void processChannelUpdate(String channelID){
 		
-		String number = null;
-		Iterator<String> extensions = userExtensions.keySet().iterator();
+		//Sent straight after the server commits the record, replicas might not have it yet
+		database.preferPrimary();
 		
-		while(extensions.hasNext() && number == null){
+		if(callPanels.containsKey(channelID)){
 			
-			String key = extensions.next();
+			CallInfoPanel panel = callPanels.get(channelID);
 			
-			if(userExtensions.get(key).equals(name))
-				number = key;
+			dbLookUpService.execute(
+					new InfoPanelPopulator(database, 
+							panel, 
+							panel.getNumber(), 
+							channelID, 
+							panel.getCallLocation()));
+			
+			if(panel.getMode() == CallInfoPanel.MODE_ANSWERED)
+				notifyListeners(panel);
 			
 		}
 		
-		return number;
-		
 	}
-
-			
+	
 	/**
-	 * Checks if the given number is the on air queue
-	 * @param number
-	 * @return true if it is the on air queue
+	 * Logs a warning message and displays friendly message to user
+	 * @param friendlyErrorMessage
 	 */
-	private boolean isOnAirQueue(String number){
-	
-		boolean isOnAir = false;
+	private void showWarning(String friendlyErrorMessage){
 		
-		if(settings.get("onAirQueueNumber").equals(number)) 
-			isOnAir = true;
+		System.err.println(xStrings.getString("CallManagerPanel.logErrorPrefix") 
+				+ friendlyErrorMessage); 
 		
-		return isOnAir;
+		JOptionPane.showMessageDialog(null, friendlyErrorMessage, 
+				xStrings.getString("CallManagerPanel.errorBoxTitle"), 
+				JOptionPane.WARNING_MESSAGE); 
+		LOGGER.warning(friendlyErrorMessage);
 		
 	}
 	
@@ -1333,38 +963,6 @@ public class CallManagerPanel extends JPanel implements PacketListener, MouseLis
 
 	}
 
-	/**
-	 * TODO
-	 * @param command
-	 * @param creationTime
-	 */
-	private void createIncomingCall(String[] command, long creationTime){
-		
-		createSkeletonCallInfoPanel(command[1], command[3], 
-				CallInfoPanel.MODE_RINGING, null, creationTime);
-		callPanels.get(command[3]).setOriginator(command[1]);
-		
-		if(settings.get("queue_" + command[2] + "_icon") != null)  
-			callPanels.get(command[3]).getIconPanel().setBadgeIcon(settings.get("queue_" + command[2] + "_icon"));  
-
-	}
-	
-	/**
-	 * Checks if the given number is the on air queue
-	 * @param number
-	 * @return true if it is the on air queue
-	 */
-	private boolean isIncomingQueue(String number){
-	
-		boolean isIncoming = false;
-		
-		if(settings.get("incomingQueueNumber").equals(number)) 
-			isIncoming = true;
-		
-		return isIncoming;
-		
-	}
-	
 	/**
 	 * Notifies our answer listeners that they can re-enable manual call
 	 * functionality
@@ -1479,20 +1077,21 @@ public class CallManagerPanel extends JPanel implements PacketListener, MouseLis
 	 */
 	public void removePanel(String channelID){
 		
-		final String channel = channelID;
+		//Take it out now, a new panel for the same channel can arrive before the EDT runs
+		final CallInfoPanel panel = callPanels.remove(channelID);
 		
-		SwingUtilities.invokeLater(new Runnable(){
-			
-			public void run(){
+		if(panel != null)
+			SwingUtilities.invokeLater(new Runnable(){
 				
-				remove(callPanels.get(channel));
-				callPanels.remove(channel);
-				validate();
-				repaint();
+				public void run(){
+					
+					remove(panel);
+					validate();
+					repaint();
+					
+				}
 				
-			}
-			
-		});
+			});
 		
 	}
 
@@ -1504,36 +1103,15 @@ public class CallManagerPanel extends JPanel implements PacketListener, MouseLis
 	 */
 	private CallInfoPanel getOldestChannel(){
 		
-		Iterator<Entry<String, CallInfoPanel>> calls = callPanels.entrySet().iterator();
+		List<CallInfoPanel> waiting = getPanels(getAnswerableMode());
+		CallInfoPanel oldest = null;
 		
-		String oldestKey = null;
-		long oldestTime = 0;
-		boolean studio = (settings.get("isStudio") != null 
-				&& settings.get("isStudio").equals("true"));  
-		
-		while(calls.hasNext()){
-			
-			CallInfoPanel call = calls.next().getValue();
-			
-			if(studio && call.getMode() == CallInfoPanel.MODE_QUEUED){
-				
-				if(oldestTime == 0 || oldestTime > call.getCallCreationTime()){
-					oldestTime = call.getCallCreationTime();
-					oldestKey = call.getChannelID();
-				}
-			
-			}else if(!studio && call.getMode() == CallInfoPanel.MODE_RINGING){
-				
-				if(oldestTime == 0 || oldestTime > call.getCallCreationTime()){
-					oldestTime = call.getCallCreationTime();
-					oldestKey = call.getChannelID();
-				}
-				
-			}
-			
-		}
+		for(int i = 0; i < waiting.size(); i++)
+			if(oldest == null || 
+					oldest.getCallCreationTime() > waiting.get(i).getCallCreationTime())
+				oldest = waiting.get(i);
 		
-		return callPanels.get(oldestKey);
+		return oldest;
 		
 	}
 	
@@ -1544,19 +1122,51 @@ public class CallManagerPanel extends JPanel implements PacketListener, MouseLis
 	private String isOnCall(){
 		
 		String onCall = null;
+		List<CallInfoPanel> answered = getPanels(CallState.MODE_ANSWERED);
+		
+		if(answered.size() > 0)
+			onCall = answered.get(0).getChannelID();
+		
+		return onCall;
+		
+	}
+	
+	/**
+	 * Returns the panels for calls the engine has in this mode, skipping any the
+	 * user has clicked on since
+	 * @param mode CallState.MODE
+	 * @return
+	 */
+	private List<CallInfoPanel> getPanels(int mode){
 		
-		Iterator<Entry<String, CallInfoPanel>> calls = callPanels.entrySet().iterator();
+		List<CallState> calls = callState.getCalls(mode);
+		ArrayList<CallInfoPanel> panels = new ArrayList<CallInfoPanel>();
 		
-		while(calls.hasNext() && onCall == null){
+		for(int i = 0; i < calls.size(); i++){
 			
-			CallInfoPanel call = calls.next().getValue();
+			CallInfoPanel panel = callPanels.get(calls.get(i).getChannelID());
 			
-			if(call.getMode() == CallInfoPanel.MODE_ANSWERED)
-				onCall = call.getChannelID();
+			if(panel != null && panel.getMode() == mode)
+				panels.add(panel);
 			
 		}
 		
-		return onCall;
+		return panels;
+		
+	}
+	
+	/**
+	 * Studios answer calls waiting to go on air, everyone else answers ringing calls
+	 * @return CallState.MODE of calls we can answer
+	 */
+	private int getAnswerableMode(){
+		
+		int mode = CallState.MODE_RINGING;
+		
+		if(isStudio())
+			mode = CallState.MODE_QUEUED;
+		
+		return mode;
 		
 	}
 
@@ -1668,24 +1278,6 @@ public class CallManagerPanel extends JPanel implements PacketListener, MouseLis
 		
 	}
 	
-	/**
-	 * Helper to check if a given extension is my phone extension
-	 * Helps to make code more readable
-	 * @param extension extension to check
-	 * @return true if it is my extension
-	 */
-	private boolean isMyPhone(String extension){
-		
-		boolean myPhone = false;
-		
-		if(settings.get("myExtension") != null && 
-				settings.get("myExtension").equals(extension)) 
-			myPhone = true;
-		
-		return myPhone;
-		
-	}
-	
 	/**
 	 * Checks if we're flagged as a studio in the settings
 	 * @return
@@ -1744,34 +1336,10 @@ public class CallManagerPanel extends JPanel implements PacketListener, MouseLis
 	private CallInfoPanel getRandomCall(){
 		
 		CallInfoPanel randomIshCall = null;
-				
-		Iterator<Entry<String, CallInfoPanel>> calls = callPanels.entrySet().iterator();
+		List<CallInfoPanel> valid = getPanels(getAnswerableMode());
 		
-		Vector<String> validKeys = new Vector<String>();
-		boolean studio = (settings.get("isStudio") != null 
-				&& settings.get("isStudio").equals("true"));  
-		
-		while(calls.hasNext()){
-			
-			CallInfoPanel call = calls.next().getValue();
-			
-			if((studio && call.getMode() == CallInfoPanel.MODE_QUEUED) 
-					|| (!studio && call.getMode() == CallInfoPanel.MODE_RINGING)){
-				
-				validKeys.add(call.getChannelID());
-				
-			}
-			
-		}
-		
-		if(validKeys.size() > 0){
-			
-			Object[] panels = validKeys.toArray();
-			
-			randomIshCall = callPanels.get(
-					panels[new Random().nextInt(panels.length)]); 
-			
-		}
+		if(valid.size() > 0)
+			randomIshCall = valid.get(new Random().nextInt(valid.size()));
 		
 		return randomIshCall;
 		
@@ -1819,8 +1387,8 @@ public class CallManagerPanel extends JPanel implements PacketListener, MouseLis
 	
 		if(number.length() > 0)
 			try {
-				controlRoom.sendMessage(xStrings.getString("CallManagerPanel.commandDial") +  
-						"/" + number + "/" + settings.get("myExtension"));   
+				controlRoom.sendMessage(ControlMessageCodec.encode(new ControlMessage(
+						Opcode.DIAL, number, settings.get("myExtension"))));
 			} catch (XMPPException e) {
 				LOGGER.severe(xStrings.getString("CallManagerPanel.errorSendingDialCommand")); 
 			}
@@ -1902,21 +1470,18 @@ public class CallManagerPanel extends JPanel implements PacketListener, MouseLis
 		 * 
 		 * CONNECTED/CALL ANSWERER/CALL ORIGINATOR/CHANNEL ??/CREATION TIME
 		 */
-		String[] command = message.getBody().split("/"); 
+		ControlMessage command = ControlMessageCodec.decode(message.getBody());
 		
-		if(command.length == 5 && command[0].equals(
-				xStrings.getString("CallManagerPanel.callConnected")) 
-				&& callPanels.get(command[3]) != null
-				&& isMyPhone(command[1]) && !isMyPhone(command[2])){ 
+		if(command.getOpcode() == Opcode.SNAPSHOT){
 			
-			long creationTime = getCreationTime(command[4]);
+			String from = message.getFrom();
 			
-			createSkeletonCallInfoPanel(command[2], command[3],
-					CallInfoPanel.MODE_ANSWERED, null, creationTime);
-		
-			notifyListeners(callPanels.get(command[3]));
+			if(from.contains("/")) 
+				from = from.split("/")[1]; 
+			
+			processSnapshot(command, StateSnapshot.getEpoch(message), from);
 			
-		}else
+		}else if(!callState.applyPrivateConnected(command))
 			processPacket(message);
 		
 	}
@@ -0,0 +1,117 @@
+package com.github.waynemerricks.asteriskphone.calls;
+
+/**
+ * One call as CallStateEngine sees it, what a CallInfoPanel shows without the
+ * Swing or the caller details.
+ *
+ * Calls never change, the engine replaces them with a copy whenever the mode or
+ * who the call is connected to changes so listeners can compare the old and new.
+ * @author Wayne Merricks
+ *
+ */
+public final class CallState {
+
+	//STATICS
+	public static final int MODE_RINGING = 1;
+	public static final int MODE_ANSWERED = 2;
+	public static final int MODE_ANSWERED_ELSEWHERE = 3;
+	public static final int MODE_QUEUED = 4;
+	public static final int MODE_ON_AIR = 5;
+	public static final int MODE_RINGING_ME = 6;
+	public static final int MODE_QUEUED_ME = 7;
+	public static final int MODE_ANSWERED_ME = 8;
+	public static final int MODE_ON_AIR_ME = 9;
+
+	//CLASS VARS
+	private final String channelID, number, connectedTo, originator, queue;
+	private final int mode;
+	private final long creationTime;
+
+	/**
+	 * @param channelID channel of the call
+	 * @param number phone number of the caller
+	 * @param mode one of the MODE constants
+	 * @param connectedTo name or extension the call shows as connected to, never null
+	 * @param originator number that started the call or null
+	 * @param queue queue the call came in on (for the badge icon) or null
+	 * @param creationTime creation time of the channel
+	 */
+	public CallState(String channelID, String number, int mode, String connectedTo,
+			String originator, String queue, long creationTime){
+
+		this.channelID = channelID;
+		this.number = number;
+		this.mode = mode;
+		this.connectedTo = connectedTo == null ? "" : connectedTo;
+		this.originator = originator;
+		this.queue = queue;
+		this.creationTime = creationTime;
+
+	}
+
+	/**
+	 * Returns a copy of this call in a different mode
+	 * @param mode new mode
+	 * @param connectedTo new connected to or null to leave it as it is
+	 * @return
+	 */
+	public CallState changeMode(int mode, String connectedTo){
+
+		if(connectedTo == null)
+			connectedTo = this.connectedTo;
+
+		return new CallState(channelID, number, mode, connectedTo, originator, queue,
+				creationTime);
+
+	}
+
+	public String getChannelID(){
+
+		return channelID;
+
+	}
+
+	public String getNumber(){
+
+		return number;
+
+	}
+
+	public int getMode(){
+
+		return mode;
+
+	}
+
+	public String getConnectedTo(){
+
+		return connectedTo;
+
+	}
+
+	public String getOriginator(){
+
+		return originator;
+
+	}
+
+	public String getQueue(){
+
+		return queue;
+
+	}
+
+	public long getCreationTime(){
+
+		return creationTime;
+
+	}
+
+	@Override
+	public String toString(){
+
+		return channelID + "/" + number + "/" + mode + "/" + connectedTo;
+
+	}
+
+}
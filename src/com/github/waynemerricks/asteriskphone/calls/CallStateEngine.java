@@ -0,0 +1,990 @@
+package com.github.waynemerricks.asteriskphone.calls;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.logging.Logger;
+
+import com.github.waynemerricks.asteriskphone.protocol.ControlMessage;
+import com.github.waynemerricks.asteriskphone.protocol.Opcode;
+
+/**
+ * Keeps track of the calls in progress from control room messages, the part of
+ * CallManagerPanel that decides what mode each call is in without any Swing.
+ *
+ * Deals with CALL, QUEUE, CONNECTED, HANGUP, TRANSFER and MANUAL, everything else
+ * is about the caller details so is left to whoever shows the calls.  Calls are
+ * kept as CallState and indexed by channel, number and who they're connected to so
+ * no message has to look through every call.
+ *
+ * Listeners are told about each change in order after the message has been applied,
+ * not while the engine is locked, so they can ask the engine about other calls and
+ * a slow listener doesn't hold up anyone reading the calls.
+ * @author Wayne Merricks
+ *
+ */
+public class CallStateEngine {
+
+	//CLASS VARS
+	private I18NStrings xStrings;
+	private HashMap<String, String> settings;
+	private Set<String> systemExtensions;
+	private HashMap<String, String> studioExtensions = new HashMap<String, String>();
+	private HashMap<String, String> userExtensions = new HashMap<String, String>();
+	private LinkedHashMap<String, CallState> calls = new LinkedHashMap<String, CallState>();
+	private HashMap<String, Set<String>> byNumber = new HashMap<String, Set<String>>();
+	private HashMap<String, Set<String>> byConnectedTo = new HashMap<String, Set<String>>();
+	private CopyOnWriteArrayList<CallStateListener> listeners =
+			new CopyOnWriteArrayList<CallStateListener>();
+	private ArrayList<Change> changes = new ArrayList<Change>();//Waiting to be published
+	private final Object publishLock = new Object();
+
+	//STATICS
+	private static final Logger LOGGER = Logger.getLogger(CallStateEngine.class.getName());//Logger
+	private static final int ADDED = 0;
+	private static final int CHANGED = 1;
+	private static final int REMOVED = 2;
+	private static final int ANSWERED = 3;
+	private static final String MANUAL_PREFIX = "M_";
+
+	/**
+	 * @param settings user settings, needs myExtension, nickName, incomingQueueNumber,
+	 * onAirQueueNumber and studioExtensions
+	 * @param systemExtensions every extension and queue that belongs to us
+	 */
+	public CallStateEngine(HashMap<String, String> settings, Set<String> systemExtensions){
+
+		this.settings = settings;
+		this.systemExtensions = systemExtensions;
+
+		xStrings = new I18NStrings(settings.get("language"), settings.get("country"));
+
+		populateStudioExtensions();
+
+	}
+
+	public void addListener(CallStateListener listener){
+
+		listeners.add(listener);
+
+	}
+
+	public void removeListener(CallStateListener listener){
+
+		listeners.remove(listener);
+
+	}
+
+	/**
+	 * Applies a control message, anything that isn't about call state is ignored
+	 * @param command message to apply
+	 * @param from nickname of the sender
+	 */
+	public void apply(ControlMessage command, String from){
+
+		synchronized(publishLock){
+
+			List<Change> applied = null;
+
+			synchronized(this){
+
+				String[] fields = command.getFields();
+
+				switch(command.getOpcode()){
+
+					case CALL://CALL - Entry point to handler
+
+						if(isCallEvent(fields))
+							processCall(fields, getCreationTime(fields));
+
+						break;
+
+					case QUEUE:
+
+						if(isCallEvent(fields))
+							processQueue(fields, getCreationTime(fields));
+
+						break;
+
+					case CONNECTED:
+
+						if(isCallEvent(fields))
+							processConnected(fields, getCreationTime(fields));
+
+						break;
+
+					case HANGUP:
+
+						if(fields.length == 2)
+							processHangup(fields[1]);
+
+						break;
+
+					case TRANSFER:
+
+						//Transfer from another user, add their name to our extensions list
+						if(fields.length == 2)
+							userExtensions.put(fields[1], from);
+
+						break;
+
+					case MANUAL:
+
+						if(fields.length == 2)
+							processManual(fields[0], fields[1]);
+
+						break;
+
+					default:
+						break;
+
+				}
+
+				applied = takeChanges();
+
+			}
+
+			publish(applied);
+
+		}
+
+	}
+
+	/**
+	 * Deals with private CONNECTED messages where we're the caller, we've phoned
+	 * out so replace the call with one answered by us
+	 * CONNECTED/ME/RECEIVER/CHANNEL/CREATION TIME
+	 * @param command decoded private message
+	 * @return true if this was dealt with, false to apply it as a normal message
+	 */
+	public boolean applyPrivateConnected(ControlMessage command){
+
+		boolean processed = false;
+
+		synchronized(publishLock){
+
+			List<Change> applied = null;
+
+			synchronized(this){
+
+				String[] fields = command.getFields();
+
+				if(command.getOpcode() == Opcode.CONNECTED && fields.length == 4
+						&& calls.get(fields[2]) != null
+						&& isMyPhone(fields[0]) && !isMyPhone(fields[1])){
+
+					answered(addCall(fields[1], fields[2], CallState.MODE_ANSWERED, null,
+							getCreationTime(fields[3]), null, null));
+					processed = true;
+
+				}
+
+				applied = takeChanges();
+
+			}
+
+			publish(applied);
+
+		}
+
+		return processed;
+
+	}
+
+	/**
+	 * Removes every call whose channel isn't in the given set, used after a complete
+	 * snapshot so calls we missed the HANGUP for don't hang around.  Manual calls are
+	 * never in a snapshot so they are kept
+	 * @param channelIDs channels to keep
+	 */
+	public void retainCalls(Set<String> channelIDs){
+
+		synchronized(publishLock){
+
+			List<Change> applied = null;
+
+			synchronized(this){
+
+				ArrayList<String> stale = new ArrayList<String>();
+
+				for(String channelID : calls.keySet())
+					if(!channelIDs.contains(channelID) && !channelID.startsWith(MANUAL_PREFIX))
+						stale.add(channelID);
+
+				for(int i = 0; i < stale.size(); i++)
+					removeCall(stale.get(i));
+
+				if(stale.size() > 0)
+					LOGGER.info(xStrings.getString("CallStateEngine.removedStaleCalls") +
+							stale);
+
+				applied = takeChanges();
+
+			}
+
+			publish(applied);
+
+		}
+
+	}
+
+	/**
+	 * Removes every call except manual calls, for when the server has restarted and
+	 * nothing we know can be trusted
+	 */
+	public void clear(){
+
+		retainCalls(new HashSet<String>());
+
+	}
+
+	/**
+	 * Returns the call on this channel
+	 * @param channelID
+	 * @return null if we don't have it
+	 */
+	public synchronized CallState getCall(String channelID){
+
+		return calls.get(channelID);
+
+	}
+
+	/**
+	 * Returns every call oldest first
+	 * @return
+	 */
+	public synchronized List<CallState> getCalls(){
+
+		return new ArrayList<CallState>(calls.values());
+
+	}
+
+	/**
+	 * Returns the calls in the given mode oldest first
+	 * @param mode CallState.MODE
+	 * @return
+	 */
+	public synchronized List<CallState> getCalls(int mode){
+
+		ArrayList<CallState> inMode = new ArrayList<CallState>();
+
+		for(CallState call : calls.values())
+			if(call.getMode() == mode)
+				inMode.add(call);
+
+		return inMode;
+
+	}
+
+	public synchronized int getCallCount(){
+
+		return calls.size();
+
+	}
+
+	/**
+	 * CALL, QUEUE, CONNECTED and UPDATEFIELD have 3 fields plus an optional
+	 * creation time
+	 * @param fields message fields
+	 * @return true if the field count is valid for these messages
+	 */
+	private boolean isCallEvent(String[] fields){
+
+		return fields.length == 3 || fields.length == 4;
+
+	}
+
+	/**
+	 * Returns the creation time sent as the 4th field of a call event or -1 if
+	 * there isn't one
+	 * @param fields message fields
+	 * @return creation time or -1
+	 */
+	private long getCreationTime(String[] fields){
+
+		long creationTime = -1;
+
+		if(fields.length == 4)
+			creationTime = getCreationTime(fields[3]);
+
+		return creationTime;
+
+	}
+
+	/**
+	 * Parses the given time (should be in the form of Date().getTime())
+	 * @param time time to parse
+	 * @return a Date().getTime() based on the given time
+	 */
+	private long getCreationTime(String time){
+
+		long created = new Date().getTime();
+
+		try{
+
+			created = Long.parseLong(time);
+
+		}catch(NumberFormatException e){
+
+			LOGGER.warning(xStrings.getString("CallStateEngine.errorParsingCreationTime"));
+
+		}
+
+		return created;
+
+	}
+
+	/**
+	 * CALL/FROM/TO/CHANNEL
+	 * Adds a call if we don't already have this channel
+	 * @param fields message fields
+	 * @param creationTime creation time of the channel or -1
+	 */
+	private void processCall(String[] fields, long creationTime){
+
+		if(calls.get(fields[2]) == null){
+
+			/*
+			 * Was too simplistic to use CALL/FROM/TO/CHANNEL as a way of determining
+			 * outside calls coming in.
+			 *
+			 * Exception case: Call from system extension to an outside line you get:
+			 * CALL/1234/4444444/CHANNEL
+			 *
+			 * Check if call is from us and not another system extension and to outside
+			 * 		set the call to answered
+			 * If call is from another system extension and to outside
+			 * 		set the call to answered elsewhere
+			 * if call is internal from system to system carry on as normal but
+			 * 		set connected to as the person they're dialling
+			 */
+			if(systemExtensions.contains(fields[0]) &&
+					systemExtensions.contains(fields[1])){
+
+				//Internal call amongst ourselves
+				int mode = CallState.MODE_RINGING;
+
+				if(isMyPhone(fields[0])){
+
+					mode = CallState.MODE_RINGING_ME;
+
+					if(isOnAirQueue(fields[1]))
+						mode = CallState.MODE_QUEUED_ME;
+
+				}else if(isOnAirQueue(fields[1]))
+					mode = CallState.MODE_QUEUED;
+
+				addCall(fields[0], fields[2], mode, fields[1], creationTime, fields[0], null);
+
+			}else if(systemExtensions.contains(fields[0]) &&
+					!systemExtensions.contains(fields[1])){
+
+				/* Call from our system to someone else
+				 * CALL/1234/4444444/1396477192.139
+				 */
+				int mode = CallState.MODE_ANSWERED_ELSEWHERE;
+
+				if(isMyPhone(fields[0]))//Internal call to someone from me
+					mode = CallState.MODE_RINGING_ME;
+
+				addCall(fields[1], fields[2], mode, fields[0], creationTime, fields[0], null);
+
+			}else if(!systemExtensions.contains(fields[0]) &&
+					systemExtensions.contains(fields[1])){
+
+				//Outside call coming in
+				if(isIncomingQueue(fields[1])){
+
+					//Outside call coming into a queue as normal
+					addCall(fields[0], fields[2], CallState.MODE_RINGING, null, creationTime,
+							fields[0], fields[1]);
+
+				}else if(isOnAirQueue(fields[1])){
+
+					//Outside call coming into a on air queue as normal
+					//TODO Should we check for MODE_QUEUED_ME here?
+					addCall(fields[0], fields[2], CallState.MODE_QUEUED, null, creationTime,
+							fields[0], fields[1]);
+
+				}else if(!fields[0].equals(xStrings.getString("CallStateEngine.callSystemUnknown"))){
+
+					//Outside call coming direct to a phone
+					addCall(fields[0], fields[2], CallState.MODE_RINGING, fields[1],
+							creationTime, fields[0], null);
+
+				}
+
+			}
+
+		}
+
+	}
+
+	/**
+	 * Call Added to QUEUE read queue number and act accordingly
+	 * QUEUE/QUEUE/CALLERID/CHANNEL
+	 * @param fields message fields
+	 * @param creationTime creation time of the channel or -1
+	 */
+	private void processQueue(String[] fields, long creationTime){
+
+		if(isIncomingQueue(fields[0])){
+
+			LOGGER.info(xStrings.getString("CallStateEngine.callIncomingQueue"));
+
+			/*
+			 * Normally handled by CALL however depending on the trunk a CALL may have
+			 * the following format:
+			 * CALL/person's phone number/trunk phone number that the person called/channel
+			 *
+			 * In this case, CALL does not create the call so we can do it here instead
+			 * with the fields swapped to the CALL order
+			 */
+			if(calls.get(fields[2]) == null)
+				addCall(fields[1], fields[2], CallState.MODE_RINGING, null, creationTime,
+						fields[1], fields[0]);
+
+		}else if(isOnAirQueue(fields[0])){
+
+			LOGGER.info(xStrings.getString("CallStateEngine.callOnAirQueue"));
+
+			//On Air Queue - This is a call going into the ready for on air / studio queue
+			CallState call = calls.get(fields[2]);
+
+			if(call != null){
+
+				//Already in our list so update
+				if(isMyPhone(fields[1])){
+					changeCall(call, CallState.MODE_QUEUED_ME, null);
+					LOGGER.info(xStrings.getString("CallStateEngine.setQueueMeMode"));
+				}else{
+					changeCall(call, CallState.MODE_QUEUED, "");
+					LOGGER.info(xStrings.getString("CallStateEngine.setQueueMode"));
+				}
+
+			}else if(isMyPhone(fields[1]))
+				addCall(fields[1], fields[2], CallState.MODE_QUEUED_ME, null, -1, null, null);
+			else
+				addCall(fields[1], fields[2], CallState.MODE_QUEUED, null, -1, null, null);
+
+		}
+
+	}
+
+	/**
+	 * CONNECTED/FROM/TO/CHANNEL
+	 * @param fields message fields
+	 * @param creationTime creation time of the channel or -1
+	 */
+	private void processConnected(String[] fields, long creationTime){
+
+		CallState call = calls.get(fields[2]);
+
+		if(call != null){
+
+			/* if 1st argument = myphone its my phone connecting to
+			 * someone else */
+			if(isMyPhone(fields[0])){
+
+				/* At this stage, check if my phone is on air */
+				if(isStudioExtension(fields[1]))
+					changeCall(call, CallState.MODE_ON_AIR_ME, studioExtensions.get(fields[1]));
+				else
+					changeCall(call, CallState.MODE_ANSWERED_ME, fields[1]);
+
+			/* if 2nd argument = myphone its a call I've answered */
+			}else if(isMyPhone(fields[1])){
+
+				answered(changeCall(call, CallState.MODE_ANSWERED, getNickName()));
+
+			/* Not my phone, if either argument is one of our extensions its an internal
+			 * phone connected somewhere else or an outside call answered by someone else
+			 */
+			}else if(systemExtensions.contains(fields[0]) ||
+					systemExtensions.contains(fields[1])){
+
+				if(isStudioExtension(fields[1]))
+					changeCall(call, CallState.MODE_ON_AIR, studioExtensions.get(fields[1]));
+				else{
+
+					/* Lookup the extension, if we have a reference
+					 * exchange the number for a friendly name e.g.
+					 * 5001 = Steve, if its null leave it as 5001
+					 */
+					String connectedTo = userExtensions.get(fields[1]);
+
+					if(connectedTo == null)
+						connectedTo = fields[1];
+
+					changeCall(call, CallState.MODE_ANSWERED_ELSEWHERE, connectedTo);
+
+				}
+
+			}else if(isMyPhone(call.getOriginator())){
+
+				/* Neither number is registering as any phone in the system but when
+				 * dialling out the callerid is swapped to the outgoing caller id so
+				 * 5002 -> 907886123456 becomes 01211234567 -> 907886123456
+				 * If we dialled it, its ANSWERED_ME
+				 */
+				answered(changeCall(call, CallState.MODE_ANSWERED_ME, fields[1]));
+
+			}else
+				changeCall(call, CallState.MODE_ANSWERED_ELSEWHERE, fields[1]);
+
+		}else if(!isMyPhone(fields[0]) && !isMyPhone(fields[1])){
+
+			//This isn't us so someone connected to someone else
+			if(systemExtensions.contains(fields[1])){
+
+				/* If we have a call that was spawned by CALL
+				 * and it was from fields[1] then drop the original
+				 */
+				checkDialledCall(fields[0]);
+
+				//This is an outside call connecting to someone else, studio = on air
+				if(!isStudioExtension(fields[1]))
+					addCall(fields[0], fields[2], CallState.MODE_ANSWERED_ELSEWHERE,
+							fields[1], creationTime, null, null);
+				else
+					addCall(fields[0], fields[2], CallState.MODE_ON_AIR,
+							studioExtensions.get(fields[1]), creationTime, null, null);
+
+			}
+
+		}else if(!isMyPhone(fields[0]) && isMyPhone(fields[1])){
+
+			/* Someone connected to us, most likely this is a second channel
+			 * for the receiver after we've dialled.
+			 *
+			 * If we're already connected to this person on another channel drop it
+			 * and carry on with this channel (server behaviour 23/08/2014 WMM)
+			 */
+			String oldChannelID = getAlreadyConnectedChannel(fields[0]);
+
+			if(oldChannelID == null)
+				answered(addCall(fields[0], fields[2], CallState.MODE_ANSWERED, null,
+						creationTime, null, null));
+			else{
+
+				//CONNECTED/01234567890/5103/1408832327.787
+				removeCall(oldChannelID);
+				answered(addCall(fields[0], fields[2], CallState.MODE_ANSWERED, fields[1],
+						creationTime, null, null));
+
+			}
+
+		}
+
+		/* Caller is me and the receiver isn't, if we get here by normal control
+		 * messages then this should be ignored
+		 * TODO We can't ignore this, if you dial out then reload program
+		 * you won't get any call for this
+		 */
+
+	}
+
+	/**
+	 * Call Hangup received
+	 * @param channelID channel that hung up
+	 */
+	private void processHangup(String channelID){
+
+		LOGGER.info(xStrings.getString("CallStateEngine.hangupReceived") + channelID);
+
+		removeCall(channelID);
+
+	}
+
+	/**
+	 * Manual Call Created
+	 * If answeredBy = our name this is manual for us
+	 * else manual for someone else just display answered by
+	 * them
+	 * MANUAL/M_1458563910616/waynemerricks
+	 * @param channelID manual channel
+	 * @param answeredBy nickname of the person who answered
+	 */
+	private void processManual(String channelID, String answeredBy){
+
+		if(answeredBy.equals(getNickName()))
+			answered(addCall(xStrings.getString("CallStateEngine.callSystemUnknown"),
+					channelID, CallState.MODE_ANSWERED, answeredBy, new Date().getTime(),
+					answeredBy, null));
+		else
+			addCall(xStrings.getString("CallStateEngine.callSystemUnknown"), channelID,
+					CallState.MODE_ANSWERED_ELSEWHERE, answeredBy, new Date().getTime(),
+					answeredBy, null);
+
+	}
+
+	/**
+	 * If we dialled a call with this number remove the dialler end as we will be
+	 * creating the receiver end now we're connected
+	 * @param callerID
+	 */
+	private void checkDialledCall(String callerID){
+
+		String channelID = first(byNumber.get(callerID));
+
+		if(channelID != null)
+			removeCall(channelID);
+
+	}
+
+	/**
+	 * Checks to make sure we're not already connected to this number.  E.g.
+	 * When connecting you get 5001 -> 5002 and the reverse, 5002 -> 5001 so you know
+	 * both sides of the call are connected.
+	 * @param number number to check, matches calls connected to the number or the
+	 * friendly name we have for it
+	 * @return Asterisk channel ID or null if not found
+	 */
+	private String getAlreadyConnectedChannel(String number){
+
+		String channelID = first(byConnectedTo.get(number));
+
+		if(channelID == null && userExtensions.get(number) != null)
+			channelID = first(byConnectedTo.get(userExtensions.get(number)));
+
+		return channelID;
+
+	}
+
+	/**
+	 * Adds a call (replacing any call on the same channel)
+	 * @param phoneNumber phoneNumber of the call
+	 * @param channelID channel id of the call
+	 * @param mode CallState.MODE to start in
+	 * @param connectedTo Name or extension this call is connected to
+	 * @param creationTime creation time or -1 for now
+	 * @param originator number that started the call or null
+	 * @param queue queue the call came in on or null
+	 * @return the new call
+	 */
+	private CallState addCall(String phoneNumber, String channelID, int mode,
+			String connectedTo, long creationTime, String originator, String queue){
+
+		LOGGER.info(xStrings.getString("CallStateEngine.addingCall") +
+				phoneNumber + "/" + channelID + "/" + mode);
+
+		//Lookup ConnectedTo if we have an entry in the userExtensions map swap to this name
+		String friendlyConnected = userExtensions.get(connectedTo);
+
+		if(friendlyConnected == null)
+			friendlyConnected = "";
+
+		switch(mode){
+
+			case CallState.MODE_RINGING_ME:
+				connectedTo = phoneNumber;//FIX Outgoing Call needs dialling number here
+				break;
+			case CallState.MODE_ANSWERED:
+				connectedTo = getNickName();
+				break;
+			case CallState.MODE_ON_AIR:
+				break;
+			case CallState.MODE_QUEUED:
+			case CallState.MODE_QUEUED_ME:
+				connectedTo = "";
+				break;
+			default:
+				connectedTo = friendlyConnected;
+				break;
+
+		}
+
+		if(creationTime == -1)
+			creationTime = new Date().getTime();
+
+		CallState previous = calls.remove(channelID);
+
+		if(previous != null){
+
+			unindex(previous);
+			changes.add(new Change(REMOVED, null, previous));
+
+		}
+
+		CallState call = new CallState(channelID, phoneNumber, mode, connectedTo,
+				originator, queue, creationTime);
+
+		calls.put(channelID, call);
+		index(call);
+		changes.add(new Change(ADDED, null, call));
+
+		return call;
+
+	}
+
+	/**
+	 * Moves a call to a new mode
+	 * @param call call to change
+	 * @param mode new CallState.MODE
+	 * @param connectedTo new connected to or null to leave it as it is
+	 * @return the changed call
+	 */
+	private CallState changeCall(CallState call, int mode, String connectedTo){
+
+		CallState changed = call.changeMode(mode, connectedTo);
+
+		if(changed.getMode() != call.getMode() ||
+				!changed.getConnectedTo().equals(call.getConnectedTo())){
+
+			unindex(call);
+			calls.put(changed.getChannelID(), changed);
+			index(changed);
+			changes.add(new Change(CHANGED, call, changed));
+
+		}
+
+		return changed;
+
+	}
+
+	/**
+	 * Removes the call on this channel if we have it
+	 * @param channelID
+	 */
+	private void removeCall(String channelID){
+
+		CallState call = calls.remove(channelID);
+
+		if(call != null){
+
+			unindex(call);
+			changes.add(new Change(REMOVED, null, call));
+
+		}
+
+	}
+
+	/**
+	 * Flags a call as answered by us
+	 * @param call
+	 */
+	private void answered(CallState call){
+
+		changes.add(new Change(ANSWERED, null, call));
+
+	}
+
+	private void index(CallState call){
+
+		index(byNumber, call.getNumber(), call.getChannelID());
+		index(byConnectedTo, call.getConnectedTo(), call.getChannelID());
+
+	}
+
+	private void unindex(CallState call){
+
+		unindex(byNumber, call.getNumber(), call.getChannelID());
+		unindex(byConnectedTo, call.getConnectedTo(), call.getChannelID());
+
+	}
+
+	private static void index(HashMap<String, Set<String>> index, String key,
+			String channelID){
+
+		if(key != null && key.length() > 0){
+
+			Set<String> channels = index.get(key);
+
+			if(channels == null){
+
+				channels = new LinkedHashSet<String>();
+				index.put(key, channels);
+
+			}
+
+			channels.add(channelID);
+
+		}
+
+	}
+
+	private static void unindex(HashMap<String, Set<String>> index, String key,
+			String channelID){
+
+		Set<String> channels = index.get(key);
+
+		if(channels != null){
+
+			channels.remove(channelID);
+
+			if(channels.isEmpty())
+				index.remove(key);
+
+		}
+
+	}
+
+	/**
+	 * Returns the first channel in the set
+	 * @param channels
+	 * @return null if the set is null or empty
+	 */
+	private static String first(Set<String> channels){
+
+		String channelID = null;
+
+		if(channels != null && !channels.isEmpty())
+			channelID = channels.iterator().next();
+
+		return channelID;
+
+	}
+
+	/**
+	 * Takes the changes made so far ready to publish
+	 * @return
+	 */
+	private List<Change> takeChanges(){
+
+		List<Change> taken = changes;
+		changes = new ArrayList<Change>();
+
+		return taken;
+
+	}
+
+	/**
+	 * Tells the listeners about the changes in the order they were made
+	 * @param applied
+	 */
+	private void publish(List<Change> applied){
+
+		for(int i = 0; i < applied.size(); i++){
+
+			Change change = applied.get(i);
+
+			for(CallStateListener listener : listeners){
+
+				switch(change.type){
+
+					case ADDED:
+						listener.callAdded(change.call);
+						break;
+					case CHANGED:
+						listener.callChanged(change.previous, change.call);
+						break;
+					case REMOVED:
+						listener.callRemoved(change.call);
+						break;
+					case ANSWERED:
+						listener.callAnswered(change.call);
+						break;
+
+				}
+
+			}
+
+		}
+
+	}
+
+	/**
+	 * Internal method, reads studioExtensions from settings and separates them into
+	 * a hashmap [extension] => [name]
+	 */
+	private void populateStudioExtensions(){
+
+		String studios = settings.get("studioExtensions");
+
+		if(studios != null){
+
+			String[] extensions = studios.split(",");
+
+			for(int i = 0; i < extensions.length; i++){
+
+				if(extensions[i].contains("=>")){
+
+					String[] temp = extensions[i].split("=>");
+
+					if(temp.length == 2)
+						studioExtensions.put(temp[0], temp[1]);
+
+				}
+
+			}
+
+		}
+
+	}
+
+	/**
+	 * Internal method that checks if the given extension belongs to a studio
+	 * @param extension
+	 * @return true if it is a studio extension
+	 */
+	private boolean isStudioExtension(String extension){
+
+		return studioExtensions.get(extension) != null;
+
+	}
+
+	/**
+	 * Helper to check if a given extension is my phone extension
+	 * @param extension extension to check
+	 * @return true if it is my extension
+	 */
+	private boolean isMyPhone(String extension){
+
+		return settings.get("myExtension") != null &&
+				settings.get("myExtension").equals(extension);
+
+	}
+
+	/**
+	 * Checks if the given number is the on air queue
+	 * @param number
+	 * @return true if it is the on air queue
+	 */
+	private boolean isOnAirQueue(String number){
+
+		return number.equals(settings.get("onAirQueueNumber"));
+
+	}
+
+	/**
+	 * Checks if the given number is the incoming queue
+	 * @param number
+	 * @return true if it is the incoming queue
+	 */
+	private boolean isIncomingQueue(String number){
+
+		return number.equals(settings.get("incomingQueueNumber"));
+
+	}
+
+	private String getNickName(){
+
+		return settings.get("nickName");
+
+	}
+
+	/**
+	 * A change waiting to be published
+	 */
+	private static class Change {
+
+		private final int type;
+		private final CallState previous, call;
+
+		private Change(int type, CallState previous, CallState call){
+
+			this.type = type;
+			this.previous = previous;
+			this.call = call;
+
+		}
+
+	}
+
+}
@@ -0,0 +1,23 @@
+package com.github.waynemerricks.asteriskphone.calls;
+
+/**
+ * Told about every change CallStateEngine makes, in the order it made them
+ * @author Wayne Merricks
+ *
+ */
+public interface CallStateListener {
+
+	public void callAdded(CallState call);
+
+	public void callChanged(CallState previous, CallState call);
+
+	public void callRemoved(CallState call);
+
+	/**
+	 * We answered this call (or had it answered for us), sent after it was added
+	 * or changed
+	 * @param call
+	 */
+	public void callAnswered(CallState call);
+
+}
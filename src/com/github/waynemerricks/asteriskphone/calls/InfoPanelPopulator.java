@@ -1,6 +1,7 @@
 package com.github.waynemerricks.asteriskphone.calls;
 
 import com.github.waynemerricks.asteriskphone.database.DatabaseManager;
+import com.github.waynemerricks.asteriskphone.protocol.ControlMessage;
 import com.github.waynemerricks.asteriskphone.records.PhoneCall;
 
 public class InfoPanelPopulator implements Runnable {
@@ -8,23 +9,41 @@ public class InfoPanelPopulator implements Runnable {
 	private DatabaseManager database;
 	private CallInfoPanel infoPanel;
 	private String callerID, channelID, callLocation;
+	private ControlMessage callerRecord;
 
 	public InfoPanelPopulator(DatabaseManager database, CallInfoPanel infoPanel, 
 			String callerID, String channelID, String callLocation) {
 		
+		this(database, infoPanel, callerID, channelID, callLocation, null);
+		
+	}
+	
+	/**
+	 * Populates the panel from the CALLER message the server sent, if it is null
+	 * the caller is looked up in the DB
+	 */
+	public InfoPanelPopulator(DatabaseManager database, CallInfoPanel infoPanel, 
+			String callerID, String channelID, String callLocation,
+			ControlMessage callerRecord) {
+		
 		this.database = database;
 		this.infoPanel = infoPanel;
 		this.callerID = callerID;
 		this.channelID = channelID;
 		this.callLocation = callLocation;
+		this.callerRecord = callerRecord;
 		
 	}
 
 	@Override
 	public void run() {
 		
-		infoPanel.setPhoneCallRecord(new PhoneCall(database, callerID, channelID, 
-				callLocation));
+		PhoneCall call = new PhoneCall(database, callerID, channelID, callLocation, 
+				callerRecord);
+		
+		//First time callers may not exist yet, a CHANNELUPDATE will follow when they do
+		if(call.hasPeople())
+			infoPanel.setPhoneCallRecord(call);
 		
 	}
 
@@ -0,0 +1,96 @@
+package com.github.waynemerricks.asteriskphone.calls;
+
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import javax.swing.Timer;
+
+/**
+ * One clock for every call panel instead of a Timer thread per panel and label.
+ *
+ * Components register when they're added to the screen and unregister when they're
+ * removed so only visible panels are ticked.  The clock runs on the EDT so tick
+ * can change components directly, it stops when nothing is registered.
+ * @author Wayne Merricks
+ *
+ */
+public class PanelClock implements ActionListener {
+	
+	/** STATICS **/
+	public static final int TICK_PERIOD = 250; //ms, fine enough for the 750ms ringing flash
+	private static PanelClock clock = null;
+	
+	/** CLASS VARS **/
+	private CopyOnWriteArrayList<Tickable> tickables = new CopyOnWriteArrayList<Tickable>();
+	private Timer timer;
+	
+	private PanelClock(){
+		
+		timer = new Timer(TICK_PERIOD, this);
+		timer.setCoalesce(true);
+		
+	}
+	
+	/**
+	 * Returns the shared clock
+	 * @return
+	 */
+	public static synchronized PanelClock getClock(){
+		
+		if(clock == null)
+			clock = new PanelClock();
+		
+		return clock;
+		
+	}
+	
+	/**
+	 * Starts ticking the given component
+	 * @param tickable
+	 */
+	public synchronized void add(Tickable tickable){
+		
+		tickables.addIfAbsent(tickable);
+		
+		if(!timer.isRunning())
+			timer.start();
+		
+	}
+	
+	/**
+	 * Stops ticking the given component
+	 * @param tickable
+	 */
+	public synchronized void remove(Tickable tickable){
+		
+		tickables.remove(tickable);
+		
+		if(tickables.isEmpty())
+			timer.stop();
+		
+	}
+	
+	/**
+	 * Ticks everything in one pass on the EDT
+	 */
+	@Override
+	public void actionPerformed(ActionEvent evt){
+		
+		long now = System.currentTimeMillis();
+		
+		for(Tickable tickable : tickables)
+			tickable.tick(now);
+		
+	}
+	
+	/**
+	 * Something that changes with time, tick is called on the EDT every TICK_PERIOD
+	 */
+	public interface Tickable {
+		
+		public void tick(long now);
+		
+	}
+	
+}
@@ -1,20 +1,19 @@
 package com.github.waynemerricks.asteriskphone.calls;
 
-import java.text.SimpleDateFormat;
 import java.util.Date;
-import java.util.Timer;
-import java.util.TimerTask;
 
 import javax.swing.SwingUtilities;
 
-public class TimerLabel extends TransparentLabel {
+public class TimerLabel extends TransparentLabel implements PanelClock.Tickable {
 
 	/** STATICS **/
 	private static final long serialVersionUID = 1L;
 
 	/** CLASS VARS **/
-	private long creationTimer, stageTimer, hourOffset;
-	private Timer timeUpdateTimer = new Timer("time updater"); 
+	private volatile long creationTimer, stageTimer;
+	private long hourOffset;
+	private volatile long lastSecond = -1; //Last second shown, -1 redraws on the next tick
+	private char[] timerText = "00:00 / 00:00".toCharArray(); 
 	
 	public TimerLabel() {
 		
@@ -69,7 +68,8 @@ public class TimerLabel extends TransparentLabel {
 	}
 
 	/**
-	 * Sets up the time lapsed on this object and spawns a thread to update it
+	 * Sets up the time lapsed on this object, the shared PanelClock updates it while
+	 * it is on screen
 	 * @param creationTimer null to set the time to now
 	 */
 	private void setupTimer(Date creationTimer){
@@ -89,16 +89,32 @@ public class TimerLabel extends TransparentLabel {
 		 */
 		setTimerText();
 		
-		//Start the timer going
-		timeUpdateTimer.schedule(new TimerTask(){
-			
-			public void run(){
-				
-				setTimerText();
-				
-			}
-			
-		}, 1000, 1000);
+	}
+	
+	@Override
+	public void addNotify(){
+		
+		super.addNotify();
+		PanelClock.getClock().add(this);
+		
+	}
+	
+	@Override
+	public void removeNotify(){
+		
+		PanelClock.getClock().remove(this);
+		super.removeNotify();
+		
+	}
+	
+	/**
+	 * Called by the PanelClock on the EDT, only redraws when the second changes
+	 */
+	@Override
+	public void tick(long now){
+		
+		if(now / 1000 != lastSecond)
+			showTime(now);
 		
 	}
 	
@@ -109,6 +125,7 @@ public class TimerLabel extends TransparentLabel {
 	public void setCreationTime(long time){
 		
 		creationTimer = time;
+		lastSecond = -1;
 		
 	}
 	
@@ -122,14 +139,7 @@ public class TimerLabel extends TransparentLabel {
 			
 			public void run(){
 			
-				long now = new Date().getTime();
-				Date createTime = new Date(now - creationTimer - hourOffset);
-				Date stageTime = new Date(now - stageTimer - hourOffset);
-				
-				SimpleDateFormat sdf = new SimpleDateFormat("mm:ss"); 
-				
-				String labelText = sdf.format(createTime) + " / " + sdf.format(stageTime); 
-				setText(labelText);
+				showTime(System.currentTimeMillis());
 				
 			}
 			
@@ -137,12 +147,47 @@ public class TimerLabel extends TransparentLabel {
 		
 	}
 	
+	/**
+	 * Sets the label to creation/stage time in mm:ss / mm:ss, must be called on the EDT
+	 * @param now current time
+	 */
+	private void showTime(long now){
+		
+		lastSecond = now / 1000;
+		
+		formatTime(now - creationTimer - hourOffset, 0);
+		formatTime(now - stageTimer - hourOffset, 8);
+		
+		setText(new String(timerText));
+		
+	}
+	
+	/**
+	 * Writes the given time as mm:ss into timerText, minutes wrap at 60 as they 
+	 * always have
+	 * @param time time lapsed in ms
+	 * @param offset position in timerText to write to
+	 */
+	private void formatTime(long time, int offset){
+		
+		long seconds = Math.max(0, time / 1000);
+		int minutes = (int)((seconds / 60) % 60);
+		int secs = (int)(seconds % 60);
+		
+		timerText[offset] = (char)('0' + minutes / 10);
+		timerText[offset + 1] = (char)('0' + minutes % 10);
+		timerText[offset + 3] = (char)('0' + secs / 10);
+		timerText[offset + 4] = (char)('0' + secs % 10);
+		
+	}
+	
 	/**
 	 * Resets the time lapsed for the current staged time
 	 */
 	public void resetStageTime(){
 		
 		stageTimer = new Date().getTime();
+		lastSecond = -1;
 		
 	}
 	
@@ -9,7 +9,7 @@ public class ActivePersonChanger implements Runnable {
 
 	private String channelID;
 	private long activePerson;
-	private Connection writeConnection;
+	private DatabaseManager database;
 	private I18NStrings xStrings;
 	
 	private static final Logger LOGGER = Logger.getLogger(ActivePersonChanger.class.getName());//Logger
@@ -18,18 +18,17 @@ public class ActivePersonChanger implements Runnable {
 	 * Changes the person associated with the given channel ID in the database
 	 * @param language I18N Language
 	 * @param country I18N Country
-	 * @param readConnection DB Read Connection
-	 * @param writeConnection DB Write Connection
+	 * @param database DatabaseManager to borrow connections from
 	 * @param controlRoom Control room to send XMPP messages upon completion
 	 * @param personID ID of the person to change to
 	 * @param channelID Channel of call to change
 	 */
 	public ActivePersonChanger(String language, String country, 
-			Connection writeConnection, String activePerson, String channelID) {
+			DatabaseManager database, String activePerson, String channelID) {
 		
 		xStrings = new I18NStrings(language, country);
 		
-		this.writeConnection = writeConnection;
+		this.database = database;
 		this.activePerson = Integer.parseInt(activePerson);
 		this.channelID = channelID;
 		
@@ -56,6 +55,7 @@ public class ActivePersonChanger implements Runnable {
 		// UPDATE callhistory SET activePerson = activePerson WHERE callchannel = channelID
 		boolean success = false;
 		String SQL = null;
+		Connection writeConnection = null;
 		PreparedStatement statement = null;
 		
 		String error = xStrings.getString(
@@ -68,6 +68,7 @@ public class ActivePersonChanger implements Runnable {
 			SQL = "UPDATE `callhistory` SET `activePerson` = ? " + 
 					"WHERE callchannel = ?"; 
 			
+			writeConnection = database.getWriteConnection();
 			statement = writeConnection.prepareStatement(SQL);
 			statement.setLong(1, activePerson);
 			statement.setString(2, channelID);
@@ -88,6 +89,11 @@ public class ActivePersonChanger implements Runnable {
             		statement.close();
             	}catch(Exception e){}
 				
+			if(writeConnection != null)
+				try{
+					writeConnection.close();
+				}catch(Exception e){}
+
 		}
 		
 		return success;
@@ -0,0 +1,268 @@
+package com.github.waynemerricks.asteriskphone.database;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Moves old callhistory and conversations rows into their archive tables.
+ *
+ * Nothing reads callhistory further back than the call log's maxRecordAge so rows
+ * older than the archive horizon are moved to callhistory_archive (and conversations
+ * to conversations_archive) a batch at a time, each batch in its own transaction,
+ * with a pause between batches so the archiver never holds locks for long or starves
+ * the call handling threads.  Keeps the hot tables small enough to stay in the
+ * buffer pool no matter how many years of calls there are.
+ *
+ * Caller history still sees archived conversations as SELECT_CONVERSATIONS_FOR_PERSON
+ * reads both tables.  The archive tables are created by SchemaMigrator.
+ * @author Wayne Merricks
+ *
+ */
+public class CallHistoryArchiver implements Runnable {
+
+	//CLASS VARS
+	private DatabaseManager database;
+	private long horizon, period, batchDelay;
+	private int batchSize;
+	private volatile boolean running = false;
+	private ScheduledExecutorService scheduler;
+	private I18NStrings xStrings;
+
+	//STATICS
+	private static final Logger LOGGER = Logger.getLogger(CallHistoryArchiver.class.getName());//Logger
+	private static final long START_DELAY = 60000L; //Leave startup alone before the first run
+	private static final String[][] TABLES = {
+		//Table, archive table, primary key
+		{"callhistory", "callhistory_archive", "callhistory_id"},
+		{"conversations", "conversations_archive", "conversations_id"}
+	};
+
+	/**
+	 * Creates a new archiver, call start() to schedule it
+	 * @param database DatabaseManager to borrow write connections from
+	 * @param horizon rows older than this (ms) are archived
+	 * @param period time in ms between archive runs
+	 * @param batchSize max rows moved per transaction
+	 * @param batchDelay pause in ms between batches
+	 * @param language I18N language e.g. en
+	 * @param country I18N country e.g. GB
+	 */
+	public CallHistoryArchiver(DatabaseManager database, long horizon, long period,
+			int batchSize, long batchDelay, String language, String country){
+
+		this.database = database;
+		this.horizon = horizon;
+		this.period = period;
+		this.batchSize = batchSize;
+		this.batchDelay = batchDelay;
+		xStrings = new I18NStrings(language, country);
+
+	}
+
+	/**
+	 * Schedules an archive run every period on a background thread
+	 */
+	public synchronized void start(){
+
+		if(!running){
+
+			running = true;
+
+			scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory(){
+				public Thread newThread(Runnable r){
+					Thread thread = new Thread(r, "CallHistoryArchiver");
+					thread.setDaemon(true);
+					thread.setPriority(Thread.MIN_PRIORITY);
+					return thread;
+				}
+			});
+
+			scheduler.scheduleWithFixedDelay(this, START_DELAY, period,
+					TimeUnit.MILLISECONDS);
+
+		}
+
+	}
+
+	/**
+	 * Stops archiving, a batch in progress is finished (or rolled back) first
+	 */
+	public synchronized void shutdown(){
+
+		if(running){
+
+			running = false;
+			scheduler.shutdown();
+
+			try{
+				scheduler.awaitTermination(batchDelay + 10000L, TimeUnit.MILLISECONDS);
+			}catch(InterruptedException e){
+				Thread.currentThread().interrupt();
+			}
+
+		}
+
+	}
+
+	/**
+	 * One archive run, moves everything older than the horizon
+	 */
+	public void run(){
+
+		Timestamp cutOff = new Timestamp(System.currentTimeMillis() - horizon);
+
+		for(int i = 0; i < TABLES.length && running; i++){
+
+			int moved = 0;
+			int batch = batchSize;
+
+			try{
+
+				while(running && batch == batchSize){
+
+					batch = archiveBatch(TABLES[i][0], TABLES[i][1], TABLES[i][2], cutOff);
+					moved += batch;
+
+					if(batch == batchSize)
+						Thread.sleep(batchDelay);
+
+				}
+
+			}catch(SQLException e){
+				LOGGER.severe(xStrings.getString("CallHistoryArchiver.errorArchiving") +
+						TABLES[i][0] + " " + e.getMessage());
+			}catch(InterruptedException e){
+				Thread.currentThread().interrupt();
+				running = false;
+			}
+
+			if(moved > 0)
+				LOGGER.info(xStrings.getString("CallHistoryArchiver.archived") +
+						TABLES[i][0] + " " + moved);
+
+		}
+
+	}
+
+	/**
+	 * Moves up to batchSize of the oldest rows before the cut off into the archive
+	 * table in one transaction
+	 * @param table table to archive from
+	 * @param archive table to archive to (same structure)
+	 * @param key primary key column
+	 * @param cutOff rows older than this are moved
+	 * @return number of rows moved
+	 * @throws SQLException if the batch failed, nothing is committed
+	 */
+	private int archiveBatch(String table, String archive, String key, Timestamp cutOff)
+			throws SQLException {
+
+		Connection writeConnection = null;
+		PreparedStatement statement = null;
+		ResultSet resultSet = null;
+		List<Integer> ids = new ArrayList<Integer>();
+
+		try{
+
+			writeConnection = database.getWriteConnection();
+
+			//Table names only ever come from TABLES
+			statement = writeConnection.prepareStatement("SELECT `" + key + "` FROM `" +
+					table + "` WHERE `time` < ? ORDER BY `time` ASC LIMIT ?");
+			statement.setTimestamp(1, cutOff);
+			statement.setInt(2, batchSize);
+			resultSet = statement.executeQuery();
+
+			while(resultSet.next())
+				ids.add(resultSet.getInt(key));
+
+			resultSet.close();
+			resultSet = null;
+			statement.close();
+			statement = null;
+
+			if(ids.size() > 0){
+
+				String inList = getPlaceholders(ids.size());
+
+				writeConnection.setAutoCommit(false);
+
+				statement = writeConnection.prepareStatement("INSERT INTO `" + archive +
+						"` SELECT * FROM `" + table + "` WHERE `" + key + "` IN " + inList);
+				setIDs(statement, ids);
+				statement.executeUpdate();
+				statement.close();
+
+				statement = writeConnection.prepareStatement("DELETE FROM `" + table +
+						"` WHERE `" + key + "` IN " + inList);
+				setIDs(statement, ids);
+				statement.executeUpdate();
+
+				writeConnection.commit();
+
+			}
+
+		}finally{
+
+			if(resultSet != null)
+				try{
+					resultSet.close();
+				}catch(SQLException e){}
+
+			if(statement != null)
+				try{
+					statement.close();
+				}catch(SQLException e){}
+
+			if(writeConnection != null)
+				try{
+					writeConnection.close();//Pool rolls back anything left uncommitted
+				}catch(SQLException e){}
+
+		}
+
+		return ids.size();
+
+	}
+
+	/**
+	 * Returns (?, ?, ...) with count placeholders
+	 * @param count
+	 * @return
+	 */
+	private static String getPlaceholders(int count){
+
+		StringBuilder placeholders = new StringBuilder("(");
+
+		for(int i = 0; i < count; i++){
+
+			if(i > 0)
+				placeholders.append(", ");
+
+			placeholders.append("?");
+
+		}
+
+		return placeholders.append(")").toString();
+
+	}
+
+	private static void setIDs(PreparedStatement statement, List<Integer> ids)
+			throws SQLException {
+
+		for(int i = 0; i < ids.size(); i++)
+			statement.setInt(i + 1, ids.get(i));
+
+	}
+
+}
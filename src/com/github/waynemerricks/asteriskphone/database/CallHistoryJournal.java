@@ -0,0 +1,625 @@
+package com.github.waynemerricks.asteriskphone.database;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Write behind journal for the callhistory table.
+ *
+ * Call state changes are queued in memory and a single background thread writes
+ * them as multi row INSERTs every flush period or when the batch is full, whichever
+ * comes first.  The thread that records a state change never waits on MySQL.
+ *
+ * If MySQL can't be reached the batch is appended to a local spill file which is
+ * replayed (in order) before anything else once the database is back.
+ * @author Wayne Merricks
+ *
+ */
+public class CallHistoryJournal implements Runnable {
+
+	//CLASS VARS
+	private DatabaseManager database;
+	private File spillFile;
+	private long flushPeriod;
+	private int batchSize;
+	private LinkedBlockingQueue<JournalEntry> queue = new LinkedBlockingQueue<JournalEntry>();
+	private volatile boolean running = false;
+	private Thread flushThread;
+	private long lastReplayAttempt = 0;
+	private long writtenCount = 0, spilledCount = 0, batchCount = 0;
+	private I18NStrings xStrings;
+
+	//STATICS
+	private static final Logger LOGGER = Logger.getLogger(CallHistoryJournal.class.getName());//Logger
+	private static final String SPILL_SEPARATOR = "\t";
+	private static final String SPILL_ENCODING = "UTF-8";
+	private static final long REPLAY_RETRY_PERIOD = 30000L; //Wait between spill retries when idle
+	private static final long SHUTDOWN_WAIT = 10000L; //Time to wait for the final flush on shutdown
+	private static final String INSERT_PREFIX = "INSERT INTO `callhistory` (`time`, " +
+			"`phonenumber`, `state`, `operator`, `callchannel`, `activePerson`) VALUES ";
+	private static final String INSERT_ROW = "(?, ?, ?, ?, ?, ?)";
+
+	/**
+	 * Creates a new journal, call start() to begin flushing
+	 * @param database DatabaseManager to borrow write connections from
+	 * @param spillFile file to store rows in while MySQL is unreachable
+	 * @param flushPeriod max time in ms a row will sit in the queue before it is written
+	 * @param batchSize max number of rows per INSERT
+	 * @param language I18N language e.g. en
+	 * @param country I18N country e.g. GB
+	 */
+	public CallHistoryJournal(DatabaseManager database, File spillFile, long flushPeriod,
+			int batchSize, String language, String country){
+
+		this.database = database;
+		this.spillFile = spillFile;
+		this.flushPeriod = flushPeriod;
+		this.batchSize = batchSize;
+		xStrings = new I18NStrings(language, country);
+
+	}
+
+	/**
+	 * Starts the background flush thread
+	 */
+	public synchronized void start(){
+
+		if(!running){
+
+			running = true;
+			flushThread = new Thread(this, "CallHistoryJournal");
+			flushThread.setDaemon(true);
+			flushThread.start();
+
+		}
+
+	}
+
+	/**
+	 * Queues a call state change, returns straight away
+	 * @param phoneNumber caller id
+	 * @param state state char e.g. R, Q, A, P, H, C
+	 * @param operator operator or NA
+	 * @param channel channel id of the call
+	 * @param activePerson person id to store against this row or null
+	 */
+	public void record(String phoneNumber, String state, String operator, String channel,
+			String activePerson){
+
+		queue.offer(new JournalEntry(System.currentTimeMillis(), phoneNumber, state,
+				operator, channel, activePerson));
+
+	}
+
+	/**
+	 * Waits until everything queued before this call has been written to the DB or
+	 * the spill file.  Use this when the next step reads back what you just recorded.
+	 * @param timeOut max time to wait in ms
+	 * @return true if the queue was flushed before the time out
+	 */
+	public boolean flush(long timeOut){
+
+		boolean flushed = false;
+		CountDownLatch latch = new CountDownLatch(1);
+
+		queue.offer(new JournalEntry(latch));
+
+		try{
+			flushed = latch.await(timeOut, TimeUnit.MILLISECONDS);
+		}catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+		}
+
+		return flushed;
+
+	}
+
+	/**
+	 * Stops the flush thread after writing anything left in the queue
+	 */
+	public void shutdown(){
+
+		Thread thread = null;
+
+		synchronized(this){
+
+			running = false;
+			thread = flushThread;
+
+		}
+
+		if(thread != null){
+
+			queue.offer(new JournalEntry(new CountDownLatch(1)));//Wake up the flush thread
+
+			try{
+				thread.join(SHUTDOWN_WAIT);
+			}catch(InterruptedException e){
+				Thread.currentThread().interrupt();
+			}
+
+		}
+
+		LOGGER.info(toString());
+
+	}
+
+	@Override
+	public void run() {
+
+		ArrayList<JournalEntry> batch = new ArrayList<JournalEntry>();
+		ArrayList<CountDownLatch> waiting = new ArrayList<CountDownLatch>();
+
+		while(running || !queue.isEmpty()){
+
+			try{
+
+				JournalEntry entry = queue.poll(flushPeriod, TimeUnit.MILLISECONDS);
+				long deadline = System.currentTimeMillis() + flushPeriod;
+
+				/* Keep collecting until the batch is full, the flush period has
+				 * passed or someone is waiting on a flush */
+				while(entry != null){
+
+					if(entry.flushed != null){
+
+						waiting.add(entry.flushed);
+						entry = null;
+
+					}else{
+
+						batch.add(entry);
+
+						long remaining = deadline - System.currentTimeMillis();
+
+						if(batch.size() >= batchSize || remaining <= 0)
+							entry = null;
+						else
+							entry = queue.poll(remaining, TimeUnit.MILLISECONDS);
+
+					}
+
+				}
+
+			}catch(InterruptedException e){
+				running = false;
+			}
+
+			if(batch.size() > 0)
+				write(batch);
+			else if(spillFile.exists() && System.currentTimeMillis() - lastReplayAttempt >
+					REPLAY_RETRY_PERIOD)
+				replaySpill();
+
+			batch.clear();
+
+			for(int i = 0; i < waiting.size(); i++)
+				waiting.get(i).countDown();
+
+			waiting.clear();
+
+		}
+
+	}
+
+	/**
+	 * Writes the given rows to the DB, any spilled rows are replayed first so
+	 * the callhistory ids stay in the order the events happened
+	 * @param batch rows to write
+	 */
+	private void write(List<JournalEntry> batch){
+
+		boolean written = false;
+
+		if(!spillFile.exists() || replaySpill()){
+
+			try{
+
+				insert(batch);
+				written = true;
+
+			}catch(SQLException e){
+
+				LOGGER.severe(xStrings.getString("CallHistoryJournal.errorWritingBatch") +
+						e.getMessage());
+
+			}
+
+		}
+
+		if(written){
+
+			synchronized(this){
+
+				writtenCount += batch.size();
+				batchCount++;
+
+			}
+
+		}else
+			spill(batch);
+
+	}
+
+	/**
+	 * Inserts the given rows as one transaction using multi row INSERTs of at
+	 * most batchSize rows
+	 * @param entries rows to insert
+	 * @throws SQLException if the rows could not be written, nothing is committed
+	 */
+	private void insert(List<JournalEntry> entries) throws SQLException {
+
+		Connection writeConnection = null;
+		PreparedStatement statement = null;
+
+		try{
+
+			writeConnection = database.getWriteConnection();
+
+			if(entries.size() > batchSize)
+				writeConnection.setAutoCommit(false);
+
+			for(int start = 0; start < entries.size(); start += batchSize){
+
+				int end = Math.min(start + batchSize, entries.size());
+
+				statement = writeConnection.prepareStatement(getInsertSQL(end - start));
+
+				int parameter = 1;
+
+				for(int i = start; i < end; i++){
+
+					JournalEntry entry = entries.get(i);
+					statement.setTimestamp(parameter++, new Timestamp(entry.time));
+					statement.setString(parameter++, entry.phoneNumber);
+					statement.setString(parameter++, entry.state);
+					statement.setString(parameter++, entry.operator);
+					statement.setString(parameter++, entry.channel);
+
+					if(entry.activePerson == null)
+						statement.setNull(parameter++, Types.INTEGER);
+					else
+						statement.setString(parameter++, entry.activePerson);
+
+				}
+
+				statement.executeUpdate();
+				statement.close();
+				statement = null;
+
+			}
+
+			if(!writeConnection.getAutoCommit())
+				writeConnection.commit();
+
+		}finally{
+
+			if(statement != null)
+				try{
+					statement.close();
+				}catch(Exception e){}
+
+			if(writeConnection != null)
+				try{
+					writeConnection.close();//Pool rolls back anything left uncommitted
+				}catch(Exception e){}
+
+		}
+
+	}
+
+	/**
+	 * Builds a multi row INSERT for the given number of rows
+	 * @param rows number of rows
+	 * @return SQL
+	 */
+	private String getInsertSQL(int rows){
+
+		StringBuilder SQL = new StringBuilder(INSERT_PREFIX);
+
+		for(int i = 0; i < rows; i++){
+
+			if(i > 0)
+				SQL.append(", ");
+
+			SQL.append(INSERT_ROW);
+
+		}
+
+		return SQL.toString();
+
+	}
+
+	/**
+	 * Appends the given rows to the spill file and syncs it to disk
+	 * @param entries rows to spill
+	 */
+	private void spill(List<JournalEntry> entries){
+
+		FileOutputStream out = null;
+
+		try{
+
+			out = new FileOutputStream(spillFile, true);
+			Writer writer = new OutputStreamWriter(out, SPILL_ENCODING);
+
+			for(int i = 0; i < entries.size(); i++)
+				writer.write(entries.get(i).toSpillLine() + "\n");
+
+			writer.flush();
+			out.getFD().sync();
+
+			synchronized(this){
+				spilledCount += entries.size();
+			}
+
+			LOGGER.warning(xStrings.getString("CallHistoryJournal.spilledRows") +
+					entries.size());
+
+		}catch(IOException e){
+
+			LOGGER.severe(xStrings.getString("CallHistoryJournal.errorSpilling") +
+					spillFile.getAbsolutePath());
+
+			for(int i = 0; i < entries.size(); i++)
+				LOGGER.severe(entries.get(i).toSpillLine());//Last resort, keep it in the log
+
+		}finally{
+
+			if(out != null)
+				try{
+					out.close();
+				}catch(Exception e){}
+
+		}
+
+	}
+
+	/**
+	 * Writes everything in the spill file to the DB and deletes the file
+	 * @return true if the spill file has been emptied
+	 */
+	private boolean replaySpill(){
+
+		boolean replayed = false;
+		lastReplayAttempt = System.currentTimeMillis();
+
+		ArrayList<JournalEntry> entries = new ArrayList<JournalEntry>();
+		BufferedReader reader = null;
+		boolean read = false;
+
+		try{
+
+			reader = new BufferedReader(new InputStreamReader(
+					new FileInputStream(spillFile), SPILL_ENCODING));
+
+			String line = null;
+
+			while((line = reader.readLine()) != null){
+
+				JournalEntry entry = JournalEntry.fromSpillLine(line);
+
+				if(entry != null)
+					entries.add(entry);
+				else
+					LOGGER.warning(xStrings.getString("CallHistoryJournal.badSpillLine") +
+							line);
+
+			}
+
+			read = true;
+
+		}catch(IOException e){
+
+			LOGGER.severe(xStrings.getString("CallHistoryJournal.errorReadingSpill") +
+					spillFile.getAbsolutePath());
+
+		}finally{
+
+			if(reader != null)
+				try{
+					reader.close();
+				}catch(Exception e){}
+
+		}
+
+		if(read){
+
+			try{
+
+				if(entries.size() > 0)
+					insert(entries);
+
+				LOGGER.info(xStrings.getString("CallHistoryJournal.replayedSpill") +
+						entries.size());
+
+				synchronized(this){
+					writtenCount += entries.size();
+				}
+
+				//Rows are in the DB now so make sure they can't be replayed twice
+				if(!spillFile.delete() && !truncateSpill())
+					LOGGER.severe(xStrings.getString("CallHistoryJournal.errorDeletingSpill") +
+							spillFile.getAbsolutePath());
+				else
+					replayed = true;
+
+			}catch(SQLException e){
+
+				LOGGER.warning(xStrings.getString("CallHistoryJournal.errorReplayingSpill") +
+						e.getMessage());
+
+			}
+
+		}
+
+		return replayed;
+
+	}
+
+	/**
+	 * Empties the spill file, used if it can't be deleted
+	 * @return true if the file is now empty
+	 */
+	private boolean truncateSpill(){
+
+		boolean truncated = false;
+
+		try{
+
+			new FileOutputStream(spillFile, false).close();
+			truncated = true;
+
+		}catch(IOException e){
+			truncated = false;
+		}
+
+		return truncated;
+
+	}
+
+	/**
+	 * Returns the number of rows waiting to be written
+	 * @return
+	 */
+	public int getQueueSize(){
+
+		return queue.size();
+
+	}
+
+	/**
+	 * Returns the number of rows written to the DB
+	 * @return
+	 */
+	public synchronized long getWrittenCount(){
+
+		return writtenCount;
+
+	}
+
+	/**
+	 * Returns the number of rows that have been written to the spill file
+	 * @return
+	 */
+	public synchronized long getSpilledCount(){
+
+		return spilledCount;
+
+	}
+
+	public synchronized String toString(){
+
+		return xStrings.getString("CallHistoryJournal.statistics") + " written " +
+				writtenCount + " in " + batchCount + " batches, spilled " + spilledCount +
+				", queued " + queue.size();
+
+	}
+
+	/**
+	 * A single callhistory row or a flush marker if flushed is set
+	 */
+	private static class JournalEntry {
+
+		private long time;
+		private String phoneNumber, state, operator, channel, activePerson;
+		private CountDownLatch flushed;
+
+		private JournalEntry(long time, String phoneNumber, String state, String operator,
+				String channel, String activePerson){
+
+			this.time = time;
+			this.phoneNumber = phoneNumber;
+			this.state = state;
+			this.operator = operator;
+			this.channel = channel;
+			this.activePerson = activePerson;
+
+		}
+
+		private JournalEntry(CountDownLatch flushed){
+
+			this.flushed = flushed;
+
+		}
+
+		/**
+		 * Tab separated line for the spill file, empty activePerson means null
+		 * @return
+		 */
+		private String toSpillLine(){
+
+			return time + SPILL_SEPARATOR + clean(phoneNumber) + SPILL_SEPARATOR +
+					clean(state) + SPILL_SEPARATOR + clean(operator) + SPILL_SEPARATOR +
+					clean(channel) + SPILL_SEPARATOR + clean(activePerson);
+
+		}
+
+		/**
+		 * Strips characters that would break the spill file format
+		 * @param value
+		 * @return
+		 */
+		private static String clean(String value){
+
+			String cleaned = "";
+
+			if(value != null)
+				cleaned = value.replace('\t', ' ').replace('\n', ' ').replace('\r', ' ');
+
+			return cleaned;
+
+		}
+
+		/**
+		 * Reads an entry back from a spill file line
+		 * @param line line to parse
+		 * @return entry or null if the line is corrupt
+		 */
+		private static JournalEntry fromSpillLine(String line){
+
+			JournalEntry entry = null;
+			String[] fields = line.split(SPILL_SEPARATOR, -1);
+
+			if(fields.length == 6){
+
+				try{
+
+					String activePerson = fields[5];
+
+					if(activePerson.length() == 0)
+						activePerson = null;
+
+					entry = new JournalEntry(Long.parseLong(fields[0]), fields[1], fields[2],
+							fields[3], fields[4], activePerson);
+
+				}catch(NumberFormatException e){
+					entry = null;
+				}
+
+			}
+
+			return entry;
+
+		}
+
+	}
+
+}
@@ -0,0 +1,495 @@
+package com.github.waynemerricks.asteriskphone.database;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.LinkedList;
+import java.util.Properties;
+import java.util.logging.Logger;
+
+/**
+ * Bounded pool of MySQL connections.
+ *
+ * Connections are borrowed for the length of a task and handed back by calling
+ * close() on them as you would with a normal connection.  Idle connections are
+ * validated as they are borrowed which replaces the old hourly keep alive query.
+ * @author Wayne Merricks
+ *
+ */
+public class ConnectionPool {
+
+	//CLASS VARS
+	private String name, url;
+	private Properties connectionProperties;
+	private LinkedList<PooledConnection> idleConnections = new LinkedList<PooledConnection>();
+	private int maxSize, size = 0, active = 0;
+	private long borrowTimeOut = DEFAULT_BORROW_TIMEOUT;
+	private long borrowCount = 0, totalWaitTime = 0, maxWaitTime = 0, failedValidations = 0;
+	private boolean shutdown = false;
+	private I18NStrings xStrings;
+
+	//STATICS
+	private static final Logger LOGGER = Logger.getLogger(ConnectionPool.class.getName());//Logger
+	private static final int VALIDATION_TIMEOUT = 3; //Seconds to wait for isValid
+	private static final long VALIDATION_IDLE_TIME = 30000L; //Only ping connections idle for longer than this
+	private static final long DEFAULT_BORROW_TIMEOUT = 30000L; //Time to wait for a free connection
+
+	/**
+	 * Creates a new pool, no connections are opened until they are borrowed
+	 * @param name Name of the pool used in log messages e.g. read/write
+	 * @param url JDBC url of the database
+	 * @param connectionProperties user, password and any other driver properties
+	 * @param maxSize maximum number of connections this pool will open at once
+	 * @param language I18N language e.g. en
+	 * @param country I18N country e.g. GB
+	 */
+	public ConnectionPool(String name, String url, Properties connectionProperties,
+			int maxSize, String language, String country){
+
+		this.name = name;
+		this.url = url;
+		this.connectionProperties = connectionProperties;
+		this.maxSize = maxSize;
+		xStrings = new I18NStrings(language, country);
+
+	}
+
+	/**
+	 * Borrows a connection from the pool.  If all connections are in use this will
+	 * wait until one is returned or the borrow time out expires.
+	 *
+	 * Call close() on the returned connection to give it back to the pool.
+	 * @return a valid connection
+	 * @throws SQLException if we timed out waiting or the connection could not be opened
+	 */
+	public Connection borrow() throws SQLException {
+
+		long start = System.currentTimeMillis();
+		PooledConnection pooled = null;
+		boolean create = false;
+
+		synchronized(this){
+
+			long deadline = start + borrowTimeOut;
+
+			while(pooled == null && !create){
+
+				if(shutdown)
+					throw new SQLException(xStrings.getString("ConnectionPool.poolShutdown") +
+							name);
+
+				if(idleConnections.size() > 0)
+					pooled = idleConnections.removeLast();//Most recently used is least likely to be stale
+				else if(size < maxSize){
+
+					size++;
+					create = true;
+
+				}else{
+
+					long remaining = deadline - System.currentTimeMillis();
+
+					if(remaining <= 0)
+						throw new SQLException(xStrings.getString(
+								"ConnectionPool.borrowTimedOut") + name);
+
+					try{
+						wait(remaining);
+					}catch(InterruptedException e){
+
+						Thread.currentThread().interrupt();
+						throw new SQLException(xStrings.getString(
+								"ConnectionPool.borrowInterrupted") + name);
+
+					}
+
+				}
+
+			}
+
+			active++;
+
+			long waited = System.currentTimeMillis() - start;
+			borrowCount++;
+			totalWaitTime += waited;
+
+			if(waited > maxWaitTime)
+				maxWaitTime = waited;
+
+		}
+
+		//Open or validate outside of the lock so other threads aren't held up
+		try{
+
+			if(create)
+				pooled = new PooledConnection(openConnection());
+			else if(!isValid(pooled)){
+
+				LOGGER.warning(xStrings.getString("ConnectionPool.replacingStaleConnection") +
+						name);
+				closeQuietly(pooled.connection);
+				pooled = new PooledConnection(openConnection());
+
+			}
+
+		}catch(SQLException e){
+
+			synchronized(this){
+
+				active--;
+				size--;
+				notifyAll();
+
+			}
+
+			throw e;
+
+		}
+
+		return (Connection)Proxy.newProxyInstance(Connection.class.getClassLoader(),
+				new Class<?>[]{Connection.class}, new PooledConnectionHandler(pooled));
+
+	}
+
+	/**
+	 * Opens a new physical connection to the database
+	 * @return new connection
+	 * @throws SQLException
+	 */
+	private Connection openConnection() throws SQLException {
+
+		LOGGER.info(xStrings.getString("ConnectionPool.openingConnection") + name);
+
+		return DriverManager.getConnection(url, connectionProperties);
+
+	}
+
+	/**
+	 * Checks the given connection is still alive.  Connections that were used
+	 * recently are assumed to be alive so we don't ping the server on every borrow
+	 * during busy periods.
+	 * @param pooled connection to check
+	 * @return true if the connection can be used
+	 */
+	private boolean isValid(PooledConnection pooled){
+
+		boolean valid = false;
+
+		try{
+
+			if(System.currentTimeMillis() - pooled.lastUsed < VALIDATION_IDLE_TIME)
+				valid = !pooled.connection.isClosed();
+			else
+				valid = pooled.connection.isValid(VALIDATION_TIMEOUT);
+
+		}catch(SQLException e){
+			valid = false;
+		}
+
+		if(!valid){
+
+			synchronized(this){
+				failedValidations++;
+			}
+
+		}
+
+		return valid;
+
+	}
+
+	/**
+	 * Returns the given connection to the pool, connections left mid transaction
+	 * are rolled back first.  Broken connections are discarded.
+	 * @param pooled connection to return
+	 */
+	private void release(PooledConnection pooled){
+
+		boolean reusable = false;
+
+		try{
+
+			if(!pooled.connection.isClosed()){
+
+				if(!pooled.connection.getAutoCommit()){
+
+					pooled.connection.rollback();
+					pooled.connection.setAutoCommit(true);
+
+				}
+
+				reusable = true;
+
+			}
+
+		}catch(SQLException e){
+
+			LOGGER.warning(xStrings.getString("ConnectionPool.errorResettingConnection") +
+					name);
+
+		}
+
+		synchronized(this){
+
+			active--;
+
+			//Pool shrunk while this was in use so it goes
+			if(reusable && !shutdown && size <= maxSize){
+
+				pooled.lastUsed = System.currentTimeMillis();
+				idleConnections.addLast(pooled);
+
+			}else{
+
+				size--;
+				reusable = false;
+
+			}
+
+			notifyAll();
+
+		}
+
+		if(!reusable)
+			closeQuietly(pooled.connection);
+
+	}
+
+	/**
+	 * Closes the given connection ignoring any errors
+	 * @param connection
+	 */
+	private void closeQuietly(Connection connection){
+
+		try{
+			connection.close();
+		}catch(SQLException e){}
+
+	}
+
+	/**
+	 * Changes the maximum number of connections this pool can open.  If the pool
+	 * shrinks, connections in use are closed as they are returned.
+	 * @param maxSize new maximum
+	 */
+	public synchronized void setMaxSize(int maxSize){
+
+		if(maxSize > 0){
+
+			this.maxSize = maxSize;
+
+			while(size > maxSize && idleConnections.size() > 0){
+
+				closeQuietly(idleConnections.removeFirst().connection);
+				size--;
+
+			}
+
+			notifyAll();
+
+		}
+
+	}
+
+	/**
+	 * Sets how long borrow() will wait for a free connection
+	 * @param borrowTimeOut time in ms
+	 */
+	public synchronized void setBorrowTimeOut(long borrowTimeOut){
+
+		this.borrowTimeOut = borrowTimeOut;
+
+	}
+
+	/**
+	 * Closes all idle connections and stops any further borrowing.  Connections
+	 * that are still in use will be closed when they are returned.
+	 */
+	public synchronized void shutdown(){
+
+		shutdown = true;
+
+		while(idleConnections.size() > 0){
+
+			closeQuietly(idleConnections.removeFirst().connection);
+			size--;
+
+		}
+
+		notifyAll();
+
+	}
+
+	/**
+	 * Returns the name of this pool as used in log messages
+	 * @return
+	 */
+	public String getName(){
+
+		return name;
+
+	}
+
+	/**
+	 * Returns the number of connections currently borrowed
+	 * @return
+	 */
+	public synchronized int getActiveCount(){
+
+		return active;
+
+	}
+
+	/**
+	 * Returns the number of open connections waiting to be borrowed
+	 * @return
+	 */
+	public synchronized int getIdleCount(){
+
+		return idleConnections.size();
+
+	}
+
+	/**
+	 * Returns the maximum number of connections this pool will open
+	 * @return
+	 */
+	public synchronized int getMaxSize(){
+
+		return maxSize;
+
+	}
+
+	/**
+	 * Returns the total number of times a connection has been borrowed
+	 * @return
+	 */
+	public synchronized long getBorrowCount(){
+
+		return borrowCount;
+
+	}
+
+	/**
+	 * Returns the average time in ms that threads waited for a connection
+	 * @return
+	 */
+	public synchronized long getAverageWaitTime(){
+
+		long average = 0;
+
+		if(borrowCount > 0)
+			average = totalWaitTime / borrowCount;
+
+		return average;
+
+	}
+
+	/**
+	 * Returns the longest time in ms a thread has waited for a connection
+	 * @return
+	 */
+	public synchronized long getMaxWaitTime(){
+
+		return maxWaitTime;
+
+	}
+
+	/**
+	 * Returns the number of idle connections that failed validation and were replaced
+	 * @return
+	 */
+	public synchronized long getFailedValidations(){
+
+		return failedValidations;
+
+	}
+
+	public synchronized String toString(){
+
+		return name + ": active " + active + ", idle " + idleConnections.size() +
+				", max " + maxSize + ", borrowed " + borrowCount + ", avg wait " +
+				getAverageWaitTime() + "ms, max wait " + maxWaitTime + "ms, stale " +
+				failedValidations;
+
+	}
+
+	/**
+	 * Physical connection and the time it was last handed back to the pool
+	 */
+	private class PooledConnection {
+
+		private Connection connection;
+		private long lastUsed;
+
+		private PooledConnection(Connection connection){
+
+			this.connection = connection;
+			lastUsed = System.currentTimeMillis();
+
+		}
+
+	}
+
+	/**
+	 * Passes calls through to the physical connection except close which returns
+	 * the connection to the pool instead
+	 */
+	private class PooledConnectionHandler implements InvocationHandler {
+
+		private PooledConnection pooled;
+		private boolean closed = false;
+
+		private PooledConnectionHandler(PooledConnection pooled){
+
+			this.pooled = pooled;
+
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+
+			String methodName = method.getName();
+			Object result = null;
+
+			if(methodName.equals("close")){
+
+				if(!closed){
+
+					closed = true;
+					release(pooled);
+
+				}
+
+			}else if(methodName.equals("isClosed"))
+				result = closed || pooled.connection.isClosed();
+			else if(methodName.equals("equals"))
+				result = proxy == args[0];
+			else if(methodName.equals("hashCode"))
+				result = System.identityHashCode(proxy);
+			else if(methodName.equals("toString"))
+				result = "Pooled " + name + " " + pooled.connection;
+			else if(closed)
+				throw new SQLException(xStrings.getString(
+						"ConnectionPool.connectionReturned") + name);
+			else{
+
+				try{
+					result = method.invoke(pooled.connection, args);
+				}catch(InvocationTargetException e){
+					throw e.getCause();
+				}
+
+			}
+
+			return result;
+
+		}
+
+	}
+
+}
@@ -1,8 +1,10 @@
 package com.github.waynemerricks.asteriskphone.database;
 
+import java.io.File;
 import java.math.BigInteger;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Properties;
@@ -10,7 +12,6 @@ import java.util.logging.Logger;
 
 import java.security.SecureRandom;
 import java.sql.Connection;
-import java.sql.DriverManager;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
@@ -27,19 +28,39 @@ public class DatabaseManager {
 	
 	// CLASS VARS
 	private boolean hasErrors = false, connected = false, writeConnected = false;
-	private Connection databaseConnection;
-	private Connection databaseWriteConnection;
-	private Thread keepAliveThread;
+	private ConnectionPool readPool, writePool;
+	private CallHistoryJournal callHistoryJournal;
+	private PersonResolver personResolver;
+	private CallHistoryArchiver callHistoryArchiver;
+	private FieldDefinitionCache fieldDefinitionCache;
+	private volatile ReplicaRouter replicaRouter;
+	private String language, country;
 	
 	private HashMap<String, String> settings = new HashMap<String, String>();
 	private Settings database;
 	
 	//STATICS
 	private static final Logger LOGGER = Logger.getLogger(DatabaseManager.class.getName());//Logger
+	private static final int DEFAULT_POOL_SIZE = 6;
+	private static final int POOL_HEADROOM = 2;
+	private static final int PREPARED_STATEMENT_CACHE_SIZE = 64;
+	private static final int PREPARED_STATEMENT_SQL_LIMIT = 2048;
+	private static final long DEFAULT_JOURNAL_FLUSH_PERIOD = 250L;
+	private static final int DEFAULT_JOURNAL_BATCH_SIZE = 50;
+	private static final String DEFAULT_JOURNAL_SPILL_FILE = "callhistory.spill";
+	private static final long DEFAULT_ARCHIVE_AFTER_DAYS = 90L;
+	private static final long DEFAULT_ARCHIVE_PERIOD = 3600000L;
+	private static final int DEFAULT_ARCHIVE_BATCH_SIZE = 500;
+	private static final long DEFAULT_ARCHIVE_BATCH_DELAY = 1000L;
+	private static final long DAY = 86400000L;
+	private static final long DEFAULT_MAX_REPLICA_LAG = 5000L;
+	private static final String LEAST_LOADED_ROUTING = "leastloaded";
 	private static I18NStrings xStrings;
 	
 	public DatabaseManager(Settings settingsFile, String language, String country){
 		
+		this.language = language;
+		this.country = country;
 		xStrings = new I18NStrings(language, country);
 		database = settingsFile;
 		checkDBSettings();
@@ -57,32 +78,6 @@ public class DatabaseManager {
 		
 	}
 	
-	/**
-	 * Spawns a thread (two if write is separate) to send a simple query
-	 * to the server every hour to work around MySQL 8 hour idle time out.
-	 * 
-	 * In our situation this isn't a big issue due to volume of calls however 
-	 * might as well do it just in case.
-	 */
-	public void spawnKeepAlive(String language, String country){
-	
-		Connection read = getReadConnection();
-		Connection write = null;
-		KeepAliveThread keepAlive = null;
-		
-		if(hasWriteConnection()){
-			
-			write = getWriteConnection();
-			keepAlive = new KeepAliveThread(read, write, language, country);
-			
-		}else
-			keepAlive = new KeepAliveThread(read, language, country);
-		
-		keepAliveThread = new Thread(keepAlive);
-		keepAliveThread.start();
-		
-	}
-	
 	/**
 	 * Sanity check to make sure we have all the required DB settings
 	 */
@@ -113,6 +108,7 @@ public class DatabaseManager {
 	 */
 	private boolean getSettingsFromDB(String owner){
 		
+		Connection connection = null;
 		Statement statement = null;
 		ResultSet resultSet = null;
 		boolean gotSettings = false;
@@ -121,7 +117,8 @@ public class DatabaseManager {
 			
 			String SQL = "SELECT option_name, option_value FROM clientsettings WHERE option_owner='"  
 					+ owner + "'"; 
-			statement = databaseConnection.createStatement();
+			connection = getReadConnection();
+			statement = connection.createStatement();
 		    resultSet = statement.executeQuery(SQL);
 		    
 		    while(resultSet.next()){
@@ -150,6 +147,13 @@ public class DatabaseManager {
 		        statement = null;
 		    }
 		    
+		    if (connection != null) {
+		        try {
+		        	connection.close();
+		        } catch (SQLException sqlEx) { } // ignore
+		        connection = null;
+		    }
+		    
 		}
 		
 		return gotSettings;
@@ -204,14 +208,13 @@ public class DatabaseManager {
 		
 		if(tokens[0].equals("UPDATE") || tokens[0].equals("INSERT")){  
 			
+			Connection connection = null;
 			Statement query = null;
 			
 			try{
 				
-				if(hasWriteConnection())
-					query = databaseWriteConnection.createStatement();
-				else
-					query = databaseConnection.createStatement();
+				connection = getWriteConnection();
+				query = connection.createStatement();
 				
                 query.executeUpdate(updateStatement);
                 updated = true;
@@ -224,6 +227,10 @@ public class DatabaseManager {
 	            	try{
 	            		query.close();
 	            	}catch(Exception e){}
+	            if(connection != null)
+	            	try{
+	            		connection.close();
+	            	}catch(Exception e){}
 	        }
 			
 		}
@@ -301,6 +308,10 @@ public class DatabaseManager {
 			}else
 				gotUser = true;
 			
+			//Now we know how many threads we'll be using, resize the pool to suit
+			if(readPool != null)
+				readPool.setMaxSize(getPoolSize());
+			
 		} catch (UnknownHostException e) {
 
 			showError(e, xStrings.getString("DatabaseManager.errorGettingHostName")); 
@@ -321,7 +332,7 @@ public class DatabaseManager {
 	}
 	
 	/**
-	 * Closes the MySQL Connection gracefully
+	 * Closes the MySQL Connection pools gracefully
 	 * 
 	 * Does nothing if we're not connected
 	 */
@@ -329,147 +340,488 @@ public class DatabaseManager {
 		
 		if(connected){
 			
-			LOGGER.info("DatabaseManager.logDisconnecting"); 
-			try {
+			LOGGER.info(xStrings.getString("DatabaseManager.logDisconnecting")); 
+			
+			//Write out any queued call history before the pools go away
+			synchronized(this){
 				
-				databaseConnection.close();
-				LOGGER.info("DatabaseManager.logDisconnected"); 
+				if(callHistoryJournal != null){
+					
+					callHistoryJournal.shutdown();
+					callHistoryJournal = null;
+					
+				}
 				
-				if(hasWriteConnection() && writeConnected){
+				if(personResolver != null){
 					
-					databaseWriteConnection.close();
-					LOGGER.info("DatabaseManager.logWriteDisconnected"); 
-					writeConnected = false;
+					personResolver.shutdown();
+					personResolver = null;
 					
 				}
+				
+				if(callHistoryArchiver != null){
+					
+					callHistoryArchiver.shutdown();
+					callHistoryArchiver = null;
 					
-				connected = false;
+				}
 				
-			} catch (SQLException e) {
-	
-				showWarning(e, xStrings.getString("DatabaseManager.errorDisconnecting")); 
+				if(replicaRouter != null){
+					
+					replicaRouter.shutdown();
+					replicaRouter = null;
+					
+				}
 				
 			}
 			
-			LOGGER.info(xStrings.getString("DatabaseManager.shutdownKeepAlive")); 
+			LOGGER.info(getPoolStatistics());
 			
-			if(keepAliveThread != null)
-				keepAliveThread.interrupt();
+			readPool.shutdown();
+			LOGGER.info(xStrings.getString("DatabaseManager.logDisconnected")); 
+			
+			if(writePool != null){
+				
+				writePool.shutdown();
+				LOGGER.info(xStrings.getString("DatabaseManager.logWriteDisconnected")); 
+				writePool = null;
+				writeConnected = false;
+				
+			}
+				
+			connected = false;
 			
 		}
 		
 	}
 	
 	/**
-	 * Returns the MySQL Connection, does not check if the connection is live.
+	 * Borrows a MySQL Connection from the read pool.
 	 * 
-	 * Make sure connect is called first and completed without error.
+	 * Make sure connect is called first and completed without error.  The connection
+	 * must be closed when you are finished with it so it is returned to the pool.
 	 * 
 	 * @return
+	 * @throws SQLException if no connection could be borrowed from the pool
 	 */
-	public Connection getConnection(){
+	public Connection getConnection() throws SQLException {
 		
-		try {
-			if(!databaseConnection.isValid(3)){
+		if(!connected)
+			throw new SQLException(xStrings.getString("DatabaseManager.notConnected")); 
+		
+		return readPool.borrow();
+		
+	}
+	
+	/**
+	 * Borrows a MySQL Read Only Connection.  This comes from a replica if connectReplicas
+	 * found any that are usable, otherwise the read pool.
+	 * 
+	 * Make sure connect is called first and completed without error.  The connection
+	 * must be closed when you are finished with it so it is returned to the pool.
+	 * 
+	 * @return
+	 * @throws SQLException if no connection could be borrowed from the pool
+	 */
+	public Connection getReadConnection() throws SQLException {
+		
+		Connection connection = null;
+		ReplicaRouter router = replicaRouter;
+		
+		if(connected && router != null)
+			connection = router.borrow();
+		
+		if(connection == null)
+			connection = getConnection();
+		
+		return connection;
+		
+	}
+	
+	/**
+	 * Call after a write (or hearing about one) that is about to be read back, read 
+	 * connections come from the read pool instead of the replicas until the replicas 
+	 * must have caught up.  Does nothing if there are no replicas
+	 */
+	public void preferPrimary(){
+		
+		ReplicaRouter router = replicaRouter;
+		
+		if(router != null)
+			router.preferPrimary();
+		
+	}
+	
+	/**
+	 * Connects to the read replicas listed in readReplicas (comma separated host[:port]
+	 * using the same database, user and password as the read connection) so that 
+	 * getReadConnection spreads reads over them.
+	 * 
+	 * readRouting can be roundrobin (default) or leastloaded, maxReplicaLag (ms) is how
+	 * far behind a replica can be before it is skipped.  Call after populateUserSettings,
+	 * the server shouldn't call this as it reads back its own writes straight away
+	 */
+	public synchronized void connectReplicas(){
+		
+		if(connected && replicaRouter == null && settings.get("readReplicas") != null){ 
+			
+			long maxLag = DEFAULT_MAX_REPLICA_LAG;
+			
+			try{
+				
+				if(settings.containsKey("maxReplicaLag")) 
+					maxLag = Long.parseLong(settings.get("maxReplicaLag")); 
+				
+			}catch(NumberFormatException e){
 				
-				//Reconnect
-				reconnect(false);
+				LOGGER.warning(xStrings.getString("DatabaseManager.invalidReplicaSettings")); 
+				maxLag = DEFAULT_MAX_REPLICA_LAG;
 				
 			}
 			
+			if(maxLag < 0){
+				
+				LOGGER.warning(xStrings.getString("DatabaseManager.invalidReplicaSettings")); 
+				maxLag = DEFAULT_MAX_REPLICA_LAG;
+				
+			}
 			
-		} catch (SQLException e) {
+			ArrayList<ConnectionPool> pools = new ArrayList<ConnectionPool>();
+			String[] hosts = settings.get("readReplicas").split(","); 
 			
+			for(int i = 0; i < hosts.length; i++){
+				
+				String host = hosts[i].trim();
+				
+				if(host.length() > 0){
+					
+					ConnectionPool pool = new ConnectionPool("replica " + host, 
+							"jdbc:mysql://" + host + "/" + database.getString("database"), 
+							getConnectionProperties(database.getString("user"), 
+									database.getString("password")), 
+							getPoolSize(), language, country);
+					
+					try{
+						
+						testPool(pool);
+						pools.add(pool);
+						
+					}catch(SQLException e){
+						
+						//Carry on without it, reads still work from the read pool
+						LOGGER.warning(xStrings.getString(
+								"DatabaseManager.replicaConnectionError") + host + " " + 
+								e.getMessage());
+						pool.shutdown();
+						
+					}
+					
+				}
+				
+			}
 			
-			LOGGER.severe(xStrings.getString("DatabaseManager.logErrorReconnecting")); 
-			hasErrors = true;
+			if(pools.size() > 0){
+				
+				ReplicaRouter router = new ReplicaRouter(pools, 
+						LEAST_LOADED_ROUTING.equals(settings.get("readRouting")), maxLag, 
+						language, country);
+				router.start();
+				replicaRouter = router;
+				LOGGER.info(xStrings.getString("DatabaseManager.logReplicasConnected") + 
+						pools.size());
+				
+			}
 			
 		}
 		
-		return databaseConnection;
-		
 	}
 	
 	/**
-	 * Returns the MySQL Read Only Connection, does not check if the connection is live.
+	 * Borrows a MySQL Write Connection.
 	 * 
-	 * Make sure connect is called first and completed without error.
+	 * If we have a separate write server and haven't connected yet, it will connect 
+	 * first.  If we don't have a separate write server this is a read pool connection.
+	 * 
+	 * The connection must be closed when you are finished with it so it is returned 
+	 * to the pool.
 	 * 
 	 * @return
+	 * @throws SQLException if no connection could be borrowed from the pool
 	 */
-	public Connection getReadConnection(){
+	public Connection getWriteConnection() throws SQLException {
 		
-		return getConnection();
+		Connection connection = null;
+		
+		if(hasWriteConnection()){
+			
+			if(!writeConnected)
+				connectWrite();
+			
+			if(writePool == null)
+				throw new SQLException(xStrings.getString("DatabaseManager.notConnected")); 
+			
+			connection = writePool.borrow();
+				
+		}else
+			connection = getConnection();
+		
+		return connection;
 		
 	}
 	
 	/**
-	 * Returns the MySQL Write Connection.
-	 * 
-	 * If we haven't connected yet, it will connect first
+	 * Returns the write behind journal for callhistory rows, starts it if necessary.
 	 * 
+	 * Uses callHistoryFlushPeriod (ms), callHistoryBatchSize and callHistorySpillFile
+	 * from the settings if they are set.
 	 * @return
 	 */
-	public Connection getWriteConnection(){
-		
-		Connection connection = databaseConnection;
+	public synchronized CallHistoryJournal getCallHistoryJournal(){
 		
-		if(hasWriteConnection()){
+		if(callHistoryJournal == null){
 			
-			if(!writeConnected)
-				connectWrite();
+			long flushPeriod = DEFAULT_JOURNAL_FLUSH_PERIOD;
+			int batchSize = DEFAULT_JOURNAL_BATCH_SIZE;
+			String spillFile = DEFAULT_JOURNAL_SPILL_FILE;
 			
-			connection = databaseWriteConnection;
+			try{
+				
+				if(settings.containsKey("callHistoryFlushPeriod")) 
+					flushPeriod = Long.parseLong(settings.get("callHistoryFlushPeriod")); 
+				
+				if(settings.containsKey("callHistoryBatchSize")) 
+					batchSize = Integer.parseInt(settings.get("callHistoryBatchSize")); 
+				
+			}catch(NumberFormatException e){
+				
+				LOGGER.warning(xStrings.getString("DatabaseManager.invalidJournalSettings")); 
+				flushPeriod = DEFAULT_JOURNAL_FLUSH_PERIOD;
+				batchSize = DEFAULT_JOURNAL_BATCH_SIZE;
 				
+			}
+			
+			if(flushPeriod < 1 || batchSize < 1){
+				
+				LOGGER.warning(xStrings.getString("DatabaseManager.invalidJournalSettings")); 
+				flushPeriod = DEFAULT_JOURNAL_FLUSH_PERIOD;
+				batchSize = DEFAULT_JOURNAL_BATCH_SIZE;
+				
+			}
+			
+			if(settings.containsKey("callHistorySpillFile")) 
+				spillFile = settings.get("callHistorySpillFile"); 
+			
+			callHistoryJournal = new CallHistoryJournal(this, new File(spillFile), 
+					flushPeriod, batchSize, language, country);
+			callHistoryJournal.start();
+			
 		}
 		
-		try {
-			if(!connection.isValid(3)){
+		return callHistoryJournal;
+		
+	}
+	
+	/**
+	 * Returns the registry that hands person lookups over to skeleton inserts
+	 * @return
+	 */
+	public synchronized PersonResolver getPersonResolver(){
+		
+		if(personResolver == null)
+			personResolver = new PersonResolver(language, country);
+		
+		return personResolver;
+		
+	}
+	
+	/**
+	 * Returns the shared cache of callinputfields definitions
+	 * @return
+	 */
+	public synchronized FieldDefinitionCache getFieldDefinitionCache(){
+		
+		if(fieldDefinitionCache == null)
+			fieldDefinitionCache = new FieldDefinitionCache(this, language, country);
+		
+		return fieldDefinitionCache;
+		
+	}
+	
+	/**
+	 * Starts moving old callhistory/conversations rows into the archive tables in the
+	 * background.  Only the server should call this and only after migrateSchema.
+	 * 
+	 * Uses archiveAfterDays, archivePeriod (ms), archiveBatchSize and archiveBatchDelay
+	 * (ms) from the settings if they are set.  archiveAfterDays should always be longer
+	 * than the clients maxRecordAge
+	 */
+	public synchronized void startArchiver(){
+		
+		if(callHistoryArchiver == null){
+			
+			long afterDays = DEFAULT_ARCHIVE_AFTER_DAYS;
+			long period = DEFAULT_ARCHIVE_PERIOD;
+			int batchSize = DEFAULT_ARCHIVE_BATCH_SIZE;
+			long batchDelay = DEFAULT_ARCHIVE_BATCH_DELAY;
+			
+			try{
+				
+				if(settings.containsKey("archiveAfterDays")) 
+					afterDays = Long.parseLong(settings.get("archiveAfterDays")); 
+				
+				if(settings.containsKey("archivePeriod")) 
+					period = Long.parseLong(settings.get("archivePeriod")); 
+				
+				if(settings.containsKey("archiveBatchSize")) 
+					batchSize = Integer.parseInt(settings.get("archiveBatchSize")); 
 				
-				//Reconnect
-				reconnect(true);
+				if(settings.containsKey("archiveBatchDelay")) 
+					batchDelay = Long.parseLong(settings.get("archiveBatchDelay")); 
+				
+			}catch(NumberFormatException e){
+				
+				LOGGER.warning(xStrings.getString("DatabaseManager.invalidArchiveSettings")); 
+				afterDays = DEFAULT_ARCHIVE_AFTER_DAYS;
+				period = DEFAULT_ARCHIVE_PERIOD;
+				batchSize = DEFAULT_ARCHIVE_BATCH_SIZE;
+				batchDelay = DEFAULT_ARCHIVE_BATCH_DELAY;
 				
 			}
 			
+			if(afterDays < 1 || period < 1 || batchSize < 1 || batchDelay < 0){
+				
+				LOGGER.warning(xStrings.getString("DatabaseManager.invalidArchiveSettings")); 
+				afterDays = DEFAULT_ARCHIVE_AFTER_DAYS;
+				period = DEFAULT_ARCHIVE_PERIOD;
+				batchSize = DEFAULT_ARCHIVE_BATCH_SIZE;
+				batchDelay = DEFAULT_ARCHIVE_BATCH_DELAY;
+				
+			}
 			
-		} catch (SQLException e) {
+			callHistoryArchiver = new CallHistoryArchiver(this, afterDays * DAY, period, 
+					batchSize, batchDelay, language, country);
+			callHistoryArchiver.start();
 			
+		}
+		
+	}
+	
+	/**
+	 * Applies any schema migrations (indexes etc) this database hasn't had yet using
+	 * the write connection.  Only the server should call this
+	 * @return false if a migration failed, the old schema still works just slower
+	 */
+	public boolean migrateSchema(){
+		
+		return new SchemaMigrator(this, language, country).migrate();
+		
+	}
+	
+	/**
+	 * Returns a summary of the pool statistics (active, idle, wait times) for logging
+	 * @return
+	 */
+	public String getPoolStatistics(){
+		
+		String statistics = xStrings.getString("DatabaseManager.poolStatistics"); 
+		
+		if(readPool != null)
+			statistics += " " + readPool.toString(); 
+		
+		if(writePool != null)
+			statistics += " / " + writePool.toString(); 
+		
+		if(replicaRouter != null)
+			statistics += replicaRouter.toString(); 
+		
+		return statistics;
+		
+	}
+	
+	/**
+	 * Works out how big the connection pools should be.  Uses dbPoolMax if it is set
+	 * otherwise allows one connection per lookup thread plus some room for the event 
+	 * and UI threads
+	 * @return max connections per pool
+	 */
+	private int getPoolSize(){
+		
+		int poolSize = DEFAULT_POOL_SIZE;
+		
+		try{
 			
-			LOGGER.severe(xStrings.getString("DatabaseManager.logErrorReconnecting")); 
-			hasErrors = true;
+			if(settings.containsKey("dbPoolMax")) 
+				poolSize = Integer.parseInt(settings.get("dbPoolMax")); 
+			else if(settings.containsKey("threadPoolMax")) 
+				poolSize = Integer.parseInt(settings.get("threadPoolMax")) + POOL_HEADROOM; 
+			
+		}catch(NumberFormatException e){
+			
+			LOGGER.warning(xStrings.getString("DatabaseManager.invalidPoolSize")); 
+			poolSize = DEFAULT_POOL_SIZE;
 			
 		}
 		
-		return connection;
+		return poolSize;
 		
 	}
 	
-	private void reconnect(boolean write){
+	/**
+	 * Builds the driver properties for a pool.  Server side prepared statements
+	 * are cached per connection so the QueryRegistry statements are only parsed
+	 * once per pooled connection.
+	 * @param user MySQL user name
+	 * @param password MySQL password
+	 * @return properties to pass to the driver
+	 */
+	private Properties getConnectionProperties(String user, String password){
 		
-		if(write){
-			writeConnected = false;
-			connectWrite();
-		}else{
-			connected = false;
-			connect();
-		}
+		Properties dbProps = new Properties();
+		dbProps.put("user", user);
+		dbProps.put("password", password);
+		dbProps.put("useServerPrepStmts", "true");
+		dbProps.put("cachePrepStmts", "true");
+		dbProps.put("prepStmtCacheSize", "" + PREPARED_STATEMENT_CACHE_SIZE);
+		dbProps.put("prepStmtCacheSqlLimit", "" + PREPARED_STATEMENT_SQL_LIMIT);
+		//setFetchSize uses a server side cursor instead of reading everything at once
+		dbProps.put("useCursorFetch", "true");
+		
+		return dbProps;
+		
+	}
+	
+	/**
+	 * Borrows and returns a connection to make sure the pool can connect
+	 * @param pool pool to test
+	 * @throws SQLException
+	 */
+	private void testPool(ConnectionPool pool) throws SQLException {
+		
+		Connection connection = pool.borrow();
+		connection.close();
 		
 	}
 	
 	/**
 	 * Separate method to connect to the write server if it is separate to read server
 	 */
-	public void connectWrite(){
+	public synchronized void connectWrite(){
 		
-		if(hasWriteConnection()){
+		if(hasWriteConnection() && !writeConnected){
 			
 			try{
+				
+				Properties dbProps = getConnectionProperties(settings.get("writeDBUser"), 
+						settings.get("writeDBPass"));
+				
 				//Connect to separate write DB too
-				databaseWriteConnection = DriverManager.getConnection("jdbc:mysql://" +  
-						settings.get("writeDBHost") + "/" + settings.get("writeDBDatabase") +   
-						"?user=" + settings.get("writeDBUser") +   
-						"&password=" + settings.get("writeDBPass"));  
+				ConnectionPool pool = new ConnectionPool("write", "jdbc:mysql://" +  
+						settings.get("writeDBHost") + "/" + settings.get("writeDBDatabase"),   
+						dbProps, getPoolSize(), language, country);
 				
+				testPool(pool);
+				
+				writePool = pool;
 				writeConnected = true;
 				LOGGER.info(xStrings.getString("DatabaseManager.logWriteConnected")); 
 			}catch(SQLException e){
@@ -502,13 +854,16 @@ public class DatabaseManager {
 				
 				try{
 					
-					Properties dbProps = new Properties();
-					dbProps.put("user", database.getString("user"));
-					dbProps.put("password", database.getString("password"));
+					Properties dbProps = getConnectionProperties(database.getString("user"), 
+							database.getString("password"));
+					
+					ConnectionPool pool = new ConnectionPool("read", "jdbc:mysql://" +  
+							database.getString("host") + "/" + database.getString("database"), 
+							dbProps, DEFAULT_POOL_SIZE, language, country);
 					
-					databaseConnection = DriverManager.getConnection("jdbc:mysql://" +  
-							database.getString("host") + "/" + database.getString("database"), dbProps);
+					testPool(pool);
 					
+					readPool = pool;
 					LOGGER.info(xStrings.getString("DatabaseManager.logConnected")); 
 					
 					connected = true;
@@ -604,12 +959,14 @@ public class DatabaseManager {
 				"OR option_name = 'incomingQueueNumber' OR option_name = 'onAirQueueNumber'"; 
 		
 		HashSet<String> systemExtensions = new HashSet<String>();
+		Connection connection = null;
 		Statement statement = null;
 		ResultSet resultSet = null;
 		
 		try{
 			
-			statement = getReadConnection().createStatement();
+			connection = getReadConnection();
+			statement = connection.createStatement();
 		    resultSet = statement.executeQuery(SQL);
 		    
 		    while(resultSet.next()){
@@ -637,6 +994,13 @@ public class DatabaseManager {
 		        statement = null;
 		    }
 		    
+			if (connection != null) {
+		        try {
+		        	connection.close();
+		        } catch (SQLException sqlEx) { } // ignore
+		        connection = null;
+		    }
+		    
 		}	
 		
 		return systemExtensions;
@@ -652,6 +1016,8 @@ public class DatabaseManager {
 	 */
 	public void setNewLocale(String language, String country) {
 		
+		this.language = language;
+		this.country = country;
 		xStrings = new I18NStrings(language, country);
 		
 	}
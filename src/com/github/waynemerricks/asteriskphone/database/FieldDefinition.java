@@ -0,0 +1,77 @@
+package com.github.waynemerricks.asteriskphone.database;
+
+import java.util.HashMap;
+
+/**
+ * One row of the callinputfields table as read by the FieldDefinitionCache.
+ *
+ * Combo options of the form value=>icon (e.g. the calltype badges) are split once
+ * when the definition is created so looking up an option's icon is a map lookup.
+ * Definitions are shared between threads and panels so never change them.
+ * @author Wayne Merricks
+ *
+ */
+public class FieldDefinition {
+
+	public final int id, order, parent;
+	public final String name, type, tooltip, options, mapping, language;
+	private final HashMap<String, String> optionIcons = new HashMap<String, String>();
+
+	//STATICS
+	private static final String TYPE_COMBO = "combo";
+	private static final String OPTION_SEPARATOR = ",";
+	private static final String ICON_SEPARATOR = "=>";
+
+	public FieldDefinition(int id, String name, String type, String tooltip, int order,
+			int parent, String options, String mapping, String language){
+
+		this.id = id;
+		this.name = name;
+		this.type = type;
+		this.tooltip = tooltip;
+		this.order = order;
+		this.parent = parent;
+		this.options = options;
+		this.mapping = mapping;
+		this.language = language;
+
+		if(options != null && options.contains(ICON_SEPARATOR)){
+
+			String[] values = options.split(OPTION_SEPARATOR);
+
+			for(int i = 0; i < values.length; i++){
+
+				String[] option = values[i].split(ICON_SEPARATOR);
+
+				//First one wins like the old linear search
+				if(option.length > 1 && !optionIcons.containsKey(option[0]))
+					optionIcons.put(option[0], option[1]);
+
+			}
+
+		}
+
+	}
+
+	/**
+	 * Returns the icon path mapped to the given option e.g. ON AIR => images/onair.png
+	 * @param option
+	 * @return null if the option has no icon
+	 */
+	public String getOptionIcon(String option){
+
+		return optionIcons.get(option);
+
+	}
+
+	/**
+	 * Returns true if this is a combo with value=>icon options
+	 * @return
+	 */
+	public boolean isImageMappedCombo(){
+
+		return TYPE_COMBO.equals(type) && options != null && options.contains(ICON_SEPARATOR);
+
+	}
+
+}
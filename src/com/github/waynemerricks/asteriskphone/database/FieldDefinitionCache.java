@@ -0,0 +1,259 @@
+package com.github.waynemerricks.asteriskphone.database;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * Shared cache of the callinputfields table.
+ *
+ * Every locale's field definitions are read in one query the first time anything asks
+ * for them and kept grouped by locale and mapping so the call input panels, badge
+ * icons and record updates never go back to the DB for them.  The fields only change
+ * when an admin edits the table, they then send FIELDSCHANGED to the control room and
+ * everyone calls invalidate() so the next lookup reads the table again.
+ * @author Wayne Merricks
+ *
+ */
+public class FieldDefinitionCache {
+
+	//CLASS VARS
+	private DatabaseManager database;
+	private I18NStrings xStrings;
+	private volatile Definitions definitions = null;
+
+	//STATICS
+	private static final Logger LOGGER = Logger.getLogger(FieldDefinitionCache.class.getName());//Logger
+	private static final String CALL_TYPE_MAPPING = "calltype";
+
+	public FieldDefinitionCache(DatabaseManager database, String language, String country){
+
+		this.database = database;
+		xStrings = new I18NStrings(language, country);
+
+	}
+
+	/**
+	 * Returns the fields for the given locale in display order
+	 * @param locale language,country e.g. en,GB
+	 * @return read only list, empty if there are no fields for this locale
+	 * @throws SQLException if the fields couldn't be read
+	 */
+	public List<FieldDefinition> getFields(String locale) throws SQLException {
+
+		List<FieldDefinition> fields = getDefinitions().byLocale.get(locale);
+
+		if(fields == null)
+			fields = Collections.emptyList();
+		else
+			fields = Collections.unmodifiableList(fields);
+
+		return fields;
+
+	}
+
+	/**
+	 * Returns the field with the given mapping for the locale
+	 * @param locale language,country e.g. en,GB
+	 * @param mapping field mapping e.g. calltype
+	 * @return null if there isn't one
+	 * @throws SQLException if the fields couldn't be read
+	 */
+	public FieldDefinition getField(String locale, String mapping) throws SQLException {
+
+		FieldDefinition field = null;
+		HashMap<String, FieldDefinition> mappings = getDefinitions().byMapping.get(locale);
+
+		if(mappings != null)
+			field = mappings.get(mapping);
+
+		return field;
+
+	}
+
+	/**
+	 * Returns the badge icon path for a call type
+	 * @param locale language,country e.g. en,GB
+	 * @param callType call type as shown in the combo e.g. ON AIR
+	 * @return path to the icon usually images/blah.png or null if there isn't one
+	 * @throws SQLException if the fields couldn't be read
+	 */
+	public String getCallTypeIcon(String locale, String callType) throws SQLException {
+
+		String icon = null;
+		FieldDefinition field = getField(locale, CALL_TYPE_MAPPING);
+
+		if(field != null)
+			icon = field.getOptionIcon(callType);
+
+		return icon;
+
+	}
+
+	/**
+	 * Returns true if any locale has a value=>icon combo for this mapping
+	 * @param mapping field mapping e.g. calltype
+	 * @return
+	 * @throws SQLException if the fields couldn't be read
+	 */
+	public boolean isImageMappedCombo(String mapping) throws SQLException {
+
+		boolean mappedCombo = false;
+
+		for(HashMap<String, FieldDefinition> mappings : getDefinitions().byMapping.values()){
+
+			FieldDefinition field = mappings.get(mapping);
+
+			if(field != null && field.isImageMappedCombo())
+				mappedCombo = true;
+
+		}
+
+		return mappedCombo;
+
+	}
+
+	/**
+	 * Drops the cached fields, the next lookup reads them from the DB again
+	 */
+	public synchronized void invalidate(){
+
+		definitions = null;
+		LOGGER.info(xStrings.getString("FieldDefinitionCache.invalidated"));
+
+	}
+
+	/**
+	 * Returns the cached definitions reading them first if necessary
+	 * @return
+	 * @throws SQLException
+	 */
+	private Definitions getDefinitions() throws SQLException {
+
+		Definitions cached = definitions;
+
+		if(cached == null)
+			cached = load();
+
+		return cached;
+
+	}
+
+	/**
+	 * Reads every field from the DB.  Only one thread loads at a time, anyone else
+	 * waiting gets what it read.  An invalidate waits for a load in progress so it is
+	 * never undone by it
+	 * @return
+	 * @throws SQLException
+	 */
+	private synchronized Definitions load() throws SQLException {
+
+		Definitions loaded = definitions;
+
+		if(loaded == null){
+
+			loaded = read();
+			definitions = loaded;
+
+		}
+
+		return loaded;
+
+	}
+
+	/**
+	 * Runs SELECT_ALL_INPUT_FIELDS and groups the rows
+	 * @return
+	 * @throws SQLException
+	 */
+	private Definitions read() throws SQLException {
+
+		Definitions read = new Definitions();
+		Connection readConnection = null;
+		PreparedStatement statement = null;
+		ResultSet resultSet = null;
+
+		try{
+
+			readConnection = database.getReadConnection();
+			statement = readConnection.prepareStatement(QueryRegistry.SELECT_ALL_INPUT_FIELDS);
+			resultSet = statement.executeQuery();
+
+			while(resultSet.next())
+				read.add(new FieldDefinition(resultSet.getInt("id"),
+						resultSet.getString("name"),
+						resultSet.getString("type"),
+						resultSet.getString("tooltip"),
+						resultSet.getInt("order"),
+						resultSet.getInt("parent"),
+						resultSet.getString("options"),
+						resultSet.getString("mapping"),
+						resultSet.getString("language")));
+
+			LOGGER.info(xStrings.getString("FieldDefinitionCache.loaded") + read.count);
+
+		}finally{
+
+			if(resultSet != null)
+				try{
+					resultSet.close();
+				}catch(SQLException e){}
+
+			if(statement != null)
+				try{
+					statement.close();
+				}catch(SQLException e){}
+
+			if(readConnection != null)
+				try{
+					readConnection.close();
+				}catch(SQLException e){}
+
+		}
+
+		return read;
+
+	}
+
+	/**
+	 * Everything read in one load, never changed after it is cached
+	 */
+	private static class Definitions {
+
+		private HashMap<String, List<FieldDefinition>> byLocale =
+				new HashMap<String, List<FieldDefinition>>();
+		private HashMap<String, HashMap<String, FieldDefinition>> byMapping =
+				new HashMap<String, HashMap<String, FieldDefinition>>();
+		private int count = 0;
+
+		private void add(FieldDefinition field){
+
+			List<FieldDefinition> fields = byLocale.get(field.language);
+
+			if(fields == null){
+
+				fields = new ArrayList<FieldDefinition>();
+				byLocale.put(field.language, fields);
+				byMapping.put(field.language, new HashMap<String, FieldDefinition>());
+
+			}
+
+			fields.add(field);
+
+			//Last one wins like the old query loop
+			if(field.mapping != null)
+				byMapping.get(field.language).put(field.mapping, field);
+
+			count++;
+
+		}
+
+	}
+
+}
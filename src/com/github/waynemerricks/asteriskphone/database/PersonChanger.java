@@ -13,34 +13,37 @@ import org.jivesoftware.smack.XMPPException;
 import org.jivesoftware.smack.packet.Message;
 import org.jivesoftware.smackx.muc.MultiUserChat;
 
+import com.github.waynemerricks.asteriskphone.protocol.ControlMessage;
+import com.github.waynemerricks.asteriskphone.protocol.ControlMessageCodec;
+import com.github.waynemerricks.asteriskphone.protocol.Opcode;
+
 public class PersonChanger implements Runnable, MessageListener {
 
 	private String channelID, operator, phoneNumber;
-	private Connection readConnection, writeConnection;
+	private DatabaseManager database;
 	private I18NStrings xStrings;
 	private MultiUserChat controlRoom = null;
 	private long personID = -1;
 	
 	private static final Logger LOGGER = Logger.getLogger(PersonChanger.class.getName());//Logger
+	private static final long JOURNAL_FLUSH_TIMEOUT = 5000L;
 	
 	/**
 	 * Changes the person associated with the given channel ID in the database
 	 * @param language I18N Language
 	 * @param country I18N Country
-	 * @param readConnection DB Read Connection
-	 * @param writeConnection DB Write Connection
+	 * @param database DatabaseManager to borrow connections from
 	 * @param controlRoom Control room to send XMPP messages upon completion
 	 * @param personID ID of the person to change to
 	 * @param channelID Channel of call to change
 	 */
-	public PersonChanger(String language, String country, Connection readConnection, 
-			Connection writeConnection, MultiUserChat controlRoom, int personID, 
+	public PersonChanger(String language, String country, DatabaseManager database, 
+			MultiUserChat controlRoom, int personID, 
 			String phoneNumber, String channelID) {
 		
 		xStrings = new I18NStrings(language, country);
 		
-		this.readConnection = readConnection;
-		this.writeConnection = writeConnection;
+		this.database = database;
 		this.personID = personID;
 		this.channelID = channelID;
 		this.controlRoom = controlRoom;
@@ -115,17 +118,19 @@ public class PersonChanger implements Runnable, MessageListener {
 			 * 
 			 * It will save other clients from unnecessary processing
 			 */
-			sendPrivateMessage(operator, xStrings.getString(
-						"PersonChanger.changeFailed") + "/" + channelID);  
+			sendPrivateMessage(operator, ControlMessageCodec.encode(
+					new ControlMessage(Opcode.CHANGEFAILED, channelID)));
 			
 		}else{
 			
+			//Anything here that reads the change back should see it
+			database.preferPrimary();
+			
 			//Send XMPP Changed notice CHANGED/CHANNEL/PERSONID
 			try {
 				
-				controlRoom.sendMessage(xStrings.getString(
-						"PersonChanger.changed") + "/" + channelID + "/" +    
-						personID);
+				controlRoom.sendMessage(ControlMessageCodec.encode(
+						new ControlMessage(Opcode.CHANGED, channelID, "" + personID)));
 			
 			} catch (XMPPException e) {
 				
@@ -148,6 +153,7 @@ public class PersonChanger implements Runnable, MessageListener {
 	
 		boolean success = false;
 		
+		Connection readConnection = null;
 		Statement statement = null;
 		String SQL = null;
 		ResultSet results = null;
@@ -159,6 +165,7 @@ public class PersonChanger implements Runnable, MessageListener {
 					"WHERE (`state` = 'A' OR `state` = 'M') AND `callchannel` = \"" + channelID + 
 					"\" AND `operator` != 'NA' ORDER BY `time` DESC LIMIT 1";  
 			
+			readConnection = database.getReadConnection();
 			statement = readConnection.createStatement();
 		    results = statement.executeQuery(SQL);
 		    
@@ -194,6 +201,11 @@ public class PersonChanger implements Runnable, MessageListener {
 					results.close();
 				}catch(Exception e){}
 				
+			if(readConnection != null)
+				try{
+					readConnection.close();
+				}catch(Exception e){}
+
 		}
 		
 		return success;
@@ -209,6 +221,7 @@ public class PersonChanger implements Runnable, MessageListener {
 	
 		String phoneNumber = xStrings.getString("PersonChanger.unknown");
 		
+		Connection readConnection = null;
 		Statement statement = null;
 		String SQL = null;
 		ResultSet results = null;
@@ -218,6 +231,7 @@ public class PersonChanger implements Runnable, MessageListener {
 			/* Get number and operator from the DB */
 			SQL = "SELECT `phone_number` FROM `phonenumbers` WHERE `person_id` = " + personID;
 			
+			readConnection = database.getReadConnection();
 			statement = readConnection.createStatement();
 		    results = statement.executeQuery(SQL);
 		    
@@ -241,6 +255,11 @@ public class PersonChanger implements Runnable, MessageListener {
 					results.close();
 				}catch(Exception e){}
 				
+			if(readConnection != null)
+				try{
+					readConnection.close();
+				}catch(Exception e){}
+
 		}
 		
 		return phoneNumber;
@@ -260,45 +279,25 @@ public class PersonChanger implements Runnable, MessageListener {
 		 *      1234567890.123, 555) 
 		 */
 		boolean success = false;
-		String SQL = null;
-		PreparedStatement statement = null;
 		
 		if(getCallLogInfo() && phoneNumber != null && operator != null){
 			
-			String error = xStrings.getString(
-					"PersonChanger.errorUpdatingCallLog") + 
-					"\n\tChannel: " + channelID + 
-					"\n\tPersonID: " + personID; 
-
-			try{
-				
-				SQL = "INSERT INTO `callhistory` (`phonenumber`, `state`, " + 
-						"`operator`, `callchannel`, `activePerson`) VALUES " + 
-						"(?, ?, ?, ?, ?)"; 
-				
-				statement = writeConnection.prepareStatement(SQL);
-				statement.setString(1, phoneNumber);
-				statement.setString(2, "C"); 
-				statement.setString(3, operator);
-				statement.setString(4, channelID);
-				statement.setLong(5, personID);
-				
-				if(statement.executeUpdate() == 0)
-					showError(new SQLException(error), error);
-				else
-					success = true;
-				
-			}catch(SQLException e){
+			CallHistoryJournal journal = database.getCallHistoryJournal();
+			journal.record(phoneNumber, "C", operator, channelID, "" + personID); 
+			
+			/* Clients read the active person back as soon as they see CHANGED so
+			 * wait for the journal to write it out */
+			success = journal.flush(JOURNAL_FLUSH_TIMEOUT);
+			
+			if(!success){
 				
-				showError(e, error);
+				String error = xStrings.getString(
+						"PersonChanger.errorUpdatingCallLog") + 
+						"\n\tChannel: " + channelID + 
+						"\n\tPersonID: " + personID; 
 				
-			}finally{
+				LOGGER.severe(error);
 				
-				if(statement != null)
-	            	try{
-	            		statement.close();
-	            	}catch(Exception e){}
-					
 			}
 			
 		}
@@ -322,6 +321,7 @@ public class PersonChanger implements Runnable, MessageListener {
 				"\n\tChannel: " + channelID + 
 				"\n\tPersonID: " + personID; 
 
+		Connection writeConnection = null;
 		PreparedStatement statement = null;
 		String SQL = null;
 		
@@ -329,6 +329,7 @@ public class PersonChanger implements Runnable, MessageListener {
 			
 			SQL = "UPDATE `conversations` SET `person_id` = ? WHERE `channel` = ?"; 
 			
+			writeConnection = database.getWriteConnection();
 			statement = writeConnection.prepareStatement(SQL);
 			statement.setLong(1, personID);
 			statement.setString(2, channelID);
@@ -357,6 +358,11 @@ public class PersonChanger implements Runnable, MessageListener {
             		statement.close();
             	}catch(Exception e){}
 				
+			if(writeConnection != null)
+				try{
+					writeConnection.close();
+				}catch(Exception e){}
+
 		}
 		
 		return success;
@@ -372,6 +378,7 @@ public class PersonChanger implements Runnable, MessageListener {
 		//String SQL = "INSERT INTO person VALUES()";//Retain ID
 		long insertID = -1;
 		
+		Connection writeConnection = null;
 		PreparedStatement statement = null;
 		String SQL = null;
 		ResultSet results = null;
@@ -380,6 +387,7 @@ public class PersonChanger implements Runnable, MessageListener {
 			
 			SQL = "INSERT INTO `person` VALUES()"; 
 			
+			writeConnection = database.getWriteConnection();
 			statement = writeConnection.prepareStatement(SQL, 
 					Statement.RETURN_GENERATED_KEYS);
 			
@@ -413,6 +421,11 @@ public class PersonChanger implements Runnable, MessageListener {
 					results.close();
 				}catch(Exception e){}
 			
+			if(writeConnection != null)
+				try{
+					writeConnection.close();
+				}catch(Exception e){}
+
 		}
 		
 		return insertID;
@@ -424,6 +437,7 @@ public class PersonChanger implements Runnable, MessageListener {
 	 */
 	private void createPhoneNumberRecord() {
 		
+		Connection writeConnection = null;
 		PreparedStatement statement = null;
 		String SQL = null;
 		ResultSet results = null;
@@ -432,6 +446,7 @@ public class PersonChanger implements Runnable, MessageListener {
 			
 			SQL = "INSERT INTO `phonenumbers` (`phone_number`, `person_id`) VALUES(?, ?)";
 			
+			writeConnection = database.getWriteConnection();
 			statement = writeConnection.prepareStatement(SQL);
 			statement.setString(1, phoneNumber);
 			statement.setLong(2, personID);
@@ -458,6 +473,11 @@ public class PersonChanger implements Runnable, MessageListener {
 					results.close();
 				}catch(Exception e){}
 			
+			if(writeConnection != null)
+				try{
+					writeConnection.close();
+				}catch(Exception e){}
+
 		}
 
 	}
@@ -0,0 +1,274 @@
+package com.github.waynemerricks.asteriskphone.database;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * Hands person lookups over to the skeleton insert instead of sleeping and retrying.
+ *
+ * When a call rings the server queues a skeleton insert which creates the person and
+ * phonenumbers rows for a first time caller.  Anything that needs those rows (e.g. the
+ * queue lookup) can end up on another worker before the insert has committed.  The
+ * ringing call expects a resolution for the caller ID, the skeleton insert resolves it
+ * and anything waiting runs on the resolving thread straight after.  Numbers with
+ * nothing pending run their work immediately.
+ *
+ * Resolutions that are never resolved (e.g. the insert failed) are given up on
+ * RESOLUTION_TIMEOUT after the last insert was expected and the waiting work runs
+ * anyway as it did after the retries.  The time out thread only watches the deadlines,
+ * the waiting work is handed to a small pool so one slow lookup can't hold up the
+ * other time outs.
+ * @author Wayne Merricks
+ *
+ */
+public class PersonResolver {
+
+	//CLASS VARS
+	private HashMap<String, Resolution> pending = new HashMap<String, Resolution>();
+	private ScheduledExecutorService timeouts;
+	private ExecutorService timedOutWork; //Runs work whose insert never resolved
+	private I18NStrings xStrings;
+
+	//STATICS
+	private static final Logger LOGGER = Logger.getLogger(PersonResolver.class.getName());//Logger
+	private static final long RESOLUTION_TIMEOUT = 10000L; //Longest we wait for a skeleton insert
+	private static final int TIMED_OUT_WORKERS = 2; //Threads running work after a time out
+
+	public PersonResolver(String language, String country){
+
+		xStrings = new I18NStrings(language, country);
+
+		timeouts = Executors.newSingleThreadScheduledExecutor(new ThreadFactory(){
+			public Thread newThread(Runnable r){
+				Thread thread = new Thread(r, "PersonResolver");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+
+		timedOutWork = Executors.newFixedThreadPool(TIMED_OUT_WORKERS, new ThreadFactory(){
+			private AtomicInteger count = new AtomicInteger();
+			public Thread newThread(Runnable r){
+				Thread thread = new Thread(r, "PersonResolverWork-" + 
+						count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+
+	}
+
+	/**
+	 * Marks the caller ID as having a skeleton insert on the way, call this before the
+	 * insert is queued so nothing can ask for the person first.  Each insert expected
+	 * pushes the time out back so later inserts for the same number get their full wait
+	 * @param callerID
+	 */
+	public void expect(String callerID){
+
+		synchronized(pending){
+
+			Resolution resolution = pending.get(callerID);
+			boolean created = resolution == null;
+
+			if(created){
+
+				resolution = new Resolution();
+				pending.put(callerID, resolution);
+
+			}else
+				resolution.expected++;
+
+			resolution.deadline = System.nanoTime() + 
+					TimeUnit.MILLISECONDS.toNanos(RESOLUTION_TIMEOUT);
+
+			//Only the first expect schedules, the time out reschedules itself if pushed back
+			if(created)
+				scheduleTimeout(callerID, resolution, RESOLUTION_TIMEOUT);
+
+		}
+
+	}
+
+	/**
+	 * Called once a skeleton insert for this caller ID has committed (or failed), runs
+	 * anything that was waiting when the last expected insert is done
+	 * @param callerID
+	 */
+	public void resolved(String callerID){
+
+		List<Runnable> waiting = null;
+
+		synchronized(pending){
+
+			Resolution resolution = pending.get(callerID);
+
+			if(resolution != null && --resolution.expected < 1){
+
+				pending.remove(callerID);
+				waiting = resolution.waiting;
+
+			}
+
+		}
+
+		run(waiting);
+
+	}
+
+	/**
+	 * Runs the given work once the person rows for this caller ID exist.  If nothing
+	 * is pending it is run now on this thread
+	 * @param callerID
+	 * @param work
+	 */
+	public void whenResolved(String callerID, Runnable work){
+
+		boolean runNow = true;
+
+		synchronized(pending){
+
+			Resolution resolution = pending.get(callerID);
+
+			if(resolution != null){
+
+				LOGGER.info(xStrings.getString("PersonResolver.waiting") + callerID);
+				resolution.waiting.add(work);
+				runNow = false;
+
+			}
+
+		}
+
+		if(runNow)
+			work.run();
+
+	}
+
+	private void scheduleTimeout(final String callerID, final Resolution resolution, 
+			long delay){
+
+		timeouts.schedule(new Runnable(){
+			public void run(){
+				timeout(callerID, resolution);
+			}
+		}, delay, TimeUnit.MILLISECONDS);
+
+	}
+
+	/**
+	 * Gives up on a resolution that was never resolved, if another insert has been
+	 * expected since this time out was scheduled it waits until the new deadline
+	 * @param callerID
+	 * @param resolution
+	 */
+	private void timeout(String callerID, Resolution resolution){
+
+		List<Runnable> waiting = null;
+
+		synchronized(pending){
+
+			if(pending.get(callerID) == resolution){
+
+				long remaining = TimeUnit.NANOSECONDS.toMillis(
+						resolution.deadline - System.nanoTime());
+
+				if(remaining > 0)
+					scheduleTimeout(callerID, resolution, remaining);
+				else{
+
+					pending.remove(callerID);
+					waiting = resolution.waiting;
+
+				}
+
+			}
+
+		}
+
+		if(waiting != null){
+
+			LOGGER.warning(xStrings.getString("PersonResolver.timedOut") + callerID);
+			final List<Runnable> work = waiting;
+
+			try{
+
+				timedOutWork.execute(new Runnable(){
+					public void run(){
+						PersonResolver.this.run(work);
+					}
+				});
+
+			}catch(RejectedExecutionException e){
+				//Shutting down, run it here rather than lose it
+				run(work);
+			}
+
+		}
+
+	}
+
+	/**
+	 * Runs the given work, one failing doesn't stop the rest
+	 * @param waiting
+	 */
+	private void run(List<Runnable> waiting){
+
+		if(waiting != null)
+			for(int i = 0; i < waiting.size(); i++){
+
+				try{
+					waiting.get(i).run();
+				}catch(RuntimeException e){
+					LOGGER.severe(xStrings.getString("PersonResolver.workFailed") +
+							e.getMessage());
+				}
+
+			}
+
+	}
+
+	/**
+	 * Stops the timeout thread, anything still waiting is run now.  Work that already
+	 * timed out is left to finish on its own threads
+	 */
+	public void shutdown(){
+
+		ArrayList<Runnable> waiting = new ArrayList<Runnable>();
+
+		synchronized(pending){
+
+			for(Resolution resolution : pending.values())
+				waiting.addAll(resolution.waiting);
+
+			pending.clear();
+
+		}
+
+		timeouts.shutdownNow();
+		timedOutWork.shutdown();
+		run(waiting);
+
+	}
+
+	/**
+	 * Skeleton inserts pending for one caller ID and the work waiting on them
+	 */
+	private static class Resolution {
+
+		private int expected = 1;
+		private long deadline; //System.nanoTime() we give up at
+		private ArrayList<Runnable> waiting = new ArrayList<Runnable>();
+
+	}
+
+}
@@ -0,0 +1,146 @@
+package com.github.waynemerricks.asteriskphone.database;
+
+/**
+ * Central list of the parameterised SQL used by the records and callinput
+ * packages.
+ *
+ * Always use these with Connection.prepareStatement and set the parameters
+ * rather than concatenating values into the SQL.  The connection pools are created
+ * with cachePrepStmts and useServerPrepStmts enabled so each of these is parsed
+ * and planned once per pooled connection and reused after that.
+ * @author Wayne Merricks
+ *
+ */
+public class QueryRegistry {
+
+	/* CALL HISTORY */
+	/** Insert a call state e.g. R, Q, A, P, H, D params: phonenumber, state, operator, callchannel */
+	public static final String INSERT_CALL_STATE = "INSERT INTO `callhistory` (`phonenumber`, " +
+			"`state`, `operator`, `callchannel`) VALUES (?, ?, ?, ?)";
+
+	/** Insert a call state with an active person params: phonenumber, state, operator, callchannel, activePerson */
+	public static final String INSERT_CALL_STATE_WITH_PERSON = "INSERT INTO `callhistory` (" +
+			"`phonenumber`, `state`, `operator`, `callchannel`, `activePerson`) VALUES (?, ?, ?, ?, ?)";
+
+	/** Insert a call type change params: phonenumber, callchannel, type */
+	public static final String INSERT_CALL_TYPE = "INSERT INTO `callhistory` (`phonenumber`, " +
+			"`state`, `callchannel`, `type`) VALUES (?, 'T', ?, ?)";
+
+	/** Latest call type for a channel params: callchannel */
+	public static final String SELECT_CALL_TYPE = "SELECT `type` FROM `callhistory` WHERE " +
+			"`callchannel` = ? AND `type` != 'NA' ORDER BY `callhistory_id` DESC LIMIT 1";
+
+	/** First phone number recorded against a channel params: callchannel */
+	public static final String SELECT_NUMBER_FOR_CHANNEL = "SELECT `phonenumber` FROM " +
+			"`callhistory` WHERE `callchannel` = ? LIMIT 1";
+
+	/* Call log rows, each channel's conversation (with the person who had it) and its
+	 * ringing entry (with the person for the number) joined on in one go.  A channel
+	 * can have more than one row, they always come together */
+	private static final String CALL_LOG_COLUMNS = "SELECT `recent`.`callchannel`, " +
+			"`conversations`.`time` AS `conversationTime`, `conversations`.`conversation`, " +
+			"`talker`.`name` AS `conversationName`, `talker`.`location` AS " +
+			"`conversationLocation`, `ringing`.`time` AS `ringTime`, `caller`.`person_id` AS " +
+			"`callerID`, `caller`.`name` AS `callerName`, `caller`.`location` AS " +
+			"`callerLocation` FROM ";
+
+	private static final String CALL_LOG_JOINS = " AS `recent` LEFT JOIN `conversations` ON " +
+			"`conversations`.`channel` = `recent`.`callchannel` LEFT JOIN `person` AS `talker` " +
+			"ON `talker`.`person_id` = `conversations`.`person_id` LEFT JOIN `callhistory` AS " +
+			"`ringing` ON `ringing`.`callchannel` = `recent`.`callchannel` AND " +
+			"`ringing`.`state` = 'R' LEFT JOIN `phonenumbers` ON `phonenumbers`.`phone_number` = " +
+			"`ringing`.`phonenumber` LEFT JOIN `person` AS `caller` ON `caller`.`person_id` = " +
+			"`phonenumbers`.`person_id`";
+
+	/** Call log for channels queued/answered since the given time, oldest first params: time */
+	public static final String SELECT_CALL_LOG = CALL_LOG_COLUMNS + "(SELECT `callchannel`, " +
+			"MAX(`time`) AS `lastTime` FROM `callhistory` WHERE `time` > ? AND (`state` = 'Q' " +
+			"OR `state` = 'A') GROUP BY `callchannel`)" + CALL_LOG_JOINS + " ORDER BY " +
+			"`recent`.`lastTime` ASC, `recent`.`callchannel` ASC";
+
+	/** Call log for one channel params: callchannel */
+	public static final String SELECT_CALL_LOG_FOR_CHANNEL = CALL_LOG_COLUMNS + 
+			"(SELECT DISTINCT `callchannel` FROM `callhistory` WHERE `callchannel` = ?)" +
+			CALL_LOG_JOINS;
+
+	/* PEOPLE AND NUMBERS */
+	/** Most recently updated person for a number params: phone_number */
+	public static final String SELECT_PERSON_ID_FOR_NUMBER = "SELECT `person_id` FROM " +
+			"`phonenumbers` WHERE `phone_number` = ? ORDER BY `lastUpdate` DESC LIMIT 1";
+
+	/** All people and number ids associated with a number params: phone_number */
+	public static final String SELECT_PEOPLE_FOR_NUMBER = "SELECT `phonenumbers`.`numbers_id`, " +
+			"`person`.* FROM `phonenumbers` INNER JOIN `person` ON `phonenumbers`.`person_id` = " +
+			"`person`.`person_id` WHERE `phonenumbers`.`phone_number` = ?";
+
+	/** Full person record params: person_id */
+	public static final String SELECT_PERSON = "SELECT * FROM `person` WHERE `person_id` = ?";
+
+	/** Name and location of a person params: person_id */
+	public static final String SELECT_PERSON_SUMMARY = "SELECT `name`, `location` FROM `person` " +
+			"WHERE `person_id` = ?";
+
+	/** Blank person record, use with RETURN_GENERATED_KEYS */
+	public static final String INSERT_PERSON = "INSERT INTO `person` VALUES()";
+
+	/** Update a persons details params: alert, name, gender, location, address, postcode,
+	 * email, language, religion, notes, person_id */
+	public static final String UPDATE_PERSON = "UPDATE `person` SET `alert` = ?, `name` = ?, " +
+			"`gender` = ?, `location` = ?, `address` = ?, `postcode` = ?, `email` = ?, " +
+			"`language` = ?, `religion` = ?, `notes` = ? WHERE `person_id` = ?";
+
+	/** New phone number for a person params: phone_number, person_id */
+	public static final String INSERT_PHONE_NUMBER = "INSERT INTO `phonenumbers` " +
+			"(`phone_number`, `person_id`) VALUES (?, ?)";
+
+	/** People with an exact number match params: phone_number */
+	public static final String SEARCH_NUMBER = "SELECT `person`.*, `phonenumbers`.`phone_number` " +
+			"FROM `person` INNER JOIN `phonenumbers` ON `person`.`person_id` = " +
+			"`phonenumbers`.`person_id` WHERE `phonenumbers`.`phone_number` = ? " +
+			"ORDER BY `person`.`name` ASC";
+
+	/** People with a number starting with params: phone_number% */
+	public static final String SEARCH_NUMBER_PARTIAL = "SELECT `person`.*, " +
+			"`phonenumbers`.`phone_number` FROM `person` INNER JOIN `phonenumbers` ON " +
+			"`person`.`person_id` = `phonenumbers`.`person_id` WHERE " +
+			"`phonenumbers`.`phone_number` LIKE ? ORDER BY `person`.`name` ASC";
+
+	/** People with an exact name match params: name */
+	public static final String SEARCH_NAME = "SELECT `person`.*, `phonenumbers`.`phone_number` " +
+			"FROM `person` INNER JOIN `phonenumbers` ON `person`.`person_id` = " +
+			"`phonenumbers`.`person_id` WHERE `person`.`name` = ? " +
+			"ORDER BY `person`.`name` ASC LIMIT 10";
+
+	/** People with a name starting with params: name% */
+	public static final String SEARCH_NAME_PARTIAL = "SELECT `person`.*, " +
+			"`phonenumbers`.`phone_number` FROM `person` INNER JOIN `phonenumbers` ON " +
+			"`person`.`person_id` = `phonenumbers`.`person_id` WHERE `person`.`name` LIKE ? " +
+			"ORDER BY `person`.`name` ASC LIMIT 10";
+
+	/** Every person and number for the client search index */
+	public static final String SEARCH_INDEX_ALL = "SELECT `person`.`person_id`, `person`.`name`, " +
+			"`person`.`location`, `phonenumbers`.`phone_number` FROM `person` INNER JOIN " +
+			"`phonenumbers` ON `person`.`person_id` = `phonenumbers`.`person_id`";
+
+	/** Numbers of one person for the client search index params: person_id */
+	public static final String SEARCH_INDEX_PERSON = SEARCH_INDEX_ALL +
+			" WHERE `person`.`person_id` = ?";
+
+	/* CONVERSATIONS */
+	/** Conversation history for a person including archived conversations oldest first
+	 * params: person_id, person_id */
+	public static final String SELECT_CONVERSATIONS_FOR_PERSON = "SELECT `time`, `channel`, " +
+			"`conversation` FROM `conversations` WHERE `person_id` = ? UNION ALL SELECT " +
+			"`time`, `channel`, `conversation` FROM `conversations_archive` WHERE " +
+			"`person_id` = ? ORDER BY `time` ASC";
+
+	/** New conversation not tied to a channel params: person_id, conversation */
+	public static final String INSERT_CONVERSATION = "INSERT INTO `conversations` " +
+			"(`person_id`, `conversation`) VALUES (?, ?)";
+
+	/* CALL INPUT FIELDS */
+	/** Every locale's call input fields in display order for the FieldDefinitionCache */
+	public static final String SELECT_ALL_INPUT_FIELDS = "SELECT * FROM `callinputfields` " +
+			"ORDER BY `language` ASC, `order` ASC";
+
+}
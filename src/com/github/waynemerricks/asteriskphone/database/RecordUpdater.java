@@ -10,7 +10,7 @@ import java.util.logging.Logger;
 public class RecordUpdater implements Runnable {
 
 	private String fieldMapping, channelID, value;
-	private Connection readConnection, writeConnection;
+	private DatabaseManager database;
 	private I18NStrings xStrings;
 	private static final Logger LOGGER = Logger.getLogger(RecordUpdater.class.getName());//Logger
 	
@@ -18,54 +18,31 @@ public class RecordUpdater implements Runnable {
 	 * Creates a runnable object to update fields related to a call/person
 	 * @param language I18N Language
 	 * @param country I18N Country
-	 * @param readConnection Database Read Connection
-	 * @param writeConnection Database Write Connection
+	 * @param database DatabaseManager to borrow connections from
 	 * @param fieldMapping Field mapping we will be changing
 	 * @param channelID ID of the channel we're changing
 	 * @param value Value we're changing the field to
 	 */
-	public RecordUpdater(String language, String country, Connection readConnection, 
-			Connection writeConnection, String fieldMapping, String channelID, String value) {
+	public RecordUpdater(String language, String country, DatabaseManager database, 
+			String fieldMapping, String channelID, String value) {
 		
 		xStrings = new I18NStrings(language, country);
 		
 		this.fieldMapping = fieldMapping;
 		this.channelID = channelID;
-		this.readConnection = readConnection;
-		this.writeConnection = writeConnection;
-		
-		//Parse out the ^^%%$$ to /
-		value = value.replaceAll("^^%%$$", "/");  
-		
-		
-		if(isImageMappedCombo(fieldMapping)){
-			
-			/* Think about alert/badge icons ->
-			 * lookup options for mapping of the same name, will have to parse out icons
-			 * 
-			 * + = /
-			 * @@ = separator for field name mapped to icon path e.g. 
-			 *   Favourite@@images+favourite.png
-			 * ==> Favourite => images/favourite.png 
-			 * 
-			 * All we need is the Favourite part of that to save to the DB
-			 */
-			if(value.contains("@@")) 
-				value = value.split("@@")[0]; 
-				
-		}
-		
+		this.database = database;
 		this.value = value;
 		
 		LOGGER.info(xStrings.getString("RecordUpdater.updatingRecord") +  
 				"\n\tChannel: " + channelID + "\n\tField: " + fieldMapping +   
-				"\n\tValue: " + value); 
+				"\n\tValue: " + this.value); 
 		
 	}
 
 	@Override
 	public void run() {
 		
+		Connection writeConnection = null;
 		PreparedStatement statement = null;
 		String SQL = null;
 		
@@ -77,6 +54,7 @@ public class RecordUpdater implements Runnable {
 				SQL = "UPDATE callhistory SET type = ? WHERE callchannel = ? ORDER BY " 
 						+ "callhistory_id DESC LIMIT 1"; 
 				
+				writeConnection = database.getWriteConnection();
 				statement = writeConnection.prepareStatement(SQL);
 				statement.setString(1, value);
 				statement.setString(2, channelID);
@@ -88,14 +66,22 @@ public class RecordUpdater implements Runnable {
 				//Special case for conversation
 				/*
 				 * If already exists update else insert
+				 * 
+				 * Do the reads first so we don't hold a write connection while
+				 * waiting on the read pool
 				 */
-				if(conversationExists(channelID)){
+				boolean exists = conversationExists(channelID);
+				String personID = getPersonID(channelID);
+				
+				writeConnection = database.getWriteConnection();
+				
+				if(exists){
 					SQL = "UPDATE conversations SET conversation = ?, person_id = ? "  
 							+ "WHERE channel = ?"; 
 					
 					statement = writeConnection.prepareStatement(SQL);
 					statement.setString(1, value);
-					statement.setString(2, getPersonID(channelID));
+					statement.setString(2, personID);
 					statement.setString(3, channelID);
 					
 				}else{
@@ -105,7 +91,7 @@ public class RecordUpdater implements Runnable {
 					statement = writeConnection.prepareStatement(SQL);
 					statement.setString(1, value);
 					statement.setString(2, channelID);
-					statement.setString(3, getPersonID(channelID));
+					statement.setString(3, personID);
 					
 				}
 				
@@ -113,15 +99,35 @@ public class RecordUpdater implements Runnable {
 				
 			}else{
 				
+				if(isImageMappedCombo(fieldMapping)){
+					
+					/* Think about alert/badge icons ->
+					 * lookup options for mapping of the same name, will have to parse out icons
+					 * 
+					 * + = /
+					 * @@ = separator for field name mapped to icon path e.g. 
+					 *   Favourite@@images+favourite.png
+					 * ==> Favourite => images/favourite.png 
+					 * 
+					 * All we need is the Favourite part of that to save to the DB
+					 */
+					if(value.contains("@@")) 
+						value = value.split("@@")[0]; 
+						
+				}
+				
 				//TODO Update field on person table still not sure how we'll do custom
 				if(fieldMapping.equals("gender") || fieldMapping.equals("alert"))  
 					value = value.substring(0, 1);
 				
+				String personID = getPersonID(channelID);
+				
 				SQL = "UPDATE person SET " + fieldMapping + " = ? WHERE person_id = ?";  
 				
+				writeConnection = database.getWriteConnection();
 				statement = writeConnection.prepareStatement(SQL);
 				statement.setString(1, value);
-				statement.setString(2, getPersonID(channelID));
+				statement.setString(2, personID);
 				
 				statement.executeUpdate();
 				
@@ -139,6 +145,11 @@ public class RecordUpdater implements Runnable {
             		statement.close();
             	}catch(Exception e){}
             
+            if(writeConnection != null)
+            	try{
+            		writeConnection.close();
+            	}catch(Exception e){}
+            
         }
 
 	}
@@ -159,11 +170,13 @@ public class RecordUpdater implements Runnable {
 		 */
 		String SQL = "SELECT conversations_id FROM conversations WHERE channel = \"" + channel + "\""; 
 		
+		Connection readConnection = null;
 		Statement statement = null;
 		ResultSet results = null;
 		
 		try{
 			
+			readConnection = database.getReadConnection();
 			statement = readConnection.createStatement();
 		    results = statement.executeQuery(SQL);
 		    
@@ -188,13 +201,21 @@ public class RecordUpdater implements Runnable {
 		        statement = null;
 		    }
 			
+			if (readConnection != null) {
+		        try {
+		        	readConnection.close();
+		        } catch (SQLException sqlEx) { } // ignore
+		        readConnection = null;
+		    }
+			
 		}
 		
 		return exists;
 	}
 
 	/**
-	 * Looks in the DB to find out if this fieldMapping belongs to a combo box with images
+	 * Checks the cached field definitions to find out if this fieldMapping belongs to a
+	 * combo box with images
 	 * @param fieldMapping mapping to lookup
 	 * @return true if this combo box has mapped field values to images
 	 */
@@ -202,45 +223,10 @@ public class RecordUpdater implements Runnable {
 		
 		boolean mappedCombo = false;
 		
-		/*
-		 * Lookup the type in the DB if its combo get the options and search for =>
-		 * 
-		 * if both true then return true
-		 */
-		String SQL = "SELECT type, options FROM callinputfields WHERE mapping = '"  
-				+ fieldMapping + "'"; 
-		
-		Statement statement = null;
-		ResultSet results = null;
-		
 		try{
-			
-			statement = readConnection.createStatement();
-		    results = statement.executeQuery(SQL);
-		    
-			while(results.next())
-				if(results.getString("type").equals("combo") &&   
-						results.getString("options").contains("=>"))  
-					mappedCombo = true;
-				
+			mappedCombo = database.getFieldDefinitionCache().isImageMappedCombo(fieldMapping);
 		}catch (SQLException e){
 			showError(e, xStrings.getString("RecordUpdater.errorGettingActivePerson")); 
-		}finally {
-			
-			if (results != null) {
-		        try {
-		        	results.close();
-		        } catch (SQLException sqlEx) { } // ignore
-		        results = null;
-		    }
-		    
-			if (statement != null) {
-		        try {
-		        	statement.close();
-		        } catch (SQLException sqlEx) { } // ignore
-		        statement = null;
-		    }
-			
 		}
 		
 		return mappedCombo;
@@ -264,11 +250,13 @@ public class RecordUpdater implements Runnable {
 		
 		LOGGER.info(SQL);
 		
+		Connection readConnection = null;
 		Statement statement = null;
 		ResultSet results = null;
 		
 		try{
 			
+			readConnection = database.getReadConnection();
 			statement = readConnection.createStatement();
 		    results = statement.executeQuery(SQL);
 		    
@@ -293,6 +281,13 @@ public class RecordUpdater implements Runnable {
 		        statement = null;
 		    }
 			
+			if (readConnection != null) {
+		        try {
+		        	readConnection.close();
+		        } catch (SQLException sqlEx) { } // ignore
+		        readConnection = null;
+		    }
+			
 		}
 		
 		return id;
@@ -0,0 +1,310 @@
+package com.github.waynemerricks.asteriskphone.database;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * Spreads read connections over a set of MySQL replicas.
+ *
+ * Each replica has its own ConnectionPool.  Reads go to the next replica in turn
+ * (round robin) or the one with the fewest connections in use (least loaded), skipping
+ * any that are further behind the primary than maxLag.  Lag is read from SHOW SLAVE
+ * STATUS every LAG_CHECK_PERIOD so the read user needs the REPLICATION CLIENT grant,
+ * a replica whose lag can't be read or whose replication has stopped isn't used.
+ *
+ * After a write that someone is about to read back call preferPrimary(), borrow() then
+ * returns null for maxLag so the caller uses the primary and reads its own writes.
+ * borrow() also returns null if no replica is usable.
+ * @author Wayne Merricks
+ *
+ */
+public class ReplicaRouter {
+
+	//CLASS VARS
+	private ArrayList<Replica> replicas = new ArrayList<Replica>();
+	private boolean leastLoaded;
+	private long maxLag;
+	private volatile long primaryUntil = 0;
+	private AtomicInteger nextReplica = new AtomicInteger(0);
+	private ScheduledExecutorService lagChecker;
+	private I18NStrings xStrings;
+
+	//STATICS
+	private static final Logger LOGGER = Logger.getLogger(ReplicaRouter.class.getName());//Logger
+	private static final long LAG_CHECK_PERIOD = 5000L;
+	private static final String SHOW_SLAVE_STATUS = "SHOW SLAVE STATUS";
+	private static final String LAG_COLUMN = "Seconds_Behind_Master";
+
+	/**
+	 * Creates a router over the given pools, call start() to begin checking lag
+	 * @param pools one pool per replica
+	 * @param leastLoaded true to pick the replica with the fewest active connections,
+	 * false for round robin
+	 * @param maxLag replicas further behind than this (ms) aren't used
+	 * @param language I18N language e.g. en
+	 * @param country I18N country e.g. GB
+	 */
+	public ReplicaRouter(List<ConnectionPool> pools, boolean leastLoaded, long maxLag,
+			String language, String country){
+
+		for(int i = 0; i < pools.size(); i++)
+			replicas.add(new Replica(pools.get(i)));
+
+		this.leastLoaded = leastLoaded;
+		this.maxLag = maxLag;
+		xStrings = new I18NStrings(language, country);
+
+	}
+
+	/**
+	 * Checks lag now and then every LAG_CHECK_PERIOD on a background thread.  Replicas
+	 * aren't used until their first check has passed
+	 */
+	public synchronized void start(){
+
+		if(lagChecker == null){
+
+			lagChecker = Executors.newSingleThreadScheduledExecutor(new ThreadFactory(){
+				public Thread newThread(Runnable r){
+					Thread thread = new Thread(r, "ReplicaRouter");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+
+			lagChecker.scheduleWithFixedDelay(new Runnable(){
+				public void run(){
+					checkLag();
+				}
+			}, 0, LAG_CHECK_PERIOD, TimeUnit.MILLISECONDS);
+
+		}
+
+	}
+
+	/**
+	 * Borrows a connection from a usable replica
+	 * @return connection (close it to return it) or null to use the primary instead
+	 */
+	public Connection borrow(){
+
+		Connection connection = null;
+
+		if(System.currentTimeMillis() >= primaryUntil){
+
+			ArrayList<Replica> candidates = getCandidates();
+
+			while(connection == null && candidates.size() > 0){
+
+				Replica replica = candidates.remove(0);
+
+				try{
+					connection = replica.pool.borrow();
+				}catch(SQLException e){
+
+					//Don't use it again until the next lag check says it's OK
+					replica.usable = false;
+					LOGGER.warning(xStrings.getString("ReplicaRouter.borrowFailed") +
+							replica.pool.getName() + " " + e.getMessage());
+
+				}
+
+			}
+
+		}
+
+		return connection;
+
+	}
+
+	/**
+	 * Sends reads to the primary for the next maxLag ms so anything just written is
+	 * read back from where it was written
+	 */
+	public void preferPrimary(){
+
+		primaryUntil = System.currentTimeMillis() + maxLag;
+
+	}
+
+	/**
+	 * Stops checking lag and shuts down the replica pools
+	 */
+	public synchronized void shutdown(){
+
+		if(lagChecker != null){
+
+			lagChecker.shutdownNow();
+			lagChecker = null;
+
+		}
+
+		for(int i = 0; i < replicas.size(); i++){
+
+			replicas.get(i).usable = false;
+			replicas.get(i).pool.shutdown();
+
+		}
+
+	}
+
+	/**
+	 * Returns the usable replicas in the order they should be tried
+	 * @return
+	 */
+	private ArrayList<Replica> getCandidates(){
+
+		ArrayList<Replica> candidates = new ArrayList<Replica>(replicas.size());
+		int start = Math.abs(nextReplica.getAndIncrement() % replicas.size());
+
+		for(int i = 0; i < replicas.size(); i++){
+
+			Replica replica = replicas.get((start + i) % replicas.size());
+
+			if(replica.usable){
+
+				int position = candidates.size();
+
+				//Least loaded keeps round robin order between replicas with the same load
+				if(leastLoaded)
+					while(position > 0 && candidates.get(position - 1).pool.getActiveCount() >
+							replica.pool.getActiveCount())
+						position--;
+
+				candidates.add(position, replica);
+
+			}
+
+		}
+
+		return candidates;
+
+	}
+
+	/**
+	 * Reads the replication lag of every replica and marks them usable or not
+	 */
+	private void checkLag(){
+
+		for(int i = 0; i < replicas.size(); i++){
+
+			Replica replica = replicas.get(i);
+			long lag = readLag(replica);
+			boolean usable = lag >= 0 && lag <= maxLag;
+
+			if(usable != replica.usable){
+
+				if(usable)
+					LOGGER.info(xStrings.getString("ReplicaRouter.replicaUsable") +
+							replica.pool.getName());
+				else
+					LOGGER.warning(xStrings.getString("ReplicaRouter.replicaLagging") +
+							replica.pool.getName() + " " + lag);
+
+			}
+
+			replica.lag = lag;
+			replica.usable = usable;
+
+		}
+
+	}
+
+	/**
+	 * Returns how far behind the primary this replica is
+	 * @param replica
+	 * @return lag in ms, 0 if this server isn't replicating or -1 if replication has
+	 * stopped or the lag couldn't be read
+	 */
+	private long readLag(Replica replica){
+
+		long lag = -1;
+		Connection connection = null;
+		Statement statement = null;
+		ResultSet resultSet = null;
+
+		try{
+
+			connection = replica.pool.borrow();
+			statement = connection.createStatement();
+			resultSet = statement.executeQuery(SHOW_SLAVE_STATUS);
+
+			if(resultSet.next()){
+
+				long seconds = resultSet.getLong(LAG_COLUMN);
+
+				if(!resultSet.wasNull())
+					lag = seconds * 1000L;
+
+			}else
+				lag = 0;
+
+		}catch(SQLException e){
+			LOGGER.warning(xStrings.getString("ReplicaRouter.lagCheckFailed") +
+					replica.pool.getName() + " " + e.getMessage());
+		}finally{
+
+			if(resultSet != null)
+				try{
+					resultSet.close();
+				}catch(SQLException e){}
+
+			if(statement != null)
+				try{
+					statement.close();
+				}catch(SQLException e){}
+
+			if(connection != null)
+				try{
+					connection.close();
+				}catch(SQLException e){}
+
+		}
+
+		return lag;
+
+	}
+
+	/**
+	 * Returns the pool statistics and lag of each replica for logging
+	 */
+	public String toString(){
+
+		String statistics = "";
+
+		for(int i = 0; i < replicas.size(); i++)
+			statistics += " / " + replicas.get(i).pool.toString() + " lag=" +
+					replicas.get(i).lag;
+
+		return statistics;
+
+	}
+
+	/**
+	 * A replica's pool and what the last lag check found
+	 */
+	private static class Replica {
+
+		private final ConnectionPool pool;
+		private volatile boolean usable = false;
+		private volatile long lag = -1;
+
+		private Replica(ConnectionPool pool){
+
+			this.pool = pool;
+
+		}
+
+	}
+
+}
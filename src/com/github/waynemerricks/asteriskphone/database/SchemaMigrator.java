@@ -0,0 +1,312 @@
+package com.github.waynemerricks.asteriskphone.database;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.logging.Logger;
+
+/**
+ * Brings the phone_manager schema up to date when the server starts.
+ *
+ * Each migration has a version number and is recorded in the schema_version table
+ * once it has been applied so it is only ever run once per database.  Index
+ * migrations check information_schema first and table migrations use IF NOT EXISTS
+ * so a database that was set up from a newer install script (which already has them)
+ * just has the version recorded.
+ *
+ * New migrations go on the end of MIGRATIONS with the next version number, never
+ * change or reorder one that has been released.
+ * @author Wayne Merricks
+ *
+ */
+public class SchemaMigrator {
+
+	//CLASS VARS
+	private DatabaseManager database;
+	private I18NStrings xStrings;
+
+	//STATICS
+	private static final Logger LOGGER = Logger.getLogger(SchemaMigrator.class.getName());//Logger
+
+	private static final String CREATE_VERSION_TABLE = "CREATE TABLE IF NOT EXISTS " +
+			"`schema_version` (`version` int(11) NOT NULL, `description` varchar(128) NOT " +
+			"NULL, `applied` timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP, PRIMARY KEY " +
+			"(`version`)) ENGINE=InnoDB DEFAULT CHARSET=latin1";
+	private static final String SELECT_VERSION = "SELECT MAX(`version`) AS `version` FROM " +
+			"`schema_version`";
+	private static final String INSERT_VERSION = "INSERT INTO `schema_version` (`version`, " +
+			"`description`) VALUES (?, ?)";
+	private static final String SELECT_INDEX = "SELECT `INDEX_NAME` FROM " +
+			"`information_schema`.`STATISTICS` WHERE `TABLE_SCHEMA` = DATABASE() AND " +
+			"`TABLE_NAME` = ? AND `INDEX_NAME` = ? LIMIT 1";
+
+	private static final Migration[] MIGRATIONS = {
+		//Call log ringing join, PersonChanger/RecordUpdater conversation by channel
+		new Migration(1, "conversations", "ichannel", "`channel`"),
+		//Caller history, SELECT_CONVERSATIONS_FOR_PERSON
+		new Migration(2, "conversations", "iperson_time", "`person_id`, `time`"),
+		//Call log, channels queued/answered since a time.  Covers the whole derived
+		//table so it never has to read the rows
+		new Migration(3, "callhistory", "itime_state_channel", "`time`, `state`, " +
+				"`callchannel`"),
+		//Call log ringing join, the R entry for a channel
+		new Migration(4, "callhistory", "icallchannel_state", "`callchannel`, `state`"),
+		//Search index and caller records, numbers for a person
+		new Migration(5, "phonenumbers", "iperson_id", "`person_id`"),
+		//CallHistoryArchiver, conversations older than the archive horizon
+		new Migration(6, "conversations", "itime", "`time`"),
+		//Archive tables, created after the indexes above so LIKE copies them
+		new Migration(7, "callhistory_archive", "CREATE TABLE IF NOT EXISTS " +
+				"`callhistory_archive` LIKE `callhistory`"),
+		new Migration(8, "conversations_archive", "CREATE TABLE IF NOT EXISTS " +
+				"`conversations_archive` LIKE `conversations`")
+	};
+
+	public SchemaMigrator(DatabaseManager database, String language, String country){
+
+		this.database = database;
+		xStrings = new I18NStrings(language, country);
+
+	}
+
+	/**
+	 * Applies any migrations this database hasn't had yet, in version order.  Stops at
+	 * the first one that fails so the next startup tries again from there
+	 * @return false if a migration failed
+	 */
+	public boolean migrate(){
+
+		boolean migrated = false;
+		Connection connection = null;
+		Statement statement = null;
+
+		try{
+
+			connection = database.getWriteConnection();
+			statement = connection.createStatement();
+			statement.executeUpdate(CREATE_VERSION_TABLE);
+
+			int current = getVersion(connection);
+			int applied = 0;
+
+			for(int i = 0; i < MIGRATIONS.length; i++){
+
+				if(MIGRATIONS[i].version > current){
+
+					apply(connection, MIGRATIONS[i]);
+					applied++;
+
+				}
+
+			}
+
+			if(applied > 0)
+				LOGGER.info(xStrings.getString("SchemaMigrator.migrated") + applied);
+			else
+				LOGGER.info(xStrings.getString("SchemaMigrator.upToDate") + current);
+
+			migrated = true;
+
+		}catch(SQLException e){
+			LOGGER.severe(xStrings.getString("SchemaMigrator.migrationFailed") +
+					e.getMessage());
+		}finally{
+
+			if(statement != null)
+				try{
+					statement.close();
+				}catch(SQLException e){}
+
+			if(connection != null)
+				try{
+					connection.close();
+				}catch(SQLException e){}
+
+		}
+
+		return migrated;
+
+	}
+
+	/**
+	 * Returns the highest version recorded in schema_version, 0 if there are none
+	 * @param connection
+	 * @return
+	 * @throws SQLException
+	 */
+	private int getVersion(Connection connection) throws SQLException {
+
+		int version = 0;
+		Statement statement = null;
+		ResultSet resultSet = null;
+
+		try{
+
+			statement = connection.createStatement();
+			resultSet = statement.executeQuery(SELECT_VERSION);
+
+			if(resultSet.next())
+				version = resultSet.getInt("version");
+
+		}finally{
+
+			if(resultSet != null)
+				try{
+					resultSet.close();
+				}catch(SQLException e){}
+
+			if(statement != null)
+				try{
+					statement.close();
+				}catch(SQLException e){}
+
+		}
+
+		return version;
+
+	}
+
+	/**
+	 * Runs the SQL or adds the index for this migration unless it is already there and
+	 * records the version
+	 * @param connection
+	 * @param migration
+	 * @throws SQLException
+	 */
+	private void apply(Connection connection, Migration migration) throws SQLException {
+
+		Statement statement = null;
+		PreparedStatement record = null;
+
+		try{
+
+			if(migration.sql != null){
+
+				LOGGER.info(xStrings.getString("SchemaMigrator.runningMigration") +
+						migration.getDescription());
+
+				statement = connection.createStatement();
+				statement.executeUpdate(migration.sql);
+
+			}else if(!hasIndex(connection, migration.table, migration.index)){
+
+				LOGGER.info(xStrings.getString("SchemaMigrator.addingIndex") +
+						migration.getDescription());
+
+				//ALTER TABLE can't be parameterised, names only ever come from MIGRATIONS
+				statement = connection.createStatement();
+				statement.executeUpdate("ALTER TABLE `" + migration.table + "` ADD INDEX `" +
+						migration.index + "` (" + migration.columns + ")");
+
+			}else
+				LOGGER.info(xStrings.getString("SchemaMigrator.indexExists") +
+						migration.getDescription());
+
+			record = connection.prepareStatement(INSERT_VERSION);
+			record.setInt(1, migration.version);
+			record.setString(2, migration.getDescription());
+			record.executeUpdate();
+
+		}finally{
+
+			if(statement != null)
+				try{
+					statement.close();
+				}catch(SQLException e){}
+
+			if(record != null)
+				try{
+					record.close();
+				}catch(SQLException e){}
+
+		}
+
+	}
+
+	/**
+	 * Checks information_schema for an index on the given table
+	 * @param connection
+	 * @param table
+	 * @param index
+	 * @return
+	 * @throws SQLException
+	 */
+	private boolean hasIndex(Connection connection, String table, String index)
+			throws SQLException {
+
+		boolean exists = false;
+		PreparedStatement statement = null;
+		ResultSet resultSet = null;
+
+		try{
+
+			statement = connection.prepareStatement(SELECT_INDEX);
+			statement.setString(1, table);
+			statement.setString(2, index);
+			resultSet = statement.executeQuery();
+
+			if(resultSet.next())
+				exists = true;
+
+		}finally{
+
+			if(resultSet != null)
+				try{
+					resultSet.close();
+				}catch(SQLException e){}
+
+			if(statement != null)
+				try{
+					statement.close();
+				}catch(SQLException e){}
+
+		}
+
+		return exists;
+
+	}
+
+	/**
+	 * One versioned index on a table or a statement that is safe to run twice
+	 */
+	private static class Migration {
+
+		private final int version;
+		private final String table, index, columns, sql;
+
+		public Migration(int version, String table, String index, String columns){
+
+			this.version = version;
+			this.table = table;
+			this.index = index;
+			this.columns = columns;
+			this.sql = null;
+
+		}
+
+		public Migration(int version, String table, String sql){
+
+			this.version = version;
+			this.table = table;
+			this.index = null;
+			this.columns = null;
+			this.sql = sql;
+
+		}
+
+		public String getDescription(){
+
+			String description = "create " + table;
+
+			if(sql == null)
+				description = table + "." + index + " (" + columns.replace("`", "") + ")";
+
+			return description;
+
+		}
+
+	}
+
+}
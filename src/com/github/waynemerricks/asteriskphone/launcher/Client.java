@@ -21,6 +21,7 @@ import com.github.waynemerricks.asteriskphone.chat.ChatManager;
 import com.github.waynemerricks.asteriskphone.chat.ChatWindow;
 import com.github.waynemerricks.asteriskphone.database.DatabaseManager;
 import com.github.waynemerricks.asteriskphone.database.Settings;
+import com.github.waynemerricks.asteriskphone.protocol.ControlMessageCodec;
 
 import javax.swing.UIManager.*;
 
@@ -119,7 +120,7 @@ public class Client extends JFrame implements WindowListener{
 				callManagerPanel.sendUpdateRequest();
 				
 				CallInputPanel callInput = new CallInputPanel(
-						databaseManager.getReadConnection(), 
+						databaseManager, 
 						userSettings.get("maxRecordAge"), this.language, this.country, chatManager,  
 						userSettings.get("incomingQueueNumber"), 
 						userSettings.get("onAirQueueNumber")); 
@@ -208,8 +209,11 @@ public class Client extends JFrame implements WindowListener{
 				xStrings = new I18NStrings(language, country);//reset language to user settings
 				databaseManager.setNewLocale(language, country);//Set db manager language to above
 				
-				//Database Keep Alive Thread
-				databaseManager.spawnKeepAlive(language, country);
+				//Spread reads over any replicas listed in the settings
+				databaseManager.connectReplicas();
+				
+				//Control message format, stays on 1 until every client understands 2
+				ControlMessageCodec.setEncodeVersion(userSettings.get("controlProtocolVersion"));
 				
 				//Chat Connection Manager
 				chatManager = new ChatManager(userSettings.get("XMPPLogin") + "@" +   
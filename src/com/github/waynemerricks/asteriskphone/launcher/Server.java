@@ -11,6 +11,7 @@ import com.github.waynemerricks.asteriskphone.asterisk.AsteriskManager;
 import com.github.waynemerricks.asteriskphone.chat.ChatManager;
 import com.github.waynemerricks.asteriskphone.database.DatabaseManager;
 import com.github.waynemerricks.asteriskphone.database.Settings;
+import com.github.waynemerricks.asteriskphone.protocol.ControlMessageCodec;
 
 public class Server extends Thread{
 
@@ -41,6 +42,14 @@ public class Server extends Thread{
 				
 				boolean createUser = !databaseManager.populateUserSettings("server"); 
 				
+				//Indexes etc, a failure is logged and we carry on with the old schema
+				if(databaseManager.migrateSchema())
+					databaseManager.startArchiver();
+				
+				//Control message format, stays on 1 until every client understands 2
+				ControlMessageCodec.setEncodeVersion(databaseManager.getUserSettings()
+						.get("controlProtocolVersion"));
+				
 				chatManager = new ChatManager(databaseManager.getUserSettings()
 						.get("XMPPLogin") + "@" +   
 					databaseManager.getUserSettings().get("XMPPDomain"),  
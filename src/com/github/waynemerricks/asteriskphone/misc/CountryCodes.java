@@ -1,11 +1,19 @@
 package com.github.waynemerricks.asteriskphone.misc;
 
-import java.util.*;
+import java.util.Arrays;
 
+/**
+ * Country names and ISO codes by name or phone number.
+ *
+ * Phone number lookups go through a digit trie built once from ALL_COUNTRIES.  It is
+ * packed into an int array, TRIE[node * 10 + digit] is the next node (0 for none) and
+ * TRIE_COUNTRIES[node] is the country whose code ends at that node.  Walking a number
+ * is a longest prefix match that doesn't allocate anything and gives the same answer
+ * whatever order the countries are in.  Where two countries share a code (e.g. 1) the
+ * later one in ALL_COUNTRIES wins as it did with the old HashMap.
+ */
 public class CountryCodes {
 
-	private HashMap<String, Country> countries = new HashMap<String, Country>();
-	
 	/**
 	 * Returns the ISO country code from Country Name
 	 * @param name - Country to search for
@@ -41,304 +49,102 @@ public class CountryCodes {
 	}
 	
 	/**
-	 * Helper method to get the country that has a given phone number
-	 * Country codes are max 4 chars so it will split down to the first 4
-	 * and successively check against those until its found or there are 
-	 * no chars left.
+	 * Helper method to get the country that has a given phone number.
+	 * 
+	 * Leading 0s and + (international prefix) are skipped and the longest country code
+	 * at the start of what is left wins.  Safe with short, empty or null numbers.
 	 * 
 	 * @param phoneNumber number to check
 	 * @return null if not found or country name if found
 	 */
 	public String getCountryNameByPhone(String phoneNumber){
 		
-		//Remove 0s
-		while(phoneNumber.startsWith("0")) 
-			phoneNumber = phoneNumber.substring(1);
-		
-		phoneNumber = phoneNumber.substring(0, 4);
-		boolean found = false;
 		String name = null;
+		Country country = getCountryByPhone(phoneNumber);
 		
-		while(!found && phoneNumber.length() > 0){
-			
-			if(countries.get(phoneNumber) != null){
-				
-				found = true;
-				name = countries.get(phoneNumber).getName();
-				
-			}else
-				phoneNumber = phoneNumber.substring(0, phoneNumber.length() - 1);
-			
-		}
+		if(country != null)
+			name = country.getName();
 		
 		return name;
 		
 	}
 	
 	/**
-	 * Returns the ISO country code from the phone number.
-	 * @param phoneCode - code to search
-	 * @return - country code
+	 * Looks up a batch of numbers at once, e.g. for a history export
+	 * @param phoneNumbers numbers to check
+	 * @return country names in the same order, null where the number wasn't matched
+	 */
+	public String[] getCountryNamesByPhone(String[] phoneNumbers){
+		
+		String[] names = new String[phoneNumbers.length];
+		
+		for(int i = 0; i < phoneNumbers.length; i++)
+			names[i] = getCountryNameByPhone(phoneNumbers[i]);
+		
+		return names;
+		
+	}
+	
+	/**
+	 * Returns the ISO country code from the phone number, see getCountryNameByPhone
+	 * @param phoneNumber - number to search
+	 * @return - country code or null if not found
 	 */
 	public String getCountryCode(String phoneNumber){
 		
 		String code = null;
+		Country country = getCountryByPhone(phoneNumber);
+		
+		if(country != null)
+			code = country.getISOCode();
+		
+		return code;
+		
+	}
+	
+	/**
+	 * Walks the trie for the given number and returns the country with the longest
+	 * matching code
+	 * @param phoneNumber number to check
+	 * @return null if no code matches
+	 */
+	public Country getCountryByPhone(String phoneNumber){
 		
-		Set<String> keys = countries.keySet();
-		Iterator<String> it = keys.iterator();
+		Country country = null;
 		
-		while(it.hasNext() && code == null){
+		if(phoneNumber != null){
+			
+			int i = 0;
+			int length = phoneNumber.length();
 			
-			String key = it.next();
+			//Remove 0s and +
+			while(i < length && (phoneNumber.charAt(i) == '0' || phoneNumber.charAt(i) == '+'))
+				i++;
 			
-			if(!key.equals("") && phoneNumber.startsWith(key)) 
-				code = countries.get(key).getISOCode();
+			int node = 0;
+			boolean walking = true;
+			
+			while(walking && i < length){
+				
+				int digit = phoneNumber.charAt(i) - '0';
+				
+				if(digit >= 0 && digit <= 9 && TRIE[node * 10 + digit] != 0){
+					
+					node = TRIE[node * 10 + digit];
+					
+					if(TRIE_COUNTRIES[node] != null)
+						country = TRIE_COUNTRIES[node];
+					
+					i++;
+					
+				}else
+					walking = false;
+				
+			}
 			
 		}
 		
-		return code;
-		
-	}
-	
-	public CountryCodes(){
-	
-		countries.put(AFGHANISTAN.getPhoneCode(), AFGHANISTAN);	
-		countries.put(ALBANIA.getPhoneCode(), ALBANIA);	
-		countries.put(ALGERIA.getPhoneCode(), ALGERIA);	
-		countries.put(AMERICAN_SAMOA.getPhoneCode(), AMERICAN_SAMOA);	
-		countries.put(ANDORRA.getPhoneCode(), ANDORRA);	
-		countries.put(ANGOLA.getPhoneCode(), ANGOLA);	
-		countries.put(ANGUILLA.getPhoneCode(), ANGUILLA);	
-		countries.put(ANTARCTICA.getPhoneCode(), ANTARCTICA);	
-		countries.put(ANTIGUA_AND_BARBUDA.getPhoneCode(), ANTIGUA_AND_BARBUDA);	
-		countries.put(ARGENTINA.getPhoneCode(), ARGENTINA);	
-		countries.put(ARMENIA.getPhoneCode(), ARMENIA);	
-		countries.put(ARUBA.getPhoneCode(), ARUBA);	
-		countries.put(AUSTRALIA.getPhoneCode(), AUSTRALIA);	
-		countries.put(AUSTRIA.getPhoneCode(), AUSTRIA);	
-		countries.put(AZERBAIJAN.getPhoneCode(), AZERBAIJAN);	
-		countries.put(BAHAMAS.getPhoneCode(), BAHAMAS);	
-		countries.put(BAHRAIN.getPhoneCode(), BAHRAIN);	
-		countries.put(BANGLADESH.getPhoneCode(), BANGLADESH);	
-		countries.put(BARBADOS.getPhoneCode(), BARBADOS);	
-		countries.put(BELARUS.getPhoneCode(), BELARUS);	
-		countries.put(BELGIUM.getPhoneCode(), BELGIUM);	
-		countries.put(BELIZE.getPhoneCode(), BELIZE);	
-		countries.put(BENIN.getPhoneCode(), BENIN);	
-		countries.put(BERMUDA.getPhoneCode(), BERMUDA);	
-		countries.put(BHUTAN.getPhoneCode(), BHUTAN);	
-		countries.put(BOLIVIA.getPhoneCode(), BOLIVIA);	
-		countries.put(BOSNIA_AND_HERZEGOVINA.getPhoneCode(), BOSNIA_AND_HERZEGOVINA);	
-		countries.put(BOTSWANA.getPhoneCode(), BOTSWANA);	
-		countries.put(BRAZIL.getPhoneCode(), BRAZIL);	
-		countries.put(BRITISH_INDIAN_OCEAN_TERRITORY.getPhoneCode(), BRITISH_INDIAN_OCEAN_TERRITORY);	
-		countries.put(BRITISH_VIRGIN_ISLANDS.getPhoneCode(), BRITISH_VIRGIN_ISLANDS);	
-		countries.put(BRUNEI.getPhoneCode(), BRUNEI);	
-		countries.put(BULGARIA.getPhoneCode(), BULGARIA);	
-		countries.put(BURKINA_FASO.getPhoneCode(), BURKINA_FASO);	
-		countries.put(BURMA_MYANMAR.getPhoneCode(), BURMA_MYANMAR);	
-		countries.put(BURUNDI.getPhoneCode(), BURUNDI);	
-		countries.put(CAMBODIA.getPhoneCode(), CAMBODIA);	
-		countries.put(CAMEROON.getPhoneCode(), CAMEROON);	
-		countries.put(CANADA.getPhoneCode(), CANADA);	
-		countries.put(CAPE_VERDE.getPhoneCode(), CAPE_VERDE);	
-		countries.put(CAYMAN_ISLANDS.getPhoneCode(), CAYMAN_ISLANDS);	
-		countries.put(CENTRAL_AFRICAN_REPUBLIC.getPhoneCode(), CENTRAL_AFRICAN_REPUBLIC);	
-		countries.put(CHAD.getPhoneCode(), CHAD);	
-		countries.put(CHILE.getPhoneCode(), CHILE);	
-		countries.put(CHINA.getPhoneCode(), CHINA);	
-		countries.put(CHRISTMAS_ISLAND.getPhoneCode(), CHRISTMAS_ISLAND);	
-		countries.put(COCOS_KEELING_ISLANDS.getPhoneCode(), COCOS_KEELING_ISLANDS);	
-		countries.put(COLOMBIA.getPhoneCode(), COLOMBIA);	
-		countries.put(COMOROS.getPhoneCode(), COMOROS);	
-		countries.put(COOK_ISLANDS.getPhoneCode(), COOK_ISLANDS);	
-		countries.put(COSTA_RICA.getPhoneCode(), COSTA_RICA);	
-		countries.put(CROATIA.getPhoneCode(), CROATIA);	
-		countries.put(CUBA.getPhoneCode(), CUBA);	
-		countries.put(CYPRUS.getPhoneCode(), CYPRUS);	
-		countries.put(CZECH_REPUBLIC.getPhoneCode(), CZECH_REPUBLIC);	
-		countries.put(DEMOCRATIC_REPUBLIC_OF_THE_CONGO.getPhoneCode(), DEMOCRATIC_REPUBLIC_OF_THE_CONGO);	
-		countries.put(DENMARK.getPhoneCode(), DENMARK);	
-		countries.put(DJIBOUTI.getPhoneCode(), DJIBOUTI);	
-		countries.put(DOMINICA.getPhoneCode(), DOMINICA);	
-		countries.put(DOMINICAN_REPUBLIC.getPhoneCode(), DOMINICAN_REPUBLIC);	
-		countries.put(ECUADOR.getPhoneCode(), ECUADOR);	
-		countries.put(EGYPT.getPhoneCode(), EGYPT);	
-		countries.put(EL_SALVADOR.getPhoneCode(), EL_SALVADOR);	
-		countries.put(EQUATORIAL_GUINEA.getPhoneCode(), EQUATORIAL_GUINEA);	
-		countries.put(ERITREA.getPhoneCode(), ERITREA);	
-		countries.put(ESTONIA.getPhoneCode(), ESTONIA);	
-		countries.put(ETHIOPIA.getPhoneCode(), ETHIOPIA);	
-		countries.put(FALKLAND_ISLANDS.getPhoneCode(), FALKLAND_ISLANDS);	
-		countries.put(FAROE_ISLANDS.getPhoneCode(), FAROE_ISLANDS);	
-		countries.put(FIJI.getPhoneCode(), FIJI);	
-		countries.put(FINLAND.getPhoneCode(), FINLAND);	
-		countries.put(FRANCE.getPhoneCode(), FRANCE);	
-		countries.put(FRENCH_POLYNESIA.getPhoneCode(), FRENCH_POLYNESIA);	
-		countries.put(GABON.getPhoneCode(), GABON);	
-		countries.put(GAMBIA.getPhoneCode(), GAMBIA);	
-		countries.put(GAZA_STRIP.getPhoneCode(), GAZA_STRIP);	
-		countries.put(GEORGIA.getPhoneCode(), GEORGIA);	
-		countries.put(GERMANY.getPhoneCode(), GERMANY);	
-		countries.put(GHANA.getPhoneCode(), GHANA);	
-		countries.put(GIBRALTAR.getPhoneCode(), GIBRALTAR);	
-		countries.put(GREECE.getPhoneCode(), GREECE);	
-		countries.put(GREENLAND.getPhoneCode(), GREENLAND);	
-		countries.put(GRENADA.getPhoneCode(), GRENADA);	
-		countries.put(GUAM.getPhoneCode(), GUAM);	
-		countries.put(GUATEMALA.getPhoneCode(), GUATEMALA);	
-		countries.put(GUINEA.getPhoneCode(), GUINEA);	
-		countries.put(GUINEA_BISSAU.getPhoneCode(), GUINEA_BISSAU);	
-		countries.put(GUYANA.getPhoneCode(), GUYANA);	
-		countries.put(HAITI.getPhoneCode(), HAITI);	
-		countries.put(HOLY_SEE_VATICAN_CITY.getPhoneCode(), HOLY_SEE_VATICAN_CITY);	
-		countries.put(HONDURAS.getPhoneCode(), HONDURAS);	
-		countries.put(HONG_KONG.getPhoneCode(), HONG_KONG);	
-		countries.put(HUNGARY.getPhoneCode(), HUNGARY);	
-		countries.put(ICELAND.getPhoneCode(), ICELAND);	
-		countries.put(INDIA.getPhoneCode(), INDIA);	
-		countries.put(INDONESIA.getPhoneCode(), INDONESIA);	
-		countries.put(IRAN.getPhoneCode(), IRAN);	
-		countries.put(IRAQ.getPhoneCode(), IRAQ);	
-		countries.put(IRELAND.getPhoneCode(), IRELAND);	
-		countries.put(ISLE_OF_MAN.getPhoneCode(), ISLE_OF_MAN);	
-		countries.put(ISRAEL.getPhoneCode(), ISRAEL);	
-		countries.put(ITALY.getPhoneCode(), ITALY);	
-		countries.put(IVORY_COAST.getPhoneCode(), IVORY_COAST);	
-		countries.put(JAMAICA.getPhoneCode(), JAMAICA);	
-		countries.put(JAPAN.getPhoneCode(), JAPAN);	
-		countries.put(JERSEY.getPhoneCode(), JERSEY);	
-		countries.put(JORDAN.getPhoneCode(), JORDAN);	
-		countries.put(KAZAKHSTAN.getPhoneCode(), KAZAKHSTAN);	
-		countries.put(KENYA.getPhoneCode(), KENYA);	
-		countries.put(KIRIBATI.getPhoneCode(), KIRIBATI);	
-		countries.put(KOSOVO.getPhoneCode(), KOSOVO);	
-		countries.put(KUWAIT.getPhoneCode(), KUWAIT);	
-		countries.put(KYRGYZSTAN.getPhoneCode(), KYRGYZSTAN);	
-		countries.put(LAOS.getPhoneCode(), LAOS);	
-		countries.put(LATVIA.getPhoneCode(), LATVIA);	
-		countries.put(LEBANON.getPhoneCode(), LEBANON);	
-		countries.put(LESOTHO.getPhoneCode(), LESOTHO);	
-		countries.put(LIBERIA.getPhoneCode(), LIBERIA);	
-		countries.put(LIBYA.getPhoneCode(), LIBYA);	
-		countries.put(LIECHTENSTEIN.getPhoneCode(), LIECHTENSTEIN);	
-		countries.put(LITHUANIA.getPhoneCode(), LITHUANIA);	
-		countries.put(LUXEMBOURG.getPhoneCode(), LUXEMBOURG);	
-		countries.put(MACAU.getPhoneCode(), MACAU);	
-		countries.put(MACEDONIA.getPhoneCode(), MACEDONIA);	
-		countries.put(MADAGASCAR.getPhoneCode(), MADAGASCAR);	
-		countries.put(MALAWI.getPhoneCode(), MALAWI);	
-		countries.put(MALAYSIA.getPhoneCode(), MALAYSIA);	
-		countries.put(MALDIVES.getPhoneCode(), MALDIVES);	
-		countries.put(MALI.getPhoneCode(), MALI);	
-		countries.put(MALTA.getPhoneCode(), MALTA);	
-		countries.put(MARSHALL_ISLANDS.getPhoneCode(), MARSHALL_ISLANDS);	
-		countries.put(MAURITANIA.getPhoneCode(), MAURITANIA);	
-		countries.put(MAURITIUS.getPhoneCode(), MAURITIUS);	
-		countries.put(MAYOTTE.getPhoneCode(), MAYOTTE);	
-		countries.put(MEXICO.getPhoneCode(), MEXICO);	
-		countries.put(MICRONESIA.getPhoneCode(), MICRONESIA);	
-		countries.put(MOLDOVA.getPhoneCode(), MOLDOVA);	
-		countries.put(MONACO.getPhoneCode(), MONACO);	
-		countries.put(MONGOLIA.getPhoneCode(), MONGOLIA);	
-		countries.put(MONTENEGRO.getPhoneCode(), MONTENEGRO);	
-		countries.put(MONTSERRAT.getPhoneCode(), MONTSERRAT);	
-		countries.put(MOROCCO.getPhoneCode(), MOROCCO);	
-		countries.put(MOZAMBIQUE.getPhoneCode(), MOZAMBIQUE);	
-		countries.put(NAMIBIA.getPhoneCode(), NAMIBIA);	
-		countries.put(NAURU.getPhoneCode(), NAURU);	
-		countries.put(NEPAL.getPhoneCode(), NEPAL);	
-		countries.put(NETHERLANDS.getPhoneCode(), NETHERLANDS);	
-		countries.put(NETHERLANDS_ANTILLES.getPhoneCode(), NETHERLANDS_ANTILLES);	
-		countries.put(NEW_CALEDONIA.getPhoneCode(), NEW_CALEDONIA);	
-		countries.put(NEW_ZEALAND.getPhoneCode(), NEW_ZEALAND);	
-		countries.put(NICARAGUA.getPhoneCode(), NICARAGUA);	
-		countries.put(NIGER.getPhoneCode(), NIGER);	
-		countries.put(NIGERIA.getPhoneCode(), NIGERIA);	
-		countries.put(NIUE.getPhoneCode(), NIUE);	
-		countries.put(NORFOLK_ISLAND.getPhoneCode(), NORFOLK_ISLAND);	
-		countries.put(NORTH_KOREA.getPhoneCode(), NORTH_KOREA);	
-		countries.put(NORTHERN_MARIANA_ISLANDS.getPhoneCode(), NORTHERN_MARIANA_ISLANDS);	
-		countries.put(NORWAY.getPhoneCode(), NORWAY);	
-		countries.put(OMAN.getPhoneCode(), OMAN);	
-		countries.put(PAKISTAN.getPhoneCode(), PAKISTAN);	
-		countries.put(PALAU.getPhoneCode(), PALAU);	
-		countries.put(PANAMA.getPhoneCode(), PANAMA);	
-		countries.put(PAPUA_NEW_GUINEA.getPhoneCode(), PAPUA_NEW_GUINEA);	
-		countries.put(PARAGUAY.getPhoneCode(), PARAGUAY);	
-		countries.put(PERU.getPhoneCode(), PERU);	
-		countries.put(PHILLIPINES.getPhoneCode(), PHILLIPINES);	
-		countries.put(PITCAIRN_ISLANDS.getPhoneCode(), PITCAIRN_ISLANDS);	
-		countries.put(POLAND.getPhoneCode(), POLAND);	
-		countries.put(PORTUGAL.getPhoneCode(), PORTUGAL);	
-		countries.put(PUERTO_RICO.getPhoneCode(), PUERTO_RICO);	
-		countries.put(QATAR.getPhoneCode(), QATAR);	
-		countries.put(REPUBLIC_OF_THE_CONGO.getPhoneCode(), REPUBLIC_OF_THE_CONGO);	
-		countries.put(ROMANIA.getPhoneCode(), ROMANIA);	
-		countries.put(RUSSIA.getPhoneCode(), RUSSIA);	
-		countries.put(RWANDA.getPhoneCode(), RWANDA);	
-		countries.put(SAINT_BARTHELEMY.getPhoneCode(), SAINT_BARTHELEMY);	
-		countries.put(SAINT_HELENA.getPhoneCode(), SAINT_HELENA);	
-		countries.put(SAINT_KITTS_AND_NEVIS.getPhoneCode(), SAINT_KITTS_AND_NEVIS);	
-		countries.put(SAINT_LUCIA.getPhoneCode(), SAINT_LUCIA);	
-		countries.put(SAINT_MARTIN.getPhoneCode(), SAINT_MARTIN);	
-		countries.put(SAINT_PIERRE_AND_MIQUELON.getPhoneCode(), SAINT_PIERRE_AND_MIQUELON);	
-		countries.put(SAINT_VINCENT_AND_THE_GRENADINES.getPhoneCode(), SAINT_VINCENT_AND_THE_GRENADINES);	
-		countries.put(SAMOA.getPhoneCode(), SAMOA);	
-		countries.put(SAN_MARINO.getPhoneCode(), SAN_MARINO);	
-		countries.put(SAO_TOME_AND_PRINCIPE.getPhoneCode(), SAO_TOME_AND_PRINCIPE);	
-		countries.put(SAUDI_ARABIA.getPhoneCode(), SAUDI_ARABIA);	
-		countries.put(SENEGAL.getPhoneCode(), SENEGAL);	
-		countries.put(SERBIA.getPhoneCode(), SERBIA);	
-		countries.put(SEYCHELLES.getPhoneCode(), SEYCHELLES);	
-		countries.put(SIERRA_LEONE.getPhoneCode(), SIERRA_LEONE);	
-		countries.put(SINGAPORE.getPhoneCode(), SINGAPORE);	
-		countries.put(SLOVAKIA.getPhoneCode(), SLOVAKIA);	
-		countries.put(SLOVENIA.getPhoneCode(), SLOVENIA);	
-		countries.put(SOLOMON_ISLANDS.getPhoneCode(), SOLOMON_ISLANDS);	
-		countries.put(SOMALIA.getPhoneCode(), SOMALIA);	
-		countries.put(SOUTH_AFRICA.getPhoneCode(), SOUTH_AFRICA);	
-		countries.put(SOUTH_KOREA.getPhoneCode(), SOUTH_KOREA);	
-		countries.put(SPAIN.getPhoneCode(), SPAIN);	
-		countries.put(SRI_LANKA.getPhoneCode(), SRI_LANKA);	
-		countries.put(SUDAN.getPhoneCode(), SUDAN);	
-		countries.put(SURINAME.getPhoneCode(), SURINAME);	
-		countries.put(SVALBARD.getPhoneCode(), SVALBARD);	
-		countries.put(SWAZILAND.getPhoneCode(), SWAZILAND);	
-		countries.put(SWEDEN.getPhoneCode(), SWEDEN);	
-		countries.put(SWITZERLAND.getPhoneCode(), SWITZERLAND);	
-		countries.put(SYRIA.getPhoneCode(), SYRIA);	
-		countries.put(TAIWAN.getPhoneCode(), TAIWAN);	
-		countries.put(TAJIKISTAN.getPhoneCode(), TAJIKISTAN);	
-		countries.put(TANZANIA.getPhoneCode(), TANZANIA);	
-		countries.put(THAILAND.getPhoneCode(), THAILAND);	
-		countries.put(TIMOR_LESTE.getPhoneCode(), TIMOR_LESTE);	
-		countries.put(TOGO.getPhoneCode(), TOGO);	
-		countries.put(TOKELAU.getPhoneCode(), TOKELAU);	
-		countries.put(TONGA.getPhoneCode(), TONGA);	
-		countries.put(TRINIDAD_AND_TOBAGO.getPhoneCode(), TRINIDAD_AND_TOBAGO);	
-		countries.put(TUNISIA.getPhoneCode(), TUNISIA);	
-		countries.put(TURKEY.getPhoneCode(), TURKEY);	
-		countries.put(TURKMENISTAN.getPhoneCode(), TURKMENISTAN);	
-		countries.put(TURKS_AND_CAICOS_ISLANDS.getPhoneCode(), TURKS_AND_CAICOS_ISLANDS);	
-		countries.put(TUVALU.getPhoneCode(), TUVALU);	
-		countries.put(UGANDA.getPhoneCode(), UGANDA);	
-		countries.put(UKRAINE.getPhoneCode(), UKRAINE);	
-		countries.put(UNITED_ARAB_EMIRATES.getPhoneCode(), UNITED_ARAB_EMIRATES);	
-		countries.put(UNITED_KINGDOM.getPhoneCode(), UNITED_KINGDOM);	
-		countries.put(UNITED_STATES.getPhoneCode(), UNITED_STATES);	
-		countries.put(URUGUAY.getPhoneCode(), URUGUAY);	
-		countries.put(US_VIRGIN_ISLANDS.getPhoneCode(), US_VIRGIN_ISLANDS);	
-		countries.put(UZBEKISTAN.getPhoneCode(), UZBEKISTAN);	
-		countries.put(VANUATU.getPhoneCode(), VANUATU);	
-		countries.put(VENEZUELA.getPhoneCode(), VENEZUELA);	
-		countries.put(VIETNAM.getPhoneCode(), VIETNAM);	
-		countries.put(WALLIS_AND_FUTUNA.getPhoneCode(), WALLIS_AND_FUTUNA);	
-		countries.put(WEST_BANK.getPhoneCode(), WEST_BANK);	
-		countries.put(WESTERN_SAHARA.getPhoneCode(), WESTERN_SAHARA);	
-		countries.put(YEMEN.getPhoneCode(), YEMEN);	
-		countries.put(ZAMBIA.getPhoneCode(), ZAMBIA);	
-		countries.put(ZIMBABWE.getPhoneCode(), ZIMBABWE);
+		return country;
 		
 	}
 	
@@ -846,5 +652,52 @@ public class CountryCodes {
 		TUNISIA, TURKEY, TURKMENISTAN, TURKS_AND_CAICOS_ISLANDS, TUVALU, UGANDA, UKRAINE, UNITED_ARAB_EMIRATES, 
 		UNITED_KINGDOM, UNITED_STATES, URUGUAY, US_VIRGIN_ISLANDS, UZBEKISTAN, VANUATU, VENEZUELA, VIETNAM, 
 		WALLIS_AND_FUTUNA, WEST_BANK, WESTERN_SAHARA, YEMEN, ZAMBIA, ZIMBABWE};
+	
+	/* Phone code trie, must come after ALL_COUNTRIES */
+	private static final int[] TRIE;
+	private static final Country[] TRIE_COUNTRIES;
+	
+	static {
+		
+		//Can never need more nodes than the root + every digit of every code
+		int maxNodes = 1;
+		
+		for(int i = 0; i < ALL_COUNTRIES.length; i++)
+			maxNodes += ALL_COUNTRIES[i].getPhoneCode().length();
+		
+		int[] trie = new int[maxNodes * 10];
+		Country[] trieCountries = new Country[maxNodes];
+		int nodes = 1;
+		
+		for(int i = 0; i < ALL_COUNTRIES.length; i++){
+			
+			String code = ALL_COUNTRIES[i].getPhoneCode();
+			
+			//Skips blank codes and the odd one that isn't a number
+			if(code.length() > 0 && code.matches("[0-9]+")){
+				
+				int node = 0;
+				
+				for(int j = 0; j < code.length(); j++){
+					
+					int slot = node * 10 + code.charAt(j) - '0';
+					
+					if(trie[slot] == 0)
+						trie[slot] = nodes++;
+					
+					node = trie[slot];
+					
+				}
+				
+				trieCountries[node] = ALL_COUNTRIES[i];
+				
+			}
+			
+		}
+		
+		TRIE = Arrays.copyOf(trie, nodes * 10);
+		TRIE_COUNTRIES = Arrays.copyOf(trieCountries, nodes);
+		
+	}
 
 }
@@ -0,0 +1,158 @@
+package com.github.waynemerricks.asteriskphone.protocol;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A single control room message, an opcode and its fields.
+ *
+ * The qualifier is optional free text attached to the opcode, currently only
+ * used for hang up causes e.g. HANGUP (User Busy).
+ *
+ * Use ControlMessageCodec to turn these into message bodies and back.
+ * @author Wayne Merricks
+ *
+ */
+public class ControlMessage {
+
+	//CLASS VARS
+	private Opcode opcode;
+	private String qualifier;
+	private String[] fields;
+
+	/**
+	 * Creates a new message
+	 * @param opcode type of message
+	 * @param fields fields in wire order, nulls are sent as "null" as before
+	 */
+	public ControlMessage(Opcode opcode, String... fields){
+
+		this.opcode = opcode;
+		this.fields = copy(fields);
+
+	}
+
+	/**
+	 * Creates a message with a qualifier on the opcode
+	 * @param opcode type of message
+	 * @param qualifier extra detail for the opcode e.g. hang up cause, can be null
+	 * @param fields fields in wire order
+	 * @return new message
+	 */
+	public static ControlMessage qualified(Opcode opcode, String qualifier,
+			String... fields){
+
+		ControlMessage message = new ControlMessage(opcode, fields);
+
+		if(qualifier != null && qualifier.trim().length() > 0)
+			message.qualifier = qualifier.trim();
+
+		return message;
+
+	}
+
+	/**
+	 * Copies the given fields converting nulls to "null" so messages match what
+	 * string concatenation used to send
+	 * @param fields
+	 * @return
+	 */
+	private static String[] copy(String[] fields){
+
+		String[] copy = new String[0];
+
+		if(fields != null){
+
+			copy = new String[fields.length];
+
+			for(int i = 0; i < fields.length; i++)
+				copy[i] = String.valueOf(fields[i]);
+
+		}
+
+		return copy;
+
+	}
+
+	public Opcode getOpcode(){
+
+		return opcode;
+
+	}
+
+	/**
+	 * Returns the opcode qualifier or null if there isn't one
+	 * @return
+	 */
+	public String getQualifier(){
+
+		return qualifier;
+
+	}
+
+	/**
+	 * Returns the number of fields, not including the opcode
+	 * @return
+	 */
+	public int getFieldCount(){
+
+		return fields.length;
+
+	}
+
+	/**
+	 * Returns the field at the given index (0 = first field after the opcode)
+	 * @param index
+	 * @return
+	 */
+	public String getField(int index){
+
+		return fields[index];
+
+	}
+
+	/**
+	 * Returns a copy of all the fields
+	 * @return
+	 */
+	public String[] getFields(){
+
+		return copy(fields);
+
+	}
+
+	/**
+	 * Returns the UPDATEFIELD messages this message stands for, an UPDATEFIELDS batch
+	 * is split into one per field so receivers only need to handle UPDATEFIELD
+	 * @return UPDATEFIELD messages, empty if this isn't a field update
+	 */
+	public List<ControlMessage> getFieldUpdates(){
+
+		ArrayList<ControlMessage> updates = new ArrayList<ControlMessage>();
+
+		if(opcode == Opcode.UPDATEFIELD && fields.length == 3)
+			updates.add(this);
+		else if(opcode == Opcode.UPDATEFIELDS && fields.length > 1)
+			for(int i = 1; i + 1 < fields.length; i += 2)
+				updates.add(new ControlMessage(Opcode.UPDATEFIELD, fields[i], fields[0], 
+						fields[i + 1]));
+
+		return updates;
+
+	}
+
+	public String toString(){
+
+		StringBuilder text = new StringBuilder(String.valueOf(opcode));
+
+		if(qualifier != null)
+			text.append(" ").append(qualifier);
+
+		for(int i = 0; i < fields.length; i++)
+			text.append("/").append(fields[i]);
+
+		return text.toString();
+
+	}
+
+}
@@ -0,0 +1,224 @@
+package com.github.waynemerricks.asteriskphone.protocol;
+
+import java.util.ArrayList;
+
+/**
+ * Converts ControlMessages to and from XMPP message bodies.
+ *
+ * Version 1 is the original text format: OPCODE/field/field.  A slash in a field
+ * is sent as ^^%%$$ which is what the UPDATEFIELD senders have always done, slashes
+ * in a qualifier become - like the old hang up cause fix.
+ *
+ * Version 2 is prefixed with ~2 and escapes with backslashes so any value can be
+ * sent: ~2/OPCODE/field\/with\/slashes/field.
+ *
+ * decode understands both so mixed clients work during a roll out.  encode uses
+ * version 1 until every box has been updated and controlProtocolVersion is set to 2.
+ * @author Wayne Merricks
+ *
+ */
+public class ControlMessageCodec {
+
+	//STATICS
+	public static final int VERSION_1 = 1;
+	public static final int VERSION_2 = 2;
+	private static final String VERSION_2_PREFIX = "~2";
+	private static final char SEPARATOR = '/';
+	private static final char ESCAPE = '\\';
+	private static final String LEGACY_SLASH = "^^%%$$";
+	private static volatile int encodeVersion = VERSION_1;
+
+	/**
+	 * Sets the format used by encode, call this once settings have been read
+	 * @param version VERSION_1 or VERSION_2, anything else is ignored
+	 */
+	public static void setEncodeVersion(int version){
+
+		if(version == VERSION_1 || version == VERSION_2)
+			encodeVersion = version;
+
+	}
+
+	/**
+	 * Sets the format used by encode from a settings value
+	 * @param version "1" or "2", null or invalid values leave the version as it is
+	 */
+	public static void setEncodeVersion(String version){
+
+		if(version != null){
+
+			try{
+				setEncodeVersion(Integer.parseInt(version.trim()));
+			}catch(NumberFormatException e){}
+
+		}
+
+	}
+
+	/**
+	 * Returns the version encode is currently using
+	 * @return
+	 */
+	public static int getEncodeVersion(){
+
+		return encodeVersion;
+
+	}
+
+	/**
+	 * Encodes the message using the current encode version
+	 * @param message message to send
+	 * @return message body
+	 */
+	public static String encode(ControlMessage message){
+
+		return encode(message, encodeVersion);
+
+	}
+
+	/**
+	 * Encodes the message using the given version
+	 * @param message message to send
+	 * @param version VERSION_1 or VERSION_2
+	 * @return message body
+	 */
+	public static String encode(ControlMessage message, int version){
+
+		StringBuilder body = new StringBuilder();
+		String token = message.getOpcode().getToken();
+
+		if(message.getQualifier() != null)
+			token += " " + message.getQualifier();
+
+		if(version == VERSION_2){
+
+			body.append(VERSION_2_PREFIX).append(SEPARATOR);
+			appendEscaped(body, token);
+
+			for(int i = 0; i < message.getFieldCount(); i++){
+
+				body.append(SEPARATOR);
+				appendEscaped(body, message.getField(i));
+
+			}
+
+		}else{
+
+			body.append(token.replace(SEPARATOR, '-'));
+
+			for(int i = 0; i < message.getFieldCount(); i++)
+				body.append(SEPARATOR).append(message.getField(i).replace("" + SEPARATOR,
+						LEGACY_SLASH));
+
+		}
+
+		return body.toString();
+
+	}
+
+	/**
+	 * Decodes a message body in either format
+	 * @param body message body
+	 * @return decoded message, the opcode will be UNKNOWN for anything that isn't a
+	 * control message
+	 */
+	public static ControlMessage decode(String body){
+
+		String[] parts;
+
+		if(body == null)
+			parts = new String[0];
+		else if(body.startsWith(VERSION_2_PREFIX + SEPARATOR))
+			parts = splitEscaped(body.substring(VERSION_2_PREFIX.length() + 1));
+		else{
+
+			//Legacy, split the same way String.split used to (drops trailing blanks)
+			parts = body.split("" + SEPARATOR);
+
+			for(int i = 1; i < parts.length; i++)
+				parts[i] = parts[i].replace(LEGACY_SLASH, "" + SEPARATOR);
+
+		}
+
+		ControlMessage message = null;
+
+		if(parts.length == 0 || parts[0].length() == 0)
+			message = new ControlMessage(Opcode.UNKNOWN);
+		else{
+
+			//Token can carry a qualifier after the first space e.g. HANGUP (User Busy)
+			String token = parts[0];
+			String qualifier = null;
+			int space = token.indexOf(' ');
+
+			if(space != -1){
+
+				qualifier = token.substring(space + 1);
+				token = token.substring(0, space);
+
+			}
+
+			String[] fields = new String[parts.length - 1];
+			System.arraycopy(parts, 1, fields, 0, fields.length);
+
+			message = ControlMessage.qualified(Opcode.fromToken(token), qualifier, fields);
+
+		}
+
+		return message;
+
+	}
+
+	/**
+	 * Appends the given value escaping separators and escape characters
+	 * @param body builder to append to
+	 * @param value value to escape
+	 */
+	private static void appendEscaped(StringBuilder body, String value){
+
+		for(int i = 0; i < value.length(); i++){
+
+			char c = value.charAt(i);
+
+			if(c == SEPARATOR || c == ESCAPE)
+				body.append(ESCAPE);
+
+			body.append(c);
+
+		}
+
+	}
+
+	/**
+	 * Splits a version 2 body on unescaped separators, keeps empty fields
+	 * @param body body without the version prefix
+	 * @return unescaped parts
+	 */
+	private static String[] splitEscaped(String body){
+
+		ArrayList<String> parts = new ArrayList<String>();
+		StringBuilder part = new StringBuilder();
+
+		for(int i = 0; i < body.length(); i++){
+
+			char c = body.charAt(i);
+
+			if(c == ESCAPE && i + 1 < body.length())
+				part.append(body.charAt(++i));
+			else if(c == SEPARATOR){
+
+				parts.add(part.toString());
+				part.setLength(0);
+
+			}else
+				part.append(c);
+
+		}
+
+		parts.add(part.toString());
+
+		return parts.toArray(new String[parts.size()]);
+
+	}
+
+}
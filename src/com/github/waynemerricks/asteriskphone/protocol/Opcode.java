@@ -0,0 +1,95 @@
+package com.github.waynemerricks.asteriskphone.protocol;
+
+import java.util.HashMap;
+
+/**
+ * Control room message types and the token used for them on the wire.
+ *
+ * The tokens are the same ones the text protocol has always used so old and new
+ * clients agree on them, they are protocol constants and must not be translated.
+ * @author Wayne Merricks
+ *
+ */
+public enum Opcode {
+
+	/* SERVER -> CLIENTS */
+	CALL("CALL"), //CALL/FROM/TO/CHANNEL[/CREATION TIME]
+	CONNECTED("CONNECTED"), //CONNECTED/FROM/TO/CHANNEL[/CREATION TIME]
+	RINGING("RINGING"), //RINGING/CALLERID/CHANNEL
+	BUSY("BUSY"), //BUSY/CALLERID/CHANNEL
+	LOCKED("LOCKED"), //LOCKED/CHANNEL
+	ENDPOINT("ENDPOINT"), //ENDPOINT/DIALLER CHANNEL/RECEIVER CHANNEL/RECEIVER CALLERID
+	CHANGED("CHANGED"), //CHANGED/CHANNEL/PERSON
+	CHANGEFAILED("CHANGEFAILED"), //CHANGEFAILED/CHANNEL
+	FAILED("FAILED"), //FAILED/CHANNEL/ERROR CODE
+	CHANNELUPDATE("CHANNELUPDATE"), //CHANNELUPDATE/CHANNEL
+	HELLO("HELLO"), //HELLO/TEXT
+	SNAPSHOT("SNAPSHOT"), //SNAPSHOT/SEQUENCE/CHUNK/CHUNKS/ENTRY...
+	CALLER("CALLER"), //CALLER/CHANNEL/CALL TYPE/BADGE ICON/NUMBER IDS/PEOPLE/[PERSON...]
+
+	/* BOTH WAYS */
+	HANGUP("HANGUP"), //HANGUP/CHANNEL or HANGUP[ CAUSE]/CALLERID/CHANNEL
+	QUEUE("QUEUE"), //QUEUE/CHANNEL or QUEUE/QUEUE/CALLERID/CHANNEL
+	TRANSFER("TRANSFER"), //TRANSFER/CHANNEL/EXTENSION
+	MANUAL("MANUAL"), //MANUAL/OPERATOR or MANUAL/CHANNEL/OPERATOR
+	UPDATEFIELD("UPDATEFIELD"), //UPDATEFIELD/FIELD/CHANNEL/VALUE
+	UPDATEFIELDS("UPDATEFIELDS"), //UPDATEFIELDS/CHANNEL/FIELD/VALUE[/FIELD/VALUE...]
+	FIELDSCHANGED("FIELDSCHANGED"), //FIELDSCHANGED (callinputfields edited, drop cached fields)
+
+	/* CLIENTS -> SERVER */
+	UPDATE("UPDATE"), //UPDATE/EXTENSION
+	DIAL("DIAL"), //DIAL/NUMBER/EXTENSION
+	TRANSFERENDPOINT("TRANSFERENDPOINT"), //TRANSFERENDPOINT/CHANNEL
+	CHANGENEW("CHANGENEW"), //CHANGENEW/CHANNEL/NUMBER
+	CHANGEEXISTING("CHANGEEXISTING"), //CHANGEEXISTING/CHANNEL/PERSON
+	CHANGEACTIVE("CHANGEACTIVE"), //CHANGEACTIVE/CHANNEL/PERSON
+
+	/** Anything we don't recognise, chat text etc */
+	UNKNOWN(null);
+
+	//STATICS
+	private static final HashMap<String, Opcode> BY_TOKEN = new HashMap<String, Opcode>();
+
+	static {
+
+		for(Opcode opcode : values())
+			if(opcode.token != null)
+				BY_TOKEN.put(opcode.token, opcode);
+
+	}
+
+	private final String token;
+
+	private Opcode(String token){
+
+		this.token = token;
+
+	}
+
+	/**
+	 * Returns the token used for this opcode on the wire
+	 * @return
+	 */
+	public String getToken(){
+
+		return token;
+
+	}
+
+	/**
+	 * Looks up the opcode for the given wire token
+	 * @param token token to find e.g. CALL
+	 * @return matching opcode or UNKNOWN
+	 */
+	public static Opcode fromToken(String token){
+
+		Opcode opcode = BY_TOKEN.get(token);
+
+		if(opcode == null)
+			opcode = UNKNOWN;
+
+		return opcode;
+
+	}
+
+}
@@ -0,0 +1,229 @@
+package com.github.waynemerricks.asteriskphone.protocol;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.jivesoftware.smack.packet.Message;
+
+/**
+ * Versioned call state sync for clients that join late or reconnect.
+ *
+ * Every message the server sends to the control room carries the server epoch (start
+ * time) and a sequence number as packet properties.  Old clients ignore these.
+ *
+ * A client that sets the snapshot property on its UPDATE gets the current calls back
+ * as a few SNAPSHOT messages instead of one private message per channel:
+ * SNAPSHOT/SEQUENCE/CHUNK/CHUNKS/ENTRY/ENTRY...
+ * Each entry is a CONNECTED or CALL message in version 2 format.  SEQUENCE is the
+ * last delta sent before the snapshot was taken so the client can drop anything
+ * older and ask for a new snapshot if it spots a gap.
+ * @author Wayne Merricks
+ *
+ */
+public class StateSnapshot {
+
+	//STATICS
+	public static final String EPOCH_PROPERTY = "asteriskphone.epoch";
+	public static final String SEQUENCE_PROPERTY = "asteriskphone.sequence";
+	public static final String REQUEST_PROPERTY = "asteriskphone.snapshot";
+	public static final int CHUNK_SIZE = 25; //Entries per SNAPSHOT message
+	private static final int HEADER_FIELDS = 3;
+
+	/**
+	 * Tags the message with the given epoch and sequence
+	 * @param message message to tag
+	 * @param epoch time the server started
+	 * @param sequence sequence number of this message
+	 */
+	public static void tag(Message message, long epoch, long sequence){
+
+		message.setProperty(EPOCH_PROPERTY, epoch);
+		message.setProperty(SEQUENCE_PROPERTY, sequence);
+
+	}
+
+	/**
+	 * Tags a private message with the epoch only, private messages aren't sequenced
+	 * @param message message to tag
+	 * @param epoch time the server started
+	 */
+	public static void tag(Message message, long epoch){
+
+		message.setProperty(EPOCH_PROPERTY, epoch);
+
+	}
+
+	/**
+	 * Returns the sequence number of the given message
+	 * @param message
+	 * @return sequence or -1 if the message isn't tagged
+	 */
+	public static long getSequence(Message message){
+
+		return getLong(message, SEQUENCE_PROPERTY);
+
+	}
+
+	/**
+	 * Returns the server epoch of the given message
+	 * @param message
+	 * @return epoch or -1 if the message isn't tagged
+	 */
+	public static long getEpoch(Message message){
+
+		return getLong(message, EPOCH_PROPERTY);
+
+	}
+
+	/**
+	 * Returns the given property as a long or -1 if it isn't set
+	 * @param message
+	 * @param property
+	 * @return
+	 */
+	private static long getLong(Message message, String property){
+
+		long value = -1;
+		Object o = message.getProperty(property);
+
+		if(o instanceof Number)
+			value = ((Number)o).longValue();
+
+		return value;
+
+	}
+
+	/**
+	 * Flags the message (an UPDATE) as wanting a snapshot back
+	 * @param message
+	 */
+	public static void request(Message message){
+
+		message.setProperty(REQUEST_PROPERTY, true);
+
+	}
+
+	/**
+	 * Returns true if the sender of this message wants a snapshot
+	 * @param message
+	 * @return
+	 */
+	public static boolean isRequested(Message message){
+
+		return Boolean.TRUE.equals(message.getProperty(REQUEST_PROPERTY));
+
+	}
+
+	/**
+	 * Splits the given entries into SNAPSHOT messages, there is always at least one
+	 * @param sequence last sequence sent before the snapshot was taken
+	 * @param entries CONNECTED/CALL messages oldest first
+	 * @return SNAPSHOT messages to send in order
+	 */
+	public static List<ControlMessage> toChunks(long sequence, List<ControlMessage> entries){
+
+		int chunks = Math.max(1, (entries.size() + CHUNK_SIZE - 1) / CHUNK_SIZE);
+		ArrayList<ControlMessage> messages = new ArrayList<ControlMessage>(chunks);
+
+		for(int i = 0; i < chunks; i++){
+
+			int start = i * CHUNK_SIZE;
+			int end = Math.min(entries.size(), start + CHUNK_SIZE);
+
+			String[] fields = new String[HEADER_FIELDS + end - start];
+			fields[0] = "" + sequence;
+			fields[1] = "" + (i + 1);
+			fields[2] = "" + chunks;
+
+			for(int j = start; j < end; j++)
+				fields[HEADER_FIELDS + j - start] = ControlMessageCodec.encode(entries.get(j),
+						ControlMessageCodec.VERSION_2);
+
+			messages.add(new ControlMessage(Opcode.SNAPSHOT, fields));
+
+		}
+
+		return messages;
+
+	}
+
+	/**
+	 * Puts SNAPSHOT chunks back together on the client
+	 */
+	public static class Assembler {
+
+		private long sequence = -1;
+		private int chunks = 0;
+		private ArrayList<ControlMessage> entries = new ArrayList<ControlMessage>();
+		private int received = 0;
+
+		/**
+		 * Adds a SNAPSHOT chunk, chunks from an older snapshot are dropped
+		 * @param chunk SNAPSHOT message
+		 * @return true if this completed the snapshot
+		 */
+		public synchronized boolean add(ControlMessage chunk){
+
+			boolean complete = false;
+
+			if(chunk.getOpcode() == Opcode.SNAPSHOT &&
+					chunk.getFieldCount() >= HEADER_FIELDS){
+
+				try{
+
+					long chunkSequence = Long.parseLong(chunk.getField(0));
+					int chunkCount = Integer.parseInt(chunk.getField(2));
+
+					//New snapshot, forget any partial one
+					if(chunkSequence != sequence || chunkCount != chunks){
+
+						sequence = chunkSequence;
+						chunks = chunkCount;
+						entries.clear();
+						received = 0;
+
+					}
+
+					for(int i = HEADER_FIELDS; i < chunk.getFieldCount(); i++)
+						entries.add(ControlMessageCodec.decode(chunk.getField(i)));
+
+					received++;
+					complete = received >= chunks;
+
+				}catch(NumberFormatException e){}
+
+			}
+
+			return complete;
+
+		}
+
+		/**
+		 * Returns the sequence of the last snapshot added
+		 * @return
+		 */
+		public synchronized long getSequence(){
+
+			return sequence;
+
+		}
+
+		/**
+		 * Returns the entries of the completed snapshot and resets for the next one
+		 * @return
+		 */
+		public synchronized List<ControlMessage> takeEntries(){
+
+			ArrayList<ControlMessage> complete = new ArrayList<ControlMessage>(entries);
+
+			entries.clear();
+			received = 0;
+			chunks = 0;
+
+			return complete;
+
+		}
+
+	}
+
+}
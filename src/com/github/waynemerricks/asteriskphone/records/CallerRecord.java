@@ -0,0 +1,268 @@
+package com.github.waynemerricks.asteriskphone.records;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.Vector;
+
+import com.github.waynemerricks.asteriskphone.protocol.ControlMessage;
+import com.github.waynemerricks.asteriskphone.protocol.Opcode;
+
+/**
+ * Converts the caller details of a PhoneCall to and from a CALLER message so the
+ * server can look a caller up once and send it to every client.
+ *
+ * CALLER/CHANNEL/CALL TYPE/BADGE ICON/NUMBER IDS/PEOPLE/[PERSON...]
+ * PERSON = ID/ALERT/NAME/GENDER/LOCATION/ADDRESS/POSTCODE/EMAIL/LANGUAGE/RELIGION/
+ * JOURNEY/NOTES/CURRENT CONVERSATION/CONVERSATIONS/[TIME/CONVERSATION...]
+ *
+ * Alert and gender are sent as their DB codes (N/W/B/F and U/M/F) and an unknown
+ * caller's name as null, each client turns them into its own language.  Location is
+ * left as null by the server so each client can fill it in from the number the same
+ * way it does for a DB lookup.
+ * @author Wayne Merricks
+ *
+ */
+public class CallerRecord {
+
+	/** STATICS **/
+	public static final int RECENT_CONVERSATIONS = 20; //Most conversations sent per person
+	private static final int HEADER_FIELDS = 5;
+	private static final int PERSON_FIELDS = 14;
+
+	/**
+	 * Creates a CALLER message from the people and call type already looked up on
+	 * the given call
+	 * @param call call to send
+	 * @return CALLER message
+	 */
+	public static ControlMessage encode(PhoneCall call){
+
+		ArrayList<String> fields = new ArrayList<String>();
+		Vector<Person> people = call.getPeople();
+
+		fields.add(call.getChannelID());
+		fields.add(call.getCallType());
+		fields.add(call.getCallTypeIconPath());
+
+		StringBuilder numberIDs = new StringBuilder();
+
+		for(int i = 0; i < call.getNumberIDs().size(); i++){
+
+			if(i > 0)
+				numberIDs.append(",");
+
+			numberIDs.append(call.getNumberIDs().get(i));
+
+		}
+
+		fields.add(numberIDs.toString());
+		fields.add("" + people.size());
+
+		for(int i = 0; i < people.size(); i++){
+
+			Person person = people.get(i);
+
+			fields.add("" + person.id);
+			fields.add("" + person.getShortAlertLevel());
+			fields.add(person.getKnownName());
+			fields.add("" + person.getShortGender());
+			fields.add(person.location);
+			fields.add(person.postalAddress);
+			fields.add(person.postCode);
+			fields.add(person.email);
+			fields.add(person.language);
+			fields.add(person.religion);
+			fields.add(person.journey);
+			fields.add(person.notes);
+			fields.add(person.currentConversation);
+
+			List<Conversation> conversations = getRecentConversations(person);
+			fields.add("" + conversations.size());
+
+			for(int j = 0; j < conversations.size(); j++){
+
+				fields.add("" + conversations.get(j).getTime().getTime());
+				fields.add(conversations.get(j).getConversation());
+
+			}
+
+		}
+
+		return new ControlMessage(Opcode.CALLER, fields.toArray(new String[fields.size()]));
+
+	}
+
+	/**
+	 * Returns the newest RECENT_CONVERSATIONS conversations for this person in the
+	 * order they were read from the DB
+	 * @param person
+	 * @return
+	 */
+	private static List<Conversation> getRecentConversations(Person person){
+
+		List<Conversation> conversations = new ArrayList<Conversation>(
+				person.getConversationHistory());
+
+		if(conversations.size() > RECENT_CONVERSATIONS){
+
+			ArrayList<Conversation> newest = new ArrayList<Conversation>(conversations);
+
+			Collections.sort(newest, new Comparator<Conversation>(){
+				public int compare(Conversation a, Conversation b){
+					return b.getTime().compareTo(a.getTime());
+				}
+			});
+
+			conversations.retainAll(newest.subList(0, RECENT_CONVERSATIONS));
+
+		}
+
+		return conversations;
+
+	}
+
+	/**
+	 * Returns the channel a CALLER message is for
+	 * @param message CALLER message
+	 * @return channel or null if this isn't a CALLER message
+	 */
+	public static String getChannel(ControlMessage message){
+
+		String channel = null;
+
+		if(message.getOpcode() == Opcode.CALLER && message.getFieldCount() > 0)
+			channel = message.getField(0);
+
+		return channel;
+
+	}
+
+	/**
+	 * Reads the people and call type from a CALLER message into the given call
+	 * @param message CALLER message
+	 * @param call call to fill in
+	 * @param callLocation location to use if a person doesn't have one
+	 * @param unknownLocation location to use if there is no callLocation either
+	 * @return false if the message couldn't be read or has nobody in it, the call
+	 * should be looked up in the DB instead
+	 */
+	static boolean decode(ControlMessage message, PhoneCall call, String callLocation,
+			String unknownLocation){
+
+		boolean decoded = false;
+
+		if(message != null && message.getOpcode() == Opcode.CALLER &&
+				message.getFieldCount() >= HEADER_FIELDS){
+
+			try{
+
+				String[] fields = message.getFields();
+				int people = Integer.parseInt(fields[4]);
+				int i = HEADER_FIELDS;
+
+				call.setCallTypeFromRecord(toNull(fields[1]), toNull(fields[2]));
+
+				if(fields[3].length() > 0){
+
+					String[] numberIDs = fields[3].split(",");
+
+					for(int j = 0; j < numberIDs.length; j++)
+						call.getNumberIDs().add(Integer.parseInt(numberIDs[j]));
+
+				}
+
+				for(int p = 0; p < people; p++){
+
+					Person person = new Person(Integer.parseInt(fields[i]),
+							call.getLanguage(), call.getCountry());
+
+					person.setAlertLevel(getField(fields, i + 1));
+					person.setName(toNull(getField(fields, i + 2)));
+					person.setGender(getField(fields, i + 3));
+					person.location = toNull(getField(fields, i + 4));
+					person.postalAddress = getField(fields, i + 5);
+					person.postCode = getField(fields, i + 6);
+					person.email = getField(fields, i + 7);
+					person.language = getField(fields, i + 8);
+					person.religion = getField(fields, i + 9);
+					person.journey = getField(fields, i + 10);
+					person.notes = getField(fields, i + 11);
+					person.currentConversation = toNull(getField(fields, i + 12));
+
+					if(person.location == null){
+
+						if(callLocation != null)
+							person.location = callLocation;
+						else
+							person.location = unknownLocation;
+
+					}
+
+					int conversations = Integer.parseInt(getField(fields, i + 13));
+					i += PERSON_FIELDS;
+
+					for(int c = 0; c < conversations; c++){
+
+						person.addConversation(new Conversation(
+								new Date(Long.parseLong(fields[i])),
+								getField(fields, i + 1)));
+						i += 2;
+
+					}
+
+					call.getPeople().add(person);
+
+				}
+
+				decoded = people > 0;
+
+			}catch(NumberFormatException | ArrayIndexOutOfBoundsException e){
+
+				//Bad record, clear anything half read and let the DB sort it out
+				call.getPeople().clear();
+				call.getNumberIDs().clear();
+
+			}
+
+		}
+
+		return decoded;
+
+	}
+
+	/**
+	 * Returns the given field or blank if it was dropped off the end of the message
+	 * (version 1 messages lose trailing blank fields)
+	 * @param fields
+	 * @param index
+	 * @return
+	 */
+	private static String getField(String[] fields, int index){
+
+		String field = "";
+
+		if(index < fields.length)
+			field = fields[index];
+
+		return field;
+
+	}
+
+	/**
+	 * Converts the "null" nulls are sent as back to null
+	 * @param value
+	 * @return
+	 */
+	private static String toNull(String value){
+
+		if(value != null && value.equals("null"))
+			value = null;
+
+		return value;
+
+	}
+
+}
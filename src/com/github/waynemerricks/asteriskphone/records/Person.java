@@ -11,6 +11,8 @@ import java.util.logging.Logger;
 
 import javax.swing.JOptionPane;
 
+import com.github.waynemerricks.asteriskphone.database.QueryRegistry;
+
 public class Person {
 
 	/** CLASS VARS **/
@@ -49,45 +51,25 @@ public class Person {
 		this.id = id;
 		xStrings = new I18NStrings(language, country);
 		
-		String SQL = "SELECT * FROM `person` WHERE `person_id` = " + id; 
-		
-		Statement statement = null;
+		PreparedStatement statement = null;
 		ResultSet resultSet = null;
 		
 		try{
 			
-			statement = readConnection.createStatement();
-		    resultSet = statement.executeQuery(SQL);
+			statement = readConnection.prepareStatement(QueryRegistry.SELECT_PERSON);
+			statement.setInt(1, id);
+		    resultSet = statement.executeQuery();
 		    
 		    while(resultSet.next()){
 		    	
 			    //Alert level e.g. person banned or warning because they're awkward
-	    		alert = resultSet.getString("alert"); 
-	    		
-	    		if(alert.equals("N")) 
-	    			alert = xStrings.getString("PhoneCall.alertNormal"); 
-	    		else if(alert.equals("W")) 
-	    			alert = xStrings.getString("PhoneCall.alertWarning"); 
-	    		else if(alert.equals("B")) 
-	    			alert = xStrings.getString("PhoneCall.alertBanned"); 
-	    		else if(alert.equals("F")) 
-	    			alert = xStrings.getString("PhoneCall.alertFavourite"); 
+	    		setAlertLevel(resultSet.getString("alert")); 
 	    		
 	    		//Name
-	    		name = resultSet.getString("name"); 
-	    		
-	    		if(name == null || name.equals("null")) 
-	    			name = xStrings.getString("PhoneCall.unknownCaller"); 
+	    		setName(resultSet.getString("name")); 
 	    		
 	    		//Gender
-	    		gender = resultSet.getString("gender"); 
-	    		
-	    		if(gender.equals("U")) 
-	    			gender = xStrings.getString("PhoneCall.genderUnknown"); 
-	    		else if(gender.equals("M")) 
-	    			gender = xStrings.getString("PhoneCall.genderMale"); 
-	    		else if(gender.equals("F")) 
-	    			gender = xStrings.getString("PhoneCall.genderFemale"); 
+	    		setGender(resultSet.getString("gender")); 
 	    		
 	    		//Location
 	    		location = resultSet.getString("location"); 
@@ -169,16 +151,16 @@ public class Person {
 	 */
 	private void populateConversationHistory(Connection readConnection) {
 		
-		Statement statement = null;
+		PreparedStatement statement = null;
 		ResultSet resultSet = null;
 		
-		String SQL = "SELECT time, channel, conversation FROM conversations " + 
-				"WHERE person_id = " + id;  
-		
 		try{
 			
-			statement = readConnection.createStatement();
-			resultSet = statement.executeQuery(SQL);
+			statement = readConnection.prepareStatement(
+					QueryRegistry.SELECT_CONVERSATIONS_FOR_PERSON);
+			statement.setInt(1, id);
+			statement.setInt(2, id);
+			resultSet = statement.executeQuery();
 	    
 			while(resultSet.next()){
 				
@@ -231,11 +213,77 @@ public class Person {
 		
 	}
 	
+	/**
+	 * Sets the alert level from its short form as stored in the DB and sent in
+	 * CALLER messages, anything else is kept as is
+	 * @param shortAlert N = Normal, W = Warning, B = Banned, F = Favourite
+	 */
+	void setAlertLevel(String shortAlert){
+		
+		alert = shortAlert;
+		
+		if(alert.equals("N")) 
+			alert = xStrings.getString("PhoneCall.alertNormal"); 
+		else if(alert.equals("W")) 
+			alert = xStrings.getString("PhoneCall.alertWarning"); 
+		else if(alert.equals("B")) 
+			alert = xStrings.getString("PhoneCall.alertBanned"); 
+		else if(alert.equals("F")) 
+			alert = xStrings.getString("PhoneCall.alertFavourite"); 
+		
+	}
+	
+	/**
+	 * Sets the name, null or "null" shows as an unknown caller
+	 * @param name
+	 */
+	void setName(String name){
+		
+		this.name = name;
+		
+		if(this.name == null || this.name.equals("null")) 
+			this.name = xStrings.getString("PhoneCall.unknownCaller"); 
+		
+	}
+	
+	/**
+	 * Returns the name or null if this is an unknown caller
+	 * @return
+	 */
+	String getKnownName(){
+		
+		String knownName = name;
+		
+		if(name != null && name.equals(xStrings.getString("PhoneCall.unknownCaller")))
+			knownName = null;
+		
+		return knownName;
+		
+	}
+	
+	/**
+	 * Sets the gender from its short form as stored in the DB and sent in CALLER
+	 * messages, anything else is kept as is
+	 * @param shortGender U = Unknown, M = Male, F = Female
+	 */
+	void setGender(String shortGender){
+		
+		gender = shortGender;
+		
+		if(gender.equals("U")) 
+			gender = xStrings.getString("PhoneCall.genderUnknown"); 
+		else if(gender.equals("M")) 
+			gender = xStrings.getString("PhoneCall.genderMale"); 
+		else if(gender.equals("F")) 
+			gender = xStrings.getString("PhoneCall.genderFemale"); 
+		
+	}
+	
 	/**
 	 * Returns char representation of gender
 	 * @return U = Unknown, M = Male, F = Female
 	 */
-	private char getShortGender(){
+	char getShortGender(){
 	
 		char shortGender = 'U';
 		if(gender.equals(xStrings.getString("PhoneCall.genderMale"))) 
@@ -253,15 +301,13 @@ public class Person {
 		
 		PreparedStatement statement = null;
 		
-		String SQL = "INSERT INTO conversations(person_id, conversation) VALUES (?, ?)"; 
-		
 		try{
 			
-			statement = dbConnection.prepareStatement(SQL);
+			statement = dbConnection.prepareStatement(QueryRegistry.INSERT_CONVERSATION);
 			statement.setInt(1, id);
 			statement.setString(2, currentConversation);
 			
-			statement.executeUpdate(SQL);
+			statement.executeUpdate();
 	        saved = true;
 	        
 		}catch(SQLException e){
@@ -291,14 +337,10 @@ public class Person {
 	
 		PreparedStatement statement = null;
 		
-		String SQL = "UPDATE person SET alert = ?, name = ?, gender = ?, location = ?, " + 
-				"address = ?, postcode = ?, email = ?, language = ?, " + 
-				"religion = ?, notes = ? WHERE person_id = ?";  
-		
 		try{
 			
 			//Save Person
-			statement = dbConnection.prepareStatement(SQL);
+			statement = dbConnection.prepareStatement(QueryRegistry.UPDATE_PERSON);
 			statement.setString(1, "" + getShortAlertLevel()); 
 			statement.setString(2, name);
 			statement.setString(3, "" + getShortGender()); 
@@ -377,12 +419,11 @@ public class Person {
 		Statement statement = null;
 		ResultSet rs = null;
 		
-		String SQL = "INSERT INTO person VALUES()";  
-		
 		try{
 			
 			statement = databaseConnection.createStatement();
-			int rows = statement.executeUpdate(SQL, Statement.RETURN_GENERATED_KEYS);
+			int rows = statement.executeUpdate(QueryRegistry.INSERT_PERSON,
+					Statement.RETURN_GENERATED_KEYS);
 			
 			if(rows > 0){
 				rs = statement.getGeneratedKeys();
@@ -1,9 +1,12 @@
 package com.github.waynemerricks.asteriskphone.records;
 
+import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.Date;
+import java.util.HashSet;
 import java.util.Vector;
 import java.util.logging.Logger;
 
@@ -14,6 +17,8 @@ import org.asteriskjava.live.CallerId;
 
 import com.github.waynemerricks.asteriskphone.asterisk.AsteriskManager;
 import com.github.waynemerricks.asteriskphone.database.DatabaseManager;
+import com.github.waynemerricks.asteriskphone.database.QueryRegistry;
+import com.github.waynemerricks.asteriskphone.protocol.ControlMessage;
 
 public class PhoneCall implements Runnable{
 
@@ -28,8 +33,8 @@ public class PhoneCall implements Runnable{
 	private Vector<Integer> numberIDs = new Vector<Integer>(); 
 	private char threadMode;
 	private String threadOperator, answeredBy, callerID, channelID, callLocation, calltype;
+	private String callTypeIconPath = null; //Cached badge icon for calltype
 	private boolean headless = false;
-	private int retryCount = -1;
 	
 	/** STATICS **/
 	private static final Logger LOGGER = Logger.getLogger(PhoneCall.class.getName());//Logger
@@ -65,6 +70,22 @@ public class PhoneCall implements Runnable{
 	public PhoneCall(DatabaseManager database, String callerID, String channelID, 
 			String callLocation){
 		
+		this(database, callerID, channelID, callLocation, null);
+		
+	}
+	
+	/**
+	 * Used by Clients to create a call record from the CALLER message the server sent
+	 * when the call was queued, if there isn't one it is looked up in the DB
+	 * @param database
+	 * @param callerID
+	 * @param channelID
+	 * @param callLocation
+	 * @param callerRecord CALLER message for this channel or null
+	 */
+	public PhoneCall(DatabaseManager database, String callerID, String channelID, 
+			String callLocation, ControlMessage callerRecord){
+		
 		this.callLocation = callLocation;
 		this.database = database;
 		this.channelID = channelID;
@@ -77,8 +98,13 @@ public class PhoneCall implements Runnable{
 		//TODO When a call is queued without a conversation it might have been from
 		//a call we initiated, the conversation goes because of a channel switch
 		//from originator to receiver once the call is put on hold :|
-		populatePersonDetails();
-		lookupCallType(channelID);
+		if(!CallerRecord.decode(callerRecord, this, callLocation, 
+				xStrings.getString("PhoneCall.locationUnknown"))){
+			
+			populatePersonDetails();
+			lookupCallType(channelID);
+			
+		}
 		
 	}
 
@@ -106,6 +132,10 @@ public class PhoneCall implements Runnable{
 		/* BUG FIX CALLERID WITHHELD */
 		this.callerID =  checkNumberWithHeld(callerID);
 		
+		//Answered calls create a skeleton, anything after this waits for it
+		if(mode == 'A')
+			database.getPersonResolver().expect(this.callerID);
+		
 	}
 	
 	/**
@@ -146,13 +176,16 @@ public class PhoneCall implements Runnable{
 	 * @param channel Channel to assign to manual call (this is a date.getTime variant as its not a real channel)
 	 * @param mode Mode to set (usually M)
 	 * @param database Reference to Database
+	 * @param asteriskManager used to tell clients to refresh if this is a new person
 	 */
-	public PhoneCall(String callerId, String channel, char mode, String operator, DatabaseManager database){
+	public PhoneCall(String callerId, String channel, char mode, String operator, 
+			DatabaseManager database, AsteriskManager asteriskManager){
 		
 		//TODO Use this to have a manual call, need to edit callmanager.addmanual
 		headless = true;
 		this.channelID = channel;
 		this.database = database;
+		this.asteriskManager = asteriskManager;
 		this.threadMode = mode;
 		this.threadOperator = operator;
 		
@@ -161,6 +194,7 @@ public class PhoneCall implements Runnable{
 		
 		/* BUG FIX CALLERID WITHHELD */
 		this.callerID =  checkNumberWithHeld(callerId);
+		database.getPersonResolver().expect(this.callerID);
 		
 	}
 	
@@ -173,9 +207,25 @@ public class PhoneCall implements Runnable{
 	 */
 	public PhoneCall(String callerId, String channel, DatabaseManager database){
 		
+		this(callerId, channel, database, null);
+		
+	}
+	
+	/**
+	 * Used by the server to create skeleton for new calls (if necessary)
+	 * Usually here when calls are in the ringing state.
+	 * @param callerId Caller ID aka Number of the call (can be unknown)
+	 * @param channel Channel that the call has (used for tracking)
+	 * @param database Database link to use for queries
+	 * @param asteriskManager used to tell clients to refresh if this is a new person
+	 */
+	public PhoneCall(String callerId, String channel, DatabaseManager database, 
+			AsteriskManager asteriskManager){
+		
 		headless = true;
 		this.channelID = channel;
 		this.database = database;
+		this.asteriskManager = asteriskManager;
 		this.threadMode = 'R';
 		
 		xStrings = new I18NStrings(database.getUserSettings().get("language"),  
@@ -183,6 +233,9 @@ public class PhoneCall implements Runnable{
 		
 		/* BUG FIX CALLERID WITHHELD */
 		this.callerID =  checkNumberWithHeld(callerId);
+		
+		//Queue lookups for this number wait for the skeleton instead of retrying
+		database.getPersonResolver().expect(this.callerID);
 	
 	}
 	
@@ -239,16 +292,16 @@ public class PhoneCall implements Runnable{
 	 */
 	private void lookupCallType(String channel) {
 		
-		Statement statement = null;
+		Connection readConnection = null;
+		PreparedStatement statement = null;
 		ResultSet resultSet = null;
 		
 		try{
 			
-			String SQL = "SELECT type FROM callhistory WHERE callchannel = \"" + channel +  
-					"\" AND type != 'NA' ORDER BY callhistory_id DESC LIMIT 1"; 
-			
-			statement = database.getConnection().createStatement();
-		    resultSet = statement.executeQuery(SQL);
+			readConnection = database.getReadConnection();
+			statement = readConnection.prepareStatement(QueryRegistry.SELECT_CALL_TYPE);
+			statement.setString(1, channel);
+		    resultSet = statement.executeQuery();
 		    
 		    while(resultSet.next())
 		    	calltype = resultSet.getString("type"); 
@@ -271,10 +324,89 @@ public class PhoneCall implements Runnable{
 		        statement = null;
 		    }
 		    
+			if (readConnection != null) {
+			    try {
+			    	readConnection.close();
+			    } catch (SQLException sqlEx) { } // ignore
+			    readConnection = null;
+			}
+
 		}
 		
 	}
 	
+	/**
+	 * Sets the call type and badge icon from a CALLER message
+	 * @param type
+	 * @param iconPath
+	 */
+	void setCallTypeFromRecord(String type, String iconPath){
+		
+		calltype = type;
+		callTypeIconPath = iconPath;
+		
+	}
+	
+	/**
+	 * Returns true if at least one person was found for this number
+	 * @return
+	 */
+	public boolean hasPeople(){
+		
+		return people.size() > 0;
+		
+	}
+	
+	/**
+	 * Returns the people found for this number, used by CallerRecord
+	 * @return
+	 */
+	Vector<Person> getPeople(){
+		
+		return people;
+		
+	}
+	
+	/**
+	 * Returns the phonenumbers ids for this number, used by CallerRecord
+	 * @return
+	 */
+	Vector<Integer> getNumberIDs(){
+		
+		return numberIDs;
+		
+	}
+	
+	/**
+	 * Returns the channel this call is on
+	 * @return
+	 */
+	public String getChannelID(){
+		
+		return channelID;
+		
+	}
+	
+	/**
+	 * Returns the I18N language this call was created with
+	 * @return
+	 */
+	String getLanguage(){
+		
+		return database.getUserSettings().get("language");
+		
+	}
+	
+	/**
+	 * Returns the I18N country this call was created with
+	 * @return
+	 */
+	String getCountry(){
+		
+		return database.getUserSettings().get("country");
+		
+	}
+	
 	/**
 	 * Returns the person who answered this call or null if not answered
 	 * @return
@@ -304,7 +436,26 @@ public class PhoneCall implements Runnable{
 	 */
 	public boolean saveToDB(){
 		
-		return getActivePerson().saveToDB(database.getWriteConnection());
+		boolean saved = false;
+		Connection writeConnection = null;
+		
+		try{
+			
+			writeConnection = database.getWriteConnection();
+			saved = getActivePerson().saveToDB(writeConnection);
+			
+		}catch(SQLException e){
+			showError(e, xStrings.getString("PhoneCall.databaseSQLError")); 
+		}finally{
+			
+			if(writeConnection != null)
+				try{
+					writeConnection.close();
+				}catch(Exception e){}
+			
+		}
+		
+		return saved;
 		
 	}
 	
@@ -374,28 +525,7 @@ public class PhoneCall implements Runnable{
 	 */
 	public void trackRinging(){
 		
-		Statement statement = null;
-		
-		String SQL = "INSERT INTO callhistory(phonenumber, state, callchannel) VALUES("  
-				+ "'" + callerID + "', 'R', "   
-				+ channelID + ")"; 
-		
-		try{
-			
-			statement = database.getWriteConnection().createStatement();
-			statement.executeUpdate(SQL);
-	        
-		}catch(SQLException e){
-        	
-        	showError(e, xStrings.getString("PhoneCall.errorTrackingRingState")  
-        			+ callerID);
-        	
-        }finally{
-            if(statement != null)
-            	try{
-            		statement.close();
-            	}catch(Exception e){}
-        }
+		database.getCallHistoryJournal().record(callerID, "R", "NA", channelID, null);
 		
 	}
 	
@@ -409,164 +539,121 @@ public class PhoneCall implements Runnable{
 			operator = "NA"; 
 		
 		// Lookup phone number if its already there get person id
-		Statement statement = null, writeStatement = null;
-		ResultSet resultSet = null, personResult = null, historyResult = null;
-		
-		String SQL = null;
+		Connection writeConnection = null;
+		PreparedStatement personStatement = null, numberStatement = null, 
+				historyStatement = null;
+		ResultSet personResult = null;
+		boolean created = false;
 		
 		try{
 			
-			SQL = "SELECT person_id FROM phonenumbers WHERE phone_number = '" + callerID  
-					+ "' ORDER BY lastUpdate DESC LIMIT 1"; 
+			/* Lookup is done with its own read connection which is returned 
+			 * before we borrow a write connection so we never hold both */
+			String existingID = getPersonFromNumber(callerID);
+			int personID = -1;
+			
+			if(existingID != null)
+				personID = Integer.parseInt(existingID);
+			
+			writeConnection = database.getWriteConnection();
 			
-			statement = database.getReadConnection().createStatement();
-		    resultSet = statement.executeQuery(SQL);
-		    
-		    int personID = -1;
-		    
-		    while(resultSet.next())
-		    	personID = resultSet.getInt("person_id"); 
-		    
 		    if(personID == -1){
 		    	
 		    	// If not there create blank new person record + phonenumber and get person id
-				writeStatement = database.getWriteConnection().createStatement();
-				SQL = "INSERT INTO person VALUES()"; 
-				
-				writeStatement.executeUpdate(SQL, Statement.RETURN_GENERATED_KEYS);
-				personResult = writeStatement.getGeneratedKeys();
+				personStatement = writeConnection.prepareStatement(QueryRegistry.INSERT_PERSON, 
+						Statement.RETURN_GENERATED_KEYS);
+				personStatement.executeUpdate();
+				personResult = personStatement.getGeneratedKeys();
 				
 				if(personResult.next())
 					personID = personResult.getInt(1);
 				
-				SQL = "INSERT INTO phonenumbers (phone_number, person_id) VALUES('"  
-						+ callerID + "', '" + personID + "')";  
-		    	
-				writeStatement.executeUpdate(SQL);
+				numberStatement = writeConnection.prepareStatement(
+						QueryRegistry.INSERT_PHONE_NUMBER);
+				numberStatement.setString(1, callerID);
+				numberStatement.setInt(2, personID);
+				numberStatement.executeUpdate();
+				created = true;
 				
 		    }
 		    
 		    if(personID != -1){ //Should never be -1 if got this far
 		    	
 			    // Use person id to add an R Log with channel to callhistory
-			    SQL = "INSERT INTO callhistory(`phonenumber`, `state`, `callchannel`, `activePerson`, `operator`) " 
-			    		+ "VALUES ('" + callerID + "', '" + mode + "', '" + channelID + "', '"      
-			    		+ personID + "', '" + operator + "')";   
-			    
-			    if(writeStatement == null)
-			    	writeStatement = database.getWriteConnection().createStatement();
-			    
-			    writeStatement.executeUpdate(SQL);
+		    	historyStatement = writeConnection.prepareStatement(
+		    			QueryRegistry.INSERT_CALL_STATE_WITH_PERSON);
+		    	historyStatement.setString(1, callerID);
+		    	historyStatement.setString(2, mode);
+		    	historyStatement.setString(3, operator);
+		    	historyStatement.setString(4, channelID);
+		    	historyStatement.setInt(5, personID);
+			    historyStatement.executeUpdate();
 
 		    }
 			
 		}catch (SQLException e){
-			showError(e, xStrings.getString("PhoneCall.databaseSQLError") + " " + SQL);  
+			showError(e, xStrings.getString("PhoneCall.databaseSQLError") + " " + callerID);  
 		}finally {
 			
-			if(historyResult != null){
+			if(personResult != null){
 				try{
-					historyResult.close();
+					personResult.close();
 				}catch(SQLException e){}
-				historyResult = null;
+				personResult = null;
 			}
 			
-			if(personResult != null){
+			if(personStatement != null){
 				try{
-					personResult.close();
+					personStatement.close();
 				}catch(SQLException e){}
-				personResult = null;
+				personStatement = null;
 			}
 			
-			if (resultSet != null) {
-		        try {
-		        	resultSet.close();
-		        } catch (SQLException sqlEx) { } // ignore
-		        resultSet = null;
-		    }
+			if(numberStatement != null){
+				try{
+					numberStatement.close();
+				}catch(SQLException e){}
+				numberStatement = null;
+			}
 			
-			if(writeStatement != null){
+			if(historyStatement != null){
 				try{
-					writeStatement.close();
+					historyStatement.close();
 				}catch(SQLException e){}
-				writeStatement = null;
+				historyStatement = null;
 			}
 			
-		    if (statement != null) {
-		        try {
-		        	statement.close();
-		        } catch (SQLException sqlEx) { } // ignore
-		        statement = null;
-		    }
+			if(writeConnection != null){
+				try{
+					writeConnection.close();
+				}catch(SQLException e){}
+				writeConnection = null;
+			}
+			
+			//Rows are committed (or failed), let anything waiting carry on
+			database.getPersonResolver().resolved(callerID);
 		    
 		}
 		
+		//Clients that looked this number up while ringing didn't find anyone
+		if(created && asteriskManager != null)
+			asteriskManager.sendPanelUpdate(channelID);
+		
 	}
 	
 	/**
-	 * Adds a record to the DB to indicate that this PhoneCall is in the ringing state
+	 * Adds a record to the DB to indicate that this PhoneCall is in the queued state
 	 */
 	public void trackQueue(String operator){
 		
-		Statement statement = null, updateStatement = null;
+		//If operator is NA then add the active person to this entry
+		String activePersonID = null;
 		
-		String SQL = "INSERT INTO callhistory(phonenumber, state, callchannel, operator) VALUES("  
-				+ "'" + callerID + "', 'Q', "   
-				+ channelID + ", '" + operator + "')";  
+		if(operator.equals("NA")) 
+			activePersonID = getPersonFromNumber(callerID);
 		
-		try{
-			
-			statement = database.getWriteConnection().createStatement();
-			statement.executeUpdate(SQL, Statement.RETURN_GENERATED_KEYS);
-			
-			ResultSet rs = statement.getGeneratedKeys();
-			int rowID = -1;
-			
-			if(rs.next())
-				rowID = rs.getInt(1);
-			
-			// If operator is NA then add the active person to this entry
-			if(operator.equals("NA")){ 
-				
-				SQL = "UPDATE callhistory SET activePerson = " + getPersonFromNumber(callerID) +  
-						" WHERE callhistory_id = " + rowID; 
-				
-				updateStatement = database.getWriteConnection().createStatement();
-				updateStatement.executeUpdate(SQL);
-				
-			}
-			
-			retryCount = -1;
-			
-		}catch(SQLException e){
-        	
-        	showError(e, xStrings.getString("PhoneCall.errorTrackingRingState")  
-        			+ callerID);
-        	retryCount++;
-        	
-        }finally{
-            if(statement != null)
-            	try{
-            		statement.close();
-            	}catch(Exception e){}
-            
-            if(updateStatement != null)
-            	try{
-            		updateStatement.close();
-            	}catch(Exception e){}
-        }
-		
-		if(retryCount != -1 && retryCount < 2){
-			
-			try {
-				Thread.sleep(500L);
-				trackQueue(operator);
-				retryCount = -1;//Reset retry count as we successfully completed
-			} catch (InterruptedException e) {
-				e.printStackTrace();
-			}
-			
-		}
+		database.getCallHistoryJournal().record(callerID, "Q", operator, channelID, 
+				activePersonID);
 		
 	}
 	
@@ -580,17 +667,18 @@ public class PhoneCall implements Runnable{
 		//Get the most recently updated person id associated with this number
 		String id = null;
 		
-		Statement statement = null;
+		Connection readConnection = null;
+		PreparedStatement statement = null;
 		ResultSet resultSet = null;
 		
 		try{
 			
-			String SQL = "SELECT person_id FROM phonenumbers WHERE phone_number = '"  
-					+ number  + "' ORDER BY lastUpdate DESC LIMIT 1"; 
-			
-			LOGGER.info(xStrings.getString("PhoneCall.getPersonFromNumber") + SQL); 
-			statement = database.getConnection().createStatement();
-		    resultSet = statement.executeQuery(SQL);
+			LOGGER.info(xStrings.getString("PhoneCall.getPersonFromNumber") + number); 
+			readConnection = database.getReadConnection();
+			statement = readConnection.prepareStatement(
+					QueryRegistry.SELECT_PERSON_ID_FOR_NUMBER);
+			statement.setString(1, number);
+		    resultSet = statement.executeQuery();
 		    
 		    while(resultSet.next())
 		    	id = resultSet.getString("person_id"); 
@@ -613,6 +701,13 @@ public class PhoneCall implements Runnable{
 		        statement = null;
 		    }
 		    
+			if (readConnection != null) {
+			    try {
+			    	readConnection.close();
+			    } catch (SQLException sqlEx) { } // ignore
+			    readConnection = null;
+			}
+
 		}	
 		
 		return id;
@@ -638,29 +733,7 @@ public class PhoneCall implements Runnable{
 	public void trackAnswered(String answeredBy){
 		
 		this.answeredBy = answeredBy;
-		
-		Statement statement = null;
-		
-		String SQL = "INSERT INTO callhistory(phonenumber, state, operator, callchannel) VALUES("  
-				+ "'" + callerID + "', 'A', '" + answeredBy + "', "   
-				+ channelID + ")"; 
-		
-		try{
-			
-			statement = database.getWriteConnection().createStatement();
-			statement.executeUpdate(SQL);
-	        
-		}catch(SQLException e){
-        	
-        	showError(e, xStrings.getString("PhoneCall.errorTrackingAnsweredState")  
-        			+ callerID);
-        	
-        }finally{
-            if(statement != null)
-            	try{
-            		statement.close();
-            	}catch(Exception e){}
-        }
+		database.getCallHistoryJournal().record(callerID, "A", answeredBy, channelID, null);
 		
 	}
 	
@@ -670,28 +743,7 @@ public class PhoneCall implements Runnable{
 	 */
 	public void trackParked(String parkedBy){
 		
-		Statement statement = null;
-		
-		String SQL = "INSERT INTO callhistory(phonenumber, state, operator, callchannel) VALUES("  
-				+ "'" + callerID + "', 'P', '" + parkedBy + "', "   
-				+ channelID + ")"; 
-		
-		try{
-			
-			statement = database.getWriteConnection().createStatement();
-			statement.executeUpdate(SQL);
-	        
-		}catch(SQLException e){
-        	
-        	showError(e, xStrings.getString("PhoneCall.errorTrackingParkedState")  
-        			+ callerID);
-        	
-        }finally{
-            if(statement != null)
-            	try{
-            		statement.close();
-            	}catch(Exception e){}
-        }
+		database.getCallHistoryJournal().record(callerID, "P", parkedBy, channelID, null);
 		
 	}
 	
@@ -701,28 +753,7 @@ public class PhoneCall implements Runnable{
 	 */
 	public void trackHangup(String hangupBy){
 		
-		Statement statement = null;
-		
-		String SQL = "INSERT INTO callhistory(phonenumber, state, operator, callchannel) VALUES("  
-				+ "'" + callerID + "', 'H', '" + hangupBy + "', \""   
-				+ channelID + "\")";  
-		
-		try{
-			
-			statement = database.getWriteConnection().createStatement();
-			statement.executeUpdate(SQL);
-	        
-		}catch(SQLException e){
-        	
-        	showError(e, xStrings.getString("PhoneCall.errorTrackingHangupState")  
-        			+ callerID);
-        	
-        }finally{
-            if(statement != null)
-            	try{
-            		statement.close();
-            	}catch(Exception e){}
-        }
+		database.getCallHistoryJournal().record(callerID, "H", hangupBy, channelID, null);
 		
 	}
 	
@@ -742,8 +773,9 @@ public class PhoneCall implements Runnable{
 	 */
 	private void populatePersonDetails(){
 		
-		Statement statement = null, personStatement = null;
-		ResultSet resultSet = null, personResultSet = null;
+		Connection readConnection = null;
+		PreparedStatement personStatement = null;
+		ResultSet personResultSet = null;
 		
 		try{
 			//TODO Think about one number for multiple people
@@ -751,74 +783,43 @@ public class PhoneCall implements Runnable{
 			 * May need to create multiples if number already has a person ID that isn't this one
 			 * Incorporate a TIMESTAMP to figure out latest called from person.
 			 */
-			String SQL = "SELECT numbers_id, person_id FROM phonenumbers WHERE phone_number='"  
-					+ callerID + "'"; 
-			statement = database.getConnection().createStatement();
-		    resultSet = statement.executeQuery(SQL);
+			readConnection = database.getReadConnection();
+			personStatement = readConnection.prepareStatement(
+					QueryRegistry.SELECT_PEOPLE_FOR_NUMBER);
+			personStatement.setString(1, callerID);
+		    personResultSet = personStatement.executeQuery();
 		    
-		    boolean first = true;
+		    //Number and person are read in one go, a person can have this number more than once
+		    HashSet<Integer> peopleFound = new HashSet<Integer>();
 		    
-		    while(resultSet.next()){
+		    while(personResultSet.next()){
 		    	
-		    	numberIDs.add(resultSet.getInt("numbers_id")); 
+		    	numberIDs.add(personResultSet.getInt("numbers_id")); 
 		    	
-		    	if(first){
-		    		SQL = "" + resultSet.getInt("person_id");  
-		    		first = false;
-		    	}else
-		    		SQL += " OR person_id = " + resultSet.getInt("person_id");  
-		    	
-		    }
-		    
-		    if(!first){
-		    	
-		    	//We got some results so lets look them up
-		    	SQL = "SELECT * FROM person WHERE person_id = " + SQL; 
-		    	personStatement = database.getConnection().createStatement();
-		    	personResultSet = personStatement.executeQuery(SQL);
-		    	
-		    	while(personResultSet.next()){
+		    	if(peopleFound.add(personResultSet.getInt("person_id"))){
 		    		
 		    		Person person = new Person(personResultSet.getInt("person_id"), 
 		    				database.getUserSettings().get("language"),  
 		    				database.getUserSettings().get("country")); 
 		    		
 		    		//Alert level e.g. person banned or warning because they're awkward
-		    		person.alert = personResultSet.getString("alert"); 
-		    		
-		    		if(person.alert.equals("N")) 
-		    			person.alert = xStrings.getString("PhoneCall.alertNormal"); 
-		    		else if(person.alert.equals("W")) 
-		    			person.alert = xStrings.getString("PhoneCall.alertWarning"); 
-		    		else if(person.alert.equals("B")) 
-		    			person.alert = xStrings.getString("PhoneCall.alertBanned"); 
-		    		else if(person.alert.equals("F")) 
-		    			person.alert = xStrings.getString("PhoneCall.alertFavourite"); 
+		    		person.setAlertLevel(personResultSet.getString("alert")); 
 		    		
 		    		//Name
-		    		person.name = personResultSet.getString("name"); 
-		    		
-		    		if(person.name == null || person.name.equals("null")) 
-		    			person.name = xStrings.getString("PhoneCall.unknownCaller"); 
+		    		person.setName(personResultSet.getString("name")); 
 		    		
 		    		//Gender
-		    		person.gender = personResultSet.getString("gender"); 
-		    		
-		    		if(person.gender.equals("U")) 
-		    			person.gender = xStrings.getString("PhoneCall.genderUnknown"); 
-		    		else if(person.gender.equals("M")) 
-		    			person.gender = xStrings.getString("PhoneCall.genderMale"); 
-		    		else if(person.gender.equals("F")) 
-		    			person.gender = xStrings.getString("PhoneCall.genderFemale"); 
+		    		person.setGender(personResultSet.getString("gender")); 
 		    		
 		    		//Location
 		    		person.location = personResultSet.getString("location"); 
 		    		
 		    		if(person.location == null || person.location.equals("null")){
 		    			
+		    			//Server leaves this for the client to fill in from the number
 		    			if(callLocation != null)
 		    				person.location = callLocation;
-		    			else
+		    			else if(!headless)
 		    				person.location = xStrings.getString("PhoneCall.locationUnknown"); 
 		    			
 		    		}
@@ -866,28 +867,20 @@ public class PhoneCall implements Runnable{
 		    			person.notes = ""; 
 		    		
 		    		//Get the conversation history for this person
-		    		getConversationHistory(person);
+		    		getConversationHistory(readConnection, person);
 		    		
 		    		//Add to Vector
 		    		people.add(person);
 		    		
-		    		retryCount = -1;
-		    		
 		    	}
 		    	
-		    	if(people.size() < 1){
-		    		
-		    		/* No person exists yet so lets wait 1 second and try again? */
-		    		retryCount++;
-		    		
-		    	}
-		    	
-		    }else{
-		    	
-		    	retryCount++;
-	    		
 		    }
 		    
+		    /* No person exists yet, the server will send a CHANNELUPDATE once the
+		     * skeleton insert has created one */
+		    if(people.size() < 1)
+		    	LOGGER.info(xStrings.getString("PhoneCall.noRecordYet") + callerID);
+		    
 		}catch (SQLException e){
 			showError(e, xStrings.getString("PhoneCall.databaseSQLError")); 
 		}finally {
@@ -906,53 +899,34 @@ public class PhoneCall implements Runnable{
 		        personStatement = null;
 		    }
 			
-		    if (resultSet != null) {
+		    if (readConnection != null) {
 		        try {
-		        	resultSet.close();
-		        } catch (SQLException sqlEx) { } // ignore
-		        resultSet = null;
-		    }
-			
-		    if (statement != null) {
-		        try {
-		        	statement.close();
+		        	readConnection.close();
 		        } catch (SQLException sqlEx) { } // ignore
-		        statement = null;
+		        readConnection = null;
 		    }
 		    
 		}
 		
-		if(retryCount > -1 && retryCount < 5){
-			
-			try {
-				Thread.sleep(1000L);
-				populatePersonDetails();
-				retryCount = -1;
-			} catch (InterruptedException e) {
-				e.printStackTrace();
-			}
-			
-		}else if(retryCount > 4)
-			LOGGER.severe(xStrings.getString("PhoneCall.noRecordTimeOut")); 
-		
 	}
 	
 	/**
 	 * Reads any conversation history this person has from the DB
+	 * @param readConnection connection to use for the query (not closed)
 	 * @param person
 	 */
-	private void getConversationHistory(Person person) {
+	private void getConversationHistory(Connection readConnection, Person person) {
 		
-		Statement statement = null;
+		PreparedStatement statement = null;
 		ResultSet resultSet = null;
 		
-		String SQL = "SELECT time, channel, conversation FROM conversations WHERE person_id = " + 
-						person.id; 
-		
 		try{
 			
-			statement = database.getReadConnection().createStatement();
-			resultSet = statement.executeQuery(SQL);
+			statement = readConnection.prepareStatement(
+					QueryRegistry.SELECT_CONVERSATIONS_FOR_PERSON);
+			statement.setInt(1, person.id);
+			statement.setInt(2, person.id);
+			resultSet = statement.executeQuery();
 	    
 			while(resultSet.next()){
 				
@@ -1019,8 +993,21 @@ public class PhoneCall implements Runnable{
 		
 		if(threadMode == 'Q'){
 			//Will be Q or R when it first comes in, we use R to setup call skeleton
-			trackQueue(threadOperator);
-			asteriskManager.sendNewQueueEntryMessage(queueEntry, callerID);
+			//Wait for the skeleton insert if this number is still ringing
+			database.getPersonResolver().whenResolved(callerID, new Runnable(){
+				public void run(){
+					
+					trackQueue(threadOperator);
+					
+					//Look the caller up once here instead of on every client
+					populatePersonDetails();
+					lookupCallType(channelID);
+					
+					asteriskManager.sendNewQueueEntryMessage(queueEntry, callerID, 
+							CallerRecord.encode(PhoneCall.this));
+					
+				}
+			});
 		}else if(threadMode == 'H'){
 			//Automated Hang up, user hang ups will bypass this
 			trackHangup(threadOperator); 
@@ -1082,64 +1069,28 @@ public class PhoneCall implements Runnable{
 	 */
 	public String getCallTypeIconPath(){
 		
-		String iconPath = null;
+		if(callTypeIconPath == null && calltype != null)
+			callTypeIconPath = lookupCallTypeIconPath();
 		
-		String SQL = "SELECT options FROM callinputfields WHERE language = '"  
-				+ xStrings.getLocale() + "' AND mapping = 'calltype'"; 
+		return callTypeIconPath;
 		
-		Statement statement = null;
-		ResultSet resultSet = null;
+	}
+	
+	/**
+	 * Looks up the badge icon path for calltype in the field definition cache
+	 * @return path to the badge icon or null if there isn't one
+	 */
+	private String lookupCallTypeIconPath(){
+		
+		String iconPath = null;
 		
 		try{
-			
-			statement = database.getReadConnection().createStatement();
-			resultSet = statement.executeQuery(SQL);
-	    
-			while(resultSet.next()){
-				
-				
-				String[] types = resultSet.getString("options").split(","); 
-				
-				boolean found = false;
-				int i = 0;
-				
-				while(i < types.length && !found){
-					
-					String[] field = types[i].split("=>"); 
-					
-					if(field[0].equals(calltype)){
-						
-						found = true;
-						iconPath = field[1];
-						
-					}
-					
-					i++;
-					
-				}
-				
-			}
-			
+			iconPath = database.getFieldDefinitionCache().getCallTypeIcon(
+					xStrings.getLocale(), calltype);
 		}catch(SQLException e){
 			
 			showError(e, xStrings.getString("PhoneCall.databaseSQLError")); 
 			
-		}finally {
-			
-			if (resultSet != null) {
-		        try {
-		        	resultSet.close();
-		        } catch (SQLException sqlEx) { } // ignore
-		        resultSet = null;
-		    }
-			
-			if (statement != null) {
-		        try {
-		        	statement.close();
-		        } catch (SQLException sqlEx) { } // ignore
-		        statement = null;
-		    }
-		    
 		}
 		
 		return iconPath;
@@ -1155,19 +1106,21 @@ public class PhoneCall implements Runnable{
 	private void setCallType(String type, boolean updateDB){
 		
 		calltype = type;
+		callTypeIconPath = null;
 		
 		if(updateDB){
 			
-			Statement statement = null;
-			
-			String SQL = "INSERT INTO callhistory(phonenumber, state, callchannel, type) VALUES("  
-					+ "'" + callerID + "', 'T', "   
-					+ channelID + ", '" + type + "')";  
+			Connection writeConnection = null;
+			PreparedStatement statement = null;
 			
 			try{
 				
-				statement = database.getWriteConnection().createStatement();
-				statement.executeUpdate(SQL);
+				writeConnection = database.getWriteConnection();
+				statement = writeConnection.prepareStatement(QueryRegistry.INSERT_CALL_TYPE);
+				statement.setString(1, callerID);
+				statement.setString(2, channelID);
+				statement.setString(3, type);
+				statement.executeUpdate();
 		        
 			}catch(SQLException e){
 	        	
@@ -1179,6 +1132,12 @@ public class PhoneCall implements Runnable{
 	            	try{
 	            		statement.close();
 	            	}catch(Exception e){}
+	        	
+	        	if(writeConnection != null)
+	        		try{
+	        			writeConnection.close();
+	        		}catch(Exception e){}
+
 	        }
 			
 		}
@@ -1,10 +1,12 @@
 package com.github.waynemerricks.asteriskphone.records;
 
+import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.SQLException;
-import java.sql.Statement;
 import java.util.logging.Logger;
 
 import com.github.waynemerricks.asteriskphone.database.DatabaseManager;
+import com.github.waynemerricks.asteriskphone.database.QueryRegistry;
 
 public class TrackDial implements Runnable {
 
@@ -31,15 +33,18 @@ public class TrackDial implements Runnable {
 		
 		LOGGER.info(xStrings.getString("TrackDial.trackDialEvent") +  
 				phoneNumber + "/"  + operator); 
-		String SQL = "INSERT INTO `callhistory` (`phonenumber`, `state`, " + 
-				"`operator`, `callchannel`) VALUES ('" + phoneNumber + "', 'D'," +  
-						" '" + operator + "', 0)";  
-		Statement statement = null;
+		Connection writeConnection = null;
+		PreparedStatement statement = null;
 		
 		try{
 			
-			statement = database.getWriteConnection().createStatement();
-			statement.executeUpdate(SQL);
+			writeConnection = database.getWriteConnection();
+			statement = writeConnection.prepareStatement(QueryRegistry.INSERT_CALL_STATE);
+			statement.setString(1, phoneNumber);
+			statement.setString(2, "D");
+			statement.setString(3, operator);
+			statement.setString(4, "0");
+			statement.executeUpdate();
 			
 		}catch(SQLException e){
         	
@@ -52,6 +57,11 @@ public class TrackDial implements Runnable {
             		statement.close();
             	}catch(Exception e){}
             
+        	if(writeConnection != null)
+        		try{
+        			writeConnection.close();
+        		}catch(Exception e){}
+
         }
 
 	}
@@ -0,0 +1,255 @@
+package com.github.waynemerricks.asteriskphone.simulator;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.github.waynemerricks.asteriskphone.protocol.Opcode;
+
+/**
+ * Times commands from the moment a client sends them until the message that
+ * acknowledges them arrives, used by LoadGenerator.
+ *
+ * Each command is expected under a key the acknowledgement can be matched on, usually
+ * client/command/channel.  Latencies and replies are kept per command so the report
+ * can show e.g. how many TRANSFERs were LOCKED and how long they took.  Anything not
+ * acknowledged within the timeout is counted as timed out instead.
+ * @author Wayne Merricks
+ *
+ */
+public class AckTracker {
+
+	//CLASS VARS
+	private ConcurrentHashMap<String, Pending> pending = new ConcurrentHashMap<String, Pending>();
+	private EnumMap<Opcode, CommandStats> stats = new EnumMap<Opcode, CommandStats>(Opcode.class);
+
+	//STATICS
+	private static final long NANOS_PER_MS = 1000000L;
+
+	/**
+	 * Starts timing a command
+	 * @param key key the acknowledgement will be matched on
+	 * @param command command sent
+	 * @return false if we're already waiting on this key, the command shouldn't be sent
+	 */
+	public boolean expect(String key, Opcode command){
+
+		boolean expected = pending.putIfAbsent(key, new Pending(command, System.nanoTime())) == null;
+
+		if(expected){
+
+			CommandStats commandStats = getStats(command);
+
+			synchronized(commandStats){
+				commandStats.sent++;
+			}
+
+		}
+
+		return expected;
+
+	}
+
+	/**
+	 * Stops timing the command with this key
+	 * @param key
+	 * @param reply opcode of the message that acknowledged it
+	 * @return true if we were waiting on this key
+	 */
+	public boolean acknowledge(String key, Opcode reply){
+
+		long now = System.nanoTime();
+		Pending command = pending.remove(key);
+
+		if(command != null){
+
+			CommandStats commandStats = getStats(command.command);
+
+			synchronized(commandStats){
+
+				commandStats.latencies.add(now - command.sent);
+
+				Long replies = commandStats.replies.get(reply);
+				commandStats.replies.put(reply, replies == null ? 1 : replies + 1);
+
+			}
+
+		}
+
+		return command != null;
+
+	}
+
+	/**
+	 * Returns true if we're waiting on this key
+	 * @param key
+	 * @return
+	 */
+	public boolean isPending(String key){
+
+		return pending.containsKey(key);
+
+	}
+
+	/**
+	 * Counts anything that has been waiting longer than timeout as timed out
+	 * @param timeout ms
+	 * @return number of commands that timed out
+	 */
+	public int expire(long timeout){
+
+		long oldest = System.nanoTime() - timeout * NANOS_PER_MS;
+		Iterator<Map.Entry<String, Pending>> waiting = pending.entrySet().iterator();
+		int expired = 0;
+
+		while(waiting.hasNext()){
+
+			Map.Entry<String, Pending> entry = waiting.next();
+
+			if(entry.getValue().sent < oldest && pending.remove(entry.getKey(), entry.getValue())){
+
+				CommandStats commandStats = getStats(entry.getValue().command);
+
+				synchronized(commandStats){
+					commandStats.timedOut++;
+				}
+
+				expired++;
+
+			}
+
+		}
+
+		return expired;
+
+	}
+
+	/**
+	 * Returns the number of commands still waiting for an acknowledgement
+	 * @return
+	 */
+	public int getPendingCount(){
+
+		return pending.size();
+
+	}
+
+	/**
+	 * Returns a report line per command:
+	 * COMMAND sent / acknowledged / timed out / avg / p50 / p95 / p99 / max (ms) replies
+	 * @return
+	 */
+	public List<String> getReport(){
+
+		ArrayList<String> lines = new ArrayList<String>();
+
+		synchronized(stats){
+
+			for(Map.Entry<Opcode, CommandStats> entry : stats.entrySet()){
+
+				CommandStats commandStats = entry.getValue();
+
+				synchronized(commandStats){
+
+					List<Long> sorted = new ArrayList<Long>(commandStats.latencies);
+					Collections.sort(sorted);
+
+					long total = 0;
+
+					for(int i = 0; i < sorted.size(); i++)
+						total += sorted.get(i);
+
+					lines.add(String.format("%-16s %7d / %7d / %5d / %8.2f / %8.2f / %8.2f / %8.2f / %8.2f  %s",
+							entry.getKey(), commandStats.sent, sorted.size(), commandStats.timedOut,
+							sorted.size() > 0 ? toMillis(total / sorted.size()) : 0D,
+							toMillis(percentile(sorted, 50)), toMillis(percentile(sorted, 95)),
+							toMillis(percentile(sorted, 99)), toMillis(percentile(sorted, 100)),
+							commandStats.replies));
+
+				}
+
+			}
+
+		}
+
+		return lines;
+
+	}
+
+	private CommandStats getStats(Opcode command){
+
+		CommandStats commandStats = null;
+
+		synchronized(stats){
+
+			commandStats = stats.get(command);
+
+			if(commandStats == null){
+
+				commandStats = new CommandStats();
+				stats.put(command, commandStats);
+
+			}
+
+		}
+
+		return commandStats;
+
+	}
+
+	private static double toMillis(long nanos){
+
+		return (double)nanos / NANOS_PER_MS;
+
+	}
+
+	/**
+	 * Returns the given percentile of a sorted list
+	 * @param sorted
+	 * @param percentile 1 - 100
+	 * @return 0 if the list is empty
+	 */
+	private static long percentile(List<Long> sorted, int percentile){
+
+		long value = 0;
+
+		if(sorted.size() > 0)
+			value = sorted.get(Math.max(0, (int)Math.ceil(sorted.size() * percentile / 100.0) - 1));
+
+		return value;
+
+	}
+
+	/**
+	 * A command waiting for its acknowledgement
+	 */
+	private static class Pending {
+
+		private final Opcode command;
+		private final long sent;
+
+		private Pending(Opcode command, long sent){
+
+			this.command = command;
+			this.sent = sent;
+
+		}
+
+	}
+
+	/**
+	 * Latencies (ns) and replies for one command
+	 */
+	private static class CommandStats {
+
+		private long sent = 0, timedOut = 0;
+		private ArrayList<Long> latencies = new ArrayList<Long>();
+		private EnumMap<Opcode, Long> replies = new EnumMap<Opcode, Long>(Opcode.class);
+
+	}
+
+}
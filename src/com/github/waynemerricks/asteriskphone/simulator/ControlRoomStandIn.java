@@ -0,0 +1,218 @@
+package com.github.waynemerricks.asteriskphone.simulator;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jivesoftware.smack.PacketListener;
+import org.jivesoftware.smack.packet.Message;
+import org.jivesoftware.smackx.muc.MultiUserChat;
+
+/**
+ * In process stand in for the XMPP control room used by LoadGenerator.
+ *
+ * Everyone who joins gets a MultiUserChat on their own ReplayConnection.  Messages
+ * sent to the room go to every other member, private messages (room/nickname) go to
+ * that member only.  Each member has its own delivery thread like a real XMPP
+ * connection so a slow member backs up on its own without holding up the rest.
+ * @author Wayne Merricks
+ *
+ */
+public class ControlRoomStandIn {
+
+	//CLASS VARS
+	private String room;
+	private ConcurrentHashMap<String, Member> members = new ConcurrentHashMap<String, Member>();
+	private AtomicLong routed = new AtomicLong(), delivered = new AtomicLong(),
+			undeliverable = new AtomicLong();
+	private AtomicInteger maxBacklog = new AtomicInteger();
+
+	//STATICS
+	private static final String DOMAIN = "localhost";
+	private static final long SHUTDOWN_WAIT = 1000L;
+
+	/**
+	 * @param room name of the room e.g. control@conference.localhost
+	 */
+	public ControlRoomStandIn(String room){
+
+		this.room = room;
+
+	}
+
+	public String getRoom(){
+
+		return room;
+
+	}
+
+	/**
+	 * Joins the room
+	 * @param nickname nickname other members see messages from
+	 * @param listener told about every message for this member on its delivery thread
+	 * @return control room to send messages with
+	 */
+	public MultiUserChat join(final String nickname, PacketListener listener){
+
+		members.put(nickname, new Member(nickname, listener));
+
+		ReplayConnection connection = new ReplayConnection(nickname + "@" + DOMAIN,
+				new ReplayConnection.SentListener(){
+			public void sent(Message message){
+				route(nickname, message);
+			}
+		});
+
+		return new MultiUserChat(connection, room);
+
+	}
+
+	/**
+	 * Stops delivering to every member
+	 */
+	public void close(){
+
+		for(Member member : members.values())
+			member.delivery.shutdown();
+
+		for(Member member : members.values())
+			try{
+				member.delivery.awaitTermination(SHUTDOWN_WAIT, TimeUnit.MILLISECONDS);
+			}catch(InterruptedException e){
+				Thread.currentThread().interrupt();
+			}
+
+		members.clear();
+
+	}
+
+	/**
+	 * Returns the number of messages sent to the room or privately
+	 * @return
+	 */
+	public long getRoutedCount(){
+
+		return routed.get();
+
+	}
+
+	/**
+	 * Returns the number of messages handed to members
+	 * @return
+	 */
+	public long getDeliveredCount(){
+
+		return delivered.get();
+
+	}
+
+	/**
+	 * Returns the number of private messages sent to someone who isn't in the room
+	 * @return
+	 */
+	public long getUndeliverableCount(){
+
+		return undeliverable.get();
+
+	}
+
+	/**
+	 * Returns the most messages any one member has had waiting for delivery
+	 * @return
+	 */
+	public int getMaxBacklog(){
+
+		return maxBacklog.get();
+
+	}
+
+	/**
+	 * Sends a message on to the room or the private recipient
+	 * @param from nickname of the sender
+	 * @param message
+	 */
+	private void route(String from, Message message){
+
+		String to = message.getTo();
+
+		message.setFrom(room + "/" + from);
+		routed.incrementAndGet();
+
+		if(to != null && to.startsWith(room + "/")){
+
+			Member member = members.get(to.substring(room.length() + 1));
+
+			if(member != null)
+				member.deliver(message);
+			else
+				undeliverable.incrementAndGet();
+
+		}else{
+
+			for(Member member : members.values())
+				if(!member.nickname.equals(from))
+					member.deliver(message);
+
+		}
+
+	}
+
+	/**
+	 * Someone in the room and their delivery thread
+	 */
+	private class Member {
+
+		private String nickname;
+		private PacketListener listener;
+		private ExecutorService delivery;
+		private AtomicInteger backlog = new AtomicInteger();
+
+		private Member(final String nickname, PacketListener listener){
+
+			this.nickname = nickname;
+			this.listener = listener;
+
+			delivery = Executors.newSingleThreadExecutor(new ThreadFactory(){
+				public Thread newThread(Runnable r){
+					Thread thread = new Thread(r, "ControlRoom-" + nickname);
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+
+		}
+
+		private void deliver(final Message message){
+
+			int waiting = backlog.incrementAndGet();
+			int max = maxBacklog.get();
+
+			while(waiting > max && !maxBacklog.compareAndSet(max, waiting))
+				max = maxBacklog.get();
+
+			try{
+
+				delivery.execute(new Runnable(){
+					public void run(){
+
+						backlog.decrementAndGet();
+						delivered.incrementAndGet();
+						listener.processPacket(message);
+
+					}
+				});
+
+			}catch(RejectedExecutionException e){
+				backlog.decrementAndGet();//Closed, nobody is listening any more
+			}
+
+		}
+
+	}
+
+}
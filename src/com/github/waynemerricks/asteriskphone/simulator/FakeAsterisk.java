@@ -0,0 +1,270 @@
+package com.github.waynemerricks.asteriskphone.simulator;
+
+import java.util.HashMap;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.asteriskjava.live.AsteriskChannel;
+import org.asteriskjava.live.CallerId;
+import org.asteriskjava.live.ChannelState;
+
+import com.github.waynemerricks.asteriskphone.asterisk.AsteriskManager;
+
+/**
+ * Makes calls on a ReplayAsteriskServer and reacts to AsteriskManager the way our
+ * dial plan would, used by LoadGenerator.
+ *
+ * New calls ring into the incoming queue at the given rate from a pool of caller
+ * numbers so regular callers turn up again.  Redirecting a call to an extension
+ * links it to a channel for that extension (CONNECTED), redirecting it to the on air
+ * queue puts it in that queue (QUEUE) and hanging it up ends it (HANGUP).  Callers
+ * hang up on their own after a random call length if nobody gets there first.
+ *
+ * Everything happens on one event thread after amiDelay to stand in for the time
+ * Asterisk takes to act, much like asterisk-java's own event dispatch.
+ * @author Wayne Merricks
+ *
+ */
+public class FakeAsterisk implements ReplayAsteriskServer.ActionListener {
+
+	//CLASS VARS
+	private ReplayAsteriskServer server;
+	private AsteriskManager manager;
+	private String incomingQueue, onAirQueue;
+	private long amiDelay, callLength;
+	private ScheduledExecutorService events;
+	private ScheduledFuture<?> caller;
+	private Random random = new Random();
+	private long epoch = System.currentTimeMillis() / 1000;
+	private int sequence = 0;
+	private HashMap<String, String> live = new HashMap<String, String>(); //channel, linked channel or ""
+	private AtomicLong started = new AtomicLong(), ended = new AtomicLong();
+
+	//STATICS
+	private static final int CALLER_POOL = 500; //Different caller numbers
+	private static final long CALLER_BASE = 1000000000L;
+	private static final String TRUNK = "SIP/trunk-";
+	private static final String REDIRECT = "redirect";
+	private static final String HANGUP = "hangup";
+	private static final String HANGUP_NORMAL = "Normal Clearing";
+
+	/**
+	 * @param server stand in server AsteriskManager is using
+	 * @param manager manager to send events to
+	 * @param incomingQueue name of the queue new calls ring in
+	 * @param onAirQueue queue number AsteriskManager redirects to for on air
+	 * @param amiDelay ms before acting on a manager action
+	 * @param callLength average ms before a caller hangs up
+	 */
+	public FakeAsterisk(ReplayAsteriskServer server, AsteriskManager manager,
+			String incomingQueue, String onAirQueue, long amiDelay, long callLength){
+
+		this.server = server;
+		this.manager = manager;
+		this.incomingQueue = incomingQueue;
+		this.onAirQueue = onAirQueue;
+		this.amiDelay = amiDelay;
+		this.callLength = callLength;
+
+		events = Executors.newSingleThreadScheduledExecutor(new ThreadFactory(){
+			public Thread newThread(Runnable r){
+				Thread thread = new Thread(r, "FakeAsterisk");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+
+		server.setActionListener(this);
+
+	}
+
+	/**
+	 * Starts ringing calls into the incoming queue
+	 * @param callsPerMinute
+	 */
+	public void startCalls(double callsPerMinute){
+
+		long period = Math.max(1, (long)(60000 / callsPerMinute));
+
+		caller = events.scheduleAtFixedRate(new Runnable(){
+			public void run(){
+				newCall();
+			}
+		}, 0, period, TimeUnit.MILLISECONDS);
+
+	}
+
+	/**
+	 * Stops new calls, calls already in progress carry on until they're hung up
+	 */
+	public void stopCalls(){
+
+		if(caller != null)
+			caller.cancel(false);
+
+	}
+
+	/**
+	 * Stops the event thread, anything still waiting to happen is dropped
+	 */
+	public void shutdown(){
+
+		server.setActionListener(null);
+		events.shutdownNow();
+
+	}
+
+	/**
+	 * Returns the number of calls rung in
+	 * @return
+	 */
+	public long getCallsStarted(){
+
+		return started.get();
+
+	}
+
+	/**
+	 * Returns the number of calls that have hung up
+	 * @return
+	 */
+	public long getCallsEnded(){
+
+		return ended.get();
+
+	}
+
+	/**
+	 * Acts on redirects and hang ups after amiDelay
+	 */
+	@Override
+	public void action(final AsteriskChannel channel, final String action, final Object[] args){
+
+		if(channel != null && (action.equals(REDIRECT) || action.equals(HANGUP))){
+
+			try{
+
+				events.schedule(new Runnable(){
+					public void run(){
+
+						if(action.equals(REDIRECT))
+							redirect(channel.getId(), (String)args[1]);
+						else
+							hangup(channel.getId());
+
+					}
+				}, amiDelay, TimeUnit.MILLISECONDS);
+
+			}catch(RejectedExecutionException e){
+				//Shut down, nothing else will happen
+			}
+
+		}
+
+	}
+
+	/**
+	 * Rings a new call into the incoming queue and schedules the caller hanging up
+	 */
+	private void newCall(){
+
+		final String id = nextChannelID();
+		String number = "0" + (CALLER_BASE + random.nextInt(CALLER_POOL));
+
+		AsteriskChannel channel = server.addChannel(id, TRUNK + Integer.toHexString(sequence),
+				new CallerId(null, number), ChannelState.RING);
+
+		live.put(id, "");
+		started.incrementAndGet();
+
+		manager.onNewAsteriskChannel(channel);
+		manager.onNewQueueEntry(server.createQueueEntry(channel, incomingQueue));
+
+		//Exponential call lengths, most are short but a few go on for ages
+		long length = (long)(-Math.log(1 - random.nextDouble()) * callLength);
+
+		events.schedule(new Runnable(){
+			public void run(){
+				hangup(id);
+			}
+		}, length, TimeUnit.MILLISECONDS);
+
+	}
+
+	/**
+	 * Sends a call to the on air queue or links it to the given extension
+	 * @param id channel ID
+	 * @param to extension or queue number
+	 */
+	private void redirect(String id, String to){
+
+		String linked = live.get(id);
+
+		if(linked != null){
+
+			if(linked.length() > 0){
+
+				server.changeProperty(id, "linkedChannel", server.getChannel(linked), null);
+				live.put(id, "");
+
+			}
+
+			if(to.equals(onAirQueue))
+				manager.onNewQueueEntry(server.createQueueEntry(server.getChannel(id), onAirQueue));
+			else{
+
+				String extensionID = nextChannelID();
+				AsteriskChannel extension = server.addChannel(extensionID, "SIP/" + to + "-" +
+						Integer.toHexString(sequence), new CallerId(null, to), ChannelState.UP);
+
+				live.put(id, extensionID);
+				server.changeProperty(id, "linkedChannel", null, extension);
+
+			}
+
+		}
+
+	}
+
+	/**
+	 * Ends a call if it hasn't already ended
+	 * @param id channel ID
+	 */
+	private void hangup(String id){
+
+		String linked = live.remove(id);
+
+		if(linked != null){
+
+			AsteriskChannel channel = server.getChannel(id);
+
+			if(linked.length() > 0)
+				server.changeProperty(id, "linkedChannel", server.getChannel(linked), null);
+
+			server.changeProperty(id, "hangupCauseText", null, HANGUP_NORMAL);
+			server.changeProperty(id, "state", channel.getState(), ChannelState.HUNGUP);
+			ended.incrementAndGet();
+
+		}
+
+	}
+
+	/**
+	 * Returns a new channel ID in the same style as Asterisk e.g. 1377009449.5
+	 * @return
+	 */
+	private String nextChannelID(){
+
+		sequence++;
+
+		return epoch + "." + sequence;
+
+	}
+
+}
@@ -0,0 +1,320 @@
+package com.github.waynemerricks.asteriskphone.simulator;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import org.jivesoftware.smack.PacketListener;
+import org.jivesoftware.smack.packet.Packet;
+
+import com.github.waynemerricks.asteriskphone.asterisk.AsteriskManager;
+import com.github.waynemerricks.asteriskphone.asterisk.EventPipeline;
+import com.github.waynemerricks.asteriskphone.database.DatabaseManager;
+import com.github.waynemerricks.asteriskphone.database.Settings;
+import com.github.waynemerricks.asteriskphone.protocol.ControlMessageCodec;
+
+/**
+ * Runs a whole call centre in one JVM to see how the server and control room cope
+ * with lots of clients.
+ *
+ * A real AsteriskManager sits on a ReplayAsteriskServer driven by FakeAsterisk and a
+ * ControlRoomStandIn instead of the XMPP server.  Calls ring in at the given rate and
+ * each SimulatedClient answers, updates, changes and queues them every few seconds.
+ * Only the DB is real, point the database settings at a scratch copy as every call
+ * is written to it.
+ *
+ * When the run ends it waits for outstanding commands then prints the latency from
+ * each command being sent to its acknowledgement (see SimulatedClient) along with
+ * control room traffic and the pipeline stats, the AMI action stats are logged when
+ * AsteriskManager disconnects.
+ *
+ * Usage: LoadGenerator [clients] [seconds] [calls per minute] [language country]
+ * @author Wayne Merricks
+ *
+ */
+public class LoadGenerator {
+
+	//CLASS VARS
+	private AsteriskManager manager;
+	private EventPipeline pipeline;
+	private ReplayAsteriskServer server;
+	private ControlRoomStandIn room;
+	private AckTracker tracker = new AckTracker();
+	private ArrayList<SimulatedClient> clients = new ArrayList<SimulatedClient>();
+	private String incomingQueue, onAirQueue;
+	private ScheduledExecutorService thinkers;
+	private volatile boolean running = false;
+	private Random random = new Random();
+	private I18NStrings xStrings;
+
+	//STATICS
+	private static final Logger LOGGER = Logger.getLogger(LoadGenerator.class.getName());//Logger
+	private static final int DEFAULT_CLIENTS = 50;
+	private static final long DEFAULT_DURATION = 60; //seconds
+	private static final double DEFAULT_CALL_RATE = 60; //calls per minute
+	private static final int THINK_THREADS = 4;
+	private static final long THINK_TIME = 3000L; //Average ms between operator actions
+	private static final long AMI_DELAY = 20L; //ms Asterisk takes to act on a redirect/hangup
+	private static final long CALL_LENGTH = 120000L; //Average ms before a caller hangs up
+	private static final long ACK_TIMEOUT = 10000L; //No acknowledgement after this = timed out
+	private static final long SWEEP_PERIOD = 1000L;
+	private static final int EXTENSION_BASE = 7000;
+	private static final String NICKNAME_PREFIX = "load";
+	private static final String DEFAULT_INCOMING_QUEUE = "incoming";
+
+	/**
+	 * Creates an AsteriskManager on a stand in Asterisk and control room and the clients
+	 * @param database connected DatabaseManager with the server settings loaded
+	 * @param clientCount number of clients to simulate
+	 */
+	public LoadGenerator(DatabaseManager database, int clientCount){
+
+		HashMap<String, String> settings = database.getUserSettings();
+
+		xStrings = new I18NStrings(settings.get("language"), settings.get("country"));
+		onAirQueue = settings.get("onAirQueueNumber");
+		incomingQueue = settings.get("incomingQueueNumber");
+
+		if(incomingQueue == null)
+			incomingQueue = DEFAULT_INCOMING_QUEUE;
+
+		room = new ControlRoomStandIn(settings.get("XMPPControlRoom"));
+		server = new ReplayAsteriskServer();
+
+		pipeline = new EventPipeline(settings);
+		
+		//Nothing is sent to the room until the clients log in so manager is set by then
+		manager = new AsteriskManager(database, room.join(settings.get("XMPPLogin"),
+				new PacketListener(){
+			public void processPacket(Packet packet){
+				manager.processPacket(packet);
+			}
+		}), server.getServer(), pipeline);
+
+		//Every client extension and the queues are ours as far as the clients know
+		HashSet<String> systemExtensions = new HashSet<String>();
+		systemExtensions.add(incomingQueue);
+		systemExtensions.add(onAirQueue);
+
+		for(int i = 1; i <= clientCount; i++)
+			systemExtensions.add("" + (EXTENSION_BASE + i));
+
+		for(int i = 1; i <= clientCount; i++){
+
+			HashMap<String, String> clientSettings = new HashMap<String, String>();
+			clientSettings.put("language", settings.get("language"));
+			clientSettings.put("country", settings.get("country"));
+			clientSettings.put("nickName", NICKNAME_PREFIX + String.format("%03d", i));
+			clientSettings.put("myExtension", "" + (EXTENSION_BASE + i));
+			clientSettings.put("incomingQueueNumber", incomingQueue);
+			clientSettings.put("onAirQueueNumber", onAirQueue);
+
+			clients.add(new SimulatedClient(room, clientSettings, systemExtensions, tracker, i));
+
+		}
+
+	}
+
+	/**
+	 * Runs the call centre for the given time then prints the report
+	 * @param duration seconds to run for
+	 * @param callsPerMinute rate calls ring in
+	 */
+	public void run(long duration, double callsPerMinute){
+
+		FakeAsterisk asterisk = new FakeAsterisk(server, manager, incomingQueue, onAirQueue,
+				AMI_DELAY, CALL_LENGTH);
+
+		thinkers = Executors.newScheduledThreadPool(THINK_THREADS, new ThreadFactory(){
+			public Thread newThread(Runnable r){
+				Thread thread = new Thread(r, "LoadGeneratorThinker");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+
+		try{
+
+			manager.connect();
+			manager.startProcessingMessages();
+
+			for(int i = 0; i < clients.size(); i++)
+				clients.get(i).login();
+
+			LOGGER.info(xStrings.getString("LoadGenerator.starting") + clients.size());
+
+			running = true;
+			long started = System.nanoTime();
+
+			for(int i = 0; i < clients.size(); i++)
+				scheduleThink(clients.get(i));
+
+			thinkers.scheduleAtFixedRate(new Runnable(){
+				public void run(){
+					tracker.expire(ACK_TIMEOUT);
+				}
+			}, SWEEP_PERIOD, SWEEP_PERIOD, TimeUnit.MILLISECONDS);
+
+			asterisk.startCalls(callsPerMinute);
+
+			sleep(duration * 1000);
+
+			running = false;
+			asterisk.stopCalls();
+
+			LOGGER.info(xStrings.getString("LoadGenerator.waitingForAcks") +
+					tracker.getPendingCount());
+
+			long giveUp = System.currentTimeMillis() + ACK_TIMEOUT + SWEEP_PERIOD;
+
+			while(tracker.getPendingCount() > 0 && System.currentTimeMillis() < giveUp)
+				sleep(SWEEP_PERIOD);
+
+			tracker.expire(ACK_TIMEOUT);
+
+			report(asterisk, Math.max(1, (System.nanoTime() - started) / 1000000L));
+
+		}finally{
+
+			running = false;
+			thinkers.shutdownNow();
+			asterisk.shutdown();
+			manager.disconnect();
+			room.close();
+
+		}
+
+	}
+
+	/**
+	 * Has the client think again after a random wait around THINK_TIME
+	 * @param client
+	 */
+	private void scheduleThink(final SimulatedClient client){
+
+		long wait = THINK_TIME / 2 + (long)(random.nextDouble() * THINK_TIME);
+
+		try{
+
+			thinkers.schedule(new Runnable(){
+				public void run(){
+
+					if(running){
+
+						client.think();
+						scheduleThink(client);
+
+					}
+
+				}
+			}, wait, TimeUnit.MILLISECONDS);
+
+		}catch(RejectedExecutionException e){
+			//Finished
+		}
+
+	}
+
+	private void sleep(long millis){
+
+		try{
+			Thread.sleep(millis);
+		}catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+		}
+
+	}
+
+	/**
+	 * Prints the results
+	 * @param asterisk
+	 * @param elapsed ms the run took including waiting for acknowledgements
+	 */
+	private void report(FakeAsterisk asterisk, long elapsed){
+
+		System.out.println(xStrings.getString("LoadGenerator.reportCalls") + clients.size() +
+				" / " + asterisk.getCallsStarted() + " / " + asterisk.getCallsEnded() + " / " +
+				server.getActionCount());
+		System.out.println(xStrings.getString("LoadGenerator.reportMessages") +
+				room.getRoutedCount() + " / " + room.getDeliveredCount() + " / " +
+				room.getUndeliverableCount() + " / " + room.getMaxBacklog());
+		System.out.println(xStrings.getString("LoadGenerator.reportThroughput") +
+				room.getRoutedCount() * 1000 / elapsed + " / " +
+				room.getDeliveredCount() * 1000 / elapsed);
+		System.out.println(xStrings.getString("LoadGenerator.reportLatency"));
+
+		List<String> commands = tracker.getReport();
+
+		for(int i = 0; i < commands.size(); i++)
+			System.out.println(commands.get(i));
+
+		System.out.println(xStrings.getString("LoadGenerator.reportPipeline") +
+				pipeline);
+
+	}
+
+	public static void main(String[] args){
+
+		String language = "en";
+		String country = "GB";
+		int clientCount = DEFAULT_CLIENTS;
+		long duration = DEFAULT_DURATION;
+		double callRate = DEFAULT_CALL_RATE;
+
+		if(args.length >= 5){
+
+			language = args[3];
+			country = args[4];
+
+		}
+
+		I18NStrings xStrings = new I18NStrings(language, country);
+
+		try{
+
+			if(args.length >= 1)
+				clientCount = Integer.parseInt(args[0]);
+
+			if(args.length >= 2)
+				duration = Long.parseLong(args[1]);
+
+			if(args.length >= 3)
+				callRate = Double.parseDouble(args[2]);
+
+		}catch(NumberFormatException e){
+
+			System.err.println(xStrings.getString("LoadGenerator.usage"));
+			System.exit(1);
+
+		}
+
+		DatabaseManager database = new DatabaseManager(new Settings(), language, country);
+		int exitCode = 1;
+
+		if(!database.hasErrors() && database.connect()){
+
+			database.populateUserSettings("server");
+			ControlMessageCodec.setEncodeVersion(database.getUserSettings()
+					.get("controlProtocolVersion"));
+
+			new LoadGenerator(database, clientCount).run(duration, callRate);
+			exitCode = 0;
+
+			database.disconnect();
+
+		}
+
+		//Smack and asterisk-java leave threads behind
+		System.exit(exitCode);
+
+	}
+
+}
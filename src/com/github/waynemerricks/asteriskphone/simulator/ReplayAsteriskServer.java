@@ -0,0 +1,500 @@
+package com.github.waynemerricks.asteriskphone.simulator;
+
+import java.beans.PropertyChangeEvent;
+import java.beans.PropertyChangeListener;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.asteriskjava.live.AsteriskChannel;
+import org.asteriskjava.live.AsteriskQueue;
+import org.asteriskjava.live.AsteriskQueueEntry;
+import org.asteriskjava.live.AsteriskServer;
+import org.asteriskjava.live.CallerId;
+import org.asteriskjava.live.ChannelState;
+import org.asteriskjava.manager.ManagerConnection;
+import org.asteriskjava.manager.SendActionCallback;
+import org.asteriskjava.manager.action.ExtensionStateAction;
+import org.asteriskjava.manager.action.HangupAction;
+import org.asteriskjava.manager.action.RedirectAction;
+import org.asteriskjava.manager.response.ExtensionStateResponse;
+import org.asteriskjava.manager.response.ManagerResponse;
+
+import com.github.waynemerricks.asteriskphone.asterisk.ExtensionStateService;
+
+/**
+ * Stand in AsteriskServer for TrafficReplay.
+ *
+ * The server, its manager connection, channels and queue entries are proxies so
+ * AsteriskManager can't tell them from the real thing.  Channels are created and
+ * changed by the replay and fire property changes to whoever is listening just like
+ * asterisk-java does.  Getters return whatever the recording last set for that
+ * property (or null/0), actions such as hangup, redirect and originate do nothing
+ * but are counted.  Extension state queries always say the extension is online.
+ *
+ * Set an ActionListener to be told about channel actions and originates, this is how
+ * FakeAsterisk reacts to redirects and hang ups.  Redirect and Hangup manager actions
+ * are passed on as if the channel's redirect/hangup had been called so the listener
+ * doesn't care which way AsteriskManager asked.
+ * @author Wayne Merricks
+ *
+ */
+public class ReplayAsteriskServer {
+
+	//CLASS VARS
+	private ConcurrentHashMap<String, AsteriskChannel> channels =
+			new ConcurrentHashMap<String, AsteriskChannel>();
+	private ConcurrentHashMap<String, LiveObject> channelObjects =
+			new ConcurrentHashMap<String, LiveObject>();
+	private ConcurrentHashMap<String, String> channelNames =
+			new ConcurrentHashMap<String, String>(); //name => ID for manager actions
+	private AtomicLong actions = new AtomicLong();
+	private AsteriskServer server;
+	private ManagerConnection managerConnection;
+	private volatile ActionListener actionListener;
+
+	//STATICS
+	private static final String HOST = "replay";
+	private static final String SUCCESS = "Success";
+	private static final Integer EXTENSION_ONLINE = ExtensionStateService.ONLINE;
+
+	public ReplayAsteriskServer(){
+
+		server = (AsteriskServer)Proxy.newProxyInstance(AsteriskServer.class.getClassLoader(),
+				new Class<?>[]{AsteriskServer.class}, new ServerHandler());
+		managerConnection = (ManagerConnection)Proxy.newProxyInstance(
+				ManagerConnection.class.getClassLoader(),
+				new Class<?>[]{ManagerConnection.class}, new ManagerConnectionHandler());
+
+	}
+
+	/**
+	 * Returns the stand in server to give to AsteriskManager
+	 * @return
+	 */
+	public AsteriskServer getServer(){
+
+		return server;
+
+	}
+
+	/**
+	 * Returns the channel with the given ID creating a bare one if we haven't seen it
+	 * e.g. it was already up when the recording started
+	 * @param id
+	 * @return
+	 */
+	public AsteriskChannel getChannel(String id){
+
+		AsteriskChannel channel = channels.get(id);
+
+		if(channel == null)
+			channel = addChannel(id, null, null, null);
+
+		return channel;
+
+	}
+
+	/**
+	 * Creates the channel or updates it if it already exists
+	 * @param id channel ID
+	 * @param name channel name e.g. SIP/1000-0000001
+	 * @param callerId
+	 * @param state
+	 * @return
+	 */
+	public synchronized AsteriskChannel addChannel(String id, String name, CallerId callerId,
+			ChannelState state){
+
+		LiveObject object = channelObjects.get(id);
+
+		if(object == null){
+
+			object = new LiveObject(id);
+			object.set("dateOfCreation", new Date());
+			channelObjects.put(id, object);
+			channels.put(id, (AsteriskChannel)Proxy.newProxyInstance(
+					AsteriskChannel.class.getClassLoader(),
+					new Class<?>[]{AsteriskChannel.class}, object));
+
+		}
+
+		object.set("name", name);
+		object.set("callerId", callerId);
+
+		if(name != null)
+			channelNames.put(name, id);
+
+		object.set("state", state);
+
+		return channels.get(id);
+
+	}
+
+	/**
+	 * Changes a channel property and tells the channel's listeners
+	 * @param id channel ID
+	 * @param property property name e.g. state
+	 * @param oldValue
+	 * @param newValue
+	 */
+	public void changeProperty(String id, String property, Object oldValue, Object newValue){
+
+		AsteriskChannel channel = getChannel(id);
+		LiveObject object = channelObjects.get(id);
+
+		object.set(property, newValue);
+
+		PropertyChangeEvent evt = new PropertyChangeEvent(channel, property, oldValue,
+				newValue);
+
+		for(PropertyChangeListener listener : object.listeners)
+			listener.propertyChange(evt);
+
+	}
+
+	/**
+	 * Creates a queue entry for the channel in the given queue
+	 * @param channel
+	 * @param queueName
+	 * @return
+	 */
+	public AsteriskQueueEntry createQueueEntry(AsteriskChannel channel, String queueName){
+
+		LiveObject queue = new LiveObject(queueName);
+		queue.set("name", queueName);
+
+		LiveObject entry = new LiveObject(channel.getId());
+		entry.set("channel", channel);
+		entry.set("channelName", channel.getName());
+		entry.set("dateJoined", new Date());
+		entry.set("queue", Proxy.newProxyInstance(AsteriskQueue.class.getClassLoader(),
+				new Class<?>[]{AsteriskQueue.class}, queue));
+
+		return (AsteriskQueueEntry)Proxy.newProxyInstance(
+				AsteriskQueueEntry.class.getClassLoader(),
+				new Class<?>[]{AsteriskQueueEntry.class}, entry);
+
+	}
+
+	/**
+	 * Sets the listener told about channel actions and originates
+	 * @param listener null for none
+	 */
+	public void setActionListener(ActionListener listener){
+
+		actionListener = listener;
+
+	}
+
+	/**
+	 * Returns the number of manager actions AsteriskManager asked for
+	 * @return
+	 */
+	public long getActionCount(){
+
+		return actions.get();
+
+	}
+
+	/**
+	 * Handles the methods every proxy has
+	 * @param proxy
+	 * @param method
+	 * @param args
+	 * @param name used by toString
+	 * @return
+	 */
+	private static Object invokeObjectMethod(Object proxy, Method method, Object[] args,
+			String name){
+
+		Object result = null;
+
+		if(method.getName().equals("equals"))
+			result = proxy == args[0];
+		else if(method.getName().equals("hashCode"))
+			result = System.identityHashCode(proxy);
+		else
+			result = name;
+
+		return result;
+
+	}
+
+	private static boolean isObjectMethod(Method method){
+
+		return method.getDeclaringClass() == Object.class;
+
+	}
+
+	/**
+	 * Returns value if the method can return it otherwise the default for the return
+	 * type (null, 0 or false)
+	 * @param type
+	 * @param value
+	 * @return
+	 */
+	private static Object returnable(Class<?> type, Object value){
+
+		Object result = null;
+
+		if(value != null && box(type).isInstance(value))
+			result = value;
+		else if(type == boolean.class)
+			result = false;
+		else if(type == int.class)
+			result = 0;
+		else if(type == long.class)
+			result = 0L;
+		else if(type == double.class)
+			result = 0D;
+		else if(type == float.class)
+			result = 0F;
+		else if(type == short.class)
+			result = (short)0;
+		else if(type == byte.class)
+			result = (byte)0;
+		else if(type == char.class)
+			result = '\0';
+
+		return result;
+
+	}
+
+	private static Class<?> box(Class<?> type){
+
+		Class<?> boxed = type;
+
+		if(type == boolean.class)
+			boxed = Boolean.class;
+		else if(type == int.class)
+			boxed = Integer.class;
+		else if(type == long.class)
+			boxed = Long.class;
+
+		return boxed;
+
+	}
+
+	/**
+	 * A channel, queue or queue entry.  Getters read the properties, actions are counted
+	 */
+	private class LiveObject implements InvocationHandler {
+
+		private String id;
+		private HashMap<String, Object> properties = new HashMap<String, Object>();
+		private CopyOnWriteArrayList<PropertyChangeListener> listeners =
+				new CopyOnWriteArrayList<PropertyChangeListener>();
+
+		private LiveObject(String id){
+
+			this.id = id;
+
+		}
+
+		private synchronized void set(String property, Object value){
+
+			properties.put(property, value);
+
+		}
+
+		private synchronized Object get(String property){
+
+			return properties.get(property);
+
+		}
+
+		public Object invoke(Object proxy, Method method, Object[] args){
+
+			String name = method.getName();
+			int argCount = args == null ? 0 : args.length;
+			Object result = null;
+
+			if(isObjectMethod(method))
+				result = invokeObjectMethod(proxy, method, args, HOST + ":" + id);
+			else if(name.equals("getId"))
+				result = id;
+			else if(name.equals("addPropertyChangeListener"))
+				listeners.add((PropertyChangeListener)args[argCount - 1]);
+			else if(name.equals("removePropertyChangeListener"))
+				listeners.remove(args[argCount - 1]);
+			else if(argCount == 0 && name.startsWith("get") && name.length() > 3)
+				result = returnable(method.getReturnType(), get(
+						Character.toLowerCase(name.charAt(3)) + name.substring(4)));
+			else if(argCount == 0 && name.startsWith("is") && name.length() > 2)
+				result = returnable(method.getReturnType(), get(
+						Character.toLowerCase(name.charAt(2)) + name.substring(3)));
+			else if(name.startsWith("get"))
+				result = returnable(method.getReturnType(), null);
+			else{
+
+				actions.incrementAndGet();
+				result = returnable(method.getReturnType(), null);
+
+				ActionListener listener = actionListener;
+
+				if(listener != null && proxy instanceof AsteriskChannel)
+					listener.action((AsteriskChannel)proxy, name, args);
+
+			}
+
+			return result;
+
+		}
+
+	}
+
+	/**
+	 * The server, knows about our channels, originate calls are counted
+	 */
+	private class ServerHandler implements InvocationHandler {
+
+		public Object invoke(Object proxy, Method method, Object[] args){
+
+			String name = method.getName();
+			Object result = null;
+
+			if(isObjectMethod(method))
+				result = invokeObjectMethod(proxy, method, args, HOST);
+			else if(name.equals("getChannels"))
+				result = new ArrayList<AsteriskChannel>(channels.values());
+			else if(name.equals("getChannelById"))
+				result = channels.get(args[0]);
+			else if(name.equals("getQueues"))
+				result = new ArrayList<AsteriskQueue>();
+			else if(name.equals("getManagerConnection"))
+				result = managerConnection;
+			else{
+
+				if(name.startsWith("originate")){
+
+					actions.incrementAndGet();
+
+					ActionListener listener = actionListener;
+
+					if(listener != null)
+						listener.action(null, name, args);
+
+				}
+
+				result = returnable(method.getReturnType(), null);
+
+			}
+
+			return result;
+
+		}
+
+	}
+
+	/**
+	 * Answers every action straight away, extension states are always online
+	 */
+	private class ManagerConnectionHandler implements InvocationHandler {
+
+		public Object invoke(Object proxy, Method method, Object[] args){
+
+			String name = method.getName();
+			Object result = null;
+
+			if(isObjectMethod(method))
+				result = invokeObjectMethod(proxy, method, args, HOST);
+			else if(name.equals("getHostname"))
+				result = HOST;
+			else if(name.equals("sendAction")){
+
+				actions.incrementAndGet();
+
+				ManagerResponse response = null;
+
+				if(args[0] instanceof ExtensionStateAction){
+
+					ExtensionStateResponse state = new ExtensionStateResponse();
+					state.setStatus(EXTENSION_ONLINE);
+					response = state;
+
+				}else{
+
+					response = new ManagerResponse();
+					channelAction(args[0]);
+
+				}
+
+				response.setResponse(SUCCESS);
+
+				if(args[args.length - 1] instanceof SendActionCallback)
+					((SendActionCallback)args[args.length - 1]).onResponse(response);
+				else
+					result = response;
+
+			}else
+				result = returnable(method.getReturnType(), null);
+
+			return result;
+
+		}
+
+	}
+
+	/**
+	 * Passes Redirect and Hangup actions on to the ActionListener as the equivalent
+	 * channel method, channels we don't know the name of are ignored
+	 * @param action
+	 */
+	private void channelAction(Object action){
+
+		ActionListener listener = actionListener;
+		String channelID = null;
+
+		if(action instanceof RedirectAction)
+			channelID = lookupChannel(((RedirectAction)action).getChannel());
+		else if(action instanceof HangupAction)
+			channelID = lookupChannel(((HangupAction)action).getChannel());
+
+		if(listener != null && channelID != null){
+
+			if(action instanceof RedirectAction){
+
+				RedirectAction redirect = (RedirectAction)action;
+				listener.action(channels.get(channelID), "redirect", new Object[]{
+						redirect.getContext(), redirect.getExten(), redirect.getPriority()});
+
+			}else
+				listener.action(channels.get(channelID), "hangup", null);
+
+		}
+
+	}
+
+	private String lookupChannel(String name){
+
+		String id = null;
+
+		if(name != null)
+			id = channelNames.get(name);
+
+		return id;
+
+	}
+
+	/**
+	 * Told about actions AsteriskManager asks for, called on the thread that asked
+	 */
+	public interface ActionListener {
+
+		/**
+		 * @param channel channel the action is on or null for an originate
+		 * @param action method name e.g. redirect, hangup, originateToExtension
+		 * @param args method arguments, null if there are none
+		 */
+		public void action(AsteriskChannel channel, String action, Object[] args);
+
+	}
+
+}
@@ -0,0 +1,129 @@
+package com.github.waynemerricks.asteriskphone.simulator;
+
+import org.jivesoftware.smack.Connection;
+import org.jivesoftware.smack.ConnectionConfiguration;
+import org.jivesoftware.smack.Roster;
+import org.jivesoftware.smack.packet.Message;
+import org.jivesoftware.smack.packet.Packet;
+import org.jivesoftware.smack.packet.Presence;
+
+/**
+ * In process stand in for the XMPP server used by TrafficReplay.
+ *
+ * Nothing goes over the network, every message AsteriskManager sends to the control
+ * room or privately is handed to the SentListener instead.  Build the control room
+ * MultiUserChat on this and give it to AsteriskManager as usual.
+ * @author Wayne Merricks
+ *
+ */
+public class ReplayConnection extends Connection {
+
+	//CLASS VARS
+	private SentListener listener;
+	private String user;
+
+	//STATICS
+	private static final String HOST = "localhost";
+	private static final int PORT = 5222;
+
+	/**
+	 * Creates a new connection that is already "logged in" as the given user
+	 * @param user full JID of the user we're pretending to be
+	 * @param listener told about every message sent
+	 */
+	public ReplayConnection(String user, SentListener listener){
+
+		//Host, port and service name so the configuration doesn't do a DNS lookup
+		super(new ConnectionConfiguration(HOST, PORT, HOST));
+
+		this.user = user;
+		this.listener = listener;
+
+	}
+
+	@Override
+	public void sendPacket(Packet packet){
+
+		if(packet instanceof Message)
+			listener.sent((Message)packet);
+
+	}
+
+	@Override
+	public String getUser(){
+
+		return user;
+
+	}
+
+	@Override
+	public String getConnectionID(){
+
+		return null;
+
+	}
+
+	@Override
+	public boolean isConnected(){
+
+		return true;
+
+	}
+
+	@Override
+	public boolean isAuthenticated(){
+
+		return true;
+
+	}
+
+	@Override
+	public boolean isAnonymous(){
+
+		return false;
+
+	}
+
+	@Override
+	public boolean isSecureConnection(){
+
+		return false;
+
+	}
+
+	@Override
+	public boolean isUsingCompression(){
+
+		return false;
+
+	}
+
+	@Override
+	public void connect(){}
+
+	@Override
+	public void login(String username, String password, String resource){}
+
+	@Override
+	public void loginAnonymously(){}
+
+	@Override
+	public Roster getRoster(){
+
+		return null;
+
+	}
+
+	@Override
+	public void disconnect(Presence unavailablePresence){}
+
+	/**
+	 * Told about every message sent on a ReplayConnection, called on the sending thread
+	 */
+	public interface SentListener {
+
+		public void sent(Message message);
+
+	}
+
+}
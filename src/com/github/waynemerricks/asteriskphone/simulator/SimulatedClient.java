@@ -0,0 +1,352 @@
+package com.github.waynemerricks.asteriskphone.simulator;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.jivesoftware.smack.PacketListener;
+import org.jivesoftware.smack.XMPPException;
+import org.jivesoftware.smack.packet.Message;
+import org.jivesoftware.smack.packet.Packet;
+import org.jivesoftware.smackx.muc.MultiUserChat;
+
+import com.github.waynemerricks.asteriskphone.calls.CallState;
+import com.github.waynemerricks.asteriskphone.calls.CallStateEngine;
+import com.github.waynemerricks.asteriskphone.protocol.ControlMessage;
+import com.github.waynemerricks.asteriskphone.protocol.ControlMessageCodec;
+import com.github.waynemerricks.asteriskphone.protocol.Opcode;
+
+/**
+ * A headless operator for LoadGenerator.
+ *
+ * Keeps track of calls from the control room messages with the same CallStateEngine
+ * CallManagerPanel uses and every time think() is called does what an operator
+ * would: answer a ringing call (TRANSFER), type
+ * notes on a call (UPDATEFIELD), change who the caller is (CHANGEEXISTING), put the
+ * call on air (QUEUE) or hang up.
+ *
+ * Every command is timed by the AckTracker until the message that answers it:
+ * TRANSFER - CONNECTED to my extension, LOCKED or FAILED
+ * QUEUE - QUEUE for the channel in the on air queue or FAILED
+ * CHANGEEXISTING - CHANGED or CHANGEFAILED
+ * UPDATEFIELD - another client receiving it
+ * HANGUP - HANGUP for the channel or FAILED
+ * If the call hangs up first, HANGUP answers whatever we were waiting on for it.
+ * @author Wayne Merricks
+ *
+ */
+public class SimulatedClient implements PacketListener {
+
+	//CLASS VARS
+	private String nickname, extension, onAirQueue;
+	private MultiUserChat controlRoom;
+	private CallStateEngine callState;
+	private AckTracker tracker;
+	private Random random;
+	private HashMap<String, String> people = new HashMap<String, String>(); //Channel, person ID
+	private ArrayList<String> knownPeople = new ArrayList<String>();
+	private long notes = 0;
+
+	//STATICS
+	private static final int CALLER_HEADER_FIELDS = 5; //CALLER channel/type/.../people count
+	private static final int MAX_KNOWN_PEOPLE = 100;
+	private static final String NOTES_FIELD = "conversation";
+
+	/**
+	 * Joins the control room
+	 * @param room control room to join
+	 * @param settings client settings, nickName, myExtension, incomingQueueNumber and
+	 * onAirQueueNumber as a real client would have
+	 * @param systemExtensions every extension and queue that belongs to us
+	 * @param tracker times our commands
+	 * @param seed seed for this client's choices so runs can be repeated
+	 */
+	public SimulatedClient(ControlRoomStandIn room, HashMap<String, String> settings,
+			Set<String> systemExtensions, AckTracker tracker, long seed){
+
+		nickname = settings.get("nickName");
+		extension = settings.get("myExtension");
+		onAirQueue = settings.get("onAirQueueNumber");
+		this.tracker = tracker;
+
+		callState = new CallStateEngine(settings, systemExtensions);
+		random = new Random(seed);
+		controlRoom = room.join(nickname, this);
+
+	}
+
+	public String getNickname(){
+
+		return nickname;
+
+	}
+
+	/**
+	 * Asks the server for the calls in progress like a client does when it logs in
+	 */
+	public void login(){
+
+		send(new ControlMessage(Opcode.UPDATE, extension));
+
+	}
+
+	/**
+	 * Does one thing an operator would do, called on the LoadGenerator's think threads
+	 */
+	public synchronized void think(){
+
+		List<String> answered = getAnswered();
+		List<CallState> ringing = callState.getCalls(CallState.MODE_RINGING);
+
+		if(answered.size() > 0){
+
+			String channel = answered.get(random.nextInt(answered.size()));
+			int choice = random.nextInt(100);
+
+			if(choice < 50)
+				updateField(channel);
+			else if(choice < 70 && people.get(channel) != null)
+				changeExisting(channel);
+			else if(choice < 90)
+				queue(channel);
+			else
+				hangup(channel);
+
+		}else if(ringing.size() > 0)
+			transfer(ringing.get(random.nextInt(ringing.size())).getChannelID());
+
+	}
+
+	private void transfer(String channel){
+
+		if(tracker.expect(getKey(Opcode.TRANSFER, channel), Opcode.TRANSFER))
+			send(new ControlMessage(Opcode.TRANSFER, channel, extension));
+
+	}
+
+	private void updateField(String channel){
+
+		notes++;
+
+		//Value is unique so whoever receives it first can acknowledge it
+		String value = nickname + " note " + notes;
+
+		if(tracker.expect(getKey(Opcode.UPDATEFIELD, value), Opcode.UPDATEFIELD))
+			send(new ControlMessage(Opcode.UPDATEFIELD, NOTES_FIELD, channel, value));
+
+	}
+
+	private void changeExisting(String channel){
+
+		String person = people.get(channel);
+
+		if(knownPeople.size() > 0 && random.nextBoolean())
+			person = knownPeople.get(random.nextInt(knownPeople.size()));
+
+		if(tracker.expect(getKey(Opcode.CHANGEEXISTING, channel), Opcode.CHANGEEXISTING))
+			send(new ControlMessage(Opcode.CHANGEEXISTING, channel, person));
+
+	}
+
+	private void queue(String channel){
+
+		if(tracker.expect(getKey(Opcode.QUEUE, channel), Opcode.QUEUE))
+			send(new ControlMessage(Opcode.QUEUE, channel));
+
+	}
+
+	private void hangup(String channel){
+
+		if(tracker.expect(getKey(Opcode.HANGUP, channel), Opcode.HANGUP))
+			send(new ControlMessage(Opcode.HANGUP, channel));
+
+	}
+
+	/**
+	 * Sends a message to the control room
+	 * @param message
+	 */
+	private void send(ControlMessage message){
+
+		try{
+			controlRoom.sendMessage(ControlMessageCodec.encode(message));
+		}catch(XMPPException e){
+			//Can't happen on the stand in
+		}
+
+	}
+
+	/** PacketListener **/
+	@Override
+	public void processPacket(Packet packet){
+
+		if(packet instanceof Message){
+
+			String from = packet.getFrom();
+
+			if(from.contains("/"))
+				from = from.split("/")[1];
+
+			processCommand(ControlMessageCodec.decode(((Message)packet).getBody()), from);
+
+		}
+
+	}
+
+	/**
+	 * Updates our calls from a control message and acknowledges anything it answers
+	 * @param command
+	 * @param from nickname of the sender
+	 */
+	private synchronized void processCommand(ControlMessage command, String from){
+
+		String[] fields = command.getFields();
+
+		callState.apply(command, from);
+
+		switch(command.getOpcode()){
+
+			case QUEUE:
+
+				//QUEUE/queue/number/channel
+				if(fields.length >= 3 && fields[0].equals(onAirQueue))
+					tracker.acknowledge(getKey(Opcode.QUEUE, fields[2]), Opcode.QUEUE);
+
+				break;
+
+			case CONNECTED:
+
+				//CONNECTED/caller/extension/channel
+				if(fields.length >= 3 && fields[1].equals(extension))
+					tracker.acknowledge(getKey(Opcode.TRANSFER, fields[2]), Opcode.CONNECTED);
+
+				break;
+
+			case LOCKED:
+
+				if(fields.length >= 1)
+					tracker.acknowledge(getKey(Opcode.TRANSFER, fields[0]), Opcode.LOCKED);
+
+				break;
+
+			case FAILED:
+
+				//Server couldn't do whatever we asked for this channel
+				if(fields.length >= 1){
+
+					tracker.acknowledge(getKey(Opcode.TRANSFER, fields[0]), Opcode.FAILED);
+					tracker.acknowledge(getKey(Opcode.QUEUE, fields[0]), Opcode.FAILED);
+					tracker.acknowledge(getKey(Opcode.HANGUP, fields[0]), Opcode.FAILED);
+
+				}
+
+				break;
+
+			case CALLER:
+
+				//First person's ID is straight after the header
+				if(fields.length > CALLER_HEADER_FIELDS && !fields[4].equals("0")){
+
+					people.put(fields[0], fields[CALLER_HEADER_FIELDS]);
+
+					if(knownPeople.size() < MAX_KNOWN_PEOPLE)
+						knownPeople.add(fields[CALLER_HEADER_FIELDS]);
+
+				}
+
+				break;
+
+			case CHANGED:
+			case CHANGEFAILED:
+
+				if(fields.length >= 1)
+					tracker.acknowledge(getKey(Opcode.CHANGEEXISTING, fields[0]),
+							command.getOpcode());
+
+				break;
+
+			case UPDATEFIELD:
+
+				//UPDATEFIELD/field/channel/value
+				if(fields.length == 3)
+					tracker.acknowledge(getKey(Opcode.UPDATEFIELD, fields[2]), Opcode.UPDATEFIELD);
+
+				break;
+
+			case HANGUP:
+
+				//HANGUP/caller/channel
+				if(fields.length == 2)
+					processHangup(fields[1]);
+
+				break;
+
+			default:
+				break;
+
+		}
+
+	}
+
+	/**
+	 * Forgets the caller and acknowledges anything we were waiting on for the call
+	 * @param channel
+	 */
+	private void processHangup(String channel){
+
+		people.remove(channel);
+
+		tracker.acknowledge(getKey(Opcode.HANGUP, channel), Opcode.HANGUP);
+		tracker.acknowledge(getKey(Opcode.TRANSFER, channel), Opcode.HANGUP);
+		tracker.acknowledge(getKey(Opcode.QUEUE, channel), Opcode.HANGUP);
+		tracker.acknowledge(getKey(Opcode.CHANGEEXISTING, channel), Opcode.HANGUP);
+
+	}
+
+	/**
+	 * UPDATEFIELD keys are shared, anyone receiving it acknowledges it, everything
+	 * else is ours
+	 * @param command
+	 * @param id channel or UPDATEFIELD value
+	 * @return
+	 */
+	private String getKey(Opcode command, String id){
+
+		String key = null;
+
+		if(command == Opcode.UPDATEFIELD)
+			key = command + "/" + id;
+		else
+			key = nickname + "/" + command + "/" + id;
+
+		return key;
+
+	}
+
+	/**
+	 * Returns the channels of calls answered by us that we're not already queueing
+	 * or hanging up
+	 * @return
+	 */
+	private List<String> getAnswered(){
+
+		List<CallState> calls = callState.getCalls(CallState.MODE_ANSWERED);
+		ArrayList<String> answered = new ArrayList<String>();
+
+		for(int i = 0; i < calls.size(); i++){
+
+			String channel = calls.get(i).getChannelID();
+
+			if(!tracker.isPending(getKey(Opcode.QUEUE, channel)) &&
+					!tracker.isPending(getKey(Opcode.HANGUP, channel)))
+				answered.add(channel);
+
+		}
+
+		return answered;
+
+	}
+
+}
@@ -0,0 +1,568 @@
+package com.github.waynemerricks.asteriskphone.simulator;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import org.asteriskjava.live.AsteriskChannel;
+import org.asteriskjava.live.CallerId;
+import org.asteriskjava.live.ChannelState;
+import org.asteriskjava.live.Extension;
+import org.jivesoftware.smack.packet.Message;
+import org.jivesoftware.smackx.muc.MultiUserChat;
+
+import com.github.waynemerricks.asteriskphone.asterisk.AsteriskManager;
+import com.github.waynemerricks.asteriskphone.asterisk.EventPipeline;
+import com.github.waynemerricks.asteriskphone.asterisk.TrafficRecorder;
+import com.github.waynemerricks.asteriskphone.database.DatabaseManager;
+import com.github.waynemerricks.asteriskphone.database.Settings;
+import com.github.waynemerricks.asteriskphone.protocol.ControlMessage;
+import com.github.waynemerricks.asteriskphone.protocol.ControlMessageCodec;
+import com.github.waynemerricks.asteriskphone.protocol.StateSnapshot;
+
+/**
+ * Replays a TrafficRecorder file through a real AsteriskManager so a busy night can
+ * be reproduced on a laptop.
+ *
+ * Asterisk is a ReplayAsteriskServer and XMPP is a ReplayConnection so only the DB is
+ * real, point the database settings at a scratch copy as the replayed calls are
+ * written to it like any others.  Events are fed at the recorded pace, a multiple of
+ * it (10 = ten times as fast) or as fast as possible (max).
+ *
+ * When everything has drained it prints:
+ * Latency from an event on a channel to the first control message sent that
+ * mentions that channel
+ * Throughput of events fed and control messages sent
+ * Executor saturation, the deepest each pipeline stage got and how often there was
+ * more work waiting than workers to do it
+ *
+ * Usage: TrafficReplay file [1|10|max] [language country]
+ * @author Wayne Merricks
+ *
+ */
+public class TrafficReplay implements ReplayConnection.SentListener {
+
+	//CLASS VARS
+	private AsteriskManager manager;
+	private EventPipeline pipeline;
+	private ReplayAsteriskServer server;
+	private String roomName;
+	private double speed; //0 = max
+	private ConcurrentHashMap<String, Long> lastEvent = new ConcurrentHashMap<String, Long>();
+	private List<Long> latencies = Collections.synchronizedList(new ArrayList<Long>());
+	private AtomicLong sent = new AtomicLong(), lastSent = new AtomicLong();
+	private long events = 0, received = 0, recordedSent = 0, skipped = 0;
+	private long maxIngestDepth = 0, maxLaneDepth = 0, maxWorkerDepth = 0;
+	private long samples = 0, saturatedSamples = 0;
+	private ScheduledExecutorService sampler;
+	private I18NStrings xStrings;
+
+	//STATICS
+	private static final Logger LOGGER = Logger.getLogger(TrafficReplay.class.getName());//Logger
+	private static final String SPEED_MAX = "max";
+	private static final long SAMPLE_PERIOD = 100L; //How often to look at the pipeline
+	private static final long QUIET_PERIOD = 2000L; //Nothing sent for this long = finished
+	private static final long DRAIN_TIMEOUT = 60000L; //Give up waiting to finish after this
+	private static final long NANOS_PER_MS = 1000000L;
+
+	/**
+	 * Creates an AsteriskManager on stand in Asterisk and XMPP servers
+	 * @param database connected DatabaseManager with the server settings loaded
+	 * @param speed multiple of the recorded pace, 0 for as fast as possible
+	 */
+	public TrafficReplay(DatabaseManager database, double speed){
+
+		HashMap<String, String> settings = database.getUserSettings();
+
+		xStrings = new I18NStrings(settings.get("language"), settings.get("country"));
+		this.speed = speed;
+		roomName = settings.get("XMPPControlRoom");
+		server = new ReplayAsteriskServer();
+
+		ReplayConnection connection = new ReplayConnection(settings.get("XMPPLogin") + "@" +
+				settings.get("XMPPDomain"), this);
+		pipeline = new EventPipeline(settings);
+		manager = new AsteriskManager(database, new MultiUserChat(connection, roomName),
+				server.getServer(), pipeline);
+
+	}
+
+	/**
+	 * Feeds the recording to AsteriskManager, waits for it to finish and prints the report
+	 * @param fileName TrafficRecorder file
+	 * @throws IOException if the file can't be read or isn't a recording
+	 */
+	public void replay(String fileName) throws IOException {
+
+		BufferedReader reader = new BufferedReader(new InputStreamReader(
+				new FileInputStream(fileName), "UTF-8"));
+
+		try{
+
+			String line = reader.readLine();
+
+			if(line == null || !line.startsWith(TrafficRecorder.HEADER))
+				throw new IOException(xStrings.getString("TrafficReplay.notARecording") +
+						fileName);
+
+			manager.connect();
+			manager.startProcessingMessages();
+			startSampling();
+
+			LOGGER.info(xStrings.getString("TrafficReplay.replaying") + fileName);
+
+			long started = System.nanoTime();
+			long recorded = 0;
+
+			while((line = reader.readLine()) != null){
+
+				//Appended recordings have a header each time the server started
+				if(line.length() > 0 && !line.startsWith(TrafficRecorder.HEADER)){
+
+					try{
+
+						String[] fields = TrafficRecorder.split(line, TrafficRecorder.SEPARATOR);
+						recorded = Long.parseLong(fields[0]);
+
+						waitUntil(started, recorded);
+						feed(fields);
+
+					}catch(NumberFormatException | ArrayIndexOutOfBoundsException e){
+
+						skipped++;
+						LOGGER.warning(xStrings.getString("TrafficReplay.badRecord") + line);
+
+					}
+
+				}
+
+			}
+
+			long fed = System.nanoTime() - started;
+
+			drain();
+
+			long finished = System.nanoTime() - started;
+
+			stopSampling();
+			report(recorded, fed, finished);
+
+		}finally{
+
+			stopSampling();
+			manager.disconnect();
+			reader.close();
+
+		}
+
+	}
+
+	/**
+	 * Sleeps until the recorded time at the current speed
+	 * @param started when the replay started (System.nanoTime)
+	 * @param recorded ms since the recording started
+	 */
+	private void waitUntil(long started, long recorded){
+
+		if(speed > 0){
+
+			long wait = (long)(recorded / speed) - (System.nanoTime() - started) / NANOS_PER_MS;
+
+			if(wait > 0)
+				try{
+					Thread.sleep(wait);
+				}catch(InterruptedException e){
+					Thread.currentThread().interrupt();
+				}
+
+		}
+
+	}
+
+	/**
+	 * Feeds one record to AsteriskManager the same way asterisk-java or Smack would
+	 * @param fields split record
+	 */
+	private void feed(String[] fields){
+
+		String type = fields[1];
+
+		if(type.equals(TrafficRecorder.NEW_CHANNEL)){
+
+			AsteriskChannel channel = server.addChannel(fields[2], fields[3],
+					(CallerId)decodeValue(fields[4], CallerId.class),
+					(ChannelState)decodeValue(fields[5], ChannelState.class));
+
+			fed(fields[2]);
+			manager.onNewAsteriskChannel(channel);
+
+		}else if(type.equals(TrafficRecorder.QUEUE_ENTRY)){
+
+			AsteriskChannel channel = server.addChannel(fields[2], fields[4],
+					(CallerId)decodeValue(fields[5], CallerId.class),
+					(ChannelState)decodeValue(fields[6], ChannelState.class));
+
+			fed(fields[2]);
+			manager.onNewQueueEntry(server.createQueueEntry(channel, fields[3]));
+
+		}else if(type.equals(TrafficRecorder.PROPERTY_CHANGE)){
+
+			fed(fields[2]);
+			server.changeProperty(fields[2], fields[3], decodeValue(fields[4], Object.class),
+					decodeValue(fields[5], Object.class));
+
+		}else if(type.equals(TrafficRecorder.RECEIVED)){
+
+			Message message = new Message(roomName, Message.Type.groupchat);
+			message.setFrom(roomName + "/" + fields[2]);
+			message.setBody(fields[4]);
+
+			if(fields[3].equals("1"))
+				message.setProperty(StateSnapshot.REQUEST_PROPERTY, true);
+
+			received++;
+			manager.processPacket(message);
+
+		}else if(type.equals(TrafficRecorder.SENT))
+			recordedSent++;
+		else
+			skipped++;
+
+	}
+
+	/**
+	 * Notes the time we fed an event for this channel
+	 * @param channelID
+	 */
+	private void fed(String channelID){
+
+		events++;
+		lastEvent.put(channelID, System.nanoTime());
+
+	}
+
+	/**
+	 * Rebuilds a value written by TrafficRecorder.encodeValue
+	 * @param encoded
+	 * @param type expected type, anything else is returned as null
+	 * @return
+	 */
+	private Object decodeValue(String encoded, Class<?> type){
+
+		Object value = null;
+
+		if(encoded.length() > 0 && !encoded.equals(TrafficRecorder.NULL_VALUE)){
+
+			String payload = encoded.substring(1);
+			String[] parts = TrafficRecorder.split(payload, TrafficRecorder.PART_SEPARATOR);
+
+			switch(encoded.charAt(0)){
+
+				case TrafficRecorder.TYPE_CHANNEL:
+					value = server.getChannel(payload);
+					break;
+				case TrafficRecorder.TYPE_CALLER_ID:
+					value = new CallerId((String)decodeValue(parts[0], String.class),
+							(String)decodeValue(parts[1], String.class));
+					break;
+				case TrafficRecorder.TYPE_EXTENSION:
+					String priority = (String)decodeValue(parts[2], String.class);
+					value = new Extension((String)decodeValue(parts[0], String.class),
+							(String)decodeValue(parts[1], String.class),
+							priority == null ? null : Integer.valueOf(priority));
+					break;
+				case TrafficRecorder.TYPE_ENUM:
+					value = decodeEnum(parts[0], parts[1]);
+					break;
+				case TrafficRecorder.TYPE_DATE:
+					value = new Date(Long.parseLong(payload));
+					break;
+				case TrafficRecorder.TYPE_TEXT:
+					value = payload;
+					break;
+
+			}
+
+		}
+
+		if(!type.isInstance(value))
+			value = null;
+
+		return value;
+
+	}
+
+	/**
+	 * Returns the asterisk-java enum constant with the given class and name
+	 * @param className
+	 * @param name
+	 * @return null if it isn't an asterisk-java enum or doesn't exist
+	 */
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	private Object decodeEnum(String className, String name){
+
+		Object value = null;
+
+		//Only asterisk-java's own types, never load anything else a file names
+		if(className.startsWith("org.asteriskjava.")){
+
+			try{
+
+				Class<?> enumClass = Class.forName(className);
+
+				if(enumClass.isEnum())
+					value = Enum.valueOf((Class<Enum>)enumClass, name);
+
+			}catch(ClassNotFoundException | IllegalArgumentException e){
+				LOGGER.warning(xStrings.getString("TrafficReplay.unknownValue") + className +
+						"." + name);
+			}
+
+		}
+
+		return value;
+
+	}
+
+	/**
+	 * Times every control message sent against the last event on any channel it mentions
+	 */
+	@Override
+	public void sent(Message message){
+
+		long now = System.nanoTime();
+
+		sent.incrementAndGet();
+		lastSent.set(now);
+
+		String[] fields = ControlMessageCodec.decode(message.getBody()).getFields();
+
+		for(int i = 0; i < fields.length; i++){
+
+			Long fed = lastEvent.remove(fields[i]);
+
+			if(fed != null)
+				latencies.add((now - fed) / NANOS_PER_MS);
+
+		}
+
+	}
+
+	/**
+	 * Waits until the pipeline is empty and nothing has been sent for QUIET_PERIOD
+	 */
+	private void drain(){
+
+		long giveUp = System.currentTimeMillis() + DRAIN_TIMEOUT;
+		boolean drained = false;
+
+		lastSent.compareAndSet(0, System.nanoTime());
+
+		while(!drained && System.currentTimeMillis() < giveUp){
+
+			drained = pipeline.getIngestStats().getDepth() == 0 &&
+					pipeline.getLaneStats().getDepth() == 0 &&
+					pipeline.getWorkerStats().getDepth() == 0 &&
+					(System.nanoTime() - lastSent.get()) / NANOS_PER_MS >= QUIET_PERIOD;
+
+			if(!drained)
+				try{
+					Thread.sleep(SAMPLE_PERIOD);
+				}catch(InterruptedException e){
+					Thread.currentThread().interrupt();
+					giveUp = 0;
+				}
+
+		}
+
+		if(!drained)
+			LOGGER.warning(xStrings.getString("TrafficReplay.drainTimedOut") + pipeline);
+
+	}
+
+	/**
+	 * Samples the pipeline queue depths every SAMPLE_PERIOD on a background thread
+	 */
+	private void startSampling(){
+
+		sampler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory(){
+			public Thread newThread(Runnable r){
+				Thread thread = new Thread(r, "TrafficReplaySampler");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+
+		sampler.scheduleAtFixedRate(new Runnable(){
+			public void run(){
+				sample();
+			}
+		}, 0, SAMPLE_PERIOD, TimeUnit.MILLISECONDS);
+
+	}
+
+	private void stopSampling(){
+
+		if(sampler != null){
+
+			sampler.shutdown();
+
+			try{
+				sampler.awaitTermination(SAMPLE_PERIOD * 10, TimeUnit.MILLISECONDS);
+			}catch(InterruptedException e){
+				Thread.currentThread().interrupt();
+			}
+
+			sampler = null;
+
+		}
+
+	}
+
+	/**
+	 * Records the deepest queues seen and whether the workers are saturated
+	 */
+	private void sample(){
+
+		long workerDepth = pipeline.getWorkerStats().getDepth();
+
+		maxIngestDepth = Math.max(maxIngestDepth, pipeline.getIngestStats().getDepth());
+		maxLaneDepth = Math.max(maxLaneDepth, pipeline.getLaneStats().getDepth());
+		maxWorkerDepth = Math.max(maxWorkerDepth, workerDepth);
+
+		samples++;
+
+		//Depth includes running tasks so more than there are workers means work is waiting
+		if(workerDepth > pipeline.getWorkerCount())
+			saturatedSamples++;
+
+	}
+
+	/**
+	 * Prints the results
+	 * @param recorded length of the recording in ms
+	 * @param fed ns taken to feed every event
+	 * @param finished ns taken until everything drained
+	 */
+	private void report(long recorded, long fed, long finished){
+
+		long fedMillis = Math.max(1, fed / NANOS_PER_MS);
+		long finishedMillis = Math.max(1, finished / NANOS_PER_MS);
+		List<Long> sorted = new ArrayList<Long>(latencies);
+		Collections.sort(sorted);
+
+		long total = 0;
+
+		for(int i = 0; i < sorted.size(); i++)
+			total += sorted.get(i);
+
+		System.out.println(xStrings.getString("TrafficReplay.reportRecords") + events + " / " +
+				received + " / " + skipped);
+		System.out.println(xStrings.getString("TrafficReplay.reportDuration") + recorded +
+				" / " + fedMillis + " / " + finishedMillis);
+		System.out.println(xStrings.getString("TrafficReplay.reportThroughput") +
+				(events + received) * 1000 / fedMillis + " / " + sent.get() * 1000 / finishedMillis);
+		System.out.println(xStrings.getString("TrafficReplay.reportSent") + sent.get() + " / " +
+				recordedSent + " / " + server.getActionCount());
+		System.out.println(xStrings.getString("TrafficReplay.reportLatency") + sorted.size() +
+				" / " + (sorted.size() > 0 ? total / sorted.size() : 0) + " / " +
+				percentile(sorted, 50) + " / " + percentile(sorted, 95) + " / " +
+				percentile(sorted, 99) + " / " + percentile(sorted, 100));
+		System.out.println(xStrings.getString("TrafficReplay.reportSaturation") +
+				maxIngestDepth + " / " + maxLaneDepth + " / " + maxWorkerDepth + " / " +
+				(samples > 0 ? saturatedSamples * 100 / samples : 0) + "%");
+		System.out.println(xStrings.getString("TrafficReplay.reportPipeline") +
+				pipeline);
+
+	}
+
+	/**
+	 * Returns the given percentile of a sorted list
+	 * @param sorted
+	 * @param percentile 1 - 100
+	 * @return 0 if the list is empty
+	 */
+	private static long percentile(List<Long> sorted, int percentile){
+
+		long value = 0;
+
+		if(sorted.size() > 0)
+			value = sorted.get(Math.max(0, (int)Math.ceil(sorted.size() * percentile / 100.0) - 1));
+
+		return value;
+
+	}
+
+	public static void main(String[] args){
+
+		String language = "en";
+		String country = "GB";
+		double speed = 1;
+
+		if(args.length >= 4){
+
+			language = args[2];
+			country = args[3];
+
+		}
+
+		I18NStrings xStrings = new I18NStrings(language, country);
+
+		if(args.length == 0){
+
+			System.err.println(xStrings.getString("TrafficReplay.usage"));
+			System.exit(1);
+
+		}
+
+		if(args.length >= 2){
+
+			if(args[1].equalsIgnoreCase(SPEED_MAX))
+				speed = 0;
+			else
+				speed = Double.parseDouble(args[1]);
+
+		}
+
+		DatabaseManager database = new DatabaseManager(new Settings(), language, country);
+		int exitCode = 1;
+
+		if(!database.hasErrors() && database.connect()){
+
+			database.populateUserSettings("server");
+			ControlMessageCodec.setEncodeVersion(database.getUserSettings()
+					.get("controlProtocolVersion"));
+
+			try{
+
+				new TrafficReplay(database, speed).replay(args[0]);
+				exitCode = 0;
+
+			}catch(IOException e){
+				System.err.println(xStrings.getString("TrafficReplay.errorReading") +
+						e.getMessage());
+			}
+
+			database.disconnect();
+
+		}
+
+		//Smack and asterisk-java leave threads behind
+		System.exit(exitCode);
+
+	}
+
+}